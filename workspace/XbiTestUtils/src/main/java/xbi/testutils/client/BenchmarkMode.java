@@ -0,0 +1,204 @@
+/**
+ *
+ */
+package xbi.testutils.client;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import xbi.testutils.dbunit.KettleTestCaseConfiguration;
+import xbi.testutils.dbunit.TableConflicts;
+import xbi.testutils.kettle.Benchmark;
+import xbi.testutils.kettle.TransformationRunner;
+import xbi.testutils.kettle.TuningSweep;
+
+/**
+ * This mode will benchmark the Kettle artifacts of an XML test configuration.
+ * For every &lt;Test&gt; the input data is loaded once, then the artifact is
+ * run a number of times to warm up and a number of times to measure. The
+ * target tables are cleaned up before every run and after the last. Expected
+ * results are not compared. With a tuning grid, every combination of the grid
+ * is benchmarked and a ranked table is printed.
+ *
+ * @author eniesc200
+ */
+class BenchmarkMode extends Mode {
+
+	private static final Logger LOGGER = LoggerFactory
+			.getLogger(BenchmarkMode.class);
+
+	// configurations for the artifacts to benchmark, in file order
+	private List<KettleTestCaseConfiguration> configurations = new ArrayList<KettleTestCaseConfiguration>();
+
+	private int warmups = 3;
+
+	private int runs = 10;
+
+	private boolean safeModeEnabled = TransformationRunner
+			.isSafeModeEnabledByDefault();
+
+	// the tuning grid to sweep, null to benchmark the artifacts as saved
+	private String tuningGrid;
+
+	private boolean isValid = false;
+
+	/**
+	 *
+	 */
+	BenchmarkMode() {
+		super();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see xbi.testutils.client.Mode#execute()
+	 */
+	@Override
+	void execute() {
+		for (KettleTestCaseConfiguration configuration : configurations) {
+			for (File f : configuration.getInFiles()) {
+				connector.loadDataSet(f);
+			}
+			for (String table : configuration.getTargetTables().keySet()) {
+				connector.registerTableForCleanup(table);
+			}
+
+			Runnable cleanup = new Runnable() {
+				public void run() {
+					connector.cleanupDatabase();
+				}
+			};
+			try {
+				if (tuningGrid != null) {
+					tune(configuration, cleanup);
+				} else {
+					benchmark(configuration, cleanup);
+				}
+			} finally {
+				connector.cleanupDatabase();
+			}
+		}
+	}
+
+	private void benchmark(KettleTestCaseConfiguration configuration,
+			Runnable cleanup) {
+		Benchmark benchmark = new Benchmark(configuration.getExecutableFile(),
+				warmups, runs);
+		benchmark.setParameters(configuration.getParams());
+		benchmark.setSafeModeEnabled(safeModeEnabled);
+		benchmark.setBeforeRun(cleanup);
+		benchmark.run();
+		LOGGER.info("Test " + configuration.getName() + ": " + benchmark);
+	}
+
+	private void tune(KettleTestCaseConfiguration configuration,
+			Runnable cleanup) {
+		TuningSweep sweep = new TuningSweep(configuration.getExecutableFile(),
+				warmups, runs);
+		sweep.setGrid(tuningGrid);
+		sweep.setParameters(configuration.getParams());
+		sweep.setSafeModeEnabled(safeModeEnabled);
+		sweep.setBeforeRun(cleanup);
+		List<Benchmark> ranked = sweep.run();
+		LOGGER.info("Test " + configuration.getName() + ": "
+				+ sweep.formatReport(ranked));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see xbi.testutils.client.Mode#isValid()
+	 */
+	@Override
+	boolean isValid() {
+		return isValid;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see xbi.testutils.client.Mode#getTouchedTables()
+	 */
+	@Override
+	Set<String> getTouchedTables() {
+		Set<String> tables = new HashSet<String>();
+		for (KettleTestCaseConfiguration configuration : configurations) {
+			tables.addAll(TableConflicts.touchedTables(configuration));
+		}
+		return tables;
+	}
+
+	/**
+	 * Helper method to read the artifacts to benchmark from an XML test
+	 * configuration file.
+	 *
+	 * @param config
+	 *            XML test case configuration
+	 * @throws IllegalStateException
+	 *             if the initialization fails
+	 */
+	void loadFromXMLConfig(File config) throws IllegalStateException {
+		TestConfigReader reader = new TestConfigReader(config);
+		configurations = reader.getConfigurations();
+		isValid = true; // the build will have thrown an IllegalStateException
+						// if not valid
+	}
+
+	/**
+	 * @param warmups
+	 *            the number of runs to throw away before measuring
+	 */
+	void setWarmups(int warmups) {
+		this.warmups = warmups;
+	}
+
+	/**
+	 * @param runs
+	 *            the number of runs to measure
+	 */
+	void setRuns(int runs) {
+		this.runs = runs;
+	}
+
+	/**
+	 * @param safeModeEnabled
+	 *            false to run transformations without Kettle's safe mode
+	 */
+	void setSafeModeEnabled(boolean safeModeEnabled) {
+		this.safeModeEnabled = safeModeEnabled;
+	}
+
+	/**
+	 * @param tuningGrid
+	 *            the grid of row set sizes, feedback sizes and step copies to
+	 *            sweep, see {@link TuningSweep}
+	 */
+	void setTuningGrid(String tuningGrid) {
+		this.tuningGrid = tuningGrid;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString() {
+		StringBuffer buf = new StringBuffer("BenchmarkMode: ");
+		buf.append(warmups);
+		buf.append(" warmup(s), ");
+		buf.append(runs);
+		buf.append(" run(s) of ");
+		for (int i = 0; i < configurations.size(); i++) {
+			buf.append(configurations.get(i).getExecutableFile().getName());
+			if (i < (configurations.size() - 1)) {
+				buf.append(',');
+			}
+		}
+		return buf.toString();
+	}
+}
@@ -4,19 +4,33 @@
 package xbi.testutils.client;
 
 import java.io.File;
-import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import xbi.testutils.dbunit.Connector;
+import xbi.testutils.dbunit.TableConflicts;
+
 /**
  * This mode will dump data into in a single DBUnit format XML data file. What
  * to dump depends on the SQL queries passed in. Multiple queries (and tables)
  * can be dumped into a single output file.
  * 
+ * Rows are written as they are fetched, so the size of the dump is not
+ * limited by memory. The file can be gzip compressed.
+ * 
+ * Up to {@link #setThreads(int)} queries run at the same time, each on a
+ * connection of its own. The tables are written in the order they were given
+ * either way. The query of a large table can be split into ranges of a
+ * numeric key column, see {@link #setSplitKeys(String)}, that are dumped at
+ * the same time too.
+ * 
  * @author eniesc200
  */
 class DumpTestDataMode extends Mode {
@@ -29,12 +43,33 @@ class DumpTestDataMode extends Mode {
 	// the output dump file. there can be only one.
 	private File dumpFile = null;
 
-	// a map of table names to queries
-	private Map<String, String> sqlMap = new HashMap<String, String>();
+	// a map of table names to queries, in the order to write them
+	private Map<String, String> sqlMap = new LinkedHashMap<String, String>();
+
+	// rows fetched per round trip
+	private int fetchSize = Integer.getInteger(Connector.PROP_DUMP_FETCH_SIZE,
+			Connector.DEFAULT_DUMP_FETCH_SIZE);
+
+	// queries run at the same time
+	private int threads = Integer.getInteger(Connector.PROP_DUMP_THREADS,
+			Connector.DEFAULT_DUMP_THREADS);
+
+	// table name -> numeric key column to split its query on
+	private Map<String, String> splitKeys = new LinkedHashMap<String, String>();
+
+	// key ranges per split query
+	private int splits = Integer.getInteger(Connector.PROP_DUMP_SPLITS,
+			Connector.DEFAULT_DUMP_SPLITS);
+
+	// gzip the dump file
+	private boolean compressed = false;
 
 	// regex for parsing parameter formats that use {:} formatting
 	private final static String CURLY_BRACE_FORMAT_REGEX = "\\{([\\w:\\s,*.]+)\\}";
 
+	// a split key is a plain column name, as it becomes part of the SQL
+	private final static String KEY_COLUMN_REGEX = "[A-Za-z][\\w$#]*";
+
 	/**
 	 * @param outputFile
 	 *            the file to dump the output data to.
@@ -64,16 +99,17 @@ class DumpTestDataMode extends Mode {
 		}
 
 		try {
-			LOGGER.info("Creating " + dumpFile.getAbsolutePath());
-			super.connector.dumpXml(this.sqlMap, dumpFile.getAbsolutePath());
+			LOGGER.info("Creating " + dumpFile.getAbsolutePath()
+					+ " with fetch size " + fetchSize + ", " + threads
+					+ " thread(s)" + (compressed ? ", gzipped" : ""));
+			super.connector.streamXml(this.sqlMap, dumpFile, fetchSize,
+					compressed, threads, splitKeys, splits);
+			LOGGER.info("Created " + dumpFile.getAbsolutePath());
 		} catch (Exception e) {
+			// the connector has deleted the incomplete file
 			LOGGER.error("Failed to create dump file: " + e.getMessage());
 		}
 
-		if (dumpFile.exists()) {
-			LOGGER.info("Created " + dumpFile.getAbsolutePath());
-		}
-
 	}
 
 	/*
@@ -87,9 +123,48 @@ class DumpTestDataMode extends Mode {
 			LOGGER.warn("Nothing to query. Call setSqlMap() first.");
 			isValid = false;
 		}
+		if (fetchSize < 1) {
+			LOGGER.warn("The fetch size must be at least 1, was " + fetchSize);
+			isValid = false;
+		}
+		if (threads < 1) {
+			LOGGER.warn("The number of dump threads must be at least 1, was "
+					+ threads);
+			isValid = false;
+		}
+		if (splits < 1) {
+			LOGGER.warn("The number of dump splits must be at least 1, was "
+					+ splits);
+			isValid = false;
+		}
+		for (String tableName : splitKeys.keySet()) {
+			if (!sqlMap.containsKey(tableName)) {
+				LOGGER.warn("Split key given for " + tableName
+						+ ", which has no query");
+				isValid = false;
+			}
+		}
+		if (!splitKeys.isEmpty() && threads == 1) {
+			LOGGER.warn("Split keys are ignored when dumping with 1 thread");
+		}
 		return isValid;
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see xbi.testutils.client.Mode#getTouchedTables()
+	 */
+	@Override
+	Set<String> getTouchedTables() {
+		// the output table names usually match the tables being queried
+		Set<String> tables = new HashSet<String>();
+		for (String tableName : sqlMap.keySet()) {
+			tables.add(TableConflicts.normalize(tableName));
+		}
+		return tables;
+	}
+
 	/**
 	 * Helper method to parse a dump query string
 	 * 
@@ -140,12 +215,112 @@ class DumpTestDataMode extends Mode {
 		sqlMap.put(tableName, query);
 	}
 	
+	/**
+	 * @param fetchSize
+	 *            the number of rows fetched from the database per round trip
+	 */
+	void setFetchSize(int fetchSize) {
+		this.fetchSize = fetchSize;
+	}
+
+	/**
+	 * @return the number of rows fetched from the database per round trip
+	 */
+	int getFetchSize() {
+		return fetchSize;
+	}
+
+	/**
+	 * @param threads
+	 *            the most queries to run at the same time, each on a
+	 *            connection of its own
+	 */
+	void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	/**
+	 * @return the most queries to run at the same time
+	 */
+	int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * Helper method to parse the split keys of a dump
+	 * 
+	 * @param splitKeysStr
+	 *            Table name and key column pairs of the form
+	 *            table_name:KEY_COLUMN, comma-delimited (no spaces) for
+	 *            multiple tables. The table name is one of the SQL map; its
+	 *            query is split into ranges of the key column, which must be a
+	 *            numeric column of the query. The rows of a split table are
+	 *            written range after range, not in the order of the query.
+	 */
+	void setSplitKeys(String splitKeysStr) {
+		if (splitKeysStr == null) {
+			throw new NullPointerException();
+		}
+		for (String pair : splitKeysStr.split(",")) {
+			String[] result = pair.split(":");
+			if (result.length == 2
+					&& result[1].trim().matches(KEY_COLUMN_REGEX)) {
+				splitKeys.put(result[0].trim(), result[1].trim());
+			} else {
+				LOGGER.warn("Ignoring split key \"" + pair
+						+ "\". Check the syntax.");
+			}
+		}
+	}
+
+	/**
+	 * @return table name -> the key column its query is split on
+	 */
+	Map<String, String> getSplitKeys() {
+		return new LinkedHashMap<String, String>(splitKeys);
+	}
+
+	/**
+	 * @param splits
+	 *            the number of key ranges to split each query with a split key
+	 *            into
+	 */
+	void setSplits(int splits) {
+		this.splits = splits;
+	}
+
+	/**
+	 * @return the number of key ranges to split each query with a split key
+	 *         into
+	 */
+	int getSplits() {
+		return splits;
+	}
+
+	/**
+	 * Compresses the dump file with gzip. ".gz" is added to the file name if
+	 * it does not end with it.
+	 */
+	void setCompressed() {
+		compressed = true;
+		if (!dumpFile.getName().endsWith(".gz")) {
+			dumpFile = new File(dumpFile.getPath() + ".gz");
+		}
+	}
+
+	/**
+	 * @return the file the dump is written to
+	 */
+	File getDumpFile() {
+		return dumpFile;
+	}
+
 	/**
 	 * Get the current SQL map.
 	 * @return the current SQL map.
 	 */
 	Map<String, String> getSqlMap() {
-		Map<String, String> copy = new HashMap<String, String>();
+		Map<String, String> copy = new LinkedHashMap<String, String>();
 		for (Map.Entry<String, String> entry : sqlMap.entrySet()) {
 			copy.put(entry.getKey(), entry.getValue());
 		}
@@ -158,6 +333,10 @@ class DumpTestDataMode extends Mode {
 	public String toString() {
 		StringBuffer buf = new StringBuffer("DumpTestDataMode: Dumping to ");
 		buf.append(dumpFile.getAbsolutePath());
+		buf.append(", fetch size ");
+		buf.append(fetchSize);
+		buf.append(", threads ");
+		buf.append(threads);
 		return buf.toString();
 	}
 }
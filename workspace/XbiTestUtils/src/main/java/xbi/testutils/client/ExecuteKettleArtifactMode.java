@@ -1,45 +1,56 @@
 /**
- * 
+ *
  */
 package xbi.testutils.client;
 
 import java.io.File;
-import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
-import org.jdom.Document;
-import org.jdom.Element;
-import org.jdom.JDOMException;
-import org.jdom.input.SAXBuilder;
+import org.junit.runner.Description;
 import org.junit.runner.JUnitCore;
 import org.junit.runner.Result;
 import org.junit.runner.notification.Failure;
+import org.junit.runner.notification.RunListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import xbi.testutils.dbunit.ConfigurableKettleTestCase;
+import xbi.testutils.dbunit.KettleSuiteRunner;
 import xbi.testutils.dbunit.KettleTestCaseConfiguration;
+import xbi.testutils.dbunit.TableConflicts;
+import xbi.testutils.kettle.TransMetaCache;
+import xbi.testutils.kettle.VerificationCache;
 
 
 /**
- * This mode will execute a Kettle DBUnit test for a single Kettle artifact (as
- * defined in an XML file - KTR/KJB).
- * 
+ * This mode will execute Kettle DBUnit tests for the Kettle artifacts (as
+ * defined in an XML file - KTR/KJB). Every &lt;Test&gt; in the XML file is run
+ * as part of a single suite in this JVM, sharing the Kettle environment.
+ *
  * @author eniesc200
- * 
+ *
  */
 class ExecuteKettleArtifactMode extends Mode {
 
 	private static final Logger LOGGER = LoggerFactory
 			.getLogger(ExecuteKettleArtifactMode.class);
 
-	// configuration for a single test case run
-	private KettleTestCaseConfiguration configuration;
+	// configurations for the test cases in the suite, in file order
+	private List<KettleTestCaseConfiguration> configurations = new ArrayList<KettleTestCaseConfiguration>();
+
+	// the maximum number of test cases of the suite to run at the same time
+	private int threads = 1;
 
 	private boolean isValid = false;
 
 	/**
-	 * 
+	 *
 	 */
 	ExecuteKettleArtifactMode() {
 		super();
@@ -47,22 +58,39 @@ class ExecuteKettleArtifactMode extends Mode {
 
 	/*
 	 * (non-Javadoc)
-	 * 
+	 *
 	 * @see xbi.testutils.client.Mode#execute()
 	 */
 	@Override
 	void execute() {
-		ConfigurableKettleTestCase.addConfiguration(this.configuration);
-		Result result = JUnitCore.runClasses(ConfigurableKettleTestCase.class);
+		TimingListener timings = new TimingListener();
+		JUnitCore core = new JUnitCore();
+		core.addListener(timings);
+		Result result = core.run(new KettleSuiteRunner(configurations, threads));
 		for (Failure failure : result.getFailures()) {
 			LOGGER.error(failure.toString());
 		}
+
+		long[] elapsed = timings.getElapsed(configurations.size());
+		for (int i = 0; i < configurations.size(); i++) {
+			LOGGER.info("Test " + configurations.get(i).getName() + ": "
+					+ elapsed[i] + " ms");
+		}
+		LOGGER.info("Ran " + result.getRunCount() + " test(s) for "
+				+ configurations.size() + " configuration(s) in "
+				+ result.getRunTime() + " ms");
+		LOGGER.info("Transformation metadata cache: "
+				+ TransMetaCache.INSTANCE.getHits() + " hit(s), "
+				+ TransMetaCache.INSTANCE.getMisses() + " miss(es)");
+		LOGGER.info("Verification cache: "
+				+ VerificationCache.INSTANCE.getHits() + " hit(s), "
+				+ VerificationCache.INSTANCE.getMisses() + " miss(es)");
 		LOGGER.info("Test success?  " + result.wasSuccessful());
 	}
 
 	/*
 	 * (non-Javadoc)
-	 * 
+	 *
 	 * @see xbi.testutils.client.Mode#isValid()
 	 */
 	@Override
@@ -70,116 +98,102 @@ class ExecuteKettleArtifactMode extends Mode {
 		return isValid;
 	}
 
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see xbi.testutils.client.Mode#getTouchedTables()
+	 */
+	@Override
+	Set<String> getTouchedTables() {
+		Set<String> tables = new HashSet<String>();
+		for (KettleTestCaseConfiguration configuration : configurations) {
+			tables.addAll(TableConflicts.touchedTables(configuration));
+		}
+		return tables;
+	}
+
 	/**
-	 * Helper method to initialize a DBUnit Kettle test case from an XML configuration file.
-	 * 
+	 * Helper method to initialize the DBUnit Kettle test cases from an XML
+	 * configuration file. One test case is configured for each &lt;Test&gt;
+	 * element.
+	 *
 	 * @param config
 	 *            XML test case configuration
 	 * @throws IllegalStateException
 	 *             if the initialization fails
 	 */
 	public void loadFromXMLConfig(File config) throws IllegalStateException {
-		if (config == null) {
-			throw new NullPointerException("xmlConfigFile");
-		}
-		if (!config.exists() || !config.canRead()) {
-			throw new IllegalStateException("Config file "
-					+ config.getAbsolutePath()
-					+ " does not exist or cannot be read.");
-		}
-		LOGGER.debug("Parsing config file: " + config.getAbsolutePath());
-
-		KettleTestCaseConfiguration.Builder builder = null;
-		SAXBuilder saxBuilder = new SAXBuilder();
-
-		Document doc = null;
-		try {
-			doc = saxBuilder.build(config);
-		} catch (JDOMException e) {
-			throw new IllegalStateException(
-					"Failure to parse XML configuration file: "
-							+ e.getMessage());
-		} catch (IOException e) {
-			throw new IllegalStateException(
-					"I/O error reading XML configuration file: "
-							+ e.getMessage());
-		}
-		Element root = doc.getRootElement();
-
-		List<Element> tests = root.getChildren("Test");
-		LOGGER.debug("Num tests found: " + tests.size());
-		for (Element test : tests) {
-			LOGGER.debug("Set Config: Test = " + test.getAttributeValue("name"));
-
-			// executable Pentaho artifact
-			LOGGER.debug("Set Config: Executable = "
-					+ test.getChild("Executable").getText());
-			builder = new KettleTestCaseConfiguration.Builder(new File(test
-					.getChild("Executable").getText()));
-
-			// test data input files
-			Element testData = test.getChild("TestData");
-			List<Element> inputFiles = testData.getChildren("InputFile");
-			for (Element inputFile : inputFiles) {
-				LOGGER.debug("Set Config: Input Test data file = "
-						+ inputFile.getText());
-				builder.addInFile(new File(inputFile.getText()));
-			}
-
-			// expected result files
-			Element expectedResults = test.getChild("ExpectedResults");
-			List<Element> outputFiles = expectedResults
-					.getChildren("OutputFile");
-			for (Element outputFile : outputFiles) {
-				LOGGER.debug("Set Config: Expected Results data file = "
-						+ outputFile.getText());
-				builder.addOutFile(new File(outputFile.getText()));
-			}
-
-			// target tables
-			Element targetTables = test.getChild("TargetTables");
-			List<Element> targets = targetTables.getChildren("TargetTable");
-			for (Element targetTable : targets) {
-				LOGGER.debug("Set Config: Target Table = "
-						+ targetTable.getAttributeValue("name"));
-				builder.addTargetTable(targetTable.getAttributeValue("name"));
-
-				// order bys for each table
-				List<Element> orderBys = targetTable.getChildren("OrderBy");
-				for (Element orderBy : orderBys) {
-					LOGGER.debug("Set Config: \tOrder By =  "
-							+ orderBy.getText() + " on table "
-							+ targetTable.getAttributeValue("name"));
-
-					builder.addOrderBy(targetTable.getAttributeValue("name"),
-							orderBy.getText());
-				}
-			}
-
-			// parameters
-			Element params = test.getChild("Parameters");
-			List<Element> parameters = params.getChildren("Param");
-			for (Element parameter : parameters) {
-				LOGGER.debug("Set Config: Parameter = "
-						+ parameter.getAttributeValue("name") + " with value "
-						+ parameter.getText());
-				builder.addParameter(parameter.getAttributeValue("name"),
-						parameter.getText());
-			}
-
-		}
-		configuration = builder.build();
+		TestConfigReader reader = new TestConfigReader(config);
+		configurations = reader.getConfigurations();
+		threads = reader.getThreads();
 		isValid = true; // the build will have thrown an IllegalStateException
 						// if not valid
-		LOGGER.info("Loaded XML configuration: " + configuration.toString());
+		for (KettleTestCaseConfiguration configuration : configurations) {
+			LOGGER.info("Loaded XML configuration: "
+					+ configuration.toString());
+		}
+	}
+
+	/**
+	 * @return the test case configurations loaded so far
+	 */
+	List<KettleTestCaseConfiguration> getConfigurations() {
+		return new ArrayList<KettleTestCaseConfiguration>(configurations);
 	}
-	
+
 	/* (non-Javadoc)
 	 * @see java.lang.Object#toString()
 	 */
 	public String toString() {
 		StringBuffer buf = new StringBuffer("ExecuteKettleArtifactMode: ");
-		buf.append(configuration.getExecutableFile().getName());
+		for (int i = 0; i < configurations.size(); i++) {
+			buf.append(configurations.get(i).getExecutableFile().getName());
+			if (i < (configurations.size() - 1)) {
+				buf.append(',');
+			}
+		}
 		return buf.toString();
 	}
+
+	/*
+	 * Times each JUnit test and adds the time up per configuration. The
+	 * suite runner names tests after the index of their configuration, e.g.
+	 * "test[2](...)". Notifications are serialized by the suite runner.
+	 */
+	private static class TimingListener extends RunListener {
+		private static final Pattern INDEX = Pattern.compile("\\[(\\d+)\\]");
+
+		private final Map<Description, Long> started = new HashMap<Description, Long>();
+		private final Map<Integer, Long> elapsed = new HashMap<Integer, Long>();
+
+		@Override
+		public void testStarted(Description description) {
+			started.put(description, System.currentTimeMillis());
+		}
+
+		@Override
+		public void testFinished(Description description) {
+			Long start = started.remove(description);
+			Matcher m = INDEX.matcher(description.getDisplayName());
+			if (start == null || !m.find()) {
+				return;
+			}
+			Integer index = Integer.valueOf(m.group(1));
+			long total = System.currentTimeMillis() - start;
+			if (elapsed.containsKey(index)) {
+				total += elapsed.get(index);
+			}
+			elapsed.put(index, total);
+		}
+
+		long[] getElapsed(int count) {
+			long[] result = new long[count];
+			for (Map.Entry<Integer, Long> entry : elapsed.entrySet()) {
+				if (entry.getKey() < count) {
+					result[entry.getKey()] = entry.getValue();
+				}
+			}
+			return result;
+		}
+	}
 }
@@ -5,11 +5,15 @@ package xbi.testutils.client;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import xbi.testutils.dbunit.TableConflicts;
+
 /**
  * This mode will load in DBUnit test data files.
  * 
@@ -64,6 +68,20 @@ class LoadTestDataMode extends Mode {
 		return isValid;
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see xbi.testutils.client.Mode#getTouchedTables()
+	 */
+	@Override
+	Set<String> getTouchedTables() {
+		Set<String> tables = new HashSet<String>();
+		for (File f : this.inFiles) {
+			tables.addAll(TableConflicts.scanTableNames(f));
+		}
+		return tables;
+	}
+
 	/**
 	 * Helper method to parse a list of test data files (comma-separated)
 	 * 
@@ -3,14 +3,15 @@
  */
 package xbi.testutils.client;
 
-import java.io.File;
+import java.util.Collections;
+import java.util.Set;
 
 import org.pentaho.di.core.encryption.Encr;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import xbi.testutils.dbunit.Connector;
-import xbi.testutils.kettle.RunnerFactory;
+import xbi.testutils.kettle.KettleBootstrap;
 
 /**
  * The CLI client has different behavior - modes - depending on the CLI
@@ -31,8 +32,8 @@ abstract class Mode {
 	}
 	
 	private void init() {
-		// this will init the kettle environment and check for kettle.properties
-		RunnerFactory.createRunner(new File(""));
+		// init the kettle environment (once) and check for kettle.properties
+		KettleBootstrap.init();
 
 		// Note that the following system properties are set via the
 		// kettle.properties file under KETTLE_HOME
@@ -58,4 +59,14 @@ abstract class Mode {
 	 *         to be executed.
 	 */
 	abstract boolean isValid();
+
+	/**
+	 * Lists the database tables this mode reads, loads, writes or cleans up.
+	 * Modes that share a table are never run at the same time.
+	 * 
+	 * @return the names of the tables touched by this mode. Empty by default.
+	 */
+	Set<String> getTouchedTables() {
+		return Collections.emptySet();
+	}
 }
@@ -1,16 +1,32 @@
 package xbi.testutils.client;
 
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import xbi.testutils.dbunit.TableConflicts;
+
 /**
  * Singleton to run DB Unit test cases. They will be run in the order that they
- * are added.
- * 
+ * are added. With more than one worker, test cases that touch the same tables
+ * are still run in the order they were added, while everything else runs
+ * concurrently.
+ *
  * @author eniesc200
  */
 enum TestCaseRunner {
@@ -21,9 +37,12 @@ enum TestCaseRunner {
 	// the list of test cases to be run
 	private Queue<Mode> modes = new LinkedList<Mode>();
 
+	// the maximum number of test cases to run at the same time
+	private int workers = 1;
+
 	/**
 	 * Add a test case to be executed.
-	 * 
+	 *
 	 * @param mode
 	 *            the test case to execute.
 	 */
@@ -34,18 +53,112 @@ enum TestCaseRunner {
 		modes.add(mode);
 	}
 
+	/**
+	 * Set the size of the worker pool. The default of 1 runs everything
+	 * sequentially.
+	 *
+	 * @param workers
+	 *            the maximum number of test cases to run at the same time.
+	 */
+	void setWorkers(int workers) {
+		if (workers < 1) {
+			throw new IllegalArgumentException(
+					"Number of workers must be at least 1, was " + workers);
+		}
+		this.workers = workers;
+	}
+
 	/**
 	 * Execute all test cases that have been added.
 	 */
 	void run() {
-		Iterator<Mode> listIterator = modes.iterator();
-		while (listIterator.hasNext()) {
+		long start = System.currentTimeMillis();
+		long summed = 0;
+		int count = modes.size();
+		if (workers <= 1) {
+			Iterator<Mode> listIterator = modes.iterator();
+			while (listIterator.hasNext()) {
+				summed += runMode(modes.poll());
+			}
+		} else {
+			summed = runParallel();
+		}
+		long wallClock = System.currentTimeMillis() - start;
+		LOGGER.info("Ran " + count + " test case(s) on " + workers
+				+ " worker(s). Wall-clock time: " + wallClock
+				+ " ms. Summed test case time: " + summed + " ms.");
+	}
+
+	/*
+	 * Drains the queue into groups of modes sharing tables and runs each group
+	 * on the worker pool. Returns the summed time of all modes.
+	 */
+	private long runParallel() {
+		Map<Mode, Set<String>> tablesByMode = new LinkedHashMap<Mode, Set<String>>();
+		while (!modes.isEmpty()) {
 			Mode m = modes.poll();
-			LOGGER.info("Running " + m.toString());
-			if (m.isValid()) {
-				m.execute();
-				LOGGER.info("Completed " + m.toString());
+			tablesByMode.put(m, m.getTouchedTables());
+		}
+		List<List<Mode>> groups = TableConflicts.partition(tablesByMode);
+		LOGGER.info("Scheduling " + tablesByMode.size() + " test case(s) in "
+				+ groups.size() + " independent group(s)");
+
+		ExecutorService executor = Executors.newFixedThreadPool(
+				Math.min(workers, Math.max(groups.size(), 1)),
+				new WorkerThreadFactory());
+		List<Future<Long>> results = new ArrayList<Future<Long>>();
+		for (final List<Mode> group : groups) {
+			results.add(executor.submit(new Callable<Long>() {
+				public Long call() {
+					long elapsed = 0;
+					for (Mode m : group) {
+						elapsed += runMode(m);
+					}
+					return elapsed;
+				}
+			}));
+		}
+		executor.shutdown();
+
+		long summed = 0;
+		for (Future<Long> result : results) {
+			try {
+				summed += result.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				LOGGER.error("Interrupted waiting for test cases to complete");
+				executor.shutdownNow();
+				break;
+			} catch (ExecutionException e) {
+				LOGGER.error("Test case group failed: " + e.getCause(),
+						e.getCause());
 			}
 		}
+		return summed;
+	}
+
+	/*
+	 * Runs a single mode and returns how long it took.
+	 */
+	private long runMode(Mode m) {
+		long start = System.currentTimeMillis();
+		LOGGER.info("Running " + m.toString());
+		if (m.isValid()) {
+			m.execute();
+			LOGGER.info("Completed " + m.toString() + " in "
+					+ (System.currentTimeMillis() - start) + " ms");
+		}
+		return System.currentTimeMillis() - start;
+	}
+
+	/*
+	 * Names the worker threads so that their log lines can be told apart.
+	 */
+	private static class WorkerThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		public Thread newThread(Runnable r) {
+			return new Thread(r, "xbi-worker-" + count.incrementAndGet());
+		}
 	}
 }
@@ -0,0 +1,355 @@
+/**
+ *
+ */
+package xbi.testutils.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jdom.Document;
+import org.jdom.Element;
+import org.jdom.JDOMException;
+import org.jdom.input.SAXBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import xbi.testutils.dbunit.InjectedInput;
+import xbi.testutils.dbunit.KettleTestCaseConfiguration;
+import xbi.testutils.dbunit.PerformanceBudget;
+
+/**
+ * Reads an XML test suite configuration file. Every &lt;Test&gt; element of the
+ * suite is turned into its own test case configuration. The optional
+ * <code>threads</code> attribute of the root element sets how many tests of
+ * the suite may run at the same time.
+ *
+ * A test with several &lt;Parameters&gt; blocks is run once per block, with
+ * up to <code>sweepThreads</code> (an attribute of &lt;Test&gt;) runs at the
+ * same time. Such a test is a timing run: the runs write to the same target
+ * tables, so it cannot have expected results; give each parameter set a test
+ * of its own to compare them.
+ *
+ * An optional &lt;Timeout stall="..." max="..."/&gt; element of a test, in
+ * seconds, stops its Job or Transformation when no rows have moved for the
+ * stall time or when it has run for the max time.
+ *
+ * An optional &lt;Performance baseline="file" tolerance="percent"&gt; element
+ * of a test sets performance limits, with &lt;MaxWallMillis&gt;,
+ * &lt;MaxHeapGrowthMb&gt; and &lt;MinRowsPerSecond step="..."&gt; children.
+ *
+ * An &lt;Inject step="..." file="..."&gt; element under &lt;TestData&gt; feeds
+ * a test data file straight into a step instead of loading it into the
+ * database. Optional attributes: table (if the file holds several) and
+ * dateFormat; optional &lt;Field name="..." type="..."/&gt; children give the
+ * Kettle type of columns that are not Strings.
+ *
+ * A &lt;TargetTable name="..." captureStep="..."&gt; is checked against the
+ * rows sent to the named output step, which then writes nothing, instead of
+ * against the database table.
+ *
+ * @author eniesc200
+ */
+final class TestConfigReader {
+
+	private static final Logger LOGGER = LoggerFactory
+			.getLogger(TestConfigReader.class);
+
+	// one configuration per <Test> element, in file order
+	private final List<KettleTestCaseConfiguration> configurations;
+
+	// the maximum number of tests to run at the same time
+	private final int threads;
+
+	/**
+	 * Parses an XML test suite configuration file.
+	 *
+	 * @param config
+	 *            XML test suite configuration
+	 * @throws IllegalStateException
+	 *             if the file cannot be read or parsed, if it holds no tests
+	 *             or if any test fails validation
+	 */
+	TestConfigReader(File config) throws IllegalStateException {
+		if (config == null) {
+			throw new NullPointerException("xmlConfigFile");
+		}
+		if (!config.exists() || !config.canRead()) {
+			throw new IllegalStateException("Config file "
+					+ config.getAbsolutePath()
+					+ " does not exist or cannot be read.");
+		}
+		LOGGER.debug("Parsing config file: " + config.getAbsolutePath());
+
+		SAXBuilder saxBuilder = new SAXBuilder();
+		Document doc = null;
+		try {
+			doc = saxBuilder.build(config);
+		} catch (JDOMException e) {
+			throw new IllegalStateException(
+					"Failure to parse XML configuration file: "
+							+ e.getMessage());
+		} catch (IOException e) {
+			throw new IllegalStateException(
+					"I/O error reading XML configuration file: "
+							+ e.getMessage());
+		}
+		Element root = doc.getRootElement();
+
+		List<Element> tests = root.getChildren("Test");
+		LOGGER.debug("Num tests found: " + tests.size());
+		if (tests.isEmpty()) {
+			throw new IllegalStateException("Config file "
+					+ config.getAbsolutePath() + " does not define any tests.");
+		}
+
+		threads = readThreads(root);
+		configurations = new ArrayList<KettleTestCaseConfiguration>();
+		for (Element test : tests) {
+			configurations.add(readTest(test));
+		}
+	}
+
+	/**
+	 * @return one configuration per &lt;Test&gt; element, in file order
+	 */
+	List<KettleTestCaseConfiguration> getConfigurations() {
+		return new ArrayList<KettleTestCaseConfiguration>(configurations);
+	}
+
+	/**
+	 * @return the maximum number of tests of the suite to run at the same
+	 *         time. Defaults to 1.
+	 */
+	int getThreads() {
+		return threads;
+	}
+
+	/*
+	 * Reads the threads attribute of the root element.
+	 */
+	private static int readThreads(Element root) {
+		String value = root.getAttributeValue("threads");
+		if (value == null) {
+			return 1;
+		}
+		try {
+			int threads = Integer.parseInt(value.trim());
+			if (threads < 1) {
+				throw new IllegalStateException(
+						"The threads attribute must be at least 1, was "
+								+ value);
+			}
+			return threads;
+		} catch (NumberFormatException e) {
+			throw new IllegalStateException(
+					"The threads attribute must be a number, was " + value);
+		}
+	}
+
+	/*
+	 * Builds the configuration for a single <Test> element.
+	 */
+	private static KettleTestCaseConfiguration readTest(Element test) {
+		LOGGER.debug("Set Config: Test = " + test.getAttributeValue("name"));
+
+		// executable Pentaho artifact
+		Element executable = test.getChild("Executable");
+		if (executable == null) {
+			throw new IllegalStateException("Test "
+					+ test.getAttributeValue("name")
+					+ " does not define an Executable.");
+		}
+		LOGGER.debug("Set Config: Executable = " + executable.getText());
+		KettleTestCaseConfiguration.Builder builder = new KettleTestCaseConfiguration.Builder(
+				new File(executable.getText()));
+		if (test.getAttributeValue("name") != null) {
+			builder.setName(test.getAttributeValue("name"));
+		}
+
+		// test data input files
+		for (Element inputFile : children(test, "TestData", "InputFile")) {
+			LOGGER.debug("Set Config: Input Test data file = "
+					+ inputFile.getText());
+			builder.addInFile(new File(inputFile.getText()));
+		}
+
+		// test data fed straight into steps
+		for (Element inject : children(test, "TestData", "Inject")) {
+			builder.addInjectedInput(readInject(inject));
+		}
+
+		// expected result files
+		for (Element outputFile : children(test, "ExpectedResults",
+				"OutputFile")) {
+			LOGGER.debug("Set Config: Expected Results data file = "
+					+ outputFile.getText());
+			builder.addOutFile(new File(outputFile.getText()));
+		}
+
+		// target tables
+		for (Element targetTable : children(test, "TargetTables",
+				"TargetTable")) {
+			LOGGER.debug("Set Config: Target Table = "
+					+ targetTable.getAttributeValue("name"));
+			builder.addTargetTable(targetTable.getAttributeValue("name"));
+			if (targetTable.getAttributeValue("captureStep") != null) {
+				LOGGER.debug("Set Config: \tCapture step = "
+						+ targetTable.getAttributeValue("captureStep"));
+				builder.setCaptureStep(targetTable.getAttributeValue("name"),
+						targetTable.getAttributeValue("captureStep"));
+			}
+
+			// order bys for each table
+			List<Element> orderBys = targetTable.getChildren("OrderBy");
+			for (Element orderBy : orderBys) {
+				LOGGER.debug("Set Config: \tOrder By =  " + orderBy.getText()
+						+ " on table " + targetTable.getAttributeValue("name"));
+
+				builder.addOrderBy(targetTable.getAttributeValue("name"),
+						orderBy.getText());
+			}
+		}
+
+		// parameters, one set per <Parameters> block
+		List<Element> parameterSets = test.getChildren("Parameters");
+		for (Element parameterSet : parameterSets) {
+			builder.newParameterSet();
+			List<Element> parameters = parameterSet.getChildren("Param");
+			for (Element parameter : parameters) {
+				LOGGER.debug("Set Config: Parameter = "
+						+ parameter.getAttributeValue("name") + " with value "
+						+ parameter.getText());
+				builder.addParameter(parameter.getAttributeValue("name"),
+						parameter.getText());
+			}
+		}
+		String sweepThreads = test.getAttributeValue("sweepThreads");
+		if (sweepThreads != null) {
+			try {
+				builder.setSweepThreads(Integer.parseInt(sweepThreads.trim()));
+			} catch (NumberFormatException e) {
+				throw new IllegalStateException(
+						"The sweepThreads attribute must be a number, was "
+								+ sweepThreads);
+			}
+		}
+
+		// timeouts, in seconds
+		Element timeout = test.getChild("Timeout");
+		if (timeout != null) {
+			builder.setTimeouts(seconds(timeout, "stall") * 1000L,
+					seconds(timeout, "max") * 1000L);
+		}
+
+		// performance limits
+		Element performance = test.getChild("Performance");
+		if (performance != null) {
+			builder.setPerformanceBudget(readPerformance(performance));
+		}
+
+		// the build will throw an IllegalStateException if not valid
+		return builder.build();
+	}
+
+	/*
+	 * Reads an <Inject step="..." file="..." table="..." dateFormat="...">
+	 * element with optional <Field name="..." type="..."/> children.
+	 */
+	private static InjectedInput readInject(Element inject) {
+		String step = inject.getAttributeValue("step");
+		String file = inject.getAttributeValue("file");
+		if (step == null || file == null) {
+			throw new IllegalStateException(
+					"Inject needs a step and a file attribute");
+		}
+		Map<String, String> types = new LinkedHashMap<String, String>();
+		List<Element> fields = inject.getChildren("Field");
+		for (Element field : fields) {
+			if (field.getAttributeValue("name") == null
+					|| field.getAttributeValue("type") == null) {
+				throw new IllegalStateException(
+						"Field of Inject needs a name and a type attribute");
+			}
+			types.put(field.getAttributeValue("name"),
+					field.getAttributeValue("type"));
+		}
+		LOGGER.debug("Set Config: Inject " + file + " into step " + step);
+		return new InjectedInput(step, new File(file),
+				inject.getAttributeValue("table"), types,
+				inject.getAttributeValue("dateFormat"));
+	}
+
+	/*
+	 * Builds the performance budget of a <Performance> element.
+	 */
+	private static PerformanceBudget readPerformance(Element performance) {
+		PerformanceBudget.Builder budget = new PerformanceBudget.Builder();
+		try {
+			if (performance.getAttributeValue("baseline") != null) {
+				budget.setBaseline(new File(performance
+						.getAttributeValue("baseline")));
+			}
+			if (performance.getAttributeValue("tolerance") != null) {
+				budget.setTolerancePercent(Double.parseDouble(performance
+						.getAttributeValue("tolerance").trim()));
+			}
+			Element wall = performance.getChild("MaxWallMillis");
+			if (wall != null) {
+				budget.setMaxWallMillis(Long.parseLong(wall.getTextTrim()));
+			}
+			Element heap = performance.getChild("MaxHeapGrowthMb");
+			if (heap != null) {
+				budget.setMaxHeapGrowth(Long.parseLong(heap.getTextTrim())
+						* 1024L * 1024L);
+			}
+			List<Element> rates = performance.getChildren("MinRowsPerSecond");
+			for (Element rate : rates) {
+				if (rate.getAttributeValue("step") == null) {
+					throw new IllegalStateException(
+							"MinRowsPerSecond needs a step attribute");
+				}
+				budget.setMinRowsPerSecond(rate.getAttributeValue("step"),
+						Double.parseDouble(rate.getTextTrim()));
+			}
+		} catch (NumberFormatException e) {
+			throw new IllegalStateException(
+					"Performance limits must be numbers: " + e.getMessage());
+		}
+		return budget.build();
+	}
+
+	/*
+	 * Reads a number of seconds from an optional attribute, 0 if not there.
+	 */
+	private static long seconds(Element element, String attribute) {
+		String value = element.getAttributeValue(attribute);
+		if (value == null) {
+			return 0;
+		}
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalStateException("The " + attribute
+					+ " attribute of " + element.getName()
+					+ " must be a number of seconds, was " + value);
+		}
+	}
+
+	/*
+	 * Returns the named children of an optional container element, or an empty
+	 * list if the container is not there.
+	 */
+	private static List<Element> children(Element parent, String container,
+			String child) {
+		Element c = parent.getChild(container);
+		if (c == null) {
+			return Collections.emptyList();
+		}
+		return c.getChildren(child);
+	}
+}
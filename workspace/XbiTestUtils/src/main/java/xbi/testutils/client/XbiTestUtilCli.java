@@ -29,6 +29,10 @@ public class XbiTestUtilCli {
 		usage.append("Finally, the output produced by running the artifact will be compared to the output test\n");
 		usage.append("data. The results are printed to STDOUT.\n");
 		usage.append("\n");
+		usage.append("A configuration file may hold several <Test> elements, which are run as one suite. Set the threads \n");
+		usage.append("attribute on the root element (e.g. <TestSuite threads=\"4\">) to run tests that do not share tables \n");
+		usage.append("at the same time.\n");
+		usage.append("\n");
 		usage.append("Expected results can be either combined into a single XML file or split into multiple files. \n");
 		usage.append("If multiple files are used then the \n");
 		usage.append("number of files must be equal to the number of target tables that \n");
@@ -51,6 +55,10 @@ public class XbiTestUtilCli {
 		usage.append("(2) This utility relies on your local Kettle install libraries. Hence, the environment variable \n");
 		usage.append("KETTLE_INSTALL must be set in your local environment. See Confluence for more details.  \n");
 		usage.append("\n");
+		usage.append("(3) The plugins found in the Kettle plugin folders are cached in $KETTLE_HOME/.kettle/xbi-plugin-registry.cache \n");
+		usage.append("to speed up later launches. The cache is rebuilt whenever a plugin jar changes. Pass -DXBI_PLUGIN_CACHE=false \n");
+		usage.append("to turn it off.\n");
+		usage.append("\n");
 		usage.append("Options:\n");
 		usage.append("  -h\t\t\tshow this help message and exit\n");
 		usage.append("  -x XML_CONFIG\t\texecute a test initialised as per this configuration file\n");
@@ -59,6 +67,25 @@ public class XbiTestUtilCli {
 		usage.append("  -s SQL_QUERY_SET\ttable name and SQL query pairing to execute for dump. The query set must take the form {Table Name:'SQL query'}. \n");
 		usage.append("  \t\t\t\tTable Name is the name of the table as it will be output in the file. The table name does not necessarily have to match\n");
 		usage.append("  \t\t\t\tthe table name in the query. The query itself must be in single or double quotes. Comma-delimited (no spaces) for multiple query sets.\n");
+		usage.append("  -f FETCH_SIZE\t\tnumber of rows fetched per database round trip when dumping (default 1000). Must come after -d.\n");
+		usage.append("  -z\t\t\tgzip the dump file, adding .gz to its name if needed. Must come after -d.\n");
+		usage.append("  -j THREADS\t\trun up to THREADS dump queries at the same time, each on its own connection (default 4).\n");
+		usage.append("  \t\t\t\tThe tables are still written in the order of -s. Must come after -d.\n");
+		usage.append("  -k SPLIT_KEYS\t\tsplit the queries of large tables into ranges of a numeric key column that are dumped at the same time,\n");
+		usage.append("  \t\t\t\tin the form table_name:KEY_COLUMN. Comma-delimited (no spaces) for multiple tables. Needs -j of 2 or more.\n");
+		usage.append("  \t\t\t\tThe rows of a split table are written in key range order rather than query order, so its dump file\n");
+		usage.append("  \t\t\t\tcan differ from an unsplit one; regenerate golden files made without -k. Must come after -d.\n");
+		usage.append("  -n SPLITS\t\tnumber of key ranges per split query (default 4). Must come after -d.\n");
+		usage.append("  -p WORKERS\t\trun up to WORKERS test cases at the same time (default 1). Test cases that load, write or clean up\n");
+		usage.append("  \t\t\t\tthe same tables are still run one after another, in the order they were given.\n");
+		usage.append("  -b XML_CONFIG\t\tbenchmark the artifacts of this configuration file: load the input data once, then run each\n");
+		usage.append("  \t\t\t\tartifact repeatedly and report wall time and rows/s percentiles and GC time. Expected results are not compared.\n");
+		usage.append("  -w WARMUPS\t\tnumber of benchmark runs to throw away before measuring (default 3). Must come after -b.\n");
+		usage.append("  -r RUNS\t\tnumber of benchmark runs to measure (default 10). Must come after -b.\n");
+		usage.append("  -u\t\t\tbenchmark transformations without Kettle's safe mode row checks. Must come after -b.\n");
+		usage.append("  -t TUNING_GRID\tbenchmark every combination of row set sizes, feedback sizes and step copies and print a table\n");
+		usage.append("  \t\t\t\tranked by throughput. The grid takes the form rowset=N,N;feedback=N;copies:Step name=N,N. The KTR is not changed.\n");
+		usage.append("  \t\t\t\tMust come after -b.\n");
 		usage.append("  \t\t\t\t");
 		usage.append("\n");
 		usage.append("Examples:\n");
@@ -67,10 +94,28 @@ public class XbiTestUtilCli {
 		usage.append("  Dumping data to XML:\t$ "
 				+ exe
 				+ " -d /Users/xbi/tableout.xml -s {table_name1:\'select * from some_table_name\'},{table_name2:'select col1, col2 from another_table\'}\n");
+		usage.append("  Dumping a large table:\t$ "
+				+ exe
+				+ " -d /Users/xbi/tableout.xml -f 5000 -z -s {table_name1:\'select * from some_table_name\'}\n");
+		usage.append("  Dumping a huge table in ranges:\t$ "
+				+ exe
+				+ " -d /Users/xbi/tableout.xml -j 8 -k fact_sales:SALE_ID -n 8 -s {fact_sales:\'select * from fact_sales\'}\n");
 		usage.append("  Executing a test:\t$ "
 				+ exe
 				+ " -x /Users/xbi/testconfig.xml");
 		usage.append("\n");
+		usage.append("  Executing tests in parallel:\t$ "
+				+ exe
+				+ " -p 8 -x /Users/xbi/testconfig1.xml -x /Users/xbi/testconfig2.xml");
+		usage.append("\n");
+		usage.append("  Benchmarking a test:\t$ "
+				+ exe
+				+ " -b /Users/xbi/testconfig.xml -w 5 -r 20");
+		usage.append("\n");
+		usage.append("  Tuning a transformation:\t$ "
+				+ exe
+				+ " -b /Users/xbi/testconfig.xml -t \"rowset=1000,10000;copies:Lookup=1,2,4\"");
+		usage.append("\n");
 		usage.append("\n");
 	
 		System.out.println(usage);
@@ -78,14 +123,16 @@ public class XbiTestUtilCli {
 	}
 
 	public static void main(String[] args) {
-		final GetOpt getopt = new GetOpt(args, "hx:l:d:s:");
+		final GetOpt getopt = new GetOpt(args, "hx:l:d:s:f:zj:k:n:p:b:w:r:ut:");
 		if (args.length < 1)
 			printUsage();
 
 		int c;
 		StringBuffer optsStr = new StringBuffer("CLI options: ");
-		DumpTestDataMode dumpMode = null; // need to keep this around for -s
-											// option
+		DumpTestDataMode dumpMode = null; // need to keep this around for -s,
+											// -f, -z, -j, -k and -n options
+		BenchmarkMode benchMode = null; // need to keep this around for -w, -r,
+										// -u and -t options
 		try {
 			ROOT: while ((c = getopt.getNextOption()) != -1) {
 				String optArg = getopt.getOptionArg();
@@ -119,6 +166,88 @@ public class XbiTestUtilCli {
 						dumpMode.setSqlMap(optArg);
 					}
 					break;
+				case 'f':
+					optsStr.append("f");
+					if (dumpMode == null) {
+						LOGGER.warn("Fetch size -f flag must come after -d dump flag. Ignoring this option");
+					} else {
+						dumpMode.setFetchSize(Integer.parseInt(optArg.trim()));
+					}
+					break;
+				case 'z':
+					optsStr.append("z");
+					if (dumpMode == null) {
+						LOGGER.warn("Compress -z flag must come after -d dump flag. Ignoring this option");
+					} else {
+						dumpMode.setCompressed();
+					}
+					break;
+				case 'j':
+					optsStr.append("j");
+					if (dumpMode == null) {
+						LOGGER.warn("Threads -j flag must come after -d dump flag. Ignoring this option");
+					} else {
+						dumpMode.setThreads(Integer.parseInt(optArg.trim()));
+					}
+					break;
+				case 'k':
+					optsStr.append("k");
+					if (dumpMode == null) {
+						LOGGER.warn("Split keys -k flag must come after -d dump flag. Ignoring this option");
+					} else {
+						dumpMode.setSplitKeys(optArg);
+					}
+					break;
+				case 'n':
+					optsStr.append("n");
+					if (dumpMode == null) {
+						LOGGER.warn("Splits -n flag must come after -d dump flag. Ignoring this option");
+					} else {
+						dumpMode.setSplits(Integer.parseInt(optArg.trim()));
+					}
+					break;
+				case 'p': // number of parallel workers
+					optsStr.append("p");
+					runner.setWorkers(Integer.parseInt(optArg.trim()));
+					break;
+				case 'b': // BENCHMARK followed by a Kettle file
+					optsStr.append("b");
+					benchMode = new BenchmarkMode();
+					benchMode.loadFromXMLConfig(new File(optArg));
+					runner.addMode(benchMode);
+					break;
+				case 'w':
+					optsStr.append("w");
+					if (benchMode == null) {
+						LOGGER.warn("Warmup -w flag must come after -b benchmark flag. Ignoring this option");
+					} else {
+						benchMode.setWarmups(Integer.parseInt(optArg.trim()));
+					}
+					break;
+				case 'r':
+					optsStr.append("r");
+					if (benchMode == null) {
+						LOGGER.warn("Runs -r flag must come after -b benchmark flag. Ignoring this option");
+					} else {
+						benchMode.setRuns(Integer.parseInt(optArg.trim()));
+					}
+					break;
+				case 'u':
+					optsStr.append("u");
+					if (benchMode == null) {
+						LOGGER.warn("Unsafe -u flag must come after -b benchmark flag. Ignoring this option");
+					} else {
+						benchMode.setSafeModeEnabled(false);
+					}
+					break;
+				case 't':
+					optsStr.append("t");
+					if (benchMode == null) {
+						LOGGER.warn("Tuning grid -t flag must come after -b benchmark flag. Ignoring this option");
+					} else {
+						benchMode.setTuningGrid(optArg);
+					}
+					break;
 				default:
 					optsStr.append("?");
 					printUsage();
@@ -0,0 +1,210 @@
+package xbi.testutils.dbunit;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.dbunit.DatabaseUnitException;
+import org.dbunit.database.IDatabaseConnection;
+import org.dbunit.dataset.Column;
+import org.dbunit.dataset.IDataSet;
+import org.dbunit.dataset.ITable;
+import org.dbunit.dataset.ITableIterator;
+import org.dbunit.dataset.ITableMetaData;
+import org.dbunit.dataset.NoSuchColumnException;
+import org.dbunit.dataset.datatype.DataType;
+import org.dbunit.operation.DatabaseOperation;
+import org.dbunit.util.QualifiedTableName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Inserts the rows of a data set with JDBC batches: one prepared statement per
+ * table, executed and committed every batch size rows. DBUnit's own INSERT
+ * runs one statement per row, which is slow for large fixtures.
+ *
+ * Values are converted with the data types of the database columns. The rows
+ * per second of each table are logged and kept, see
+ * {@link #getRowsPerSecond()}. If anything fails, the rows not yet committed
+ * are rolled back before auto-commit is restored.
+ *
+ * @author eniesc200
+ */
+final class BatchInsertOperation extends DatabaseOperation {
+
+	private static final Logger LOGGER = LoggerFactory
+			.getLogger(BatchInsertOperation.class);
+
+	private final int batchSize;
+
+	// table name -> rows per second, in load order
+	private final Map<String, Double> rowsPerSecond = new LinkedHashMap<String, Double>();
+
+	/**
+	 * @param batchSize
+	 *            the number of rows per batch and commit
+	 */
+	BatchInsertOperation(int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException(
+					"The batch size must be at least 1, was " + batchSize);
+		}
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * @return the rows per second of each table loaded by the last execute(),
+	 *         in load order
+	 */
+	Map<String, Double> getRowsPerSecond() {
+		return Collections.unmodifiableMap(rowsPerSecond);
+	}
+
+	@Override
+	public void execute(IDatabaseConnection connection, IDataSet dataSet)
+			throws DatabaseUnitException, SQLException {
+		rowsPerSecond.clear();
+		Connection jdbc = connection.getConnection();
+		boolean autoCommit = jdbc.getAutoCommit();
+		jdbc.setAutoCommit(false);
+		boolean done = false;
+		try {
+			IDataSet database = connection.createDataSet();
+			ITableIterator tables = dataSet.iterator();
+			while (tables.next()) {
+				ITable table = tables.getTable();
+				if (table.getRowCount() == 0) {
+					continue;
+				}
+				insert(connection, table, database.getTableMetaData(table
+						.getTableMetaData().getTableName()));
+			}
+			done = true;
+		} finally {
+			// turning auto-commit back on would commit a partial batch
+			if (!done) {
+				rollback(jdbc);
+			}
+			jdbc.setAutoCommit(autoCommit);
+		}
+	}
+
+	/*
+	 * Rolls back without hiding the failure that led to it.
+	 */
+	private static void rollback(Connection jdbc) {
+		try {
+			jdbc.rollback();
+		} catch (SQLException e) {
+			LOGGER.warn("Unable to roll back the failed insert: "
+					+ e.getMessage());
+		}
+	}
+
+	/*
+	 * Inserts the rows of one table in batches.
+	 */
+	private void insert(IDatabaseConnection connection, ITable table,
+			ITableMetaData databaseMetaData) throws DatabaseUnitException,
+			SQLException {
+		String tableName = table.getTableMetaData().getTableName();
+		Column[] columns = table.getTableMetaData().getColumns();
+		String[] columnNames = new String[columns.length];
+		for (int c = 0; c < columns.length; c++) {
+			columnNames[c] = columns[c].getColumnName();
+		}
+		DataType[] types = new DataType[columns.length];
+		String sql = insertSql(connection, tableName, columnNames,
+				databaseMetaData, types);
+
+		long start = System.nanoTime();
+		int rows = table.getRowCount();
+		Connection jdbc = connection.getConnection();
+		PreparedStatement statement = jdbc.prepareStatement(sql);
+		try {
+			for (int r = 0; r < rows; r++) {
+				for (int c = 0; c < columns.length; c++) {
+					Object value = table.getValue(r, columns[c].getColumnName());
+					if (value == ITable.NO_VALUE) {
+						value = null;
+					}
+					types[c].setSqlValue(value, c + 1, statement);
+				}
+				statement.addBatch();
+				if ((r + 1) % batchSize == 0) {
+					statement.executeBatch();
+					jdbc.commit();
+				}
+			}
+			if (rows % batchSize != 0) {
+				statement.executeBatch();
+				jdbc.commit();
+			}
+		} finally {
+			statement.close();
+		}
+
+		long millis = Math.max(1, (System.nanoTime() - start) / 1000000L);
+		double rate = rows * 1000.0 / millis;
+		rowsPerSecond.put(tableName, rate);
+		LOGGER.info("Loaded " + rows + " row(s) into " + tableName + " in "
+				+ millis + " ms (" + Math.round(rate) + " rows/s, batches of "
+				+ batchSize + ")");
+	}
+
+	/**
+	 * Builds the insert statement of a table.
+	 * 
+	 * @param connection
+	 *            the connection, for its schema
+	 * @param tableName
+	 *            the table, optionally schema-qualified
+	 * @param columnNames
+	 *            the columns to insert, matched to the database columns
+	 *            ignoring case
+	 * @param databaseMetaData
+	 *            the columns of the database table
+	 * @param types
+	 *            filled in with the data type of each column
+	 * @return the SQL, with one parameter per column
+	 * @throws NoSuchColumnException
+	 *             if a column is not in the database table
+	 */
+	static String insertSql(IDatabaseConnection connection, String tableName,
+			String[] columnNames, ITableMetaData databaseMetaData,
+			DataType[] types) throws DatabaseUnitException {
+		StringBuffer sql = new StringBuffer("insert into ");
+		sql.append(new QualifiedTableName(tableName, connection.getSchema())
+				.getQualifiedName());
+		sql.append(" (");
+		for (int c = 0; c < columnNames.length; c++) {
+			Column column = databaseColumn(databaseMetaData, columnNames[c]);
+			types[c] = column.getDataType();
+			sql.append((c > 0) ? ", " : "");
+			sql.append(column.getColumnName());
+		}
+		sql.append(") values (");
+		for (int c = 0; c < columnNames.length; c++) {
+			sql.append((c > 0) ? ", ?" : "?");
+		}
+		sql.append(")");
+		return sql.toString();
+	}
+
+	/*
+	 * The database column of the given name, ignoring case.
+	 */
+	private static Column databaseColumn(ITableMetaData databaseMetaData,
+			String name) throws DatabaseUnitException {
+		for (Column column : databaseMetaData.getColumns()) {
+			if (column.getColumnName().equalsIgnoreCase(name)) {
+				return column;
+			}
+		}
+		throw new NoSuchColumnException(databaseMetaData.getTableName() + "."
+				+ name);
+	}
+}
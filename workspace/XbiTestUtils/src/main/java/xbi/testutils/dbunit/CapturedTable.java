@@ -0,0 +1,171 @@
+package xbi.testutils.dbunit;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.dbunit.dataset.AbstractTable;
+import org.dbunit.dataset.Column;
+import org.dbunit.dataset.DataSetException;
+import org.dbunit.dataset.DefaultTableMetaData;
+import org.dbunit.dataset.ITableMetaData;
+import org.dbunit.dataset.NoSuchColumnException;
+import org.dbunit.dataset.RowOutOfBoundsException;
+import org.dbunit.dataset.datatype.DataType;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+import xbi.testutils.kettle.CapturedRows;
+
+/**
+ * Shows the rows captured from a step as a DBUnit table, so they can be
+ * compared with an expected data set like a database table. Field names are
+ * matched to the expected columns ignoring case, and Kettle types map to the
+ * DBUnit data types the expected values are cast to.
+ *
+ * If some of the rows were spilled to a file, the values of the key columns
+ * the table is sorted on are read in one pass and kept in memory, so that
+ * sorting does not read a spilled row for every comparison. The other columns
+ * are read a row at a time.
+ *
+ * @author eniesc200
+ */
+final class CapturedTable extends AbstractTable {
+
+	private final String tableName;
+	private final CapturedRows rows;
+	private final ITableMetaData metaData;
+	private final Map<String, Integer> columnIndexes = new HashMap<String, Integer>();
+
+	/* the key columns, their fields and, once read, their values per row */
+	private final Map<String, Integer> keyIndexes = new HashMap<String, Integer>();
+	private final int[] keyFields;
+	private Object[][] keys;
+
+	/* the last row read, as getValue is called once per column */
+	private int lastIndex = -1;
+	private Object[] lastRow;
+
+	/**
+	 * @param tableName
+	 *            the name of the table the step would have written to
+	 * @param rows
+	 *            the captured rows
+	 * @param expectedColumns
+	 *            the columns of the expected table
+	 * @param keyColumns
+	 *            the columns the table is sorted on, may be null
+	 */
+	CapturedTable(String tableName, CapturedRows rows,
+			Column[] expectedColumns, String[] keyColumns) {
+		this.tableName = tableName;
+		this.rows = rows;
+		RowMetaInterface rowMeta = rows.getRowMeta();
+		Column[] columns;
+		if (rowMeta == null) {
+			// nothing captured, so no field names either
+			columns = expectedColumns;
+		} else {
+			columns = new Column[rowMeta.size()];
+			for (int i = 0; i < columns.length; i++) {
+				ValueMetaInterface value = rowMeta.getValueMeta(i);
+				columns[i] = new Column(columnName(value.getName(),
+						expectedColumns), dataType(value.getType()));
+			}
+		}
+		for (int i = 0; i < columns.length; i++) {
+			columnIndexes.put(columns[i].getColumnName().toUpperCase(), i);
+		}
+		metaData = new DefaultTableMetaData(tableName, columns);
+
+		List<Integer> fields = new ArrayList<Integer>();
+		if (keyColumns != null) {
+			for (String keyColumn : keyColumns) {
+				String name = keyColumn.toUpperCase();
+				Integer field = columnIndexes.get(name);
+				if (field != null && !keyIndexes.containsKey(name)) {
+					keyIndexes.put(name, fields.size());
+					fields.add(field);
+				}
+			}
+		}
+		keyFields = new int[fields.size()];
+		for (int i = 0; i < keyFields.length; i++) {
+			keyFields[i] = fields.get(i);
+		}
+	}
+
+	/*
+	 * The name of the expected column matching the field, or the field name.
+	 */
+	private static String columnName(String field, Column[] expectedColumns) {
+		for (Column column : expectedColumns) {
+			if (column.getColumnName().equalsIgnoreCase(field)) {
+				return column.getColumnName();
+			}
+		}
+		return field;
+	}
+
+	/*
+	 * The DBUnit data type of a Kettle value type.
+	 */
+	private static DataType dataType(int kettleType) {
+		switch (kettleType) {
+		case ValueMetaInterface.TYPE_STRING:
+			return DataType.VARCHAR;
+		case ValueMetaInterface.TYPE_INTEGER:
+			return DataType.BIGINT;
+		case ValueMetaInterface.TYPE_NUMBER:
+			return DataType.DOUBLE;
+		case ValueMetaInterface.TYPE_BIGNUMBER:
+			return DataType.NUMERIC;
+		case ValueMetaInterface.TYPE_DATE:
+			return DataType.TIMESTAMP;
+		case ValueMetaInterface.TYPE_BOOLEAN:
+			return DataType.BOOLEAN;
+		default:
+			return DataType.UNKNOWN;
+		}
+	}
+
+	public ITableMetaData getTableMetaData() {
+		return metaData;
+	}
+
+	public int getRowCount() {
+		return rows.size();
+	}
+
+	public Object getValue(int row, String column) throws DataSetException {
+		if (row < 0 || row >= getRowCount()) {
+			throw new RowOutOfBoundsException(row + " of " + getRowCount()
+					+ " in " + tableName);
+		}
+		Integer index = columnIndexes.get(column.toUpperCase());
+		if (index == null) {
+			throw new NoSuchColumnException(tableName + "." + column);
+		}
+		Integer key = keyIndexes.get(column.toUpperCase());
+		if (key != null && rows.isSpilled()) {
+			if (keys == null) {
+				try {
+					keys = rows.getFields(keyFields);
+				} catch (IllegalStateException e) {
+					throw new DataSetException(e.getMessage(), e);
+				}
+			}
+			return keys[row][key];
+		}
+		if (row != lastIndex) {
+			try {
+				lastRow = rows.getRow(row);
+			} catch (IllegalStateException e) {
+				throw new DataSetException(e.getMessage(), e);
+			}
+			lastIndex = row;
+		}
+		return (index < lastRow.length) ? lastRow[index] : null;
+	}
+}
@@ -1,99 +1,246 @@
 package xbi.testutils.dbunit;
 
+import static org.junit.Assert.fail;
+
 import java.io.File;
-import java.util.ArrayList;
-import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 
 import org.junit.Test;
-import org.junit.runner.RunWith;
-import org.junit.runners.Parameterized;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import xbi.testutils.kettle.RowCapture;
+import xbi.testutils.kettle.RowInjection;
+import xbi.testutils.kettle.SweepResult;
+import xbi.testutils.kettle.TransformationRunner;
+
 
 /**
- * A dynamic KettleTestCase that is configured at run time. It uses the
- * Parameterized API of JUnit.
+ * A dynamic KettleTestCase that is configured at run time. Instances are
+ * created and run by {@link KettleSuiteRunner}, one per configuration.
+ * 
+ * A configuration with several parameter sets is a timing run: the sets run
+ * at the same time against the same target tables, so it has no expected
+ * results (the configuration Builder rejects them). Only completion and the
+ * performance limits are checked, per set.
  * 
  */
-@RunWith(Parameterized.class)
 public class ConfigurableKettleTestCase extends KettleTestCase {
 
 	private static final Logger LOGGER = LoggerFactory
 			.getLogger(ConfigurableKettleTestCase.class);
 
-	// the active Configurable object for a given test. This is what gets passed
-	// in as a param by JUnit
+	// the Configurable object for this test
 	private KettleTestCaseConfiguration config;
 
-	// JUnit needs all the Configurables in place before execution, hence this
-	// static collection to hold them
-	private static Collection<KettleTestCaseConfiguration[]> configurables = new ArrayList<KettleTestCaseConfiguration[]>();
+	// one result per parameter set, if the configuration has several
+	private List<SweepResult> sweepResults;
 
 	/**
-	 * Constructor. Called for each parameter configured by the client.
+	 * Constructor. Called for each configuration in the suite being run.
 	 */
 	public ConfigurableKettleTestCase(KettleTestCaseConfiguration c) {
 		super(c.getExecutableFile());
 		this.config = c;
+		if (c.hasTimeouts()) {
+			runner.setTimeouts(c.getStallTimeoutMillis(),
+					c.getRunTimeoutMillis());
+		}
+		injectInputs();
+		captureOutputs();
 	}
 
-	/**
-	 * This test class runs Parameterized so we need to prime it for each
-	 * different configuration by adding said Configurables to the list.
-	 * 
-	 * @param c
-	 *            a Configurables object to be tested.
+	/*
+	 * Hands the injected test data to the Runner before it is set up.
 	 */
-	public static void addConfiguration(KettleTestCaseConfiguration c) {
-		configurables.add(new KettleTestCaseConfiguration[] { c });
+	private void injectInputs() {
+		List<InjectedInput> inputs = config.getInjectedInputs();
+		if (inputs.isEmpty()) {
+			return;
+		}
+		if (!(runner instanceof TransformationRunner)) {
+			throw new IllegalStateException("Rows can only be injected into "
+					+ "transformations, not " + config.getExecutableFile());
+		}
+		for (InjectedInput input : inputs) {
+			RowInjection injection = input.toRowInjection();
+			((TransformationRunner) runner).addRowInjection(injection);
+			LOGGER.info("Injecting " + injection.getRows().size()
+					+ " row(s) from " + input.getFile().getName() + " into "
+					+ input.getStepName());
+		}
 	}
 
-	/**
-	 * This test class runs Parameterized so we need to implement this method.
-	 * It returns a collection of Configurables, which will each be executed in
-	 * turn.
-	 * 
-	 * @return a collection of Configurables, one for each test
-	 * @throws IllegalStateException
-	 *             if a call is made prior to any Configurables being added.
+	/*
+	 * Has the Runner capture the rows of the steps that write the captured
+	 * target tables.
 	 */
-	@Parameterized.Parameters
-	public static Collection<KettleTestCaseConfiguration[]> getConfig() {
-		if (configurables.isEmpty()) {
-			throw new IllegalStateException(
-					"No Configurable objects have been defined for this test case. Call addConfigurable() first.");
+	private void captureOutputs() {
+		Map<String, String> captureSteps = config.getCaptureSteps();
+		if (captureSteps.isEmpty()) {
+			return;
+		}
+		if (!(runner instanceof TransformationRunner)) {
+			throw new IllegalStateException("Rows can only be captured from "
+					+ "transformations, not " + config.getExecutableFile());
+		}
+		for (Map.Entry<String, String> entry : captureSteps.entrySet()) {
+			((TransformationRunner) runner).addRowCapture(new RowCapture(
+					entry.getValue()));
+			LOGGER.info("Capturing rows for " + entry.getKey() + " from "
+					+ entry.getValue());
 		}
-		return configurables;
 	}
 
 	@Override
 	public void registerObjectsForCleanup() {
 		for (String table : config.getTargetTables().keySet()) {
+			if (config.getCaptureSteps().containsKey(table)) {
+				continue; // never written
+			}
 			connector.registerTableForCleanup(table);
 			LOGGER.info("Registered " + table + " for cleanup");
 		}
 	}
 
+	/**
+	 * Not needed when nothing is loaded, compared or cleaned up in the
+	 * database, e.g. when all input is injected and all output captured.
+	 */
+	@Override
+	protected boolean needsDatabase() {
+		if (!config.getInFiles().isEmpty()) {
+			return true;
+		}
+		Map<String, String> captureSteps = config.getCaptureSteps();
+		for (String table : config.getTargetTables().keySet()) {
+			if (!captureSteps.containsKey(table)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	@Override
 	protected void afterSetup() {
+		loadFixtures();
+		configureRunner();
+	}
+
+	/**
+	 * On if the {@value #PROP_PIPELINED_PREFLIGHT} system property is true.
+	 * Subclasses that do work in {@link #afterSetup()} besides loading the
+	 * fixtures and configuring the Runner must leave it off.
+	 */
+	@Override
+	protected boolean isPipelinedPreflight() {
+		return Boolean.getBoolean(PROP_PIPELINED_PREFLIGHT);
+	}
+
+	@Override
+	protected void loadFixtures() {
 		for (File inFile : config.getInFiles()) {
 			connector.loadDataSet(inFile);
 			LOGGER.info("Loading input test file: " + inFile.getAbsolutePath());
 		}
-		
+	}
+
+	@Override
+	protected void configureRunner() {
+		if (isSweep()) {
+			return; // every set is run on a Runner of its own
+		}
 		// set parameters, if any
 		for (Map.Entry<String, String> entry : config.getParams().entrySet()) {
 			runner.setParameterValue(entry.getKey(), entry.getValue());
 		}
-		
 	}
 
+	/**
+	 * Runs the Job or Transformation once per parameter set if the
+	 * configuration has more than one, each on a Runner of its own; the
+	 * Runner of this test case is set up and verified, but not run.
+	 */
+	@Override
+	protected void runArtifact() {
+		if (!isSweep()) {
+			super.runArtifact();
+			return;
+		}
+		List<Map<String, String>> parameterSets = config.getParameterSets();
+		LOGGER.info("Running " + parameterSets.size()
+				+ " parameter sets on up to " + config.getSweepThreads()
+				+ " thread(s)");
+		sweepResults = runner.sweep(parameterSets, config.getSweepThreads());
+		for (int i = 0; i < sweepResults.size(); i++) {
+			writeRunMetrics(getMetricsName() + "-" + i, sweepResults.get(i)
+					.getRunMetrics());
+		}
+	}
+
+	/*
+	 * True if the configuration runs several parameter sets.
+	 */
+	private boolean isSweep() {
+		return config.getParameterSets().size() > 1;
+	}
+
+	@Override
+	protected String getMetricsName() {
+		return config.getName();
+	}
+
+	/**
+	 * Also fails if any parameter set did not run to completion.
+	 */
+	@Override
+	public void assertComplete() {
+		if (sweepResults == null) {
+			super.assertComplete();
+			return;
+		}
+		for (SweepResult result : sweepResults) {
+			if (!result.isComplete()) {
+				fail("Transformation did not complete for parameters "
+						+ result.getParameters() + ", bailing");
+			}
+		}
+	}
+
+	/**
+	 * Checks the performance limits of the configuration, if it has any.
+	 */
+	@Test
+	public void performance() {
+		PerformanceBudget budget = config.getPerformanceBudget();
+		if (budget == null) {
+			return;
+		}
+		assertComplete();
+		if (sweepResults == null) {
+			assertPerformance(budget);
+			return;
+		}
+		for (SweepResult result : sweepResults) {
+			assertPerformance(budget, result.getRunMetrics());
+		}
+	}
+
+	/**
+	 * Compares the target tables with the expected results. A timing run of
+	 * several parameter sets has none.
+	 */
 	@Test
 	public void test() throws Exception {
 		LOGGER.info("Test execution started");
 		assertComplete();
+		if (isSweep()) {
+			LOGGER.info("Nothing to compare for " + config.getName()
+					+ ": its " + config.getParameterSets().size()
+					+ " parameter sets are a timing run");
+			return;
+		}
 
 		// figure out which target tables go with each expected result file
 		// we call a compare on each target table individually.
@@ -106,6 +253,7 @@ public class ConfigurableKettleTestCase extends KettleTestCase {
 		// if there is a mismatch, then throw an exception
 		boolean combinedResultFile = false;
 		int index = 0;
+		Map<String, String> captureSteps = config.getCaptureSteps();
 		if (config.getOutFiles().size() == 1) {
 			combinedResultFile = true;
 		}
@@ -119,7 +267,10 @@ public class ConfigurableKettleTestCase extends KettleTestCase {
 			LOGGER.info("Comparing table " + targetTable + " against expected result set "
 					+ config.getOutFiles().get(index).getName());
 			String[] orderCols = config.getTargetTables().get(targetTable);
-			if (orderCols == null || orderCols.length == 0) {
+			if (captureSteps.containsKey(targetTable)) {
+				compareCapturedRows(targetTable, captureSteps.get(targetTable),
+						config.getOutFiles().get(index), orderCols);
+			} else if (orderCols == null || orderCols.length == 0) {
 				compareDataSets(targetTable, config.getOutFiles().get(index));  // natural ordering
 			} else {
 				compareDataSets(targetTable, config.getOutFiles().get(index), orderCols); // order by column names
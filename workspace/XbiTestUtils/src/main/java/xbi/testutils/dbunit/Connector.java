@@ -2,13 +2,30 @@ package xbi.testutils.dbunit;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
 import java.net.MalformedURLException;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.dbunit.IDatabaseTester;
 import org.dbunit.JdbcDatabaseTester;
@@ -17,9 +34,12 @@ import org.dbunit.database.IDatabaseConnection;
 import org.dbunit.database.QueryDataSet;
 import org.dbunit.dataset.DataSetException;
 import org.dbunit.dataset.IDataSet;
+import org.dbunit.dataset.datatype.IDataTypeFactory;
 import org.dbunit.dataset.xml.FlatXmlDataSet;
 import org.dbunit.dataset.xml.FlatXmlDataSetBuilder;
 import org.dbunit.ext.oracle.OracleDataTypeFactory;
+import org.dbunit.operation.CompositeOperation;
+import org.dbunit.operation.DatabaseOperation;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -28,6 +48,61 @@ public class Connector {
 	private static final Logger LOGGER = LoggerFactory
 			.getLogger(Connector.class);
 
+	/**
+	 * System property with the number of rows per JDBC batch when loading
+	 * data sets, see {@link #setLoadBatchSize(int)}. 0, the default, loads
+	 * them one row at a time.
+	 */
+	public static final String PROP_LOAD_BATCH_SIZE = "XBI_LOAD_BATCH_SIZE";
+
+	/**
+	 * System property with the file size in MB from which loadDataSet streams
+	 * the file into the database instead of reading it into memory first, see
+	 * {@link #streamDataSet(File)}. 0 streams every file; negative, the
+	 * default, streams none. A streamed file commits as it goes, so one that
+	 * fails part way leaves its tables partly loaded.
+	 */
+	public static final String PROP_STREAM_THRESHOLD_MB = "XBI_STREAM_LOAD_THRESHOLD_MB";
+
+	/** The default file size in MB from which data sets are streamed: never. */
+	public static final int DEFAULT_STREAM_THRESHOLD_MB = -1;
+
+	/**
+	 * System property with the JDBC fetch size of dump queries, see
+	 * {@link #streamXml(Map, File, int, boolean)}. Defaults to
+	 * {@value #DEFAULT_DUMP_FETCH_SIZE}.
+	 */
+	public static final String PROP_DUMP_FETCH_SIZE = "XBI_DUMP_FETCH_SIZE";
+
+	/** The default JDBC fetch size of dump queries. */
+	public static final int DEFAULT_DUMP_FETCH_SIZE = 1000;
+
+	/**
+	 * System property with the most dump queries to run at the same time, see
+	 * {@link #streamXml(Map, File, int, boolean, int)}. Defaults to
+	 * {@value #DEFAULT_DUMP_THREADS}.
+	 */
+	public static final String PROP_DUMP_THREADS = "XBI_DUMP_THREADS";
+
+	/** The default number of dump queries to run at the same time. */
+	public static final int DEFAULT_DUMP_THREADS = 4;
+
+	/**
+	 * System property with the number of key ranges to split a dump query
+	 * into, see {@link #streamXml(Map, File, int, boolean, int, Map, int)}.
+	 * Defaults to {@value #DEFAULT_DUMP_SPLITS}.
+	 */
+	public static final String PROP_DUMP_SPLITS = "XBI_DUMP_SPLITS";
+
+	/** The default number of key ranges to split a dump query into. */
+	public static final int DEFAULT_DUMP_SPLITS = 4;
+
+	/** How long to wait for cancelled dump queries to end. */
+	private static final long CANCEL_WAIT_SECONDS = 30;
+
+	/** Rows per batch when streaming and no load batch size is set. */
+	private static final int DEFAULT_STREAM_BATCH_SIZE = 1000;
+
 	private IDatabaseTester databaseTester;
 
 	/* wraps a java.sql.Connection object */
@@ -39,6 +114,8 @@ public class Connector {
 
 	private Map<String, Long> sequencesToReset = new LinkedHashMap<String, Long>();
 
+	private int loadBatchSize = Integer.getInteger(PROP_LOAD_BATCH_SIZE, 0);
+
 	public Connector(String url, String username, String password, String schema) {
 		try {
 			// Could be configuration-driven to support different kinds of
@@ -84,6 +161,32 @@ public class Connector {
 		return databaseDataSet;
 	}
 
+	/**
+	 * @return the number of rows per JDBC batch when loading data sets, 0 if
+	 *         they are loaded one row at a time
+	 */
+	public int getLoadBatchSize() {
+		return loadBatchSize;
+	}
+
+	/**
+	 * Sets how data sets are loaded. Either way the tables are emptied first;
+	 * with a batch size the rows are then inserted with one prepared
+	 * statement per table, executed and committed every batch size rows.
+	 * Defaults to the {@value #PROP_LOAD_BATCH_SIZE} system property.
+	 * 
+	 * @param loadBatchSize
+	 *            the number of rows per batch, 0 to insert one row at a time
+	 *            with DBUnit's CLEAN_INSERT
+	 */
+	public void setLoadBatchSize(int loadBatchSize) {
+		if (loadBatchSize < 0) {
+			throw new IllegalArgumentException(
+					"The batch size cannot be negative, was " + loadBatchSize);
+		}
+		this.loadBatchSize = loadBatchSize;
+	}
+
 	/**
 	 * Tells the base class to clean this table during teardown
 	 * 
@@ -135,12 +238,12 @@ public class Connector {
 	}
 
 	/**
-	 * Builds an IDataSet from an XML file
+	 * Builds an IDataSet from an XML file. Needs no database connection.
 	 * 
 	 * @param file
 	 * @return
 	 */
-	public IDataSet buildDataSet(File file) {
+	public static IDataSet buildDataSet(File file) {
 		FlatXmlDataSetBuilder builder = new FlatXmlDataSetBuilder();
 		builder.setColumnSensing(true); // Tolerates nulls in columns
 		IDataSet dataSet = null;
@@ -161,14 +264,81 @@ public class Connector {
 	 * @return
 	 */
 	public void loadDataSet(File file) {
+		long threshold = Integer.getInteger(PROP_STREAM_THRESHOLD_MB,
+				DEFAULT_STREAM_THRESHOLD_MB) * 1024L * 1024L;
+		if (threshold >= 0 && file.length() >= threshold) {
+			streamDataSet(file);
+			return;
+		}
 		IDataSet dataSet = buildDataSet(file);
 		databaseTester.setDataSet(dataSet);
-		// will call default setUpOperation
+		if (loadBatchSize > 0) {
+			databaseTester.setSetUpOperation(new CompositeOperation(
+					DatabaseOperation.DELETE_ALL, new BatchInsertOperation(
+							loadBatchSize)));
+		} else {
+			databaseTester.setSetUpOperation(DatabaseOperation.CLEAN_INSERT);
+		}
+		long start = System.nanoTime();
 		try {
 			databaseTester.onSetup();
 		} catch (Exception e) {
 			LOGGER.error("Unable to load dataset:" + e.getMessage());
+			return;
 		}
+		long millis = Math.max(1, (System.nanoTime() - start) / 1000000L);
+		int rows = countRows(dataSet);
+		LOGGER.info("Loaded " + rows + " row(s) from " + file.getName()
+				+ " in " + millis + " ms (" + (rows * 1000L / millis)
+				+ " rows/s, " + ((loadBatchSize > 0) ? "batches of "
+				+ loadBatchSize : "row by row") + ")");
+	}
+
+	/**
+	 * Loads data into the DB from an XML file without holding the file in
+	 * memory: the rows are inserted in batches as they are read. The tables
+	 * are emptied first, as with loadDataSet. Batches are the load batch size,
+	 * or {@value #DEFAULT_STREAM_BATCH_SIZE} rows if that is not set.
+	 * 
+	 * @param file
+	 *            a DBUnit flat XML file
+	 */
+	public void streamDataSet(File file) {
+		int batchSize = (loadBatchSize > 0) ? loadBatchSize
+				: DEFAULT_STREAM_BATCH_SIZE;
+		long start = System.nanoTime();
+		Map<String, Integer> counts;
+		try {
+			counts = new FlatXmlStreamLoader(file, batchSize)
+					.load(databaseConnection);
+		} catch (Exception e) {
+			LOGGER.error("Unable to stream dataset " + file.getName() + ": "
+					+ e.getMessage());
+			return;
+		}
+		long millis = Math.max(1, (System.nanoTime() - start) / 1000000L);
+		int rows = 0;
+		for (int count : counts.values()) {
+			rows += count;
+		}
+		LOGGER.info("Streamed " + rows + " row(s) from " + file.getName()
+				+ " in " + millis + " ms (" + (rows * 1000L / millis)
+				+ " rows/s, batches of " + batchSize + ") " + counts);
+	}
+
+	/*
+	 * The number of rows over all tables of a data set, -1 if unknown.
+	 */
+	private static int countRows(IDataSet dataSet) {
+		int rows = 0;
+		try {
+			for (String table : dataSet.getTableNames()) {
+				rows += dataSet.getTable(table).getRowCount();
+			}
+		} catch (DataSetException e) {
+			return -1;
+		}
+		return rows;
 	}
 
 	/**
@@ -188,8 +358,12 @@ public class Connector {
 		// partial database export
 		QueryDataSet partialDataSet = new QueryDataSet(databaseConnection);
 		partialDataSet.addTable(tableName, queryFromTable);
-		FlatXmlDataSet.write(partialDataSet, new FileOutputStream(
-				fileOutputName));
+		FileOutputStream out = new FileOutputStream(fileOutputName);
+		try {
+			FlatXmlDataSet.write(partialDataSet, out);
+		} finally {
+			out.close();
+		}
 	}
 
 	public void dumpXml(Map<String, String> queryMap, String fileOutputName)
@@ -202,8 +376,333 @@ public class Connector {
 					+ " to XML dump file " + fileOutputName);
 			partialDataSet.addTable(tableName, query);
 		}
-		FlatXmlDataSet.write(partialDataSet, new FileOutputStream(
-				fileOutputName));
+		FileOutputStream out = new FileOutputStream(fileOutputName);
+		try {
+			FlatXmlDataSet.write(partialDataSet, out);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Dumps query results to an XML file like
+	 * {@link #dumpXml(Map, String)}, but writes each row as soon as it is
+	 * fetched instead of reading all results into memory first.
+	 * 
+	 * @param queryMap
+	 *            table name to write -> query, in the order to write them
+	 * @param file
+	 *            the file to write, replaced if it exists
+	 * @param fetchSize
+	 *            the number of rows fetched per round trip
+	 * @param gzip
+	 *            true to compress the file with gzip
+	 * @return the number of rows written
+	 * @throws Exception
+	 */
+	public long streamXml(Map<String, String> queryMap, File file,
+			int fetchSize, boolean gzip) throws Exception {
+		return streamXml(queryMap, file, fetchSize, gzip, 1);
+	}
+
+	/**
+	 * Dumps query results to an XML file like
+	 * {@link #streamXml(Map, File, int, boolean)}, running up to the given
+	 * number of queries at the same time. Each of those runs on a connection of
+	 * its own and writes its table to a part file next to the dump file; the
+	 * parts are then appended to the dump file in the order of the map. The
+	 * dump takes about as long as its slowest query plus the copying of the
+	 * parts.
+	 * 
+	 * @param queryMap
+	 *            table name to write -> query, in the order to write them
+	 * @param file
+	 *            the file to write, replaced if it exists
+	 * @param fetchSize
+	 *            the number of rows fetched per round trip
+	 * @param gzip
+	 *            true to compress the file with gzip
+	 * @param threads
+	 *            the most queries to run at the same time; 1 runs them one
+	 *            after another on this connector's connection
+	 * @return the number of rows written
+	 * @throws Exception
+	 */
+	public long streamXml(Map<String, String> queryMap, File file,
+			int fetchSize, boolean gzip, int threads) throws Exception {
+		return streamXml(queryMap, file, fetchSize, gzip, threads,
+				Collections.<String, String> emptyMap(), 1);
+	}
+
+	/**
+	 * Dumps query results to an XML file like
+	 * {@link #streamXml(Map, File, int, boolean, int)}, splitting the queries
+	 * of some tables into ranges of a numeric key column. The ranges of a
+	 * table are dumped at the same time like separate queries and written in
+	 * ascending key order; rows with a null key come last. Within a range the
+	 * rows come in the order of the query. The progress of each split table is
+	 * logged while it is dumped. If the dump fails, the file is deleted.
+	 * 
+	 * @param queryMap
+	 *            table name to write -> query, in the order to write them
+	 * @param file
+	 *            the file to write, replaced if it exists
+	 * @param fetchSize
+	 *            the number of rows fetched per round trip
+	 * @param gzip
+	 *            true to compress the file with gzip
+	 * @param threads
+	 *            the most queries to run at the same time
+	 * @param splitKeys
+	 *            table name -> the numeric column of its query to split it on
+	 * @param splits
+	 *            the number of ranges to split those tables into
+	 * @return the number of rows written
+	 * @throws Exception
+	 */
+	public long streamXml(Map<String, String> queryMap, File file,
+			int fetchSize, boolean gzip, int threads,
+			Map<String, String> splitKeys, int splits) throws Exception {
+		if (threads < 1) {
+			throw new IllegalArgumentException(
+					"The number of dump threads must be at least 1, was "
+							+ threads);
+		}
+		if (splits < 1) {
+			throw new IllegalArgumentException(
+					"The number of dump splits must be at least 1, was "
+							+ splits);
+		}
+		long start = System.nanoTime();
+		long rows = 0;
+		FlatXmlStreamWriter writer;
+		List<DumpPart> parts = new ArrayList<DumpPart>();
+		for (Map.Entry<String, String> entry : queryMap.entrySet()) {
+			String key = splitKeys.get(entry.getKey());
+			if (key != null && splits > 1 && threads > 1) {
+				parts.addAll(rangeParts(entry.getKey(), entry.getValue(), key,
+						splits));
+			} else {
+				parts.add(new DumpPart(entry.getKey(), entry.getValue(), null,
+						null));
+			}
+		}
+		int workers = Math.min(threads, parts.size());
+		boolean written = false;
+		try {
+			if (workers <= 1) {
+				writer = new FlatXmlStreamWriter(file, gzip);
+				try {
+					for (Map.Entry<String, String> entry : queryMap.entrySet()) {
+						rows += dumpTable(databaseConnection, entry.getKey(),
+								entry.getValue(), writer, fetchSize);
+					}
+				} finally {
+					writer.close();
+				}
+			} else {
+				try {
+					dumpParts(parts, file, fetchSize, workers);
+					writer = new FlatXmlStreamWriter(file, gzip);
+					try {
+						rows = appendParts(writer, parts);
+					} finally {
+						writer.close();
+					}
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof Exception) {
+						throw (Exception) e.getCause();
+					}
+					throw e;
+				} finally {
+					for (DumpPart part : parts) {
+						if (part.file != null && !part.file.delete()) {
+							LOGGER.warn("Unable to delete dump part "
+									+ part.file.getAbsolutePath());
+						}
+					}
+				}
+			}
+			written = true;
+		} finally {
+			if (!written && file.exists() && !file.delete()) {
+				LOGGER.warn("Unable to delete incomplete dump file "
+						+ file.getAbsolutePath());
+			}
+		}
+		long millis = Math.max(1, (System.nanoTime() - start) / 1000000L);
+		long bytes = writer.getBytesWritten();
+		LOGGER.info("Dumped " + rows + " row(s), " + bytes + " bytes to "
+				+ file.getName() + " in " + millis + " ms ("
+				+ (rows * 1000L / millis) + " rows/s, "
+				+ (bytes * 1000L / millis) + " bytes/s)");
+		return rows;
+	}
+
+	/*
+	 * Splits the query of a table into key ranges of about the same width
+	 * between the lowest and the highest key, see {@link KeyRange}. A table
+	 * with fewer than two distinct keys is not split.
+	 */
+	private List<DumpPart> rangeParts(String tableName, String query,
+			String key, int splits) throws SQLException {
+		BigDecimal min;
+		BigDecimal max;
+		Statement stmt = databaseConnection.getConnection().createStatement();
+		try {
+			ResultSet rs = stmt.executeQuery("select min(q." + key
+					+ "), max(q." + key + ") from (" + query + ") q");
+			try {
+				rs.next();
+				min = rs.getBigDecimal(1);
+				max = rs.getBigDecimal(2);
+			} finally {
+				rs.close();
+			}
+		} finally {
+			stmt.close();
+		}
+		List<DumpPart> parts = new ArrayList<DumpPart>();
+		List<KeyRange> ranges = KeyRange.split(min, max, splits);
+		if (ranges.size() == 1) {
+			parts.add(new DumpPart(tableName, query, null, null));
+			return parts;
+		}
+		DumpProgress progress = new DumpProgress(tableName, ranges.size());
+		for (KeyRange range : ranges) {
+			parts.add(new DumpPart(tableName, range.toSql(query, key), range
+					.getParameters(), progress));
+		}
+		LOGGER.info("Dumping " + tableName + " in " + ranges.size()
+				+ " ranges of " + key + " from " + min + " to " + max);
+		return parts;
+	}
+
+	/*
+	 * Runs the part queries on a pool of connections, writing the rows of each
+	 * to a part file of its own. Returns once every part has been written, or
+	 * throws the ExecutionException of the first one that failed after
+	 * cancelling the queries still running.
+	 */
+	private void dumpParts(List<DumpPart> parts, File file,
+			final int fetchSize, int threads) throws Exception {
+		File dir = file.getAbsoluteFile().getParentFile();
+		// every connection opened, closed whether or not it made it back
+		List<IDatabaseConnection> opened = new ArrayList<IDatabaseConnection>();
+		final BlockingQueue<IDatabaseConnection> connections = new ArrayBlockingQueue<IDatabaseConnection>(
+				threads);
+		ExecutorService executor = Executors.newFixedThreadPool(threads,
+				new DumpThreadFactory());
+		try {
+			for (int i = 0; i < threads; i++) {
+				IDatabaseConnection connection = databaseTester.getConnection();
+				opened.add(connection);
+				connections.add(connection);
+			}
+			CompletionService<Void> completion = new ExecutorCompletionService<Void>(
+					executor);
+			for (final DumpPart part : parts) {
+				part.file = File.createTempFile("xbi-dump-", ".part", dir);
+				completion.submit(new Callable<Void>() {
+					public Void call() throws Exception {
+						IDatabaseConnection connection = connections.take();
+						try {
+							part.dump(connection, fetchSize);
+						} finally {
+							// never blocks: the queue holds every connection
+							connections.offer(connection);
+						}
+						return null;
+					}
+				});
+			}
+			executor.shutdown();
+			// in order of completion, so that the first failure is seen at once
+			try {
+				for (int i = 0; i < parts.size(); i++) {
+					completion.take().get();
+				}
+			} catch (Exception e) {
+				for (DumpPart part : parts) {
+					part.cancel();
+				}
+				throw e;
+			}
+		} finally {
+			executor.shutdownNow();
+			if (!executor.awaitTermination(CANCEL_WAIT_SECONDS,
+					TimeUnit.SECONDS)) {
+				LOGGER.warn("Dump queries still running after "
+						+ CANCEL_WAIT_SECONDS + " s, closing their connections");
+			}
+			for (IDatabaseConnection connection : opened) {
+				try {
+					connection.close();
+				} catch (SQLException e) {
+					LOGGER.warn("Unable to close dump connection: "
+							+ e.getMessage());
+				}
+			}
+		}
+	}
+
+	/*
+	 * Appends the part files in order, writing an empty element for a table
+	 * without rows in any of its parts.
+	 */
+	private static long appendParts(FlatXmlStreamWriter writer,
+			List<DumpPart> parts) throws IOException {
+		long rows = 0;
+		int i = 0;
+		while (i < parts.size()) {
+			String tableName = parts.get(i).tableName;
+			long tableRows = 0;
+			int end = i;
+			while (end < parts.size()
+					&& parts.get(end).tableName.equals(tableName)) {
+				tableRows += parts.get(end).rows;
+				end++;
+			}
+			if (tableRows == 0) {
+				writer.writeEmptyTable(tableName);
+			} else {
+				for (; i < end; i++) {
+					writer.append(parts.get(i).file);
+				}
+			}
+			i = end;
+			rows += tableRows;
+		}
+		return rows;
+	}
+
+	/*
+	 * Runs one dump query and writes its rows.
+	 */
+	private static long dumpTable(IDatabaseConnection connection,
+			String tableName, String query, FlatXmlStreamWriter writer,
+			int fetchSize) throws Exception {
+		IDataTypeFactory dataTypes = (IDataTypeFactory) connection.getConfig()
+				.getProperty(DatabaseConfig.PROPERTY_DATATYPE_FACTORY);
+		long start = System.nanoTime();
+		long rows;
+		Statement stmt = connection.getConnection().createStatement(
+				ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+		try {
+			stmt.setFetchSize(fetchSize);
+			ResultSet rs = stmt.executeQuery(query);
+			try {
+				rows = writer.writeTable(tableName, rs, dataTypes);
+			} finally {
+				rs.close();
+			}
+		} finally {
+			stmt.close();
+		}
+		long millis = Math.max(1, (System.nanoTime() - start) / 1000000L);
+		LOGGER.info("Dumped " + rows + " row(s) of " + tableName + " in "
+				+ millis + " ms (" + (rows * 1000L / millis) + " rows/s)");
+		return rows;
 	}
 
 	/**
@@ -261,4 +760,121 @@ public class Connector {
 		String sql = generateCleanupSQL();
 		execute(sql);
 	}
+
+	/**
+	 * Closes the underlying database connection. The Connector cannot be used
+	 * afterwards.
+	 */
+	public void close() {
+		if (databaseConnection == null) {
+			return;
+		}
+		try {
+			databaseConnection.close();
+		} catch (SQLException e) {
+			LOGGER.warn("Unable to close database connection: "
+					+ e.getMessage());
+		}
+		databaseConnection = null;
+		databaseDataSet = null;
+	}
+
+	/*
+	 * One query of a parallel dump: a whole table, or a key range of one, and
+	 * the part file its rows are written to.
+	 */
+	private static class DumpPart {
+		private final String tableName;
+		private final String sql;
+		private final Object[] params;
+		private final DumpProgress progress;
+		private File file;
+		private volatile long rows;
+		private volatile Statement running;
+		private volatile boolean cancelled;
+
+		DumpPart(String tableName, String sql, Object[] params,
+				DumpProgress progress) {
+			this.tableName = tableName;
+			this.sql = sql;
+			this.params = params;
+			this.progress = progress;
+		}
+
+		void dump(IDatabaseConnection connection, int fetchSize)
+				throws Exception {
+			IDataTypeFactory dataTypes = (IDataTypeFactory) connection
+					.getConfig().getProperty(
+							DatabaseConfig.PROPERTY_DATATYPE_FACTORY);
+			long start = System.nanoTime();
+			FlatXmlStreamWriter writer = FlatXmlStreamWriter.part(file);
+			try {
+				PreparedStatement stmt = connection.getConnection()
+						.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY,
+								ResultSet.CONCUR_READ_ONLY);
+				running = stmt;
+				try {
+					stmt.setFetchSize(fetchSize);
+					for (int i = 0; params != null && i < params.length; i++) {
+						stmt.setObject(i + 1, params[i]);
+					}
+					if (cancelled) {
+						throw new SQLException("The dump query of " + tableName
+								+ " was cancelled");
+					}
+					ResultSet rs = stmt.executeQuery();
+					try {
+						rows = writer.writeRows(tableName, rs, dataTypes,
+								progress);
+					} finally {
+						rs.close();
+					}
+				} finally {
+					running = null;
+					stmt.close();
+				}
+			} finally {
+				writer.close();
+			}
+			if (progress != null) {
+				progress.rangeDone();
+			} else {
+				long millis = Math.max(1,
+						(System.nanoTime() - start) / 1000000L);
+				LOGGER.info("Dumped " + rows + " row(s) of " + tableName
+						+ " in " + millis + " ms ("
+						+ (rows * 1000L / millis) + " rows/s)");
+			}
+		}
+
+		/*
+		 * Cancels the query if it is running; JDBC calls do not respond to
+		 * interrupts.
+		 */
+		void cancel() {
+			cancelled = true;
+			Statement stmt = running;
+			if (stmt != null) {
+				try {
+					stmt.cancel();
+				} catch (SQLException e) {
+					LOGGER.warn("Unable to cancel the dump query of "
+							+ tableName + ": " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	/*
+	 * Names the dump threads so that their log lines can be told apart.
+	 */
+	private static class DumpThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "xbi-dump-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
 }
@@ -0,0 +1,83 @@
+package xbi.testutils.dbunit;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Logs how far the dump of a table split into key ranges has got: the rows
+ * written so far by all of its ranges and the ranges done. Rows are logged at
+ * most every few seconds, whichever range thread writes them, and each range
+ * is logged as it completes.
+ *
+ * @author eniesc200
+ */
+final class DumpProgress {
+
+	private static final Logger LOGGER = LoggerFactory
+			.getLogger(DumpProgress.class);
+
+	private static final long INTERVAL_NANOS = 5000000000L;
+
+	private final String tableName;
+	private final int ranges;
+	private final long startNanos = System.nanoTime();
+	private final AtomicLong rows = new AtomicLong();
+	private final AtomicInteger rangesDone = new AtomicInteger();
+	private final AtomicLong lastLogNanos = new AtomicLong(startNanos);
+
+	/**
+	 * @param tableName
+	 *            the table being dumped
+	 * @param ranges
+	 *            the number of ranges it is split into
+	 */
+	DumpProgress(String tableName, int ranges) {
+		this.tableName = tableName;
+		this.ranges = ranges;
+	}
+
+	/**
+	 * Counts rows written by one of the ranges.
+	 */
+	void addRows(long count) {
+		long total = rows.addAndGet(count);
+		long now = System.nanoTime();
+		long last = lastLogNanos.get();
+		if (now - last >= INTERVAL_NANOS
+				&& lastLogNanos.compareAndSet(last, now)) {
+			log(total, rangesDone.get(), now);
+		}
+	}
+
+	/**
+	 * Counts a range whose rows have all been written.
+	 */
+	void rangeDone() {
+		int done = rangesDone.incrementAndGet();
+		log(rows.get(), done, System.nanoTime());
+	}
+
+	/**
+	 * @return the rows written so far
+	 */
+	long getRows() {
+		return rows.get();
+	}
+
+	/**
+	 * @return the number of ranges done so far
+	 */
+	int getRangesDone() {
+		return rangesDone.get();
+	}
+
+	private void log(long total, int done, long now) {
+		long millis = Math.max(1, (now - startNanos) / 1000000L);
+		LOGGER.info("Dumping " + tableName + ": " + total + " row(s), "
+				+ done + " of " + ranges + " range(s) done in " + millis
+				+ " ms (" + (total * 1000L / millis) + " rows/s)");
+	}
+}
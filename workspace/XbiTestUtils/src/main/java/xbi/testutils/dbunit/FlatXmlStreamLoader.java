@@ -0,0 +1,309 @@
+package xbi.testutils.dbunit;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.dbunit.DatabaseUnitException;
+import org.dbunit.database.IDatabaseConnection;
+import org.dbunit.dataset.IDataSet;
+import org.dbunit.dataset.datatype.DataType;
+import org.dbunit.util.QualifiedTableName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Loads a DBUnit flat XML file into the database without reading it into an
+ * IDataSet first, so that memory use does not grow with the file. The file is
+ * read twice with a pull parser:
+ * <ol>
+ * <li>a pre-scan collects the tables and, as column sensing does, every column
+ * used by any row of each table;</li>
+ * <li>the tables are emptied in reverse order, as DBUnit's CLEAN_INSERT does,
+ * and the rows are then added to one prepared statement per table as they are
+ * read. A statement is executed when the file moves on to another table and
+ * every batch size rows; the latter also commits. Rows therefore reach the
+ * database in file order, so parent rows listed before their children are
+ * always inserted first.</li>
+ * </ol>
+ * Columns missing from a row are inserted as null.
+ *
+ * @author eniesc200
+ */
+final class FlatXmlStreamLoader {
+
+	private static final Logger LOGGER = LoggerFactory
+			.getLogger(FlatXmlStreamLoader.class);
+
+	private static final XMLInputFactory FACTORY = XMLInputFactory
+			.newInstance();
+	static {
+		// the columns come from the rows, never from a DTD
+		FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+				Boolean.FALSE);
+	}
+
+	private final File file;
+	private final int batchSize;
+
+	/**
+	 * @param file
+	 *            the DBUnit flat XML file
+	 * @param batchSize
+	 *            the number of rows per batch and commit
+	 */
+	FlatXmlStreamLoader(File file, int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException(
+					"The batch size must be at least 1, was " + batchSize);
+		}
+		this.file = file;
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Reads the file once for its tables and columns.
+	 *
+	 * @return the column names of each table, both in order of first use
+	 */
+	Map<String, List<String>> scanColumns() throws IOException,
+			XMLStreamException {
+		Map<String, Set<String>> tables = new LinkedHashMap<String, Set<String>>();
+		InputStream in = new BufferedInputStream(new FileInputStream(file));
+		try {
+			XMLStreamReader reader = FACTORY.createXMLStreamReader(in);
+			try {
+				int depth = 0;
+				while (reader.hasNext()) {
+					int event = reader.next();
+					if (event == XMLStreamConstants.END_ELEMENT) {
+						depth--;
+					} else if (event == XMLStreamConstants.START_ELEMENT
+							&& ++depth == 2) {
+						Set<String> columns = tables.get(reader.getLocalName());
+						if (columns == null) {
+							columns = new LinkedHashSet<String>();
+							tables.put(reader.getLocalName(), columns);
+						}
+						for (int i = 0; i < reader.getAttributeCount(); i++) {
+							columns.add(reader.getAttributeLocalName(i));
+						}
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		} finally {
+			in.close();
+		}
+		Map<String, List<String>> result = new LinkedHashMap<String, List<String>>();
+		for (Map.Entry<String, Set<String>> entry : tables.entrySet()) {
+			result.put(entry.getKey(), new ArrayList<String>(entry.getValue()));
+		}
+		return result;
+	}
+
+	/**
+	 * Empties the tables of the file and inserts its rows.
+	 *
+	 * @param connection
+	 *            the connection to load through; its auto-commit setting is
+	 *            restored afterwards
+	 * @return the number of rows inserted into each table
+	 */
+	Map<String, Integer> load(IDatabaseConnection connection)
+			throws DatabaseUnitException, SQLException, IOException,
+			XMLStreamException {
+		Map<String, List<String>> tables = scanColumns();
+		Connection jdbc = connection.getConnection();
+		boolean autoCommit = jdbc.getAutoCommit();
+		jdbc.setAutoCommit(false);
+		Map<String, TableInsert> inserts = new HashMap<String, TableInsert>();
+		boolean done = false;
+		try {
+			deleteAll(connection, tables.keySet());
+			jdbc.commit();
+			insertRows(connection, tables, inserts);
+			for (TableInsert insert : inserts.values()) {
+				insert.flush();
+			}
+			jdbc.commit();
+			done = true;
+		} finally {
+			for (TableInsert insert : inserts.values()) {
+				insert.close();
+			}
+			// turning auto-commit back on would commit a partial batch
+			if (!done) {
+				rollback(jdbc);
+			}
+			jdbc.setAutoCommit(autoCommit);
+		}
+		Map<String, Integer> counts = new LinkedHashMap<String, Integer>();
+		for (String table : tables.keySet()) {
+			TableInsert insert = inserts.get(table);
+			counts.put(table, (insert != null) ? insert.rows : 0);
+		}
+		return counts;
+	}
+
+	/*
+	 * Rolls back without hiding the failure that led to it.
+	 */
+	private static void rollback(Connection jdbc) {
+		try {
+			jdbc.rollback();
+		} catch (SQLException e) {
+			LOGGER.warn("Unable to roll back the failed load: "
+					+ e.getMessage());
+		}
+	}
+
+	/*
+	 * Deletes all rows of the tables, last table first.
+	 */
+	private static void deleteAll(IDatabaseConnection connection,
+			Set<String> tables) throws SQLException {
+		List<String> reversed = new ArrayList<String>(tables);
+		Collections.reverse(reversed);
+		Statement statement = connection.getConnection().createStatement();
+		try {
+			for (String table : reversed) {
+				statement.executeUpdate("delete from "
+						+ new QualifiedTableName(table, connection.getSchema())
+								.getQualifiedName());
+			}
+		} finally {
+			statement.close();
+		}
+	}
+
+	/*
+	 * Reads the file again and adds each row to the insert of its table.
+	 */
+	private void insertRows(IDatabaseConnection connection,
+			Map<String, List<String>> tables, Map<String, TableInsert> inserts)
+			throws DatabaseUnitException, SQLException, IOException,
+			XMLStreamException {
+		IDataSet database = connection.createDataSet();
+		InputStream in = new BufferedInputStream(new FileInputStream(file));
+		try {
+			XMLStreamReader reader = FACTORY.createXMLStreamReader(in);
+			try {
+				int depth = 0;
+				TableInsert current = null;
+				while (reader.hasNext()) {
+					int event = reader.next();
+					if (event == XMLStreamConstants.END_ELEMENT) {
+						depth--;
+					} else if (event == XMLStreamConstants.START_ELEMENT
+							&& ++depth == 2 && reader.getAttributeCount() > 0) {
+						String table = reader.getLocalName();
+						TableInsert insert = inserts.get(table);
+						if (insert == null) {
+							insert = new TableInsert(connection, table,
+									tables.get(table), database);
+							inserts.put(table, insert);
+						}
+						// send the rows of the previous table before any of
+						// this one, so that only the current table has any
+						// pending when a batch is committed
+						if (insert != current && current != null) {
+							current.flush();
+						}
+						current = insert;
+						insert.add(reader);
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/*
+	 * The prepared statement of one table and the rows batched on it.
+	 */
+	private class TableInsert {
+		private final Connection jdbc;
+		private final PreparedStatement statement;
+		private final Map<String, Integer> indexes = new HashMap<String, Integer>();
+		private final DataType[] types;
+		private final String[] values;
+		private int pending;
+		private int rows;
+
+		TableInsert(IDatabaseConnection connection, String table,
+				List<String> columns, IDataSet database)
+				throws DatabaseUnitException, SQLException {
+			String[] names = columns.toArray(new String[columns.size()]);
+			for (int c = 0; c < names.length; c++) {
+				indexes.put(names[c], c);
+			}
+			types = new DataType[names.length];
+			values = new String[names.length];
+			String sql = BatchInsertOperation.insertSql(connection, table,
+					names, database.getTableMetaData(table), types);
+			jdbc = connection.getConnection();
+			statement = jdbc.prepareStatement(sql);
+		}
+
+		void add(XMLStreamReader reader) throws DatabaseUnitException,
+				SQLException {
+			for (int c = 0; c < values.length; c++) {
+				values[c] = null;
+			}
+			for (int i = 0; i < reader.getAttributeCount(); i++) {
+				values[indexes.get(reader.getAttributeLocalName(i))] = reader
+						.getAttributeValue(i);
+			}
+			for (int c = 0; c < values.length; c++) {
+				types[c].setSqlValue(values[c], c + 1, statement);
+			}
+			statement.addBatch();
+			rows++;
+			if (++pending == batchSize) {
+				flush();
+				jdbc.commit();
+			}
+		}
+
+		void flush() throws SQLException {
+			if (pending > 0) {
+				statement.executeBatch();
+				pending = 0;
+			}
+		}
+
+		void close() {
+			try {
+				statement.close();
+			} catch (SQLException e) {
+				LOGGER.warn("Unable to close insert statement: "
+						+ e.getMessage());
+			}
+		}
+	}
+}
@@ -0,0 +1,277 @@
+package xbi.testutils.dbunit;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.output.CountingOutputStream;
+import org.dbunit.DatabaseUnitException;
+import org.dbunit.dataset.datatype.DataType;
+import org.dbunit.dataset.datatype.IDataTypeFactory;
+
+/**
+ * Writes query results to a DBUnit flat XML file row by row as they are
+ * fetched, instead of collecting them in a data set first. The output matches
+ * FlatXmlDataSet.write: values are formatted with the DBUnit data type of
+ * their column, null values are left out and a table without rows is written
+ * as an empty element.
+ *
+ * A part writer writes the table elements only, so that tables can be dumped
+ * to separate parts at the same time and appended to one file afterwards.
+ *
+ * If a write throws, the data set is not ended on close, so that a broken
+ * dump cannot be read as a complete one.
+ *
+ * @author eniesc200
+ */
+final class FlatXmlStreamWriter {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	// rows between progress updates
+	private static final int PROGRESS_ROWS = 1000;
+
+	private final CountingOutputStream count;
+	private final Writer out;
+	private final boolean document;
+
+	// set if a write did not complete, so the data set is not ended
+	private boolean failed;
+
+	/**
+	 * Creates the file and writes the start of the data set.
+	 *
+	 * @param file
+	 *            the file to write, replaced if it exists
+	 * @param gzip
+	 *            true to compress the file with gzip
+	 */
+	FlatXmlStreamWriter(File file, boolean gzip) throws IOException {
+		this(file, gzip, true);
+	}
+
+	/**
+	 * @param file
+	 *            the part file to write, replaced if it exists
+	 * @return a writer of table elements only, see {@link #append(File)}
+	 */
+	static FlatXmlStreamWriter part(File file) throws IOException {
+		return new FlatXmlStreamWriter(file, false, false);
+	}
+
+	private FlatXmlStreamWriter(File file, boolean gzip, boolean document)
+			throws IOException {
+		this.document = document;
+		count = new CountingOutputStream(new FileOutputStream(file));
+		Writer w = null;
+		try {
+			OutputStream os = gzip ? new GZIPOutputStream(count, BUFFER_SIZE)
+					: count;
+			w = new BufferedWriter(new OutputStreamWriter(os, "UTF-8"),
+					BUFFER_SIZE);
+			if (document) {
+				w.write("<?xml version='1.0' encoding='UTF-8'?>\n<dataset>\n");
+			}
+		} catch (IOException e) {
+			if (w != null) {
+				w.close();
+			} else {
+				count.close();
+			}
+			throw e;
+		}
+		out = w;
+	}
+
+	/**
+	 * Writes every row of a result set as an element named after the table.
+	 *
+	 * @param tableName
+	 *            the table name to write
+	 * @param resultSet
+	 *            the rows, read to the end but not closed
+	 * @param dataTypes
+	 *            the data type factory of the database connection
+	 * @return the number of rows written
+	 */
+	long writeTable(String tableName, ResultSet resultSet,
+			IDataTypeFactory dataTypes) throws IOException, SQLException,
+			DatabaseUnitException {
+		long rows = writeRows(tableName, resultSet, dataTypes, null);
+		if (rows == 0) {
+			writeEmptyTable(tableName);
+		}
+		return rows;
+	}
+
+	/**
+	 * Writes every row of a result set like
+	 * {@link #writeTable(String, ResultSet, IDataTypeFactory)}, but nothing at
+	 * all if there are none.
+	 *
+	 * @param progress
+	 *            counts the rows written, or null
+	 * @return the number of rows written
+	 */
+	long writeRows(String tableName, ResultSet resultSet,
+			IDataTypeFactory dataTypes, DumpProgress progress)
+			throws IOException, SQLException, DatabaseUnitException {
+		boolean complete = false;
+		try {
+			long rows = copyRows(tableName, resultSet, dataTypes, progress);
+			complete = true;
+			return rows;
+		} finally {
+			failed |= !complete;
+		}
+	}
+
+	/*
+	 * Does the work of writeRows.
+	 */
+	private long copyRows(String tableName, ResultSet resultSet,
+			IDataTypeFactory dataTypes, DumpProgress progress)
+			throws IOException, SQLException, DatabaseUnitException {
+		ResultSetMetaData metaData = resultSet.getMetaData();
+		int columns = metaData.getColumnCount();
+		String[] names = new String[columns];
+		DataType[] types = new DataType[columns];
+		for (int c = 0; c < columns; c++) {
+			names[c] = metaData.getColumnLabel(c + 1);
+			types[c] = dataTypes.createDataType(metaData.getColumnType(c + 1),
+					metaData.getColumnTypeName(c + 1));
+		}
+		long rows = 0;
+		while (resultSet.next()) {
+			out.write("  <");
+			out.write(tableName);
+			for (int c = 0; c < columns; c++) {
+				Object value = types[c].getSqlValue(c + 1, resultSet);
+				if (value == null) {
+					continue;
+				}
+				out.write(' ');
+				out.write(names[c]);
+				out.write("=\"");
+				writeEscaped(DataType.asString(value));
+				out.write('"');
+			}
+			out.write("/>\n");
+			rows++;
+			if (progress != null && rows % PROGRESS_ROWS == 0) {
+				progress.addRows(PROGRESS_ROWS);
+			}
+		}
+		if (progress != null) {
+			progress.addRows(rows % PROGRESS_ROWS);
+		}
+		return rows;
+	}
+
+	/**
+	 * Writes a table without rows as an empty element.
+	 */
+	void writeEmptyTable(String tableName) throws IOException {
+		boolean complete = false;
+		try {
+			out.write("  <");
+			out.write(tableName);
+			out.write("/>\n");
+			complete = true;
+		} finally {
+			failed |= !complete;
+		}
+	}
+
+	/*
+	 * Writes an attribute value, escaping markup and whitespace that the
+	 * parser would otherwise normalize.
+	 */
+	private void writeEscaped(String value) throws IOException {
+		for (int i = 0; i < value.length(); i++) {
+			char ch = value.charAt(i);
+			switch (ch) {
+			case '&':
+				out.write("&amp;");
+				break;
+			case '<':
+				out.write("&lt;");
+				break;
+			case '>':
+				out.write("&gt;");
+				break;
+			case '"':
+				out.write("&quot;");
+				break;
+			case '\'':
+				out.write("&apos;");
+				break;
+			default:
+				if (ch < 0x20) {
+					out.write("&#" + (int) ch + ";");
+				} else {
+					out.write(ch);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Copies the table elements of a closed part file into this file.
+	 *
+	 * @param part
+	 *            a file written by a {@link #part(File)} writer
+	 */
+	void append(File part) throws IOException {
+		boolean complete = false;
+		try {
+			Reader in = new InputStreamReader(new FileInputStream(part),
+					"UTF-8");
+			try {
+				char[] buffer = new char[BUFFER_SIZE];
+				int n;
+				while ((n = in.read(buffer)) != -1) {
+					out.write(buffer, 0, n);
+				}
+			} finally {
+				in.close();
+			}
+			complete = true;
+		} finally {
+			failed |= !complete;
+		}
+	}
+
+	/**
+	 * @return the number of bytes written to the file so far, after
+	 *         compression
+	 */
+	long getBytesWritten() {
+		return count.getByteCount();
+	}
+
+	/**
+	 * Writes the end of the data set, unless this is a part or a write threw,
+	 * and closes the file.
+	 */
+	void close() throws IOException {
+		try {
+			if (document && !failed) {
+				out.write("</dataset>\n");
+			}
+		} finally {
+			out.close();
+		}
+	}
+}
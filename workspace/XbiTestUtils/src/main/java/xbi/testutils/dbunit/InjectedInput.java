@@ -0,0 +1,212 @@
+package xbi.testutils.dbunit;
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.dbunit.dataset.Column;
+import org.dbunit.dataset.DataSetException;
+import org.dbunit.dataset.IDataSet;
+import org.dbunit.dataset.ITable;
+import org.dbunit.dataset.xml.FlatXmlDataSetBuilder;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMeta;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+import xbi.testutils.kettle.RowInjection;
+
+/**
+ * A DBUnit test data table that is fed straight into a step of the
+ * transformation, see {@link RowInjection}, instead of being loaded into the
+ * database for the step to read back.
+ *
+ * Flat XML data sets hold text only. Every column is a String unless a Kettle
+ * type (String, Integer, Number, BigNumber, Date, Boolean) is given for it;
+ * dates are parsed with the date format, or Kettle's default
+ * (yyyy/MM/dd HH:mm:ss.SSS) if there is none.
+ *
+ * @author eniesc200
+ */
+public final class InjectedInput {
+
+	private final String stepName;
+	private final File file;
+	private final String table;
+	private final Map<String, String> fieldTypes;
+	private final String dateFormat;
+
+	/**
+	 * @param stepName
+	 *            the step to feed the rows into
+	 * @param file
+	 *            the DBUnit flat XML test data file
+	 * @param table
+	 *            the table of the file to feed, null if the file holds only
+	 *            one
+	 * @param fieldTypes
+	 *            Kettle type names by column name, for columns that are not
+	 *            Strings
+	 * @param dateFormat
+	 *            the format of date columns, null for Kettle's default
+	 */
+	public InjectedInput(String stepName, File file, String table,
+			Map<String, String> fieldTypes, String dateFormat) {
+		if (stepName == null || file == null || fieldTypes == null) {
+			throw new NullPointerException();
+		}
+		this.stepName = stepName;
+		this.file = file.getAbsoluteFile();
+		this.table = table;
+		this.fieldTypes = new LinkedHashMap<String, String>(fieldTypes);
+		this.dateFormat = dateFormat;
+	}
+
+	@Nonnull
+	public String getStepName() {
+		return stepName;
+	}
+
+	@Nonnull
+	public File getFile() {
+		return file;
+	}
+
+	@CheckForNull
+	public String getTable() {
+		return table;
+	}
+
+	@Nonnull
+	public Map<String, String> getFieldTypes() {
+		return new LinkedHashMap<String, String>(fieldTypes);
+	}
+
+	@CheckForNull
+	public String getDateFormat() {
+		return dateFormat;
+	}
+
+	/**
+	 * Reads the table and converts its values to the field types.
+	 *
+	 * @return the rows to inject
+	 * @throws IllegalStateException
+	 *             if the file cannot be read, the table is not found, a type
+	 *             is unknown or a value cannot be converted
+	 */
+	@Nonnull
+	public RowInjection toRowInjection() throws IllegalStateException {
+		try {
+			FlatXmlDataSetBuilder builder = new FlatXmlDataSetBuilder();
+			builder.setColumnSensing(true); // Tolerates nulls in columns
+			IDataSet dataSet = builder.build(file);
+			ITable data = readTable(dataSet);
+
+			Column[] columns = data.getTableMetaData().getColumns();
+			RowMetaInterface rowMeta = new RowMeta();
+			ValueMetaInterface[] texts = new ValueMetaInterface[columns.length];
+			for (int c = 0; c < columns.length; c++) {
+				String name = columns[c].getColumnName();
+				rowMeta.addValueMeta(new ValueMeta(name, typeOf(name)));
+				texts[c] = new ValueMeta(name, ValueMetaInterface.TYPE_STRING);
+				texts[c].setDecimalSymbol(".");
+				texts[c].setGroupingSymbol("");
+				if (dateFormat != null) {
+					texts[c].setConversionMask(dateFormat);
+				}
+			}
+
+			List<Object[]> rows = new ArrayList<Object[]>();
+			for (int r = 0; r < data.getRowCount(); r++) {
+				Object[] row = new Object[columns.length];
+				for (int c = 0; c < columns.length; c++) {
+					Object value = data.getValue(r, columns[c].getColumnName());
+					if (value != null) {
+						row[c] = rowMeta.getValueMeta(c).convertData(texts[c],
+								value.toString());
+					}
+				}
+				rows.add(row);
+			}
+			return new RowInjection(stepName, rowMeta, rows);
+		} catch (MalformedURLException e) {
+			throw new IllegalStateException("Unable to load file "
+					+ file.getAbsolutePath() + ": " + e.getMessage());
+		} catch (DataSetException e) {
+			throw new IllegalStateException("Unable to read rows for "
+					+ stepName + " from " + file.getAbsolutePath() + ": "
+					+ e.getMessage());
+		} catch (KettleValueException e) {
+			throw new IllegalStateException("Unable to convert rows for "
+					+ stepName + " from " + file.getAbsolutePath() + ": "
+					+ e.getMessage());
+		}
+	}
+
+	/*
+	 * The named table, or the only table of the data set.
+	 */
+	private ITable readTable(IDataSet dataSet) throws DataSetException {
+		if (table != null) {
+			return dataSet.getTable(table);
+		}
+		String[] names = dataSet.getTableNames();
+		if (names.length != 1) {
+			throw new IllegalStateException(file.getAbsolutePath() + " holds "
+					+ names.length + " tables, name the one to inject into "
+					+ stepName);
+		}
+		return dataSet.getTable(names[0]);
+	}
+
+	/*
+	 * The Kettle type of a column, String if none was given.
+	 */
+	private int typeOf(String column) {
+		String typeName = null;
+		for (Map.Entry<String, String> entry : fieldTypes.entrySet()) {
+			if (entry.getKey().equalsIgnoreCase(column)) {
+				typeName = entry.getValue();
+			}
+		}
+		if (typeName == null) {
+			return ValueMetaInterface.TYPE_STRING;
+		}
+		int type = ValueMeta.getType(typeName);
+		if (type == ValueMetaInterface.TYPE_NONE) {
+			throw new IllegalStateException("Unknown Kettle type " + typeName
+					+ " for column " + column + " of " + file.getName());
+		}
+		return type;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString() {
+		StringBuffer b = new StringBuffer("InjectedInput: ");
+		b.append(file.getAbsolutePath());
+		if (table != null) {
+			b.append("[");
+			b.append(table);
+			b.append("]");
+		}
+		b.append(" -> ");
+		b.append(stepName);
+		if (!fieldTypes.isEmpty()) {
+			b.append(" ");
+			b.append(fieldTypes);
+		}
+		return b.toString();
+	}
+}
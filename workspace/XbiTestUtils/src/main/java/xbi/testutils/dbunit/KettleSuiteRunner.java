@@ -0,0 +1,269 @@
+package xbi.testutils.dbunit;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.junit.runner.Description;
+import org.junit.runner.notification.Failure;
+import org.junit.runner.notification.RunNotifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A JUnit runner for an explicit set of {@link KettleTestCaseConfiguration}s.
+ * Each configuration gets its own {@link ConfigurableKettleTestCase}, and with
+ * it its own Runner and Connector, which are released as soon as the
+ * configuration has been tested. Nothing is kept between runs, so any number
+ * of suites can be run in the same JVM.
+ *
+ * Configurations that touch the same tables are run one after another in the
+ * order given; everything else is run concurrently, up to the given number of
+ * threads.
+ *
+ * The Job or Transformation is run once per configuration and all test methods
+ * of ConfigurableKettleTestCase are checked against that run. Setting up,
+ * loading the fixtures and running are reported as a test of their own,
+ * preflight[i], ahead of the test methods, so that listeners time the run.
+ *
+ * Usage: <code>new JUnitCore().run(new KettleSuiteRunner(configs, 4));</code>
+ *
+ * @author eniesc200
+ */
+public class KettleSuiteRunner extends org.junit.runner.Runner {
+
+	private static final Logger LOGGER = LoggerFactory
+			.getLogger(KettleSuiteRunner.class);
+
+	private final List<KettleTestCaseConfiguration> configurations;
+	private final int threads;
+	private final List<Method> testMethods;
+	private final Description description;
+
+	// one description per test method, per configuration
+	private final List<List<Description>> testDescriptions = new ArrayList<List<Description>>();
+
+	// the setup and run of each configuration
+	private final List<Description> preflightDescriptions = new ArrayList<Description>();
+
+	/**
+	 * @param configurations
+	 *            the configurations to run. Each is run exactly once.
+	 * @param threads
+	 *            the maximum number of configurations to run at the same time
+	 */
+	public KettleSuiteRunner(
+			Collection<KettleTestCaseConfiguration> configurations, int threads) {
+		if (configurations == null) {
+			throw new NullPointerException();
+		}
+		if (threads < 1) {
+			throw new IllegalArgumentException(
+					"Number of threads must be at least 1, was " + threads);
+		}
+		this.configurations = new ArrayList<KettleTestCaseConfiguration>(
+				configurations);
+		this.threads = threads;
+		this.testMethods = findTestMethods();
+
+		description = Description.createSuiteDescription("KettleSuite");
+		for (int i = 0; i < this.configurations.size(); i++) {
+			Description configDescription = Description
+					.createSuiteDescription(this.configurations.get(i)
+							.getName() + "[" + i + "]");
+			Description preflight = Description.createTestDescription(
+					ConfigurableKettleTestCase.class, "preflight[" + i + "]");
+			configDescription.addChild(preflight);
+			preflightDescriptions.add(preflight);
+			List<Description> children = new ArrayList<Description>();
+			for (Method method : testMethods) {
+				// same naming as the Parameterized runner, e.g. test[0]
+				Description child = Description.createTestDescription(
+						ConfigurableKettleTestCase.class, method.getName()
+								+ "[" + i + "]");
+				configDescription.addChild(child);
+				children.add(child);
+			}
+			description.addChild(configDescription);
+			testDescriptions.add(children);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see org.junit.runner.Runner#getDescription()
+	 */
+	@Override
+	public Description getDescription() {
+		return description;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see org.junit.runner.Runner#run(org.junit.runner.notification.RunNotifier)
+	 */
+	@Override
+	public void run(final RunNotifier notifier) {
+		if (configurations.isEmpty()) {
+			return;
+		}
+
+		Map<Integer, Set<String>> tablesByIndex = new LinkedHashMap<Integer, Set<String>>();
+		for (int i = 0; i < configurations.size(); i++) {
+			tablesByIndex.put(i,
+					TableConflicts.touchedTables(configurations.get(i)));
+		}
+		List<List<Integer>> groups = TableConflicts.partition(tablesByIndex);
+
+		ExecutorService executor = Executors.newFixedThreadPool(
+				Math.min(threads, groups.size()), new SuiteThreadFactory());
+		List<Future<?>> results = new ArrayList<Future<?>>();
+		for (final List<Integer> group : groups) {
+			results.add(executor.submit(new Runnable() {
+				public void run() {
+					for (Integer index : group) {
+						runConfiguration(index, notifier);
+					}
+				}
+			}));
+		}
+		executor.shutdown();
+
+		for (Future<?> result : results) {
+			try {
+				result.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				LOGGER.error("Interrupted waiting for the suite to complete");
+				executor.shutdownNow();
+				return;
+			} catch (ExecutionException e) {
+				LOGGER.error("Unexpected error running the suite: "
+						+ e.getCause(), e.getCause());
+			}
+		}
+	}
+
+	/*
+	 * Sets up, runs, tests and releases a single configuration.
+	 */
+	private void runConfiguration(int index, RunNotifier notifier) {
+		KettleTestCaseConfiguration config = configurations.get(index);
+		List<Description> children = testDescriptions.get(index);
+		Description preflight = preflightDescriptions.get(index);
+		ConfigurableKettleTestCase testCase = null;
+		fireStarted(notifier, preflight);
+		try {
+			testCase = new ConfigurableKettleTestCase(config);
+			testCase.preflight();
+			testCase.registerObjectsForCleanup();
+		} catch (Throwable t) {
+			LOGGER.error("Unable to set up " + config.getName() + ": " + t, t);
+			fireFailure(notifier, preflight, t);
+			fireFinished(notifier, preflight);
+			for (Description child : children) {
+				fire(notifier, child, t);
+			}
+			release(testCase);
+			return;
+		}
+		fireFinished(notifier, preflight);
+
+		for (int m = 0; m < testMethods.size(); m++) {
+			Description child = children.get(m);
+			fireStarted(notifier, child);
+			try {
+				testMethods.get(m).invoke(testCase);
+			} catch (InvocationTargetException e) {
+				fireFailure(notifier, child, e.getCause());
+			} catch (Throwable t) {
+				fireFailure(notifier, child, t);
+			}
+			fireFinished(notifier, child);
+		}
+
+		try {
+			testCase.cleanupTestData();
+		} catch (Throwable t) {
+			LOGGER.error("Unable to clean up after " + config.getName() + ": "
+					+ t, t);
+		}
+		release(testCase);
+	}
+
+	private void release(ConfigurableKettleTestCase testCase) {
+		if (testCase != null) {
+			testCase.release();
+		}
+	}
+
+	/*
+	 * RunNotifier and the listeners attached to it are not thread-safe, so all
+	 * notifications are serialized on the notifier.
+	 */
+	private void fireStarted(RunNotifier notifier, Description d) {
+		synchronized (notifier) {
+			notifier.fireTestStarted(d);
+		}
+	}
+
+	private void fireFailure(RunNotifier notifier, Description d, Throwable t) {
+		synchronized (notifier) {
+			notifier.fireTestFailure(new Failure(d, t));
+		}
+	}
+
+	private void fireFinished(RunNotifier notifier, Description d) {
+		synchronized (notifier) {
+			notifier.fireTestFinished(d);
+		}
+	}
+
+	private void fire(RunNotifier notifier, Description d, Throwable t) {
+		fireStarted(notifier, d);
+		fireFailure(notifier, d, t);
+		fireFinished(notifier, d);
+	}
+
+	/*
+	 * The public, no-arg @Test methods of ConfigurableKettleTestCase and its
+	 * superclasses.
+	 */
+	private static List<Method> findTestMethods() {
+		List<Method> methods = new ArrayList<Method>();
+		for (Method method : ConfigurableKettleTestCase.class.getMethods()) {
+			if (method.getAnnotation(Test.class) != null
+					&& method.getParameterTypes().length == 0
+					&& !Modifier.isStatic(method.getModifiers())) {
+				methods.add(method);
+			}
+		}
+		return methods;
+	}
+
+	/*
+	 * Names the suite threads so that their log lines can be told apart.
+	 */
+	private static class SuiteThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		public Thread newThread(Runnable r) {
+			return new Thread(r, "xbi-suite-" + count.incrementAndGet());
+		}
+	}
+}
@@ -5,11 +5,22 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
 
 import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.io.FileUtils;
 import org.dbunit.Assertion;
 import org.dbunit.DatabaseUnitException;
+import org.dbunit.dataset.Column;
+import org.dbunit.dataset.Columns;
 import org.dbunit.dataset.DataSetException;
 import org.dbunit.dataset.IDataSet;
 import org.dbunit.dataset.ITable;
@@ -23,14 +34,48 @@ import org.pentaho.di.core.encryption.Encr;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import xbi.testutils.kettle.AsyncRunner;
+import xbi.testutils.kettle.BottleneckProfiler;
+import xbi.testutils.kettle.CapturedRows;
+import xbi.testutils.kettle.PhaseFuture;
+import xbi.testutils.kettle.RowCapture;
+import xbi.testutils.kettle.RunMetrics;
 import xbi.testutils.kettle.Runner;
 import xbi.testutils.kettle.RunnerFactory;
+import xbi.testutils.kettle.TransformationRunner;
 
 public abstract class KettleTestCase {
 
 	private static final Logger LOGGER = LoggerFactory
 			.getLogger(KettleTestCase.class);
 
+	/**
+	 * Set this system property to true to turn on pipelined preflight for
+	 * test cases that support it. Pipelined preflight does not call
+	 * {@link #afterSetup()}, so it is off by default.
+	 */
+	public static final String PROP_PIPELINED_PREFLIGHT = "XBI_PIPELINED_PREFLIGHT";
+
+	/**
+	 * System property naming the directory run metrics are written to.
+	 * Defaults to {@value #DEFAULT_METRICS_DIR}.
+	 */
+	public static final String PROP_METRICS_DIR = "XBI_METRICS_DIR";
+
+	/** The default directory for run metrics, next to the surefire reports. */
+	public static final String DEFAULT_METRICS_DIR = "target/xbi-metrics";
+
+	/**
+	 * System property naming a directory to write the Kettle log of each test
+	 * to, as &lt;name&gt;.log. Not set by default, the log then only goes to
+	 * Kettle's central log store.
+	 */
+	public static final String PROP_LOG_DIR = "XBI_LOG_DIR";
+
+	// runs setup and verification while the database is being prepared
+	private static final ExecutorService PREFLIGHT_EXECUTOR = Executors
+			.newCachedThreadPool(new PreflightThreadFactory());
+
 	protected Connector connector;
 	protected Runner runner;
 
@@ -62,37 +107,202 @@ public abstract class KettleTestCase {
 		}
 	}
 
+	/**
+	 * Fails unless the given step handled at least the given rows per second
+	 * over all its copies in the last run.
+	 * 
+	 * @param step
+	 *            the step name
+	 * @param minRowsPerSecond
+	 *            the least rows per second
+	 */
+	public void assertMinRowsPerSecond(String step, double minRowsPerSecond) {
+		assertPerformance(new PerformanceBudget.Builder().setMinRowsPerSecond(
+				step, minRowsPerSecond).build());
+	}
+
+	/**
+	 * Fails if the last run took longer than the given time.
+	 * 
+	 * @param maxWallMillis
+	 *            the longest the run may take, in milliseconds
+	 */
+	public void assertMaxWallTime(long maxWallMillis) {
+		assertPerformance(new PerformanceBudget.Builder().setMaxWallMillis(
+				maxWallMillis).build());
+	}
+
+	/**
+	 * Fails if the heap in use grew more than the given bytes over the last
+	 * run.
+	 * 
+	 * @param maxHeapGrowth
+	 *            the most the heap may grow, in bytes
+	 */
+	public void assertMaxHeapGrowth(long maxHeapGrowth) {
+		assertPerformance(new PerformanceBudget.Builder().setMaxHeapGrowth(
+				maxHeapGrowth).build());
+	}
+
+	/**
+	 * Fails if the last run broke any limit of the budget.
+	 * 
+	 * @param budget
+	 *            the performance limits
+	 */
+	public void assertPerformance(PerformanceBudget budget) {
+		assertPerformance(budget, runner.getRunMetrics());
+	}
+
+	/**
+	 * Fails if the given run broke any limit of the budget.
+	 * 
+	 * @param budget
+	 *            the performance limits
+	 * @param metrics
+	 *            the figures of the run, fails if null
+	 */
+	protected void assertPerformance(PerformanceBudget budget,
+			RunMetrics metrics) {
+		if (metrics == null) {
+			fail("No run metrics were captured, cannot check performance");
+		}
+		List<String> violations = budget.check(metrics);
+		if (!violations.isEmpty()) {
+			fail("Performance limits broken: "
+					+ Arrays.toString(violations.toArray()));
+		}
+		LOGGER.info("Performance within limits: " + metrics);
+	}
+
 	/**
 	 * Constructs the Runner and Connector, verifies and runs the Job or
 	 * Transformation
 	 */
 	@Before
 	public void preflight() {
+		if (isPipelinedPreflight()) {
+			pipelinedPreflight();
+			return;
+		}
 		try {
 			runner.setup();
 
-			// Note that the following system properties are set via the
-			// kettle.properties file under KETTLE_HOME
-			// Hard-coded to use Oracle, but that could be made configurable.
-			String url = "jdbc:oracle:thin:@"
-					+ System.getProperty("XBIS_DBNAME");
-			String username = System.getProperty("XBIS_STG_USER");
-			String password = Encr.decryptPasswordOptionallyEncrypted(System
-					.getProperty("XBIS_STG_PASSWORD"));
-			String schema = System.getProperty("XBIS_STG_SCHEMA");
-
-			connector = new Connector(url, username, password, schema);
+			connector = needsDatabase() ? createConnector() : null;
 
 			// After Kettle and DBUnit are set up, do special processing
 			afterSetup();
 
-			runner.verify();
-			runner.run();
+			runArtifact();
 		} catch (Exception e) {
 			LOGGER.error("Encountered error during preflight: " + e);
 		}
 	}
 
+	/*
+	 * Sets up, configures and verifies the Job or Transformation on a
+	 * background thread while the Connector is built and the fixtures are
+	 * loaded on this one, then runs it.
+	 */
+	private void pipelinedPreflight() {
+		long start = System.nanoTime();
+		AsyncRunner async = new AsyncRunner(runner, PREFLIGHT_EXECUTOR);
+		PhaseFuture setup = async.setup();
+		PhaseFuture configure = async.then("configure",
+				new Callable<Boolean>() {
+					public Boolean call() {
+						configureRunner();
+						return Boolean.TRUE;
+					}
+				});
+		PhaseFuture verify = async.verify();
+		try {
+			long t = System.nanoTime();
+			connector = needsDatabase() ? createConnector() : null;
+			long connectMillis = elapsedMillis(t);
+
+			t = System.nanoTime();
+			loadFixtures();
+			long fixtureMillis = elapsedMillis(t);
+
+			t = System.nanoTime();
+			verify.getResult();
+			long waitMillis = elapsedMillis(t);
+
+			long wallMillis = elapsedMillis(start);
+			long setupMillis = setup.getResult().getElapsedMillis();
+			long configureMillis = configure.getResult().getElapsedMillis();
+			long verifyMillis = verify.getResult().getElapsedMillis();
+			long serialMillis = setupMillis + configureMillis + verifyMillis
+					+ connectMillis + fixtureMillis;
+			LOGGER.info("Preflight of " + runner.getXmlFile().getName()
+					+ ": setup " + setupMillis + " ms, configure "
+					+ configureMillis + " ms, verify " + verifyMillis
+					+ " ms, connect " + connectMillis + " ms, fixtures "
+					+ fixtureMillis + " ms, waited " + waitMillis
+					+ " ms for verification. Took " + wallMillis
+					+ " ms, saved " + Math.max(0, serialMillis - wallMillis)
+					+ " ms by overlapping.");
+
+			runArtifact();
+		} catch (Exception e) {
+			async.cancel();
+			LOGGER.error("Encountered error during preflight: " + e);
+		}
+	}
+
+	/*
+	 * Connects to the test database.
+	 */
+	private Connector createConnector() throws Exception {
+		// Note that the following system properties are set via the
+		// kettle.properties file under KETTLE_HOME
+		// Hard-coded to use Oracle, but that could be made configurable.
+		String url = "jdbc:oracle:thin:@" + System.getProperty("XBIS_DBNAME");
+		String username = System.getProperty("XBIS_STG_USER");
+		String password = Encr.decryptPasswordOptionallyEncrypted(System
+				.getProperty("XBIS_STG_PASSWORD"));
+		String schema = System.getProperty("XBIS_STG_SCHEMA");
+
+		return new Connector(url, username, password, schema);
+	}
+
+	/**
+	 * @return false if the Job or Transformation can be tested without the
+	 *         database, e.g. because all its input is injected. No Connector
+	 *         is created then. True by default.
+	 */
+	protected boolean needsDatabase() {
+		return true;
+	}
+
+	/**
+	 * Subclasses that return true must implement {@link #loadFixtures()} and
+	 * {@link #configureRunner()}; {@link #afterSetup()} is then not called.
+	 * 
+	 * @return true to set up and verify the Job or Transformation while the
+	 *         database connection is opened and the fixtures are loaded.
+	 *         False by default.
+	 */
+	protected boolean isPipelinedPreflight() {
+		return false;
+	}
+
+	/**
+	 * Pipelined preflight only: load the test data through the Connector. Runs
+	 * at the same time as {@link #configureRunner()}.
+	 */
+	protected void loadFixtures() {
+	}
+
+	/**
+	 * Pipelined preflight only: set parameters on the Runner. Runs on a
+	 * background thread after setup and before verification; must not use
+	 * the Connector.
+	 */
+	protected void configureRunner() {
+	}
+
 	/**
 	 * Subclasses should implement this method with calls to
 	 * Connector.registerSequenceForReset, Connector.registerTableForCleanup.
@@ -107,7 +317,168 @@ public abstract class KettleTestCase {
 	 */
 	@After
 	public void cleanupTestData() {
-		connector.cleanupDatabase();
+		if (connector != null) {
+			connector.cleanupDatabase();
+		}
+	}
+
+	/**
+	 * Closes the Connector, releases the Kettle log of the run and drops the
+	 * Runner once this test case is done with. Test cases that are kept
+	 * around after their run (e.g. by a suite runner) should call this so
+	 * that connections and log lines do not pile up.
+	 */
+	public void release() {
+		if (connector != null) {
+			connector.close();
+			connector = null;
+		}
+		if (runner instanceof TransformationRunner) {
+			((TransformationRunner) runner).disposeCapturedRows();
+		}
+		if (runner != null) {
+			runner.releaseLogs();
+		}
+		runner = null;
+	}
+
+	/**
+	 * Verifies and runs the Job or Transformation. Subclasses can override
+	 * this to run it differently, e.g. once per parameter set; they should
+	 * then override {@link #assertComplete()} as well.
+	 */
+	protected void runArtifact() {
+		if (!runner.isVerified()) {
+			runner.verify();
+		}
+		String logDir = System.getProperty(PROP_LOG_DIR);
+		if (logDir != null) {
+			File logFile = new File(logDir, getMetricsName() + ".log");
+			logFile.delete(); // from an earlier build
+			runner.setLogFile(logFile);
+		}
+		runner.run();
+		writeRunMetrics(getMetricsName(), runner.getRunMetrics());
+		if (runner instanceof TransformationRunner) {
+			writeProfile(getMetricsName(),
+					((TransformationRunner) runner).getProfiler());
+		}
+	}
+
+	/**
+	 * @return the base name of the run metrics and log files. Defaults to the
+	 *         name of the test class and of the Job or Transformation file, so
+	 *         that test classes running the same file keep their own files.
+	 */
+	protected String getMetricsName() {
+		return getClass().getSimpleName() + "-"
+				+ runner.getXmlFile().getName();
+	}
+
+	/**
+	 * Writes run metrics as &lt;name&gt;.metrics.json and
+	 * &lt;name&gt;.metrics.csv to the {@value #PROP_METRICS_DIR} directory.
+	 * Failures are logged, not thrown.
+	 * 
+	 * @param name
+	 *            the base name of the files
+	 * @param metrics
+	 *            the metrics to write, nothing is written if null
+	 */
+	protected void writeRunMetrics(String name, RunMetrics metrics) {
+		if (metrics == null) {
+			return;
+		}
+		File dir = metricsDir();
+		if (dir == null) {
+			return;
+		}
+		String base = name.replaceAll("[^A-Za-z0-9._-]", "_") + ".metrics";
+		File json = new File(dir, base + ".json");
+		File csv = new File(dir, base + ".csv");
+		Writer out = null;
+		try {
+			out = new FileWriter(json);
+			metrics.writeJson(out);
+			out.close();
+			out = new FileWriter(csv);
+			metrics.writeCsv(out);
+			out.close();
+			out = null;
+			LOGGER.info("Wrote run metrics to " + json.getAbsolutePath()
+					+ " and " + csv.getName());
+		} catch (IOException e) {
+			LOGGER.warn("Unable to write run metrics for " + name + ": " + e);
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes a bottleneck profile as &lt;name&gt;.profile.json and
+	 * &lt;name&gt;.profile.txt to the {@value #PROP_METRICS_DIR} directory.
+	 * Failures are logged, not thrown.
+	 * 
+	 * @param name
+	 *            the base name of the files
+	 * @param profiler
+	 *            the profile to write, nothing is written if null
+	 */
+	protected void writeProfile(String name, BottleneckProfiler profiler) {
+		if (profiler == null) {
+			return;
+		}
+		File dir = metricsDir();
+		if (dir == null) {
+			return;
+		}
+		String base = name.replaceAll("[^A-Za-z0-9._-]", "_") + ".profile";
+		File json = new File(dir, base + ".json");
+		File txt = new File(dir, base + ".txt");
+		Writer out = null;
+		try {
+			out = new FileWriter(json);
+			profiler.writeJson(out);
+			out.close();
+			out = new FileWriter(txt);
+			out.write(profiler.getReport());
+			out.write("\n");
+			out.close();
+			out = null;
+			LOGGER.info("Wrote bottleneck profile to " + json.getAbsolutePath()
+					+ " and " + txt.getName());
+		} catch (IOException e) {
+			LOGGER.warn("Unable to write bottleneck profile for " + name + ": "
+					+ e);
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+	}
+
+	/*
+	 * The metrics directory, created if needed. Null if it cannot be created.
+	 */
+	private static File metricsDir() {
+		File dir = new File(System.getProperty(PROP_METRICS_DIR,
+				DEFAULT_METRICS_DIR));
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			LOGGER.warn("Unable to create metrics directory "
+					+ dir.getAbsolutePath());
+			return null;
+		}
+		return dir;
 	}
 
 	/**
@@ -144,35 +515,13 @@ public abstract class KettleTestCase {
 		try {
 
 			// Load expected data from an XML data set.
-			IDataSet expectedDataSet = connector.buildDataSet(expected);
+			IDataSet expectedDataSet = Connector.buildDataSet(expected);
 			ITable rawExpectedTable = expectedDataSet.getTable(tableName);
 
-			// Load actual data from database and filter out unwanted columns
-			// based in the XML expected data set.
+			// Load actual data from database
 			ITable rawActualTable = connector.getDatabaseDataSet().getTable(
 					tableName);
-			ITable filteredActualTable = DefaultColumnFilter
-					.includedColumnsTable(rawActualTable, rawExpectedTable
-							.getTableMetaData().getColumns());
-
-			// Sort data sets by their own columns as defined by the ITable
-			// metadata, unless order by explicitly defined.
-			// NB. No actual sorting (shuffling indexes) occurs until the data set 
-			// is accessed for the first time, i.e. later in the assert.
-			SortedTable expectedTable = null;
-			SortedTable actualTable = null;
-			if (orderByCols == null || orderByCols.length == 0) {
-				expectedTable = new SortedTable(rawExpectedTable);
-				actualTable = new SortedTable(filteredActualTable);
-			} else {
-				expectedTable = new SortedTable(rawExpectedTable, orderByCols);
-				expectedTable.setUseComparable(true); // must be called right after constructor
-				actualTable = new SortedTable(filteredActualTable, orderByCols);
-				actualTable.setUseComparable(true);  // must be called right after constructor
-			}
-
-			// No sorting 
-			Assertion.assertEquals(expectedTable, actualTable);
+			assertTableEquals(rawExpectedTable, rawActualTable, orderByCols);
 		} catch (DataSetException e) {
 			LOGGER.error(e.getMessage());
 			fail(e.toString());
@@ -182,6 +531,84 @@ public abstract class KettleTestCase {
 		}
 	}
 
+	/**
+	 * Compare the rows captured from a step of the Transformation to a DBUnit
+	 * XML file, instead of the table the step would have written them to. See
+	 * {@link TransformationRunner#addRowCapture(RowCapture)}.
+	 * 
+	 * @param tableName
+	 *            the table of the XML file to compare with
+	 * @param stepName
+	 *            the step the rows were captured from
+	 * @param expected
+	 *            XML file
+	 * @param orderByCols
+	 *            column names to order by (ascending), may be null to order by
+	 *            every expected column. The values of these columns are kept
+	 *            in memory while comparing rows that were spilled to a file,
+	 *            so give them for large captures.
+	 */
+	protected void compareCapturedRows(String tableName, String stepName,
+			File expected, String[] orderByCols) {
+		CapturedRows rows = null;
+		if (runner instanceof TransformationRunner) {
+			rows = ((TransformationRunner) runner).getCapturedRows(stepName);
+		}
+		if (rows == null) {
+			fail("No rows were captured from step " + stepName);
+		}
+		try {
+			ITable rawExpectedTable = Connector.buildDataSet(expected)
+					.getTable(tableName);
+			Column[] expectedColumns = rawExpectedTable.getTableMetaData()
+					.getColumns();
+			String[] keyColumns = orderByCols;
+			if (keyColumns == null || keyColumns.length == 0) {
+				keyColumns = Columns.getColumnNames(expectedColumns);
+			}
+			ITable rawActualTable = new CapturedTable(tableName, rows,
+					expectedColumns, keyColumns);
+			assertTableEquals(rawExpectedTable, rawActualTable, orderByCols);
+		} catch (DataSetException e) {
+			LOGGER.error(e.getMessage());
+			fail(e.toString());
+		} catch (DatabaseUnitException e) {
+			LOGGER.error(e.getMessage());
+			fail(e.toString());
+		}
+	}
+
+	/*
+	 * Filters the actual table down to the expected columns, sorts both and
+	 * compares them.
+	 */
+	private static void assertTableEquals(ITable rawExpectedTable,
+			ITable rawActualTable, String[] orderByCols)
+			throws DatabaseUnitException {
+		// filter out unwanted columns based in the XML expected data set.
+		ITable filteredActualTable = DefaultColumnFilter.includedColumnsTable(
+				rawActualTable, rawExpectedTable.getTableMetaData()
+						.getColumns());
+
+		// Sort data sets by their own columns as defined by the ITable
+		// metadata, unless order by explicitly defined.
+		// NB. No actual sorting (shuffling indexes) occurs until the data set
+		// is accessed for the first time, i.e. later in the assert.
+		SortedTable expectedTable = null;
+		SortedTable actualTable = null;
+		if (orderByCols == null || orderByCols.length == 0) {
+			expectedTable = new SortedTable(rawExpectedTable);
+			actualTable = new SortedTable(filteredActualTable);
+		} else {
+			expectedTable = new SortedTable(rawExpectedTable, orderByCols);
+			expectedTable.setUseComparable(true); // must be called right after constructor
+			actualTable = new SortedTable(filteredActualTable, orderByCols);
+			actualTable.setUseComparable(true);  // must be called right after constructor
+		}
+
+		Assertion.assertEquals(expectedTable, actualTable);
+	}
+
 	/**
 	 * Compares the two files as simple String objects. Strips quotations and
 	 * whitespace prior to comparison.
@@ -209,4 +636,22 @@ public abstract class KettleTestCase {
 				stopwordRegex, "");
 		assertEquals(expectedString, actualString);
 	}
+
+	private static long elapsedMillis(long startNanos) {
+		return (System.nanoTime() - startNanos) / 1000000L;
+	}
+
+	/*
+	 * Daemon threads, so that an idle preflight pool never keeps the JVM
+	 * alive.
+	 */
+	private static class PreflightThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "xbi-preflight-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
 }
@@ -13,6 +13,9 @@ import java.util.Map;
  */
 public class KettleTestCaseConfiguration {
 
+	/* the name of the test, used for reporting */
+	private final String name;
+
 	/* the Pentaho executable */
 	private final File executableFile;
 
@@ -22,11 +25,27 @@ public class KettleTestCaseConfiguration {
 	/* the expected results output files */
 	private final List<File> outFiles;
 
+	/* test data fed straight into steps instead of the database */
+	private final List<InjectedInput> injectedInputs;
+
 	/* map of target tables, name -> string array of column names for ordering */
 	private final Map<String, List<String>> targetTables;
 
-	/* map of parameters, parameter name -> value */
-	private final Map<String, String> params;
+	/* target tables checked against rows captured from a step, table -> step */
+	private final Map<String, String> captureSteps;
+
+	/* parameter sets, one map of parameter name -> value per run */
+	private final List<Map<String, String>> parameterSets;
+
+	/* the maximum number of parameter sets to run at the same time */
+	private final int sweepThreads;
+
+	/* performance limits, may be null */
+	private final PerformanceBudget performanceBudget;
+
+	/* stall and run timeouts in milliseconds, -1 if not set */
+	private final long stallTimeoutMillis;
+	private final long runTimeoutMillis;
 
 	/**
 	 * Gathers all configuration values and validates before building the
@@ -37,10 +56,17 @@ public class KettleTestCaseConfiguration {
 		private final File executableFile;
 
 		// optional parameters - initialized as empty
+		private String name;
 		private final List<File> inFiles = new ArrayList<File>();
 		private final List<File> outFiles = new ArrayList<File>();
+		private final List<InjectedInput> injectedInputs = new ArrayList<InjectedInput>();
 		private final Map<String, List<String>> targetTables = new HashMap<String, List<String>>();
-		private final Map<String, String> params = new HashMap<String, String>();
+		private final Map<String, String> captureSteps = new HashMap<String, String>();
+		private final List<Map<String, String>> parameterSets = new ArrayList<Map<String, String>>();
+		private int sweepThreads = 1;
+		private long stallTimeoutMillis = -1;
+		private long runTimeoutMillis = -1;
+		private PerformanceBudget performanceBudget;
 
 		// store any validation errors
 		private List<String> validationErrors = new ArrayList<String>();
@@ -54,9 +80,26 @@ public class KettleTestCaseConfiguration {
 				throw new NullPointerException();
 			}
 			this.executableFile = executableFile;
+			parameterSets.add(new HashMap<String, String>());
 		}
 
 		// setters
+		/**
+		 * Sets the name of the test. Defaults to the name of the executable
+		 * file.
+		 * 
+		 * @param name
+		 *            the test name used in reports
+		 * @return the Builder object
+		 */
+		public Builder setName(String name) {
+			if (name == null) {
+				throw new NullPointerException();
+			}
+			this.name = name;
+			return this;
+		}
+
 		/**
 		 * Adds a test data input file to the list. It will ignore anything that
 		 * already exists in the list.
@@ -95,6 +138,30 @@ public class KettleTestCaseConfiguration {
 			return this;
 		}
 
+		/**
+		 * Adds test data that is fed straight into a step of the
+		 * transformation instead of being loaded into the database. Only one
+		 * input per step.
+		 * 
+		 * @param injectedInput
+		 *            the test data and the step to feed it into
+		 * @return the Builder object
+		 */
+		public Builder addInjectedInput(InjectedInput injectedInput) {
+			if (injectedInput == null) {
+				throw new NullPointerException();
+			}
+			for (InjectedInput i : injectedInputs) {
+				if (i.getStepName().equals(injectedInput.getStepName())) {
+					validationErrors.add("Step "
+							+ injectedInput.getStepName()
+							+ " already has injected input " + i.getFile());
+				}
+			}
+			injectedInputs.add(injectedInput);
+			return this;
+		}
+
 		/**
 		 * Adds a target table for testing against. It will ignore anything that
 		 * already exists in the list.
@@ -149,10 +216,42 @@ public class KettleTestCaseConfiguration {
 			return this;
 		}
 
+		/**
+		 * Checks a target table against the rows captured from the step that
+		 * writes them instead of against the database. The step is replaced
+		 * by one that writes nothing. The table should have been added to the
+		 * list of target tables (addTargetTable()) first; if not, the
+		 * validation step will fail.
+		 * 
+		 * @param targetTable
+		 *            the target table the step writes to
+		 * @param stepName
+		 *            the name of the step to capture the rows of
+		 * @return the Builder object
+		 */
+		public Builder setCaptureStep(String targetTable, String stepName) {
+			if (targetTable == null || stepName == null) {
+				throw new NullPointerException();
+			}
+			if (!targetTables.containsKey(targetTable)) {
+				validationErrors.add("Cannot capture " + targetTable
+						+ " from step " + stepName + " as " + targetTable
+						+ " is not listed as a target table. Call addTargetTable() first.");
+			} else if (captureSteps.containsValue(stepName)
+					&& !stepName.equals(captureSteps.get(targetTable))) {
+				validationErrors.add("Step " + stepName
+						+ " is already captured for another target table");
+			} else {
+				captureSteps.put(targetTable, stepName);
+			}
+			return this;
+		}
+
 		/**
 		 * Add a parameter that will be passed to the Pentaho job. The value
 		 * will be overwritten each time if passed multiple times for a given
-		 * parameter name.
+		 * parameter name. The parameter goes into the current parameter set,
+		 * see {@link #newParameterSet()}.
 		 * 
 		 * @param pName
 		 *            the parameter name.
@@ -165,7 +264,75 @@ public class KettleTestCaseConfiguration {
 			if (pName == null || pValue == null) {
 				throw new NullPointerException();
 			}
-			params.put(pName, pValue);
+			parameterSets.get(parameterSets.size() - 1).put(pName, pValue);
+			return this;
+		}
+
+		/**
+		 * Starts a new parameter set. The Pentaho job is run once for each
+		 * parameter set, and parameters added afterwards go into the new set.
+		 * Does nothing if the current set is still empty.
+		 * 
+		 * @return the Builder object
+		 */
+		public Builder newParameterSet() {
+			if (!parameterSets.get(parameterSets.size() - 1).isEmpty()) {
+				parameterSets.add(new HashMap<String, String>());
+			}
+			return this;
+		}
+
+		/**
+		 * Sets how many parameter sets may be run at the same time. Defaults
+		 * to 1.
+		 * 
+		 * @param sweepThreads
+		 *            the maximum number of concurrent runs, at least 1
+		 * @return the Builder object
+		 */
+		public Builder setSweepThreads(int sweepThreads) {
+			if (sweepThreads < 1) {
+				validationErrors
+						.add("The number of sweep threads must be at least 1, was "
+								+ sweepThreads);
+			}
+			this.sweepThreads = sweepThreads;
+			return this;
+		}
+
+		/**
+		 * Sets the stall and run timeouts of the Pentaho job, see
+		 * Runner.setTimeouts(). Defaults to the Runner's defaults.
+		 * 
+		 * @param stallTimeoutMillis
+		 *            stop the job if nothing moves for this long, 0 for never
+		 * @param runTimeoutMillis
+		 *            stop the job if it runs longer than this, 0 for never
+		 * @return the Builder object
+		 */
+		public Builder setTimeouts(long stallTimeoutMillis,
+				long runTimeoutMillis) {
+			if (stallTimeoutMillis < 0 || runTimeoutMillis < 0) {
+				validationErrors.add("Timeouts cannot be negative, were "
+						+ stallTimeoutMillis + " and " + runTimeoutMillis);
+			}
+			this.stallTimeoutMillis = stallTimeoutMillis;
+			this.runTimeoutMillis = runTimeoutMillis;
+			return this;
+		}
+
+		/**
+		 * Sets performance limits the Pentaho job must meet.
+		 * 
+		 * @param performanceBudget
+		 *            the performance limits
+		 * @return the Builder object
+		 */
+		public Builder setPerformanceBudget(PerformanceBudget performanceBudget) {
+			if (performanceBudget == null) {
+				throw new NullPointerException();
+			}
+			this.performanceBudget = performanceBudget;
 			return this;
 		}
 
@@ -177,6 +344,16 @@ public class KettleTestCaseConfiguration {
 		 *             if any of the configuration parameters failed validation.
 		 */
 		public KettleTestCaseConfiguration build() throws IllegalStateException {
+			if (!captureSteps.isEmpty() && parameterSets.size() > 1) {
+				validationErrors.add("Rows cannot be captured when running "
+						+ "several parameter sets");
+			}
+			if (!outFiles.isEmpty() && parameterSets.size() > 1) {
+				validationErrors.add("Expected results cannot be compared "
+						+ "when running several parameter sets, as they write "
+						+ "to the same target tables. Use a configuration per "
+						+ "parameter set instead.");
+			}
 			if (validationErrors.size() > 0) {
 				StringBuffer b = new StringBuffer(
 						"KettleTestCaseConfiguration validation errors found: ");
@@ -191,11 +368,26 @@ public class KettleTestCaseConfiguration {
 	}
 
 	private KettleTestCaseConfiguration(Builder builder) {
+		name = (builder.name != null) ? builder.name : builder.executableFile
+				.getName();
 		executableFile = builder.executableFile;
 		inFiles = builder.inFiles;
 		outFiles = builder.outFiles;
+		injectedInputs = builder.injectedInputs;
 		targetTables = builder.targetTables;
-		params = builder.params;
+		captureSteps = builder.captureSteps;
+		parameterSets = builder.parameterSets;
+		sweepThreads = builder.sweepThreads;
+		stallTimeoutMillis = builder.stallTimeoutMillis;
+		runTimeoutMillis = builder.runTimeoutMillis;
+		performanceBudget = builder.performanceBudget;
+	}
+
+	/**
+	 * @return the test name
+	 */
+	public String getName() {
+		return name;
 	}
 
 	/**
@@ -227,6 +419,13 @@ public class KettleTestCaseConfiguration {
 		return copy;
 	}
 
+	/**
+	 * @return the test data fed straight into steps
+	 */
+	public List<InjectedInput> getInjectedInputs() {
+		return new ArrayList<InjectedInput>(injectedInputs);
+	}
+
 	/**
 	 * @return a map of target tables with an array of column names to order by
 	 */
@@ -241,16 +440,68 @@ public class KettleTestCaseConfiguration {
 	}
 
 	/**
-	 * @return a map of parameter names and values
+	 * @return a map of the target tables checked against captured rows, with
+	 *         the name of the step the rows are captured from
+	 */
+	public Map<String, String> getCaptureSteps() {
+		return new HashMap<String, String>(captureSteps);
+	}
+
+	/**
+	 * @return a map of parameter names and values of the first parameter set
 	 */
 	public Map<String, String> getParams() {
-		Map<String, String> copy = new HashMap<String, String>();
-		for (Map.Entry<String, String> entry : params.entrySet()) {
-			copy.put(entry.getKey(), entry.getValue());
+		return new HashMap<String, String>(parameterSets.get(0));
+	}
+
+	/**
+	 * @return the parameter sets, one map of parameter names and values per
+	 *         run. Holds a single, possibly empty, map if the job is only run
+	 *         once.
+	 */
+	public List<Map<String, String>> getParameterSets() {
+		List<Map<String, String>> copy = new ArrayList<Map<String, String>>();
+		for (Map<String, String> set : parameterSets) {
+			copy.add(new HashMap<String, String>(set));
 		}
 		return copy;
 	}
 
+	/**
+	 * @return the maximum number of parameter sets to run at the same time
+	 */
+	public int getSweepThreads() {
+		return sweepThreads;
+	}
+
+	/**
+	 * @return true if timeouts have been set for this test
+	 */
+	public boolean hasTimeouts() {
+		return stallTimeoutMillis >= 0;
+	}
+
+	/**
+	 * @return the stall timeout in milliseconds, 0 for none, -1 if not set
+	 */
+	public long getStallTimeoutMillis() {
+		return stallTimeoutMillis;
+	}
+
+	/**
+	 * @return the run timeout in milliseconds, 0 for none, -1 if not set
+	 */
+	public long getRunTimeoutMillis() {
+		return runTimeoutMillis;
+	}
+
+	/**
+	 * @return the performance limits, or null if there are none
+	 */
+	public PerformanceBudget getPerformanceBudget() {
+		return performanceBudget;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -258,7 +509,9 @@ public class KettleTestCaseConfiguration {
 	 */
 	public String toString() {
 		StringBuffer b = new StringBuffer("KettleTestCaseConfiguration: ");
-		b.append("executable=");
+		b.append("name=");
+		b.append(getName());
+		b.append("; executable=");
 		b.append(getExecutableFile().getAbsolutePath());
 		b.append("; infiles=");
 		for (File i : getInFiles()) {
@@ -270,9 +523,22 @@ public class KettleTestCaseConfiguration {
 			b.append(o.getAbsolutePath());
 			b.append(",");
 		}
+		if (!injectedInputs.isEmpty()) {
+			b.append("; injected=");
+			for (InjectedInput i : injectedInputs) {
+				b.append(i.getFile().getAbsolutePath());
+				b.append("->");
+				b.append(i.getStepName());
+				b.append(",");
+			}
+		}
 		b.append("; targetTables=");
 		for (Map.Entry<String, List<String>> entry : targetTables.entrySet()) {
 			b.append(entry.getKey());
+			if (captureSteps.containsKey(entry.getKey())) {
+				b.append("<-");
+				b.append(captureSteps.get(entry.getKey()));
+			}
 			b.append("[");
 			for (String s : entry.getValue()) {
 				b.append(s);
@@ -281,11 +547,31 @@ public class KettleTestCaseConfiguration {
 			b.append("]");
 		}
 		b.append("; parameters=");
-		for (Map.Entry<String, String> prms : params.entrySet()) {
-			b.append(prms.getKey());
-			b.append("==");
-			b.append(prms.getValue());
+		for (int i = 0; i < parameterSets.size(); i++) {
+			if (i > 0) {
+				b.append(" | ");
+			}
+			for (Map.Entry<String, String> prms : parameterSets.get(i)
+					.entrySet()) {
+				b.append(prms.getKey());
+				b.append("==");
+				b.append(prms.getValue());
+				b.append(",");
+			}
+		}
+		if (parameterSets.size() > 1) {
+			b.append("; sweepThreads=");
+			b.append(sweepThreads);
+		}
+		if (performanceBudget != null) {
+			b.append("; ");
+			b.append(performanceBudget);
+		}
+		if (hasTimeouts()) {
+			b.append("; timeouts=");
+			b.append(stallTimeoutMillis);
 			b.append(",");
+			b.append(runTimeoutMillis);
 		}
 		return b.toString();
 	}
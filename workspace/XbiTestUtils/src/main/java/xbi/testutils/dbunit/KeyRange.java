@@ -0,0 +1,138 @@
+package xbi.testutils.dbunit;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One range of a numeric key column that the query of a table is split into
+ * for a parallel dump. Ranges are half open, low bound included and high
+ * bound excluded. The first range has no low bound and the last range has no
+ * high bound and also takes the rows with a null key, so that together the
+ * ranges cover every row of the query whatever the rounding of the bounds.
+ *
+ * @author eniesc200
+ */
+final class KeyRange {
+
+	// null if the range has no low bound
+	private final BigDecimal low;
+
+	// null if the range has no high bound; it then also takes the null keys
+	private final BigDecimal high;
+
+	KeyRange(BigDecimal low, BigDecimal high) {
+		this.low = low;
+		this.high = high;
+	}
+
+	/**
+	 * Splits the keys between the lowest and the highest key into ranges of
+	 * about the same width. Each range ends where the next one starts.
+	 *
+	 * @param min
+	 *            the lowest key, null if the query has no rows or only null
+	 *            keys
+	 * @param max
+	 *            the highest key
+	 * @param splits
+	 *            the number of ranges wanted
+	 * @return the ranges in key order; a single range without bounds if there
+	 *         are fewer than two distinct keys or fewer than two splits
+	 */
+	static List<KeyRange> split(BigDecimal min, BigDecimal max, int splits) {
+		List<KeyRange> ranges = new ArrayList<KeyRange>();
+		if (min == null || splits < 2 || min.compareTo(max) >= 0) {
+			ranges.add(new KeyRange(null, null));
+			return ranges;
+		}
+		// only the width is rounded; the bounds are exact multiples of it, so
+		// they strictly increase however large the keys are
+		BigDecimal width = max.subtract(min).divide(
+				BigDecimal.valueOf(splits), MathContext.DECIMAL64);
+		BigDecimal low = null;
+		for (int i = 1; i < splits; i++) {
+			BigDecimal high = min.add(width.multiply(BigDecimal.valueOf(i)));
+			ranges.add(new KeyRange(low, high));
+			low = high;
+		}
+		ranges.add(new KeyRange(low, null));
+		return ranges;
+	}
+
+	/**
+	 * @return the low bound, included, or null if there is none
+	 */
+	BigDecimal getLow() {
+		return low;
+	}
+
+	/**
+	 * @return the high bound, excluded, or null if there is none
+	 */
+	BigDecimal getHigh() {
+		return high;
+	}
+
+	/**
+	 * @return true if the rows with a null key fall in this range
+	 */
+	boolean includesNullKeys() {
+		return high == null;
+	}
+
+	/**
+	 * @param query
+	 *            the query of the table
+	 * @param key
+	 *            the key column of the query
+	 * @return the query of the rows in this range, with a parameter for each
+	 *         bound, see {@link #getParameters()}; the query itself if the
+	 *         range has no bounds
+	 */
+	String toSql(String query, String key) {
+		if (low == null && high == null) {
+			return query;
+		}
+		StringBuffer sql = new StringBuffer("select q.* from (");
+		sql.append(query).append(") q where ");
+		if (low != null) {
+			sql.append("q.").append(key).append(" >= ?");
+		}
+		if (high == null) {
+			sql.append(" or q.").append(key).append(" is null");
+		} else {
+			if (low != null) {
+				sql.append(" and ");
+			}
+			sql.append("q.").append(key).append(" < ?");
+		}
+		return sql.toString();
+	}
+
+	/**
+	 * @return the values of the parameters of {@link #toSql(String, String)},
+	 *         in order
+	 */
+	Object[] getParameters() {
+		List<Object> params = new ArrayList<Object>(2);
+		if (low != null) {
+			params.add(low);
+		}
+		if (high != null) {
+			params.add(high);
+		}
+		return params.toArray();
+	}
+
+	@Override
+	public String toString() {
+		StringBuffer sb = new StringBuffer("[");
+		sb.append((low != null) ? low.toPlainString() : "");
+		sb.append(", ");
+		sb.append((high != null) ? high.toPlainString() : "");
+		sb.append(includesNullKeys() ? ") + null" : ")");
+		return sb.toString();
+	}
+}
@@ -0,0 +1,437 @@
+package xbi.testutils.dbunit;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import xbi.testutils.kettle.RunMetrics;
+
+/**
+ * Performance limits for a Job or Transformation run: minimum rows per second
+ * per step, maximum wall time and maximum heap growth.
+ *
+ * Limits can be given explicitly, taken from a baseline file written from an
+ * earlier run, or both; an explicit limit wins over the baseline. Every limit
+ * is loosened by the tolerance percentage so that normal run-to-run noise does
+ * not fail the build.
+ *
+ * The baseline file is a properties file with the keys
+ * {@value #KEY_WALL_MILLIS}, {@value #KEY_HEAP_GROWTH},
+ * {@value #KEY_RUN_ROWS_PER_SECOND} and
+ * {@value #KEY_ROWS_PER_SECOND}&lt;step name&gt;. Set the
+ * {@value #PROP_WRITE_BASELINE} system property to true to (re)write the
+ * baseline from the current run instead of checking it. Only steps that
+ * handle at least {@value #BASELINE_MIN_STEP_ROWS} rows and run for at least
+ * {@value #BASELINE_MIN_STEP_MILLIS} ms get a rate in the baseline, as the
+ * rates of small or short steps are mostly noise; limit those explicitly if
+ * they matter. For the same reason a heap growth limit taken from the
+ * baseline is never below {@value #BASELINE_MIN_HEAP_GROWTH} bytes, and a run
+ * whose heap shrank records none.
+ *
+ * @author eniesc200
+ */
+public final class PerformanceBudget {
+
+	private static final Logger LOGGER = LoggerFactory
+			.getLogger(PerformanceBudget.class);
+
+	/** System property to write baselines instead of checking them. */
+	public static final String PROP_WRITE_BASELINE = "XBI_WRITE_BASELINE";
+
+	/** Baseline key of the wall time in milliseconds. */
+	public static final String KEY_WALL_MILLIS = "wallMillis";
+
+	/** Baseline key of the heap growth in bytes. */
+	public static final String KEY_HEAP_GROWTH = "heapGrowth";
+
+	/** Baseline key prefix of the rows per second of a step. */
+	public static final String KEY_ROWS_PER_SECOND = "rowsPerSecond.";
+
+	/**
+	 * Baseline key of the rows per second of the whole run: the rows of its
+	 * busiest step per second of wall time.
+	 */
+	public static final String KEY_RUN_ROWS_PER_SECOND = "runRowsPerSecond";
+
+	/** The fewest rows a step must handle to get a rate in the baseline. */
+	public static final long BASELINE_MIN_STEP_ROWS = 10000;
+
+	/**
+	 * The fewest milliseconds a step must run for to get a rate in the
+	 * baseline.
+	 */
+	public static final long BASELINE_MIN_STEP_MILLIS = 1000;
+
+	/** The smallest heap growth limit, in bytes, taken from a baseline. */
+	public static final long BASELINE_MIN_HEAP_GROWTH = 16L * 1024 * 1024;
+
+	/* step name -> minimum rows per second */
+	private final Map<String, Double> minRowsPerSecond;
+
+	/* maximum wall time in milliseconds, -1 if none */
+	private final long maxWallMillis;
+
+	/* maximum heap growth in bytes, -1 if none */
+	private final long maxHeapGrowth;
+
+	/* the baseline file, may be null */
+	private final File baseline;
+
+	/* how far a run may fall short of a limit, in percent */
+	private final double tolerancePercent;
+
+	/**
+	 * Gathers the limits before building the budget.
+	 */
+	public static class Builder {
+		private final Map<String, Double> minRowsPerSecond = new LinkedHashMap<String, Double>();
+		private long maxWallMillis = -1;
+		private long maxHeapGrowth = -1;
+		private File baseline;
+		private double tolerancePercent = 0;
+
+		/**
+		 * @param step
+		 *            the step name
+		 * @param rowsPerSecond
+		 *            the least rows per second the step must handle over all
+		 *            its copies
+		 * @return the Builder object
+		 */
+		public Builder setMinRowsPerSecond(String step, double rowsPerSecond) {
+			if (step == null) {
+				throw new NullPointerException();
+			}
+			minRowsPerSecond.put(step, rowsPerSecond);
+			return this;
+		}
+
+		/**
+		 * @param maxWallMillis
+		 *            the longest the run may take, in milliseconds
+		 * @return the Builder object
+		 */
+		public Builder setMaxWallMillis(long maxWallMillis) {
+			this.maxWallMillis = maxWallMillis;
+			return this;
+		}
+
+		/**
+		 * @param maxHeapGrowth
+		 *            the most the heap in use may grow over the run, in bytes
+		 * @return the Builder object
+		 */
+		public Builder setMaxHeapGrowth(long maxHeapGrowth) {
+			this.maxHeapGrowth = maxHeapGrowth;
+			return this;
+		}
+
+		/**
+		 * @param baseline
+		 *            the baseline properties file
+		 * @return the Builder object
+		 */
+		public Builder setBaseline(File baseline) {
+			if (baseline == null) {
+				throw new NullPointerException();
+			}
+			this.baseline = baseline.getAbsoluteFile();
+			return this;
+		}
+
+		/**
+		 * @param tolerancePercent
+		 *            how far, in percent, a run may fall short of a limit
+		 * @return the Builder object
+		 * @throws IllegalStateException
+		 *             if the tolerance is negative
+		 */
+		public Builder setTolerancePercent(double tolerancePercent) {
+			if (tolerancePercent < 0) {
+				throw new IllegalStateException(
+						"The tolerance cannot be negative, was "
+								+ tolerancePercent);
+			}
+			this.tolerancePercent = tolerancePercent;
+			return this;
+		}
+
+		public PerformanceBudget build() {
+			return new PerformanceBudget(this);
+		}
+	}
+
+	private PerformanceBudget(Builder builder) {
+		minRowsPerSecond = new LinkedHashMap<String, Double>(
+				builder.minRowsPerSecond);
+		maxWallMillis = builder.maxWallMillis;
+		maxHeapGrowth = builder.maxHeapGrowth;
+		baseline = builder.baseline;
+		tolerancePercent = builder.tolerancePercent;
+	}
+
+	/**
+	 * @return the explicit minimum rows per second by step name
+	 */
+	@Nonnull
+	public Map<String, Double> getMinRowsPerSecond() {
+		return new LinkedHashMap<String, Double>(minRowsPerSecond);
+	}
+
+	/**
+	 * @return the explicit maximum wall time in milliseconds, -1 if none
+	 */
+	public long getMaxWallMillis() {
+		return maxWallMillis;
+	}
+
+	/**
+	 * @return the explicit maximum heap growth in bytes, -1 if none
+	 */
+	public long getMaxHeapGrowth() {
+		return maxHeapGrowth;
+	}
+
+	/**
+	 * @return the baseline file, or null if there is none
+	 */
+	@CheckForNull
+	public File getBaseline() {
+		return baseline;
+	}
+
+	/**
+	 * @return the tolerance in percent
+	 */
+	public double getTolerancePercent() {
+		return tolerancePercent;
+	}
+
+	/**
+	 * Checks a run against the limits. Writes the baseline instead if the
+	 * {@value #PROP_WRITE_BASELINE} system property is true.
+	 *
+	 * @param metrics
+	 *            the figures of the run
+	 * @return a description of every limit the run broke, empty if it broke
+	 *         none
+	 */
+	@Nonnull
+	public List<String> check(RunMetrics metrics) {
+		if (baseline != null && Boolean.getBoolean(PROP_WRITE_BASELINE)) {
+			writeBaseline(baseline, metrics);
+			return new ArrayList<String>();
+		}
+
+		Properties base = readBaseline();
+		List<String> violations = new ArrayList<String>();
+
+		long wall = limit(maxWallMillis, base, KEY_WALL_MILLIS);
+		if (wall >= 0) {
+			double allowed = wall * (1 + tolerancePercent / 100);
+			if (metrics.getDurationMillis() > allowed) {
+				violations.add(metrics.getName() + " took "
+						+ metrics.getDurationMillis() + " ms, allowed "
+						+ Math.round(allowed) + " ms (" + wall + " ms + "
+						+ tolerancePercent + "%)");
+			}
+		}
+
+		long heap = limit(maxHeapGrowth, base, KEY_HEAP_GROWTH);
+		if (maxHeapGrowth < 0 && heap >= 0) {
+			heap = Math.max(heap, BASELINE_MIN_HEAP_GROWTH);
+		}
+		if (heap >= 0) {
+			double allowed = heap * (1 + tolerancePercent / 100);
+			if (metrics.getHeapGrowth() > allowed) {
+				violations.add(metrics.getName() + " grew the heap by "
+						+ metrics.getHeapGrowth() + " bytes, allowed "
+						+ Math.round(allowed) + " bytes (" + heap
+						+ " bytes + " + tolerancePercent + "%)");
+			}
+		}
+
+		String runRate = base.getProperty(KEY_RUN_ROWS_PER_SECOND);
+		if (runRate != null) {
+			double expected = Double.parseDouble(runRate.trim());
+			double allowed = expected * (1 - tolerancePercent / 100);
+			double actual = metrics.getRunRowsPerSecond();
+			if (actual < allowed) {
+				violations.add(metrics.getName() + " handled " + round(actual)
+						+ " rows/s, required " + round(allowed) + " rows/s ("
+						+ expected + " rows/s - " + tolerancePercent + "%)");
+			}
+		}
+
+		Map<String, Double> rates = new LinkedHashMap<String, Double>();
+		for (String key : base.stringPropertyNames()) {
+			if (key.startsWith(KEY_ROWS_PER_SECOND)) {
+				rates.put(key.substring(KEY_ROWS_PER_SECOND.length()),
+						Double.valueOf(base.getProperty(key)));
+			}
+		}
+		rates.putAll(minRowsPerSecond);
+		for (Map.Entry<String, Double> rate : rates.entrySet()) {
+			double allowed = rate.getValue() * (1 - tolerancePercent / 100);
+			double actual = metrics.getRowsPerSecond(rate.getKey());
+			if (actual < allowed) {
+				violations.add("Step " + rate.getKey() + " of "
+						+ metrics.getName() + " handled " + round(actual)
+						+ " rows/s, required " + round(allowed) + " rows/s ("
+						+ rate.getValue() + " rows/s - " + tolerancePercent
+						+ "%)");
+			}
+		}
+		return violations;
+	}
+
+	/**
+	 * Writes the figures of a run as a baseline file. Steps below
+	 * {@value #BASELINE_MIN_STEP_ROWS} rows or
+	 * {@value #BASELINE_MIN_STEP_MILLIS} ms are left out.
+	 *
+	 * @param file
+	 *            the baseline file
+	 * @param metrics
+	 *            the figures of the run
+	 */
+	public static void writeBaseline(File file, RunMetrics metrics) {
+		Properties props = new Properties();
+		props.setProperty(KEY_WALL_MILLIS,
+				String.valueOf(metrics.getDurationMillis()));
+		if (metrics.getHeapGrowth() > 0) {
+			props.setProperty(KEY_HEAP_GROWTH,
+					String.valueOf(metrics.getHeapGrowth()));
+		}
+		props.setProperty(KEY_RUN_ROWS_PER_SECOND,
+				String.valueOf(round(metrics.getRunRowsPerSecond())));
+		Map<String, Long> stepRows = stepRows(metrics);
+		Map<String, Long> stepMillis = new LinkedHashMap<String, Long>();
+		for (RunMetrics.StepMetrics step : metrics.getSteps()) {
+			Long millis = stepMillis.get(step.getStepName());
+			stepMillis.put(step.getStepName(), Math.max(
+					step.getDurationMillis(), (millis != null) ? millis : 0));
+		}
+		for (String step : stepRows.keySet()) {
+			if (stepRows.get(step) >= BASELINE_MIN_STEP_ROWS
+					&& stepMillis.get(step) >= BASELINE_MIN_STEP_MILLIS) {
+				props.setProperty(KEY_ROWS_PER_SECOND + step, String
+						.valueOf(round(metrics.getRowsPerSecond(step))));
+			}
+		}
+		OutputStream out = null;
+		try {
+			out = new FileOutputStream(file);
+			props.store(out, "Performance baseline of " + metrics.getName());
+			LOGGER.info("Wrote performance baseline " + file.getAbsolutePath());
+		} catch (IOException e) {
+			LOGGER.warn("Unable to write performance baseline "
+					+ file.getAbsolutePath() + ": " + e);
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+	}
+
+	/*
+	 * The baseline figures, empty if there is no baseline file (yet).
+	 */
+	private Properties readBaseline() {
+		Properties props = new Properties();
+		if (baseline == null) {
+			return props;
+		}
+		if (!baseline.isFile()) {
+			LOGGER.warn("Performance baseline " + baseline.getAbsolutePath()
+					+ " does not exist, set " + PROP_WRITE_BASELINE
+					+ "=true to create it");
+			return props;
+		}
+		InputStream in = null;
+		try {
+			in = new FileInputStream(baseline);
+			props.load(in);
+		} catch (IOException e) {
+			throw new IllegalStateException(
+					"Unable to read performance baseline "
+							+ baseline.getAbsolutePath() + ": " + e);
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+		return props;
+	}
+
+	/*
+	 * The explicit limit if there is one, else the baseline's, else -1.
+	 */
+	private static long limit(long explicit, Properties base, String key) {
+		if (explicit >= 0) {
+			return explicit;
+		}
+		String value = base.getProperty(key);
+		return (value != null) ? Long.parseLong(value.trim()) : -1;
+	}
+
+	/*
+	 * The rows of each step over all its copies, in step order.
+	 */
+	private static Map<String, Long> stepRows(RunMetrics metrics) {
+		Map<String, Long> stepRows = new LinkedHashMap<String, Long>();
+		for (RunMetrics.StepMetrics step : metrics.getSteps()) {
+			Long rows = stepRows.get(step.getStepName());
+			stepRows.put(step.getStepName(), step.getRows()
+					+ ((rows != null) ? rows : 0));
+		}
+		return stepRows;
+	}
+
+	private static double round(double d) {
+		return Math.round(d * 10) / 10.0;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString() {
+		StringBuffer b = new StringBuffer("PerformanceBudget: ");
+		b.append("minRowsPerSecond=");
+		b.append(minRowsPerSecond);
+		b.append("; maxWallMillis=");
+		b.append(maxWallMillis);
+		b.append("; maxHeapGrowth=");
+		b.append(maxHeapGrowth);
+		b.append("; baseline=");
+		b.append((baseline != null) ? baseline.getAbsolutePath() : "none");
+		b.append("; tolerance=");
+		b.append(tolerancePercent);
+		b.append("%");
+		return b.toString();
+	}
+}
@@ -0,0 +1,204 @@
+package xbi.testutils.dbunit;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Works out which units of work (test cases, load modes, ...) touch the same
+ * database tables so that they can be run in order, while units that share
+ * nothing can be run at the same time.
+ *
+ * @author eniesc200
+ */
+public final class TableConflicts {
+
+	private static final Logger LOGGER = LoggerFactory
+			.getLogger(TableConflicts.class);
+
+	private TableConflicts() {
+	}
+
+	/**
+	 * Normalizes a table name for conflict detection. Oracle folds unquoted
+	 * identifiers to upper case, and the schema prefix is dropped so that a
+	 * schema-qualified target table still clashes with the unqualified name
+	 * found in a DBUnit data file. This may serialize a few things that could
+	 * have run together, but it will never run two writers of the same table
+	 * at once.
+	 *
+	 * @param table
+	 *            the (optionally schema-qualified) table name
+	 * @return the normalized table name
+	 */
+	public static String normalize(String table) {
+		if (table == null) {
+			throw new NullPointerException();
+		}
+		String name = table.trim();
+		int dot = name.lastIndexOf('.');
+		if (dot >= 0) {
+			name = name.substring(dot + 1);
+		}
+		return name.toUpperCase(Locale.ENGLISH);
+	}
+
+	/**
+	 * Reads the table names out of a DBUnit flat XML data file without
+	 * building the data set. Every child element of the root element is a row
+	 * and its element name is the table name.
+	 *
+	 * @param file
+	 *            the flat XML data file
+	 * @return the normalized table names found in the file. Empty if the file
+	 *         cannot be read.
+	 */
+	public static Set<String> scanTableNames(File file) {
+		Set<String> tables = new HashSet<String>();
+		InputStream in = null;
+		XMLStreamReader reader = null;
+		try {
+			in = new BufferedInputStream(new FileInputStream(file));
+			XMLInputFactory factory = XMLInputFactory.newInstance();
+			factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+			reader = factory.createXMLStreamReader(in);
+			int depth = 0;
+			while (reader.hasNext()) {
+				int event = reader.next();
+				if (event == XMLStreamConstants.START_ELEMENT) {
+					depth++;
+					if (depth == 2) {
+						tables.add(normalize(reader.getLocalName()));
+					}
+				} else if (event == XMLStreamConstants.END_ELEMENT) {
+					depth--;
+				}
+			}
+		} catch (IOException e) {
+			LOGGER.warn("Unable to scan table names in "
+					+ file.getAbsolutePath() + ": " + e.getMessage());
+		} catch (XMLStreamException e) {
+			LOGGER.warn("Unable to scan table names in "
+					+ file.getAbsolutePath() + ": " + e.getMessage());
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (XMLStreamException e) {
+					// ignore, the stream is closed below
+				}
+			}
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+		return tables;
+	}
+
+	/**
+	 * Lists the tables a test case touches: the tables its input data files
+	 * are loaded into, and its target tables, which are written to and
+	 * registered for cleanup.
+	 *
+	 * @param configuration
+	 *            the test case configuration
+	 * @return the normalized table names
+	 */
+	public static Set<String> touchedTables(
+			KettleTestCaseConfiguration configuration) {
+		Set<String> tables = new HashSet<String>();
+		for (File inFile : configuration.getInFiles()) {
+			tables.addAll(scanTableNames(inFile));
+		}
+		for (String targetTable : configuration.getTargetTables().keySet()) {
+			tables.add(normalize(targetTable));
+		}
+		return tables;
+	}
+
+	/**
+	 * Splits a set of units of work into groups. Units that touch a common
+	 * table (directly or through a chain of other units) end up in the same
+	 * group. Groups, and the units within each group, keep the iteration order
+	 * of the map passed in.
+	 *
+	 * @param tablesByUnit
+	 *            each unit of work mapped to the tables it touches. Use an
+	 *            ordered map to get a predictable order.
+	 * @return a list of groups. Units within a group must be run in order;
+	 *         different groups can be run concurrently.
+	 */
+	public static <T> List<List<T>> partition(Map<T, Set<String>> tablesByUnit) {
+		List<T> units = new ArrayList<T>(tablesByUnit.keySet());
+		int[] parent = new int[units.size()];
+		for (int i = 0; i < parent.length; i++) {
+			parent[i] = i;
+		}
+
+		// union every unit with the first unit seen for each table
+		Map<String, Integer> firstUnitByTable = new HashMap<String, Integer>();
+		for (int i = 0; i < units.size(); i++) {
+			for (String table : tablesByUnit.get(units.get(i))) {
+				String key = normalize(table);
+				Integer first = firstUnitByTable.get(key);
+				if (first == null) {
+					firstUnitByTable.put(key, i);
+				} else {
+					union(parent, first, i);
+				}
+			}
+		}
+
+		Map<Integer, List<T>> groups = new LinkedHashMap<Integer, List<T>>();
+		for (int i = 0; i < units.size(); i++) {
+			int root = find(parent, i);
+			List<T> group = groups.get(root);
+			if (group == null) {
+				group = new ArrayList<T>();
+				groups.put(root, group);
+			}
+			group.add(units.get(i));
+		}
+		return new ArrayList<List<T>>(groups.values());
+	}
+
+	private static int find(int[] parent, int i) {
+		while (parent[i] != i) {
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
+	}
+
+	private static void union(int[] parent, int a, int b) {
+		int rootA = find(parent, a);
+		int rootB = find(parent, b);
+		if (rootA < rootB) {
+			parent[rootB] = rootA;
+		} else if (rootB < rootA) {
+			parent[rootA] = rootB;
+		}
+	}
+}
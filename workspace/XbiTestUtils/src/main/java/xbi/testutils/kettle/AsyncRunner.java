@@ -0,0 +1,227 @@
+package xbi.testutils.kettle;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.pentaho.di.core.CheckResultInterface;
+
+/**
+ * Runs the phases of a {@link Runner} on an Executor instead of the calling
+ * thread. Each phase returns a {@link PhaseFuture}; phases are chained in the
+ * order they are requested, and a phase only starts once the one before it has
+ * succeeded. If a phase fails or is cancelled, the phases after it are skipped
+ * or cancelled.
+ *
+ * Usage:
+ *
+ * <pre>
+ * AsyncRunner async = new AsyncRunner(RunnerFactory.createRunner(ktr), executor);
+ * async.setup();
+ * async.verify();
+ * PhaseFuture run = async.run();
+ * // ... do other work, e.g. load DB fixtures ...
+ * PhaseResult result = run.getResult();
+ * </pre>
+ *
+ * An AsyncRunner is not meant to be shared between threads other than the
+ * one requesting the phases and the Executor's threads.
+ *
+ * @author eniesc200
+ */
+public class AsyncRunner {
+
+	/** Phase name of {@link #setup()}. */
+	public static final String PHASE_SETUP = "setup";
+
+	/** Phase name of {@link #verify()}. */
+	public static final String PHASE_VERIFY = "verify";
+
+	/** Phase name of {@link #run()}. */
+	public static final String PHASE_RUN = "run";
+
+	private final Runner runner;
+	private final Executor executor;
+
+	// the most recently requested phase; the next one is chained after it
+	private PhaseFuture last;
+
+	/**
+	 * @param runner
+	 *            the Runner whose phases to run
+	 * @param executor
+	 *            runs the phases
+	 */
+	public AsyncRunner(Runner runner, Executor executor) {
+		if (runner == null || executor == null) {
+			throw new NullPointerException();
+		}
+		this.runner = runner;
+		this.executor = executor;
+	}
+
+	/**
+	 * @return the Runner whose phases are run
+	 */
+	@Nonnull
+	public Runner getRunner() {
+		return runner;
+	}
+
+	/**
+	 * @return the most recently requested phase, or null if none has been
+	 */
+	@CheckForNull
+	public synchronized PhaseFuture getLastPhase() {
+		return last;
+	}
+
+	/**
+	 * Sets up the Job or Transformation, see {@link Runner#setup()}.
+	 *
+	 * @return the pending phase
+	 */
+	@Nonnull
+	public PhaseFuture setup() {
+		return chain(PHASE_SETUP, new Callable<String>() {
+			public String call() {
+				runner.setup();
+				return runner.isReady() ? null : "not ready after setup";
+			}
+		});
+	}
+
+	/**
+	 * Verifies the Job or Transformation, see {@link Runner#verify()}.
+	 *
+	 * @return the pending phase, failed with the verification errors if there
+	 *         were any
+	 */
+	@Nonnull
+	public PhaseFuture verify() {
+		return chain(PHASE_VERIFY, new Callable<String>() {
+			public String call() {
+				runner.verify();
+				if (runner.isVerified()) {
+					return null;
+				}
+				StringBuffer b = new StringBuffer("verification failed:");
+				for (CheckResultInterface remark : runner.getStepRemarks()) {
+					if (remark.getType() == CheckResultInterface.TYPE_RESULT_ERROR) {
+						b.append(" ");
+						b.append(remark.getText());
+						b.append(";");
+					}
+				}
+				return b.toString();
+			}
+		});
+	}
+
+	/**
+	 * Runs the Job or Transformation, see {@link Runner#run()}.
+	 *
+	 * @return the pending phase
+	 */
+	@Nonnull
+	public PhaseFuture run() {
+		return chain(PHASE_RUN, new Callable<String>() {
+			public String call() {
+				runner.run();
+				return runner.isComplete() ? null : "did not complete";
+			}
+		});
+	}
+
+	/**
+	 * Chains setup, verify and run.
+	 *
+	 * @return the pending run phase
+	 */
+	@Nonnull
+	public PhaseFuture runAll() {
+		setup();
+		verify();
+		return run();
+	}
+
+	/**
+	 * Chains a phase of the caller's own, e.g. setting parameters between
+	 * setup and verify.
+	 *
+	 * @param phase
+	 *            the name of the phase
+	 * @param work
+	 *            the phase itself, returns true on success
+	 * @return the pending phase
+	 */
+	@Nonnull
+	public PhaseFuture then(final String phase, final Callable<Boolean> work) {
+		return chain(phase, new Callable<String>() {
+			public String call() throws Exception {
+				Boolean ok = work.call();
+				return (ok != null && ok.booleanValue()) ? null : phase
+						+ " failed";
+			}
+		});
+	}
+
+	/**
+	 * Cancels the phase that is running or waiting to run, stopping the Job
+	 * or Transformation, and every phase after it.
+	 *
+	 * @return true if anything was cancelled
+	 */
+	public boolean cancel() {
+		PhaseFuture phase = getLastPhase();
+		if (phase == null) {
+			return false;
+		}
+		// phases are cancelled from the last back to the first pending one,
+		// so later phases never start
+		return phase.cancel(true);
+	}
+
+	private synchronized PhaseFuture chain(String phase, Callable<String> work) {
+		final PhaseFuture future = new PhaseFuture(phase, runner, work);
+		final PhaseFuture previous = last;
+		last = future;
+		if (previous == null) {
+			start(future);
+			return future;
+		}
+		previous.addListener(new Runnable() {
+			public void run() {
+				if (previous.isCancelled()) {
+					future.cancel(false);
+				} else if (!previous.isSuccess()) {
+					future.skip("skipped, " + previous.getPhase()
+							+ " did not succeed");
+				} else {
+					start(future);
+				}
+			}
+		});
+		// cancelling this phase while an earlier one is still pending or
+		// running cancels the earlier one too
+		future.addListener(new Runnable() {
+			public void run() {
+				if (future.isCancelled() && !previous.isDone()) {
+					previous.cancel(true);
+				}
+			}
+		});
+		return future;
+	}
+
+	private void start(PhaseFuture future) {
+		try {
+			executor.execute(future);
+		} catch (RejectedExecutionException e) {
+			future.skip("rejected by the executor: " + e.getMessage());
+		}
+	}
+}
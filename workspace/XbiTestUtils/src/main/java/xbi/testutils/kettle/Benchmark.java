@@ -0,0 +1,285 @@
+package xbi.testutils.kettle;
+
+import java.io.File;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs a Job or Transformation repeatedly to measure it: a number of warmup
+ * runs, which are thrown away, then a number of measured runs. Every run sets
+ * the artifact up again, like {@link Runner#rerun(String, String)}, so it
+ * starts from freshly copied metadata; verification results are cached after
+ * the first run.
+ *
+ * The report covers wall time and rows per second percentiles and the time
+ * the JVM spent collecting garbage during the measured runs. Rows per second
+ * is taken from the busiest step of each run (see {@link RunMetrics}). Wall
+ * time covers the run only, not setup and verification; it is the duration
+ * of the run's metrics if the Runner collects them, and otherwise measured
+ * around {@link Runner#run()}. Jobs collect no rows per second.
+ *
+ * @author eniesc200
+ */
+public class Benchmark {
+
+	private static final Logger LOGGER = LoggerFactory
+			.getLogger(Benchmark.class);
+
+	private final File xmlFile;
+	private final int warmups;
+	private final int runs;
+	private final Map<String, String> parameters = new HashMap<String, String>();
+	private boolean safeModeEnabled = TransformationRunner
+			.isSafeModeEnabledByDefault();
+	private Runnable beforeRun;
+	private TuningOverrides overrides;
+
+	private final LatencyStats wallMillis = new LatencyStats();
+	private final LatencyStats rowsPerSecond = new LatencyStats();
+	private final LatencyStats heapGrowth = new LatencyStats();
+	private long gcMillis;
+	private long gcCount;
+	private int failures;
+
+	/**
+	 * @param xmlFile
+	 *            the Job or Transformation file
+	 * @param warmups
+	 *            the number of runs to throw away
+	 * @param runs
+	 *            the number of runs to measure, at least 1
+	 */
+	public Benchmark(File xmlFile, int warmups, int runs) {
+		if (xmlFile == null) {
+			throw new NullPointerException();
+		}
+		if (warmups < 0 || runs < 1) {
+			throw new IllegalArgumentException(
+					"Need at least 0 warmups and 1 run, got " + warmups
+							+ " and " + runs);
+		}
+		this.xmlFile = xmlFile;
+		this.warmups = warmups;
+		this.runs = runs;
+	}
+
+	/**
+	 * @param parameters
+	 *            parameter names and values to set on every run
+	 */
+	public void setParameters(Map<String, String> parameters) {
+		this.parameters.clear();
+		this.parameters.putAll(parameters);
+	}
+
+	/**
+	 * @param safeModeEnabled
+	 *            false to run transformations without Kettle's safe mode row
+	 *            layout checks
+	 */
+	public void setSafeModeEnabled(boolean safeModeEnabled) {
+		this.safeModeEnabled = safeModeEnabled;
+	}
+
+	/**
+	 * @param overrides
+	 *            settings to apply to the transformation metadata before every
+	 *            run, null to run it as saved
+	 */
+	public void setOverrides(TuningOverrides overrides) {
+		this.overrides = overrides;
+	}
+
+	/**
+	 * @return the settings applied to the transformation metadata, null if it
+	 *         runs as saved
+	 */
+	@CheckForNull
+	public TuningOverrides getOverrides() {
+		return overrides;
+	}
+
+	/**
+	 * @param beforeRun
+	 *            called before every run, outside the measured time, e.g. to
+	 *            clear the target tables. May be null.
+	 */
+	public void setBeforeRun(Runnable beforeRun) {
+		this.beforeRun = beforeRun;
+	}
+
+	/**
+	 * Does the warmup and measured runs. A failed measured run is counted and
+	 * left out of the figures.
+	 */
+	public void run() {
+		Runner runner = createRunner();
+		if (runner instanceof TransformationRunner) {
+			((TransformationRunner) runner).setSafeModeEnabled(safeModeEnabled);
+			((TransformationRunner) runner).setOverrides(overrides);
+		}
+
+		for (int i = 0; i < warmups; i++) {
+			if (beforeRun != null) {
+				beforeRun.run();
+			}
+			runOnce(runner);
+		}
+
+		long gcMillisBefore = gcMillis();
+		long gcCountBefore = gcCount();
+		for (int i = 0; i < runs; i++) {
+			if (beforeRun != null) {
+				beforeRun.run();
+			}
+			long elapsed = runOnce(runner);
+			if (elapsed < 0) {
+				failures++;
+				continue;
+			}
+			RunMetrics metrics = runner.getRunMetrics();
+			if (metrics != null) {
+				wallMillis.add(metrics.getDurationMillis());
+				rowsPerSecond.add(Math.round(metrics.getRunRowsPerSecond()));
+				heapGrowth.add(Math.max(0, metrics.getHeapGrowth()));
+			} else {
+				wallMillis.add(elapsed);
+			}
+		}
+		gcMillis = gcMillis() - gcMillisBefore;
+		gcCount = gcCount() - gcCountBefore;
+		runner.releaseLogs();
+		LOGGER.info(toString());
+	}
+
+	/*
+	 * Creates the Runner of the artifact. Tests substitute their own.
+	 */
+	Runner createRunner() {
+		return RunnerFactory.createRunner(xmlFile);
+	}
+
+	/*
+	 * Sets up, verifies and runs the artifact once. Returns the milliseconds
+	 * run() took, or -1 if the run did not complete.
+	 */
+	private long runOnce(Runner runner) {
+		runner.setup();
+		if (runner.isReady()) {
+			for (Map.Entry<String, String> entry : parameters.entrySet()) {
+				runner.setParameterValue(entry.getKey(), entry.getValue());
+			}
+		}
+		runner.verify();
+		long start = System.nanoTime();
+		runner.run();
+		long elapsed = (System.nanoTime() - start) / 1000000L;
+		return runner.isComplete() ? elapsed : -1;
+	}
+
+	private static long gcMillis() {
+		long total = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory
+				.getGarbageCollectorMXBeans()) {
+			total += Math.max(0, gc.getCollectionTime());
+		}
+		return total;
+	}
+
+	private static long gcCount() {
+		long total = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory
+				.getGarbageCollectorMXBeans()) {
+			total += Math.max(0, gc.getCollectionCount());
+		}
+		return total;
+	}
+
+	/**
+	 * @return wall time statistics of the measured runs, in milliseconds
+	 */
+	@Nonnull
+	public LatencyStats getWallMillis() {
+		return wallMillis;
+	}
+
+	/**
+	 * @return rows per second statistics of the measured runs
+	 */
+	@Nonnull
+	public LatencyStats getRowsPerSecond() {
+		return rowsPerSecond;
+	}
+
+	/**
+	 * @return heap growth statistics of the measured runs, in bytes
+	 */
+	@Nonnull
+	public LatencyStats getHeapGrowth() {
+		return heapGrowth;
+	}
+
+	/**
+	 * @return the time spent collecting garbage during the measured runs, in
+	 *         milliseconds
+	 */
+	public long getGcMillis() {
+		return gcMillis;
+	}
+
+	/**
+	 * @return the number of garbage collections during the measured runs
+	 */
+	public long getGcCount() {
+		return gcCount;
+	}
+
+	/**
+	 * @return the number of measured runs that did not complete
+	 */
+	public int getFailures() {
+		return failures;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString() {
+		StringBuffer b = new StringBuffer("Benchmark of ");
+		b.append(xmlFile.getName());
+		b.append(" (");
+		b.append(warmups);
+		b.append(" warmup(s), ");
+		b.append(runs);
+		b.append(" run(s), safe mode ");
+		b.append(safeModeEnabled ? "on" : "off");
+		if (overrides != null) {
+			b.append(", ");
+			b.append(overrides);
+		}
+		b.append("): wall ms ");
+		b.append(wallMillis);
+		b.append("; rows/s ");
+		b.append(rowsPerSecond);
+		b.append("; heap growth ");
+		b.append(heapGrowth);
+		b.append("; GC ");
+		b.append(gcMillis);
+		b.append(" ms in ");
+		b.append(gcCount);
+		b.append(" collection(s); ");
+		b.append(failures);
+		b.append(" failed run(s)");
+		return b.toString();
+	}
+}
@@ -0,0 +1,489 @@
+package xbi.testutils.kettle;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+
+import org.pentaho.di.core.RowSet;
+import org.pentaho.di.core.exception.KettleStepException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.step.RowAdapter;
+import org.pentaho.di.trans.step.StepInterface;
+import org.pentaho.di.trans.step.StepMetaDataCombi;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Samples a running transformation at a fixed interval to find the step that
+ * holds it up. Each sample looks at the fill level of every step copy's input
+ * and output row sets (buffers) and the CPU time of its thread.
+ *
+ * A step copy is the bottleneck in a sample when one of its input buffers is
+ * (nearly) full while none of its output buffers is: rows are queueing up in
+ * front of it and the steps after it could take more. Steps are ranked by how
+ * many samples they were the bottleneck in.
+ *
+ * Step threads are found by a row listener that notes the thread it is called
+ * on; a step copy that never reads or writes a row has no CPU time. Kettle's
+ * row listener lists must not change while the steps run, so the listeners
+ * are added by {@link #attach()} between prepareExecution() and
+ * startThreads(), and removed by {@link #detach()} once the transformation
+ * has finished. A sample only reads counters, so the overhead stays small;
+ * the time spent sampling is reported.
+ *
+ * @author eniesc200
+ */
+public class BottleneckProfiler {
+
+	private static final Logger LOGGER = LoggerFactory
+			.getLogger(BottleneckProfiler.class);
+
+	/** A buffer this full, as a fraction of its capacity, counts as full. */
+	static final double FULL = 0.8;
+
+	// one thread samples all running profilers
+	private static final ScheduledExecutorService SAMPLER = Executors
+			.newSingleThreadScheduledExecutor(new ProfilerThreadFactory());
+
+	private final Trans trans;
+	private final String name;
+	private final long intervalMillis;
+	private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	private final boolean cpuTimeSupported;
+
+	private final List<StepProfile> profiles = new ArrayList<StepProfile>();
+	private boolean attached;
+	private boolean detached;
+	private ScheduledFuture<?> future;
+	private long startNanos;
+	private long wallMillis;
+	private long samplingNanos;
+	private int samples;
+
+	/**
+	 * The figures of one step copy.
+	 */
+	public static final class StepProfile {
+		private final String stepName;
+		private final int copy;
+		private final StepInterface step;
+		private final ThreadCatcher catcher = new ThreadCatcher();
+		private int samples;
+		private int bottleneck;
+		private int blocked;
+		private int starved;
+		private double inputFill;
+		private double outputFill;
+		private long cpuNanos;
+
+		StepProfile(String stepName, int copy, StepInterface step) {
+			this.stepName = stepName;
+			this.copy = copy;
+			this.step = step;
+		}
+
+		/*
+		 * Counts one sample given the fill levels of the fullest input and
+		 * output buffer.
+		 */
+		void record(double in, double out, boolean hasInputs) {
+			samples++;
+			inputFill += in;
+			outputFill += out;
+			if (in >= FULL && out < FULL) {
+				bottleneck++;
+			}
+			if (out >= FULL) {
+				blocked++;
+			}
+			if (hasInputs && in == 0) {
+				starved++;
+			}
+		}
+
+		public String getStepName() {
+			return stepName;
+		}
+
+		public int getCopy() {
+			return copy;
+		}
+
+		/**
+		 * @return the number of samples taken while the step copy ran
+		 */
+		public int getSamples() {
+			return samples;
+		}
+
+		/**
+		 * @return the number of samples in which the step copy was the
+		 *         bottleneck
+		 */
+		public int getBottleneckSamples() {
+			return bottleneck;
+		}
+
+		/**
+		 * @return the number of samples in which an output buffer of the step
+		 *         copy was full
+		 */
+		public int getBlockedSamples() {
+			return blocked;
+		}
+
+		/**
+		 * @return the number of samples in which all input buffers of the step
+		 *         copy were empty
+		 */
+		public int getStarvedSamples() {
+			return starved;
+		}
+
+		/**
+		 * @return the mean fill level of the fullest input buffer, 0 to 1
+		 */
+		public double getMeanInputFill() {
+			return (samples > 0) ? inputFill / samples : 0;
+		}
+
+		/**
+		 * @return the mean fill level of the fullest output buffer, 0 to 1
+		 */
+		public double getMeanOutputFill() {
+			return (samples > 0) ? outputFill / samples : 0;
+		}
+
+		/**
+		 * @return the CPU time of the step copy's thread, in milliseconds, 0 if
+		 *         unknown
+		 */
+		public long getCpuMillis() {
+			return cpuNanos / 1000000L;
+		}
+	}
+
+	/*
+	 * Notes the thread a step copy runs on. Called for every row, so it only
+	 * reads a volatile once the thread is known.
+	 */
+	private static class ThreadCatcher extends RowAdapter {
+		private volatile long threadId = -1;
+
+		private void catchThread() {
+			if (threadId < 0) {
+				threadId = Thread.currentThread().getId();
+			}
+		}
+
+		@Override
+		public void rowReadEvent(RowMetaInterface rowMeta, Object[] row)
+				throws KettleStepException {
+			catchThread();
+		}
+
+		@Override
+		public void rowWrittenEvent(RowMetaInterface rowMeta, Object[] row)
+				throws KettleStepException {
+			catchThread();
+		}
+	}
+
+	/**
+	 * @param trans
+	 *            the transformation, prepared but not started yet
+	 * @param name
+	 *            the name to report the transformation by
+	 * @param intervalMillis
+	 *            how often to sample, in milliseconds
+	 */
+	public BottleneckProfiler(Trans trans, String name, long intervalMillis) {
+		if (trans == null || name == null) {
+			throw new NullPointerException();
+		}
+		if (intervalMillis <= 0) {
+			throw new IllegalArgumentException(
+					"The sampling interval must be positive, was "
+							+ intervalMillis);
+		}
+		this.trans = trans;
+		this.name = name;
+		this.intervalMillis = intervalMillis;
+		boolean supported = threads.isThreadCpuTimeSupported();
+		if (supported && !threads.isThreadCpuTimeEnabled()) {
+			try {
+				threads.setThreadCpuTimeEnabled(true);
+			} catch (UnsupportedOperationException e) {
+				supported = false;
+			}
+		}
+		cpuTimeSupported = supported;
+	}
+
+	/**
+	 * Adds a row listener to every step copy. Call this after
+	 * prepareExecution() and before startThreads().
+	 *
+	 * @throws IllegalStateException
+	 *             if the transformation has not been prepared
+	 */
+	public synchronized void attach() {
+		if (attached) {
+			return;
+		}
+		List<StepMetaDataCombi> steps = trans.getSteps();
+		if (steps == null) {
+			throw new IllegalStateException("The transformation " + name
+					+ " has not been prepared");
+		}
+		for (StepMetaDataCombi combi : steps) {
+			StepProfile profile = new StepProfile(combi.stepname, combi.copy,
+					combi.step);
+			combi.step.addRowListener(profile.catcher);
+			profiles.add(profile);
+		}
+		attached = true;
+	}
+
+	/**
+	 * Starts sampling.
+	 *
+	 * @throws IllegalStateException
+	 *             if {@link #attach()} has not been called
+	 */
+	public synchronized void start() {
+		if (!attached) {
+			throw new IllegalStateException(
+					"attach() must be called before the transformation "
+							+ name + " is started");
+		}
+		if (future != null) {
+			return;
+		}
+		startNanos = System.nanoTime();
+		future = SAMPLER.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				sample();
+			}
+		}, 0, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops sampling and takes a last reading of the CPU times. The row
+	 * listeners stay in place, see {@link #detach()}.
+	 */
+	public synchronized void stop() {
+		if (future == null || future.isCancelled()) {
+			return;
+		}
+		future.cancel(false);
+		wallMillis = (System.nanoTime() - startNanos) / 1000000L;
+		for (StepProfile profile : profiles) {
+			readCpuTime(profile);
+		}
+		LOGGER.debug("Took " + samples + " sample(s) of " + name + " in "
+				+ (samplingNanos / 1000000L) + " ms");
+	}
+
+	/**
+	 * Removes the row listeners. Call this once the transformation has
+	 * finished.
+	 */
+	public synchronized void detach() {
+		if (!attached || detached) {
+			return;
+		}
+		for (StepProfile profile : profiles) {
+			profile.step.removeRowListener(profile.catcher);
+		}
+		detached = true;
+	}
+
+	private synchronized void sample() {
+		if (future == null || future.isCancelled()) {
+			return;
+		}
+		long t = System.nanoTime();
+		int capacity = Math.max(1, trans.getTransMeta().getSizeRowset());
+		for (StepProfile profile : profiles) {
+			StepInterface step = profile.step;
+			if (!step.isRunning()) {
+				continue;
+			}
+			List<RowSet> inputs = step.getInputRowSets();
+			List<RowSet> outputs = step.getOutputRowSets();
+			double in = fullest(inputs, capacity);
+			double out = fullest(outputs, capacity);
+			profile.record(in, out, inputs != null && !inputs.isEmpty());
+			readCpuTime(profile);
+		}
+		samples++;
+		samplingNanos += System.nanoTime() - t;
+	}
+
+	private static double fullest(List<RowSet> rowSets, int capacity) {
+		double fill = 0;
+		if (rowSets != null) {
+			for (RowSet rowSet : rowSets) {
+				fill = Math.max(fill, (double) rowSet.size() / capacity);
+			}
+		}
+		return Math.min(1, fill);
+	}
+
+	/*
+	 * Keeps the last CPU time seen, the thread's is gone once it ends.
+	 */
+	private void readCpuTime(StepProfile profile) {
+		long id = profile.catcher.threadId;
+		if (cpuTimeSupported && id >= 0) {
+			long cpu = threads.getThreadCpuTime(id);
+			if (cpu >= 0) {
+				profile.cpuNanos = cpu;
+			}
+		}
+	}
+
+	/**
+	 * @return the figures of every step copy, the biggest bottleneck first
+	 */
+	@Nonnull
+	public synchronized List<StepProfile> getRanking() {
+		List<StepProfile> ranked = new ArrayList<StepProfile>(profiles);
+		Collections.sort(ranked, new Comparator<StepProfile>() {
+			public int compare(StepProfile a, StepProfile b) {
+				if (a.bottleneck != b.bottleneck) {
+					return (a.bottleneck > b.bottleneck) ? -1 : 1;
+				}
+				return (a.cpuNanos > b.cpuNanos) ? -1
+						: ((a.cpuNanos == b.cpuNanos) ? 0 : 1);
+			}
+		});
+		return ranked;
+	}
+
+	/**
+	 * @return the number of samples taken
+	 */
+	public synchronized int getSamples() {
+		return samples;
+	}
+
+	/**
+	 * @return the time spent sampling, in milliseconds
+	 */
+	public synchronized long getSamplingMillis() {
+		return samplingNanos / 1000000L;
+	}
+
+	/**
+	 * @return the ranking as a text table
+	 */
+	@Nonnull
+	public String getReport() {
+		List<StepProfile> ranked = getRanking();
+		StringBuffer b = new StringBuffer("Bottleneck profile of ");
+		b.append(name);
+		b.append(": ");
+		b.append(getSamples());
+		b.append(" sample(s) every ");
+		b.append(intervalMillis);
+		b.append(" ms over ");
+		b.append(wallMillis);
+		b.append(" ms, ");
+		b.append(getSamplingMillis());
+		b.append(" ms spent sampling");
+		if (!cpuTimeSupported) {
+			b.append(", thread CPU time is not supported by this JVM");
+		}
+		b.append("\nrank\tbottleneck%\tblocked%\tstarved%\tin fill%\tout fill%\tCPU ms\tstep");
+		for (int i = 0; i < ranked.size(); i++) {
+			StepProfile p = ranked.get(i);
+			b.append("\n");
+			b.append(i + 1);
+			b.append('\t');
+			b.append(percent(p.bottleneck, p.samples));
+			b.append('\t');
+			b.append(percent(p.blocked, p.samples));
+			b.append('\t');
+			b.append(percent(p.starved, p.samples));
+			b.append('\t');
+			b.append(Math.round(p.getMeanInputFill() * 100));
+			b.append('\t');
+			b.append(Math.round(p.getMeanOutputFill() * 100));
+			b.append('\t');
+			b.append(p.getCpuMillis());
+			b.append('\t');
+			b.append(p.stepName);
+			b.append(".");
+			b.append(p.copy);
+		}
+		return b.toString();
+	}
+
+	/**
+	 * Writes the ranking as a JSON object.
+	 *
+	 * @param out
+	 *            where to write, not closed
+	 * @throws IOException
+	 *             if writing fails
+	 */
+	public void writeJson(Writer out) throws IOException {
+		List<StepProfile> ranked = getRanking();
+		out.write("{\n");
+		out.write("  \"name\": " + RunMetrics.quote(name) + ",\n");
+		out.write("  \"intervalMillis\": " + intervalMillis + ",\n");
+		out.write("  \"wallMillis\": " + wallMillis + ",\n");
+		out.write("  \"samples\": " + getSamples() + ",\n");
+		out.write("  \"samplingMillis\": " + getSamplingMillis() + ",\n");
+		out.write("  \"cpuTimeSupported\": " + cpuTimeSupported + ",\n");
+		out.write("  \"steps\": [");
+		for (int i = 0; i < ranked.size(); i++) {
+			StepProfile p = ranked.get(i);
+			out.write((i == 0) ? "\n" : ",\n");
+			out.write("    {\"rank\": " + (i + 1) + ", \"step\": "
+					+ RunMetrics.quote(p.stepName) + ", \"copy\": " + p.copy
+					+ ", \"samples\": " + p.samples + ", \"bottleneck\": "
+					+ p.bottleneck + ", \"blocked\": " + p.blocked
+					+ ", \"starved\": " + p.starved + ", \"meanInputFill\": "
+					+ round(p.getMeanInputFill()) + ", \"meanOutputFill\": "
+					+ round(p.getMeanOutputFill()) + ", \"cpuMillis\": "
+					+ p.getCpuMillis() + "}");
+		}
+		out.write(ranked.isEmpty() ? "]\n" : "\n  ]\n");
+		out.write("}\n");
+	}
+
+	private static long percent(int count, int samples) {
+		return (samples > 0) ? Math.round(count * 100.0 / samples) : 0;
+	}
+
+	private static double round(double d) {
+		return Math.round(d * 1000) / 1000.0;
+	}
+
+	private static class ProfilerThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "xbi-profiler-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
@@ -0,0 +1,299 @@
+package xbi.testutils.kettle;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.apache.commons.io.output.CountingOutputStream;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleFileException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The rows captured from a step during a run, see {@link RowCapture}. Rows are
+ * kept as arrays of exactly the row's size with values in normal storage; once
+ * there are more than a set number of them the rest are written to a temporary
+ * file in Kettle's binary row format and read back one at a time, or all in
+ * one pass with {@link #getFields(int[])}.
+ *
+ * Call {@link #dispose()} when done with the rows to delete the file.
+ *
+ * @author eniesc200
+ */
+public final class CapturedRows {
+
+	private static final Logger LOGGER = LoggerFactory
+			.getLogger(CapturedRows.class);
+
+	/**
+	 * System property setting the number of captured rows kept in memory per
+	 * step before the rest go to a temporary file. Defaults to
+	 * {@value #DEFAULT_MAX_ROWS_IN_MEMORY}.
+	 */
+	public static final String PROP_MAX_ROWS_IN_MEMORY = "XBI_CAPTURE_MAX_ROWS_IN_MEMORY";
+
+	/** The default number of captured rows kept in memory per step. */
+	public static final int DEFAULT_MAX_ROWS_IN_MEMORY = 100000;
+
+	private final String stepName;
+	private final int maxRowsInMemory;
+
+	private RowMetaInterface rowMeta;
+	private final List<Object[]> rows = new ArrayList<Object[]>();
+
+	/* the spill file, its start offset per row and the offset of its end */
+	private File spillFile;
+	private CountingOutputStream spillCount;
+	private DataOutputStream spillOut;
+	private RandomAccessFile spillIn;
+	private long[] offsets = new long[1024];
+	private int spilled;
+
+	CapturedRows(String stepName) {
+		this(stepName, Integer.getInteger(PROP_MAX_ROWS_IN_MEMORY,
+				DEFAULT_MAX_ROWS_IN_MEMORY));
+	}
+
+	CapturedRows(String stepName, int maxRowsInMemory) {
+		this.stepName = stepName;
+		this.maxRowsInMemory = maxRowsInMemory;
+	}
+
+	/**
+	 * @return the name of the step the rows were captured from
+	 */
+	@Nonnull
+	public String getStepName() {
+		return stepName;
+	}
+
+	/**
+	 * @return the layout of the rows, in normal storage, or null if no row was
+	 *         captured
+	 */
+	@CheckForNull
+	public synchronized RowMetaInterface getRowMeta() {
+		return rowMeta;
+	}
+
+	/**
+	 * @return the number of rows captured
+	 */
+	public synchronized int size() {
+		return rows.size() + spilled;
+	}
+
+	/**
+	 * @return true if some of the rows were written to a temporary file
+	 */
+	public synchronized boolean isSpilled() {
+		return spilled > 0;
+	}
+
+	/**
+	 * Keeps a copy of a row. Called by the step copies as they read rows, so
+	 * it may be called from several threads.
+	 */
+	synchronized void add(RowMetaInterface meta, Object[] row)
+			throws KettleException {
+		if (rowMeta == null) {
+			rowMeta = meta.clone();
+			for (ValueMetaInterface value : rowMeta.getValueMetaList()) {
+				value.setStorageType(ValueMetaInterface.STORAGE_TYPE_NORMAL);
+				value.setStorageMetadata(null);
+			}
+		}
+		Object[] copy = new Object[meta.size()];
+		for (int i = 0; i < copy.length; i++) {
+			ValueMetaInterface value = meta.getValueMeta(i);
+			copy[i] = value.isStorageNormal() ? row[i] : value
+					.convertToNormalStorageType(row[i]);
+		}
+		if (rows.size() < maxRowsInMemory) {
+			rows.add(copy);
+		} else {
+			spill(copy);
+		}
+	}
+
+	/*
+	 * Appends a row to the spill file, opening it on the first row.
+	 */
+	private void spill(Object[] row) throws KettleException {
+		try {
+			if (spillOut == null) {
+				spillFile = File.createTempFile("xbi-capture-", ".bin");
+				spillFile.deleteOnExit();
+				spillCount = new CountingOutputStream(new BufferedOutputStream(
+						new FileOutputStream(spillFile)));
+				spillOut = new DataOutputStream(spillCount);
+				LOGGER.debug("Spilling rows captured from " + stepName
+						+ " to " + spillFile.getAbsolutePath());
+			}
+		} catch (IOException e) {
+			throw new KettleException("Unable to create a spill file for rows"
+					+ " captured from " + stepName, e);
+		}
+		if (spilled + 1 >= offsets.length) {
+			offsets = Arrays.copyOf(offsets, offsets.length * 2);
+		}
+		offsets[spilled] = spillCount.getByteCount();
+		rowMeta.writeData(spillOut, row);
+		spilled++;
+		offsets[spilled] = spillCount.getByteCount();
+	}
+
+	/**
+	 * @param index
+	 *            the index of the row, in the order the rows were captured
+	 * @return the row, not to be changed
+	 * @throws IllegalStateException
+	 *             if the row cannot be read back from the spill file
+	 */
+	@Nonnull
+	public synchronized Object[] getRow(int index) throws IllegalStateException {
+		if (index < 0 || index >= size()) {
+			throw new IndexOutOfBoundsException("Row " + index + " of "
+					+ size() + " captured from " + stepName);
+		}
+		if (index < rows.size()) {
+			return rows.get(index);
+		}
+		int i = index - rows.size();
+		try {
+			if (spillIn == null) {
+				spillOut.flush();
+				spillIn = new RandomAccessFile(spillFile, "r");
+			}
+			byte[] data = new byte[(int) (offsets[i + 1] - offsets[i])];
+			spillIn.seek(offsets[i]);
+			spillIn.readFully(data);
+			return rowMeta.readData(new DataInputStream(
+					new ByteArrayInputStream(data)));
+		} catch (IOException e) {
+			throw new IllegalStateException("Unable to read row " + index
+					+ " captured from " + stepName + ": " + e.getMessage());
+		} catch (KettleFileException e) {
+			throw new IllegalStateException("Unable to read row " + index
+					+ " captured from " + stepName + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Reads some fields of every row in one pass, reading the spill file
+	 * sequentially instead of seeking to each row.
+	 *
+	 * @param fields
+	 *            the indexes of the fields in the row
+	 * @return the values of the fields, one array per row in the order the
+	 *         rows were captured; null for a field the row does not have
+	 * @throws IllegalStateException
+	 *             if the rows cannot be read back from the spill file
+	 */
+	@Nonnull
+	public synchronized Object[][] getFields(int[] fields)
+			throws IllegalStateException {
+		Object[][] values = new Object[size()][];
+		int index = 0;
+		for (Object[] row : rows) {
+			values[index++] = pick(row, fields);
+		}
+		if (spilled == 0) {
+			return values;
+		}
+		DataInputStream in = null;
+		try {
+			spillOut.flush();
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(spillFile)));
+			for (int i = 0; i < spilled; i++) {
+				values[index++] = pick(rowMeta.readData(in), fields);
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("Unable to read row " + index
+					+ " captured from " + stepName + ": " + e.getMessage());
+		} catch (KettleFileException e) {
+			throw new IllegalStateException("Unable to read row " + index
+					+ " captured from " + stepName + ": " + e.getMessage());
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					LOGGER.warn("Unable to close the spill file of "
+							+ stepName + ": " + e.getMessage());
+				}
+			}
+		}
+		return values;
+	}
+
+	private static Object[] pick(Object[] row, int[] fields) {
+		Object[] values = new Object[fields.length];
+		for (int i = 0; i < fields.length; i++) {
+			values[i] = (fields[i] < row.length) ? row[fields[i]] : null;
+		}
+		return values;
+	}
+
+	/**
+	 * Drops the rows and deletes the spill file, if any.
+	 */
+	public synchronized void dispose() {
+		rows.clear();
+		spilled = 0;
+		try {
+			if (spillOut != null) {
+				spillOut.close();
+			}
+			if (spillIn != null) {
+				spillIn.close();
+			}
+		} catch (IOException e) {
+			LOGGER.warn("Unable to close the spill file of " + stepName + ": "
+					+ e.getMessage());
+		} finally {
+			spillOut = null;
+			spillIn = null;
+			if (spillFile != null && !spillFile.delete()) {
+				LOGGER.warn("Unable to delete " + spillFile.getAbsolutePath());
+			}
+			spillFile = null;
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString() {
+		StringBuffer b = new StringBuffer("CapturedRows: ");
+		b.append(stepName);
+		b.append(" ");
+		b.append(size());
+		b.append(" row(s)");
+		if (isSpilled()) {
+			b.append(", ");
+			b.append(spilled);
+			b.append(" spilled");
+		}
+		return b.toString();
+	}
+}
@@ -0,0 +1,67 @@
+package xbi.testutils.kettle;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Helpers for hashing file contents and other cache keys.
+ *
+ * @author eniesc200
+ */
+final class ContentHash {
+
+	private ContentHash() {
+	}
+
+	/**
+	 * @param file
+	 *            the file to hash
+	 * @return the hex encoded MD5 of the file's contents
+	 * @throws IOException
+	 *             if the file cannot be read
+	 */
+	static String of(File file) throws IOException {
+		MessageDigest digest = digest("MD5");
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[64 * 1024];
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				digest.update(buffer, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * @param algorithm
+	 *            a MessageDigest algorithm every JVM has, e.g. MD5 or SHA-1
+	 * @return a new MessageDigest
+	 */
+	static MessageDigest digest(String algorithm) {
+		try {
+			return MessageDigest.getInstance(algorithm);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @param bytes
+	 *            the bytes to encode
+	 * @return the bytes as a lower case hex string
+	 */
+	static String toHex(byte[] bytes) {
+		StringBuffer hex = new StringBuffer(bytes.length * 2);
+		for (byte b : bytes) {
+			hex.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+		}
+		return hex.toString();
+	}
+}
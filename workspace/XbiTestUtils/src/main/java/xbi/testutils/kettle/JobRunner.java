@@ -0,0 +1,243 @@
+package xbi.testutils.kettle;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+
+import org.pentaho.di.core.CheckResult;
+import org.pentaho.di.core.CheckResultInterface;
+import org.pentaho.di.core.Result;
+import org.pentaho.di.core.exception.KettleXMLException;
+import org.pentaho.di.core.parameters.UnknownParamException;
+import org.pentaho.di.job.Job;
+import org.pentaho.di.job.JobEntryListener;
+import org.pentaho.di.job.JobMeta;
+import org.pentaho.di.job.entry.JobEntryCopy;
+import org.pentaho.di.job.entry.JobEntryInterface;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs a Kettle Job (KJB) in this JVM, using the shared Kettle environment.
+ * The time taken by each job entry is recorded and logged once the job has
+ * finished.
+ *
+ * A Job is run in the order setup(), verify(), run(). setup() loads a new Job
+ * from the file and makes the runner ready, clearing any earlier verification
+ * and completion; verify() fails if the Job has no START entry or an entry
+ * reports an error; run() only starts a ready, verified Job that has not
+ * completed yet, and marks it complete if it finished without errors. A Job
+ * can only be started once, so each rerun sets up a new one.
+ *
+ * @author eniesc200
+ */
+public class JobRunner extends Runner {
+
+	private static final Logger LOGGER = LoggerFactory
+			.getLogger(JobRunner.class);
+
+	private volatile Job job;
+
+	private volatile RunLog runLog;
+
+	private volatile boolean stopRequested;
+
+	// "entry name.copy number" -> total milliseconds, in order of first run
+	private final Map<String, Long> entryTimings = new LinkedHashMap<String, Long>();
+
+	public JobRunner(File xmlFile) {
+		super(xmlFile);
+	}
+
+	@Override
+	public void setup() {
+		resetState();
+		// a stop() from here on stops the run that is being set up
+		stopRequested = false;
+		releaseLogs();
+		File file = getXmlFile();
+		String fileName = file.getAbsolutePath();
+		/* Initialize the job */
+		JobMeta jobMeta = null;
+		try {
+			jobMeta = new JobMeta(fileName, null);
+		} catch (KettleXMLException e) {
+			LOGGER.error("Unable to create JobMeta object from XML file "
+					+ fileName + ": " + e, e);
+			return;
+		}
+
+		Job j = new Job(null, jobMeta);
+		j.initializeVariablesFrom(null);
+		j.getJobMeta().setInternalKettleVariables(j);
+		j.copyParametersFrom(jobMeta);
+		j.addJobEntryListener(new TimingListener());
+		job = j;
+		runLog = new RunLog(j.getLogChannelId(), file.getName());
+		synchronized (entryTimings) {
+			entryTimings.clear();
+		}
+		setState(Status.READY, true);
+	}
+
+	@Override
+	public void verify() {
+		setState(Status.VERIFIED, true);
+
+		List<CheckResultInterface> stepRemarks = getStepRemarks();
+		stepRemarks.clear();
+		JobMeta jobMeta = job.getJobMeta();
+		if (jobMeta.getStart() == null) {
+			stepRemarks.add(new CheckResult(
+					CheckResultInterface.TYPE_RESULT_ERROR,
+					"The job has no START entry", null));
+		}
+		jobMeta.checkJobEntries(stepRemarks, false, null, job, null, null);
+		for (CheckResultInterface remark : stepRemarks) {
+			if (remark.getType() == CheckResultInterface.TYPE_RESULT_ERROR) {
+				setState(Status.VERIFIED, false);
+				LOGGER.error(remark.toString());
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		if (!isReady() || !isVerified() || isComplete()) {
+			LOGGER.warn("Aborting run.  Ready? " + isReady() + ". Verified? "
+					+ isVerified() + ". Complete? " + isComplete());
+			return;
+		}
+
+		if (getLogFile() != null) {
+			runLog.startFile(getLogFile());
+		}
+		try {
+			job.activateParameters();
+			job.start();
+			if (stopRequested) {
+				// stop() was called while the job was being started
+				job.stopAll();
+			}
+			job.waitUntilFinished();
+		} finally {
+			runLog.stopFile();
+		}
+
+		Result result = job.getResult();
+		if (stopRequested) {
+			LOGGER.warn("Stopped running " + getXmlFile());
+		} else if (result != null && result.getNrErrors() == 0
+				&& result.getResult()) {
+			setState(Status.COMPLETE, true);
+		} else {
+			LOGGER.error("Encountered error running " + getXmlFile() + ": "
+					+ ((result != null) ? result.getNrErrors() : "no")
+					+ " error(s)");
+		}
+
+		for (Map.Entry<String, Long> timing : getEntryTimings().entrySet()) {
+			LOGGER.info("Job entry " + timing.getKey() + ": "
+					+ timing.getValue() + " ms");
+		}
+	}
+
+	@Override
+	public void stop() {
+		stopRequested = true;
+		Job j = job;
+		if (j != null) {
+			j.stopAll();
+		}
+	}
+
+	@Override
+	public void rerun(String property, String propertyValue) {
+		setup(); // a Job can only be started once, so set up a new one
+		setParameterValue(property, propertyValue);
+		verify();
+		run();
+	}
+
+	@Override
+	public void releaseLogs() {
+		RunLog log = runLog;
+		runLog = null;
+		if (log != null) {
+			log.discard();
+		}
+	}
+
+	@Override
+	public void setParameterValue(String property, String propertyValue) {
+		try {
+			job.setParameterValue(property, propertyValue);
+		} catch (UnknownParamException e) {
+			LOGGER.error("Unknown property, job will not run: "
+					+ e.getMessage());
+			setState(Status.READY, false);
+		}
+	}
+
+	@Override
+	public Set<String> getParameterNames() {
+		return createSet((job != null) ? job.listParameters() : null);
+	}
+
+	/**
+	 * @return the total time in milliseconds spent in each job entry of the
+	 *         last run, keyed by "entry name.copy number" in the order the
+	 *         entries first ran.
+	 */
+	@Nonnull
+	public Map<String, Long> getEntryTimings() {
+		synchronized (entryTimings) {
+			return new LinkedHashMap<String, Long>(entryTimings);
+		}
+	}
+
+	/*
+	 * Times each job entry. Entries can run in parallel, so start times are
+	 * kept per thread.
+	 */
+	private class TimingListener implements JobEntryListener {
+		private final Map<String, Long> started = new HashMap<String, Long>();
+
+		private String key(JobEntryCopy copy) {
+			return copy.getName() + "." + copy.getNr();
+		}
+
+		public void beforeExecution(Job job, JobEntryCopy jobEntryCopy,
+				JobEntryInterface jobEntryInterface) {
+			synchronized (started) {
+				started.put(key(jobEntryCopy) + "@"
+						+ Thread.currentThread().getId(),
+						System.currentTimeMillis());
+			}
+		}
+
+		public void afterExecution(Job job, JobEntryCopy jobEntryCopy,
+				JobEntryInterface jobEntryInterface, Result result) {
+			String key = key(jobEntryCopy);
+			Long start;
+			synchronized (started) {
+				start = started.remove(key + "@"
+						+ Thread.currentThread().getId());
+			}
+			if (start == null) {
+				return;
+			}
+			long elapsed = System.currentTimeMillis() - start;
+			synchronized (entryTimings) {
+				Long total = entryTimings.get(key);
+				entryTimings.put(key, (total != null) ? total + elapsed
+						: elapsed);
+			}
+		}
+	}
+}
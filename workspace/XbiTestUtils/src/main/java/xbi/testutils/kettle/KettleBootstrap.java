@@ -0,0 +1,249 @@
+package xbi.testutils.kettle;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.KettleEnvironment;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.logging.KettleLogStore;
+import org.pentaho.di.core.plugins.PluginRegistry;
+import org.pentaho.di.core.util.EnvUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Initializes the Kettle environment once per process. Every Runner and every
+ * CLI Mode calls {@link #init()}; only the first successful call does any
+ * work, and concurrent callers wait for it to finish.
+ *
+ * The time taken by each initialization phase is logged and kept so that
+ * startup regressions can be tracked.
+ *
+ * Plugins found in the plugin folders are cached between launches, see
+ * {@link PluginRegistryCache}.
+ *
+ * Kettle's central log store is a ring buffer of
+ * {@value #DEFAULT_MAX_LOG_LINES} lines by default, so that a long-lived JVM
+ * does not keep every line it ever logged.
+ *
+ * @author eniesc200
+ */
+public final class KettleBootstrap {
+
+	private static final Logger LOGGER = LoggerFactory
+			.getLogger(KettleBootstrap.class);
+
+	/**
+	 * The name of the system property identifying the Kettle home directory.
+	 */
+	public static final String PROP_KETTLE_HOME = "KETTLE_HOME";
+
+	/** Phase name: locating KETTLE_HOME and kettle.properties. */
+	public static final String PHASE_KETTLE_HOME = "kettle home";
+
+	/** Phase name: setting up the central log store. */
+	public static final String PHASE_LOGGING = "logging";
+
+	/** Phase name: loading kettle.properties into the system properties. */
+	public static final String PHASE_VARIABLES = "variables";
+
+	/**
+	 * Phase name: scanning for and registering plugins, or restoring them from
+	 * the plugin registry cache.
+	 */
+	public static final String PHASE_PLUGIN_SCAN = "plugin scan";
+
+	/**
+	 * System property with the number of lines kept in Kettle's central log
+	 * store, oldest dropped first; 0 keeps them all. Defaults to Kettle's own
+	 * KETTLE_MAX_LOG_SIZE_IN_LINES system property, or
+	 * {@value #DEFAULT_MAX_LOG_LINES} if neither is set.
+	 */
+	public static final String PROP_MAX_LOG_LINES = "XBI_MAX_LOG_LINES";
+
+	/** The default number of lines kept in Kettle's central log store. */
+	public static final int DEFAULT_MAX_LOG_LINES = 5000;
+
+	private static final Object LOCK = new Object();
+
+	private static volatile boolean initialized = false;
+
+	// phase name -> milliseconds, in the order the phases ran
+	private static volatile Map<String, Long> phaseTimings = Collections
+			.emptyMap();
+
+	private KettleBootstrap() {
+	}
+
+	/**
+	 * Initializes the Kettle environment if that has not been done yet. Safe
+	 * to call from several threads at the same time.
+	 *
+	 * @throws RuntimeException
+	 *             if kettle.properties cannot be found
+	 */
+	public static void init() {
+		if (initialized) {
+			return;
+		}
+		synchronized (LOCK) {
+			if (initialized) {
+				return;
+			}
+			Map<String, Long> timings = new LinkedHashMap<String, Long>();
+			long start = System.nanoTime();
+
+			long t = System.nanoTime();
+			setKettleHome();
+			checkKettleProperties();
+			timings.put(PHASE_KETTLE_HOME, elapsedMillis(t));
+
+			try {
+				t = System.nanoTime();
+				EnvUtil.environmentInit();
+				timings.put(PHASE_VARIABLES, elapsedMillis(t));
+
+				// does the rest of the client environment and the plugin
+				// registry. The client environment sets up the log store with
+				// Kettle's own size, so the limit is applied afterwards.
+				t = System.nanoTime();
+				initPlugins();
+				timings.put(PHASE_PLUGIN_SCAN, elapsedMillis(t));
+
+				t = System.nanoTime();
+				KettleLogStore.init(maxLogLines(), Const.toInt(System
+						.getProperty(Const.KETTLE_MAX_LOG_TIMEOUT_IN_MINUTES),
+						0));
+				timings.put(PHASE_LOGGING, elapsedMillis(t));
+			} catch (KettleException e) {
+				LOGGER.error(e.getMessage());
+				return;
+			}
+
+			phaseTimings = Collections.unmodifiableMap(timings);
+			initialized = true;
+			LOGGER.info("Kettle environment initialized in "
+					+ elapsedMillis(start) + " ms " + timings);
+		}
+	}
+
+	/*
+	 * Runs the Kettle initialization. If the plugin registry cache matches the
+	 * plugin folders, Kettle is pointed at an empty plugin folder so that it
+	 * only registers its native plugins, and the cached plugins are
+	 * registered afterwards. Otherwise the folders are scanned as usual and
+	 * the result is saved for the next launch. A cache that fails to register
+	 * leaves only Kettle's native plugins behind, and the folders are scanned
+	 * after all.
+	 */
+	private static void initPlugins() throws KettleException {
+		if (!PluginRegistryCache.isEnabled()) {
+			KettleEnvironment.init();
+			return;
+		}
+
+		PluginRegistryCache cache = new PluginRegistryCache();
+		if (!cache.load()) {
+			KettleEnvironment.init();
+			cache.save();
+			return;
+		}
+
+		String folders = System.getProperty(Const.PLUGIN_BASE_FOLDERS_PROP);
+		File empty = new File(System.getProperty("java.io.tmpdir"),
+				"xbi-empty-plugin-folder");
+		empty.mkdirs();
+		System.setProperty(Const.PLUGIN_BASE_FOLDERS_PROP,
+				empty.getAbsolutePath());
+		try {
+			KettleEnvironment.init();
+		} finally {
+			if (folders == null) {
+				System.clearProperty(Const.PLUGIN_BASE_FOLDERS_PROP);
+			} else {
+				System.setProperty(Const.PLUGIN_BASE_FOLDERS_PROP, folders);
+			}
+		}
+
+		try {
+			cache.register();
+		} catch (KettleException e) {
+			LOGGER.warn("Unable to restore cached plugins, scanning plugin folders: "
+					+ e.getMessage());
+			PluginRegistry.init();
+		}
+	}
+
+	/**
+	 * @return the size of Kettle's central log store, see
+	 *         {@link #PROP_MAX_LOG_LINES}
+	 */
+	public static int maxLogLines() {
+		String lines = System.getProperty(PROP_MAX_LOG_LINES,
+				System.getProperty(Const.KETTLE_MAX_LOG_SIZE_IN_LINES));
+		return Const.toInt(lines, DEFAULT_MAX_LOG_LINES);
+	}
+
+	/**
+	 * @return true once the Kettle environment has been initialized.
+	 */
+	public static boolean isInitialized() {
+		return initialized;
+	}
+
+	/**
+	 * @return the time in milliseconds taken by each initialization phase, in
+	 *         the order they ran. Empty until initialization has completed.
+	 */
+	@Nonnull
+	public static Map<String, Long> getPhaseTimings() {
+		return phaseTimings;
+	}
+
+	// For running in IDEs - check to see if KETTLE_HOME system property is set,
+	// if not set it programmatically.
+	private static void setKettleHome() {
+		if (System.getProperty(PROP_KETTLE_HOME) == null) {
+			try {
+				String propFile = System.getProperty("user.home")
+						+ "/.kettle/kettle.properties";
+				File kettlePropertiesFile = new File(propFile);
+				String kettleHome = kettlePropertiesFile.getParentFile()
+						.getParent();
+				System.setProperty(PROP_KETTLE_HOME, kettleHome);
+			} catch (Exception e) {
+				// The original code just caught URISyntaxException but would
+				// throw NullPointerException
+				// if KETTLE_HOME was not defined in a standalone (non-IDE)
+				// environment. Better to catch
+				// all exceptions and also log the full stack trace.
+
+				LOGGER.warn(
+						PROP_KETTLE_HOME
+								+ " not defined, caught error trying to set programmatically: "
+								+ e, e);
+			}
+		}
+	}
+
+	private static void checkKettleProperties() {
+		File kettlePropertiesFile = new File(Const.getKettleDirectory()
+				+ Const.FILE_SEPARATOR + Const.KETTLE_PROPERTIES);
+
+		if (!kettlePropertiesFile.exists()) {
+			throw new RuntimeException(
+					"Unable to find kettle.properties.  Please run Ant first and set "
+							+ PROP_KETTLE_HOME
+							+ " Java system property to the parent directory of the created .kettle directory.");
+		}
+	}
+
+	private static long elapsedMillis(long startNanos) {
+		return (System.nanoTime() - startNanos) / 1000000L;
+	}
+}
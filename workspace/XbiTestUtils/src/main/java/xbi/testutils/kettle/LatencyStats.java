@@ -0,0 +1,103 @@
+package xbi.testutils.kettle;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Summary statistics over a series of samples (wall times, rates): minimum,
+ * maximum, mean and nearest-rank percentiles.
+ *
+ * @author eniesc200
+ */
+public class LatencyStats {
+
+	private final List<Long> samples = new ArrayList<Long>();
+
+	/**
+	 * @param sample
+	 *            the sample to add
+	 */
+	public synchronized void add(long sample) {
+		samples.add(sample);
+	}
+
+	/**
+	 * @return the number of samples
+	 */
+	public synchronized int getCount() {
+		return samples.size();
+	}
+
+	/**
+	 * @return the smallest sample, 0 if there are none
+	 */
+	public long getMin() {
+		return getPercentile(0);
+	}
+
+	/**
+	 * @return the largest sample, 0 if there are none
+	 */
+	public long getMax() {
+		return getPercentile(100);
+	}
+
+	/**
+	 * @return the mean of the samples, 0 if there are none
+	 */
+	public synchronized double getMean() {
+		if (samples.isEmpty()) {
+			return 0;
+		}
+		long sum = 0;
+		for (Long sample : samples) {
+			sum += sample;
+		}
+		return (double) sum / samples.size();
+	}
+
+	/**
+	 * The nearest-rank percentile: the smallest sample that at least the given
+	 * percentage of samples are less than or equal to.
+	 *
+	 * @param percent
+	 *            0 to 100
+	 * @return the percentile, 0 if there are no samples
+	 */
+	public synchronized long getPercentile(double percent) {
+		if (percent < 0 || percent > 100) {
+			throw new IllegalArgumentException(
+					"Percentile must be between 0 and 100, was " + percent);
+		}
+		if (samples.isEmpty()) {
+			return 0;
+		}
+		List<Long> sorted = new ArrayList<Long>(samples);
+		Collections.sort(sorted);
+		int rank = (int) Math.ceil(percent / 100 * sorted.size());
+		return sorted.get(Math.max(0, rank - 1));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString() {
+		StringBuffer b = new StringBuffer();
+		b.append("n=");
+		b.append(getCount());
+		b.append(" min=");
+		b.append(getMin());
+		b.append(" p50=");
+		b.append(getPercentile(50));
+		b.append(" p95=");
+		b.append(getPercentile(95));
+		b.append(" p99=");
+		b.append(getPercentile(99));
+		b.append(" max=");
+		b.append(getMax());
+		return b.toString();
+	}
+}
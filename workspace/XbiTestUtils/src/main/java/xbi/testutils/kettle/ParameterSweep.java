@@ -0,0 +1,233 @@
+package xbi.testutils.kettle;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+
+import org.pentaho.di.core.CheckResultInterface;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs one Job or Transformation once for each of a list of parameter sets.
+ * Every parameter set gets its own Runner, and with it its own Trans or Job
+ * instance; transformations share the parsed metadata through the
+ * {@link TransMetaCache}. Up to the given number of parameter sets are run at
+ * the same time.
+ *
+ * Usage: <code>new ParameterSweep(ktr, 4).run(parameterSets)</code>, or
+ * {@link Runner#sweep(List, int)}.
+ *
+ * @author eniesc200
+ */
+public class ParameterSweep {
+
+	private static final Logger LOGGER = LoggerFactory
+			.getLogger(ParameterSweep.class);
+
+	private final File xmlFile;
+	private final int maxConcurrency;
+	// -1 leaves the Runners' defaults alone
+	private long stallTimeoutMillis = -1;
+	private long runTimeoutMillis = -1;
+	private final List<RowInjection> injections = new ArrayList<RowInjection>();
+
+	/**
+	 * @param xmlFile
+	 *            the Job or Transformation file
+	 * @param maxConcurrency
+	 *            the maximum number of parameter sets to run at the same time
+	 */
+	public ParameterSweep(File xmlFile, int maxConcurrency) {
+		if (xmlFile == null) {
+			throw new NullPointerException();
+		}
+		if (maxConcurrency < 1) {
+			throw new IllegalArgumentException(
+					"Concurrency must be at least 1, was " + maxConcurrency);
+		}
+		this.xmlFile = xmlFile;
+		this.maxConcurrency = maxConcurrency;
+	}
+
+	/**
+	 * Sets the timeouts of every run, see
+	 * {@link Runner#setTimeouts(long, long)}.
+	 * 
+	 * @param stallTimeoutMillis
+	 *            the stall timeout in milliseconds, 0 for none
+	 * @param runTimeoutMillis
+	 *            the run timeout in milliseconds, 0 for none
+	 */
+	public void setTimeouts(long stallTimeoutMillis, long runTimeoutMillis) {
+		this.stallTimeoutMillis = stallTimeoutMillis;
+		this.runTimeoutMillis = runTimeoutMillis;
+	}
+
+	/**
+	 * Feeds rows straight into a step on every run of a transformation, see
+	 * {@link TransformationRunner#addRowInjection(RowInjection)}.
+	 * 
+	 * @param injection
+	 *            the rows and the step to feed them into
+	 */
+	public void addRowInjection(RowInjection injection) {
+		if (injection == null) {
+			throw new NullPointerException();
+		}
+		injections.add(injection);
+	}
+
+	/**
+	 * Runs the Job or Transformation once per parameter set and waits for all
+	 * runs to finish.
+	 *
+	 * @param parameterSets
+	 *            parameter name to value, one map per run
+	 * @return one result per parameter set, in the same order
+	 */
+	@Nonnull
+	public List<SweepResult> run(List<Map<String, String>> parameterSets) {
+		if (parameterSets == null) {
+			throw new NullPointerException();
+		}
+		if (parameterSets.isEmpty()) {
+			return Collections.emptyList();
+		}
+
+		long start = System.nanoTime();
+		int threads = Math.min(maxConcurrency, parameterSets.size());
+		List<SweepResult> results = new ArrayList<SweepResult>();
+		if (threads == 1) {
+			for (Map<String, String> parameters : parameterSets) {
+				results.add(runOne(parameters));
+			}
+		} else {
+			ExecutorService executor = Executors.newFixedThreadPool(threads,
+					new SweepThreadFactory());
+			List<Future<SweepResult>> futures = new ArrayList<Future<SweepResult>>();
+			for (final Map<String, String> parameters : parameterSets) {
+				futures.add(executor.submit(new Callable<SweepResult>() {
+					public SweepResult call() {
+						return runOne(parameters);
+					}
+				}));
+			}
+			executor.shutdown();
+			try {
+				for (Future<SweepResult> future : futures) {
+					results.add(future.get());
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				executor.shutdownNow();
+				throw new IllegalStateException(
+						"Interrupted waiting for the parameter sweep of "
+								+ xmlFile + " to complete");
+			} catch (ExecutionException e) {
+				// runOne catches everything, so this is a bug
+				throw new IllegalStateException(e.getCause());
+			}
+		}
+
+		int complete = 0;
+		long summed = 0;
+		for (SweepResult result : results) {
+			if (result.isComplete()) {
+				complete++;
+			}
+			summed += result.getSetupMillis() + result.getVerifyMillis()
+					+ result.getRunMillis();
+		}
+		LOGGER.info("Swept " + xmlFile.getName() + " over "
+				+ results.size() + " parameter set(s) on " + threads
+				+ " thread(s): " + complete + " complete. Wall-clock time "
+				+ elapsedMillis(start) + " ms. Summed time " + summed + " ms.");
+		return results;
+	}
+
+	/*
+	 * Sets up, verifies and runs the Job or Transformation with one parameter
+	 * set, on a Runner of its own.
+	 */
+	private SweepResult runOne(Map<String, String> parameters) {
+		long setupMillis = 0;
+		long verifyMillis = 0;
+		long runMillis = 0;
+		Runner runner = null;
+		try {
+			runner = RunnerFactory.createRunner(xmlFile);
+			if (stallTimeoutMillis >= 0) {
+				runner.setTimeouts(stallTimeoutMillis, runTimeoutMillis);
+			}
+			if (runner instanceof TransformationRunner) {
+				for (RowInjection injection : injections) {
+					((TransformationRunner) runner).addRowInjection(injection);
+				}
+			}
+
+			long t = System.nanoTime();
+			runner.setup();
+			if (runner.isReady()) {
+				for (Map.Entry<String, String> entry : parameters.entrySet()) {
+					runner.setParameterValue(entry.getKey(), entry.getValue());
+				}
+			}
+			setupMillis = elapsedMillis(t);
+
+			if (runner.isReady()) {
+				t = System.nanoTime();
+				runner.verify();
+				verifyMillis = elapsedMillis(t);
+
+				t = System.nanoTime();
+				runner.run();
+				runMillis = elapsedMillis(t);
+			}
+			SweepResult result = new SweepResult(parameters, runner.isReady(),
+					runner.isVerified(), runner.isComplete(), setupMillis,
+					verifyMillis, runMillis, runner.getStepRemarks(), null,
+					runner.getRunMetrics());
+			LOGGER.debug(result.toString());
+			return result;
+		} catch (Exception e) {
+			LOGGER.error("Encountered error running " + xmlFile
+					+ " with parameters " + parameters + ": " + e, e);
+			return new SweepResult(parameters, false, false, false,
+					setupMillis, verifyMillis, runMillis,
+					(runner != null) ? runner.getStepRemarks()
+							: Collections.<CheckResultInterface> emptyList(),
+					e.toString(), null);
+		} finally {
+			if (runner != null) {
+				runner.releaseLogs();
+			}
+		}
+	}
+
+	private static long elapsedMillis(long startNanos) {
+		return (System.nanoTime() - startNanos) / 1000000L;
+	}
+
+	/*
+	 * Names the sweep threads so that their log lines can be told apart.
+	 */
+	private static class SweepThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		public Thread newThread(Runnable r) {
+			return new Thread(r, "xbi-sweep-" + count.incrementAndGet());
+		}
+	}
+}
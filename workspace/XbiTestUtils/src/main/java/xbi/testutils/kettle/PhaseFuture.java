@@ -0,0 +1,172 @@
+package xbi.testutils.kettle;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A pending phase of an {@link AsyncRunner}. Besides the usual Future
+ * methods, listeners can be added that run as soon as the phase is done, which
+ * is how the phases of an AsyncRunner are chained.
+ *
+ * Cancelling a phase stops the Job or Transformation (see
+ * {@link Runner#stop()}) and cancels every phase chained after it.
+ *
+ * @author eniesc200
+ */
+public class PhaseFuture extends FutureTask<PhaseResult> {
+
+	private static final Logger LOGGER = LoggerFactory
+			.getLogger(PhaseFuture.class);
+
+	private final String phase;
+	private final Runner runner;
+
+	// run once the phase is done; null afterwards
+	private List<Runnable> listeners = new ArrayList<Runnable>();
+
+	/**
+	 * @param phase
+	 *            the name of the phase
+	 * @param runner
+	 *            the Runner the phase works on, stopped on cancellation
+	 * @param work
+	 *            the phase itself. Returns null on success, otherwise a
+	 *            description of what went wrong.
+	 */
+	PhaseFuture(final String phase, Runner runner, final Callable<String> work) {
+		super(new Callable<PhaseResult>() {
+			public PhaseResult call() {
+				long start = System.nanoTime();
+				try {
+					String error = work.call();
+					return new PhaseResult(phase, error == null,
+							elapsedMillis(start), error, null);
+				} catch (Exception e) {
+					LOGGER.error("Encountered error in phase " + phase + ": "
+							+ e, e);
+					return new PhaseResult(phase, false, elapsedMillis(start),
+							e.toString(), e);
+				}
+			}
+		});
+		this.phase = phase;
+		this.runner = runner;
+	}
+
+	/**
+	 * @return the name of the phase
+	 */
+	@Nonnull
+	public String getPhase() {
+		return phase;
+	}
+
+	/**
+	 * Adds a listener that is run once this phase is done, whether it
+	 * succeeded, failed or was cancelled. If the phase is already done, the
+	 * listener is run right away on the calling thread; otherwise it is run on
+	 * the thread that finishes the phase.
+	 *
+	 * @param listener
+	 *            the listener
+	 */
+	public void addListener(Runnable listener) {
+		synchronized (this) {
+			if (listeners != null) {
+				listeners.add(listener);
+				return;
+			}
+		}
+		listener.run();
+	}
+
+	/**
+	 * @return true if the phase has run and succeeded
+	 */
+	public boolean isSuccess() {
+		if (!isDone() || isCancelled()) {
+			return false;
+		}
+		return getResult().isSuccess();
+	}
+
+	/**
+	 * Waits for the phase to be done. Unlike {@link #get()} this never throws;
+	 * a cancelled or interrupted phase gives a failed result.
+	 *
+	 * @return the result of the phase
+	 */
+	@Nonnull
+	public PhaseResult getResult() {
+		try {
+			return get();
+		} catch (CancellationException e) {
+			return new PhaseResult(phase, false, 0, "cancelled", null);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return new PhaseResult(phase, false, 0, "interrupted", e);
+		} catch (ExecutionException e) {
+			// the callable catches everything, so this is a bug
+			return new PhaseResult(phase, false, 0, e.getCause().toString(),
+					e.getCause());
+		}
+	}
+
+	/**
+	 * Cancels the phase and stops the Job or Transformation if it is running.
+	 * Phases chained after this one are cancelled too.
+	 *
+	 * @see java.util.concurrent.FutureTask#cancel(boolean)
+	 */
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		boolean cancelled = super.cancel(mayInterruptIfRunning);
+		if (cancelled) {
+			LOGGER.info("Cancelled phase " + phase + " of "
+					+ runner.getXmlFile());
+			runner.stop();
+		}
+		return cancelled;
+	}
+
+	/*
+	 * Completes the phase without running it.
+	 */
+	void skip(String reason) {
+		set(new PhaseResult(phase, false, 0, reason, null));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.util.concurrent.FutureTask#done()
+	 */
+	@Override
+	protected void done() {
+		List<Runnable> toRun;
+		synchronized (this) {
+			toRun = listeners;
+			listeners = null;
+		}
+		for (Runnable listener : toRun) {
+			try {
+				listener.run();
+			} catch (RuntimeException e) {
+				LOGGER.error("Listener of phase " + phase + " failed: " + e, e);
+			}
+		}
+	}
+
+	private static long elapsedMillis(long startNanos) {
+		return (System.nanoTime() - startNanos) / 1000000L;
+	}
+}
@@ -0,0 +1,86 @@
+package xbi.testutils.kettle;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * The outcome of one phase (setup, verify, run, ...) of an
+ * {@link AsyncRunner}: whether it succeeded, how long it took and, if it
+ * failed, why.
+ *
+ * @author eniesc200
+ */
+public final class PhaseResult {
+
+	private final String phase;
+	private final boolean success;
+	private final long elapsedMillis;
+	private final String error;
+	private final Throwable cause;
+
+	PhaseResult(String phase, boolean success, long elapsedMillis,
+			String error, Throwable cause) {
+		this.phase = phase;
+		this.success = success;
+		this.elapsedMillis = elapsedMillis;
+		this.error = error;
+		this.cause = cause;
+	}
+
+	/**
+	 * @return the name of the phase
+	 */
+	@Nonnull
+	public String getPhase() {
+		return phase;
+	}
+
+	/**
+	 * @return true if the phase completed successfully
+	 */
+	public boolean isSuccess() {
+		return success;
+	}
+
+	/**
+	 * @return the time the phase took in milliseconds, 0 if it never ran
+	 */
+	public long getElapsedMillis() {
+		return elapsedMillis;
+	}
+
+	/**
+	 * @return why the phase failed or was skipped, null if it succeeded
+	 */
+	@CheckForNull
+	public String getError() {
+		return error;
+	}
+
+	/**
+	 * @return the exception thrown by the phase, if any
+	 */
+	@CheckForNull
+	public Throwable getCause() {
+		return cause;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString() {
+		StringBuffer b = new StringBuffer("PhaseResult: ");
+		b.append(phase);
+		b.append(success ? " succeeded" : " failed");
+		b.append(" in ");
+		b.append(elapsedMillis);
+		b.append(" ms");
+		if (error != null) {
+			b.append("; error=");
+			b.append(error);
+		}
+		return b.toString();
+	}
+}
@@ -0,0 +1,364 @@
+package xbi.testutils.kettle;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.exception.KettlePluginException;
+import org.pentaho.di.core.plugins.KettleLifecyclePluginType;
+import org.pentaho.di.core.plugins.Plugin;
+import org.pentaho.di.core.plugins.PluginInterface;
+import org.pentaho.di.core.plugins.PluginRegistry;
+import org.pentaho.di.core.plugins.PluginTypeInterface;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Saves the plugins Kettle found in its plugin folders to a local cache file,
+ * so that later launches can skip the folder scan.
+ *
+ * The cache is keyed by a fingerprint of every jar and plugin.xml in the
+ * plugin folders and wildcard class path entries (path, size and
+ * modification time), the Kettle version and the class path. A cache whose
+ * fingerprint does not match is never used.
+ *
+ * Native plugins (those listed in the kettle-*.xml files on the class path)
+ * are cheap to register and are left to Kettle.
+ *
+ * Set the system property {@value #PROP_CACHE_ENABLED} to false to turn the
+ * cache off, and {@value #PROP_CACHE_FILE} to move the cache file.
+ *
+ * @author eniesc200
+ */
+final class PluginRegistryCache {
+
+	private static final Logger LOGGER = LoggerFactory
+			.getLogger(PluginRegistryCache.class);
+
+	/** System property to turn the cache on (default) or off. */
+	static final String PROP_CACHE_ENABLED = "XBI_PLUGIN_CACHE";
+
+	/** System property naming the cache file. */
+	static final String PROP_CACHE_FILE = "XBI_PLUGIN_CACHE_FILE";
+
+	private static final String CACHE_FILE_NAME = "xbi-plugin-registry.cache";
+
+	private final File cacheFile;
+	private final String fingerprint;
+
+	// plugins restored from the cache, ready to be registered
+	private List<PluginInterface> restored;
+
+	PluginRegistryCache() {
+		String location = System.getProperty(PROP_CACHE_FILE);
+		cacheFile = (location != null) ? new File(location) : new File(
+				Const.getKettleDirectory(), CACHE_FILE_NAME);
+		fingerprint = fingerprint(pluginFolders());
+	}
+
+	/**
+	 * @return false if the cache has been turned off.
+	 */
+	static boolean isEnabled() {
+		return !"false".equalsIgnoreCase(System.getProperty(
+				PROP_CACHE_ENABLED, "true"));
+	}
+
+	/**
+	 * Reads the cache file and resolves and checks every cached plugin, so
+	 * that a cache that cannot be restored completely is not used at all.
+	 * Nothing is registered yet.
+	 *
+	 * @return true if the cache file matches the current plugin folders and
+	 *         all of its plugins could be resolved.
+	 */
+	boolean load() {
+		if (!cacheFile.isFile()) {
+			return false;
+		}
+		ObjectInputStream in = null;
+		try {
+			in = new ObjectInputStream(new BufferedInputStream(
+					new FileInputStream(cacheFile)));
+			String cachedFingerprint = (String) in.readObject();
+			if (!fingerprint.equals(cachedFingerprint)) {
+				LOGGER.info("Plugin folders have changed, ignoring "
+						+ cacheFile.getAbsolutePath());
+				return false;
+			}
+			@SuppressWarnings("unchecked")
+			List<Entry> entries = (List<Entry>) in.readObject();
+			List<PluginInterface> plugins = new ArrayList<PluginInterface>();
+			for (Entry entry : entries) {
+				plugins.add(entry.toPlugin());
+			}
+			restored = plugins;
+			return true;
+		} catch (Exception e) {
+			LOGGER.warn("Unable to read plugin registry cache "
+					+ cacheFile.getAbsolutePath() + ": " + e);
+		} catch (LinkageError e) {
+			LOGGER.warn("Unable to restore plugins from "
+					+ cacheFile.getAbsolutePath() + ": " + e);
+		} finally {
+			close(in);
+		}
+		return false;
+	}
+
+	/**
+	 * Registers the plugins read by {@link #load()}. Call this after Kettle
+	 * has been initialized with an empty plugin folder list. If a plugin
+	 * cannot be registered, the ones registered before it are removed again,
+	 * leaving the registry as Kettle left it.
+	 *
+	 * @throws KettlePluginException
+	 *             if a plugin cannot be registered
+	 */
+	void register() throws KettlePluginException {
+		PluginRegistry registry = PluginRegistry.getInstance();
+		List<PluginInterface> registered = new ArrayList<PluginInterface>();
+		boolean done = false;
+		try {
+			for (PluginInterface plugin : restored) {
+				registry.registerPlugin(plugin.getPluginType(), plugin);
+				registered.add(plugin);
+			}
+			done = true;
+		} finally {
+			if (!done) {
+				for (PluginInterface plugin : registered) {
+					registry.removePlugin(plugin.getPluginType(), plugin);
+				}
+			}
+		}
+		LOGGER.info("Restored " + restored.size() + " plugins from "
+				+ cacheFile.getAbsolutePath());
+	}
+
+	/**
+	 * Writes the non-native plugins currently in the registry to the cache
+	 * file. Failures are logged, the cache is only an optimization.
+	 */
+	void save() {
+		PluginRegistry registry = PluginRegistry.getInstance();
+		List<Entry> entries = new ArrayList<Entry>();
+		for (Class<? extends PluginTypeInterface> type : registry
+				.getPluginTypes()) {
+			for (PluginInterface plugin : registry.getPlugins(type)) {
+				if (plugin.isNativePlugin()) {
+					continue;
+				}
+				if (KettleLifecyclePluginType.class.equals(type)) {
+					// lifecycle plugins must be seen by Kettle during init
+					LOGGER.info("Not caching the plugin registry: found environment lifecycle plugin "
+							+ plugin.getName());
+					return;
+				}
+				entries.add(new Entry(plugin));
+			}
+		}
+
+		File tmp = new File(cacheFile.getAbsolutePath() + ".tmp");
+		ObjectOutputStream out = null;
+		try {
+			out = new ObjectOutputStream(new BufferedOutputStream(
+					new FileOutputStream(tmp)));
+			out.writeObject(fingerprint);
+			out.writeObject(entries);
+			out.close();
+			out = null;
+			// replace in one step so a concurrent launch never reads half a file
+			if (!tmp.renameTo(cacheFile)) {
+				cacheFile.delete();
+				if (!tmp.renameTo(cacheFile)) {
+					throw new IOException("Unable to rename " + tmp);
+				}
+			}
+			LOGGER.info("Saved " + entries.size() + " plugins to "
+					+ cacheFile.getAbsolutePath());
+		} catch (IOException e) {
+			LOGGER.warn("Unable to save plugin registry cache "
+					+ cacheFile.getAbsolutePath() + ": " + e);
+			tmp.delete();
+		} finally {
+			close(out);
+		}
+	}
+
+	/*
+	 * The plugin base folders Kettle scans, as configured or by default.
+	 */
+	static List<File> pluginFolders() {
+		String folders = System.getProperty(Const.PLUGIN_BASE_FOLDERS_PROP);
+		if (folders == null) {
+			folders = Const.DEFAULT_PLUGIN_BASE_FOLDERS;
+		}
+		List<File> result = new ArrayList<File>();
+		for (String folder : folders.split(",")) {
+			if (folder.trim().length() > 0) {
+				result.add(new File(folder.trim()).getAbsoluteFile());
+			}
+		}
+		return result;
+	}
+
+	/*
+	 * Hashes the jars and plugin.xml files under the folders, the Kettle
+	 * version and the class path, including the jars behind wildcard entries.
+	 */
+	static String fingerprint(List<File> folders) {
+		List<String> items = new ArrayList<String>();
+		for (File folder : folders) {
+			collect(folder, items);
+		}
+		items.add("version=" + Const.VERSION);
+		String classPath = System.getProperty("java.class.path", "");
+		items.add("classpath=" + classPath);
+		// wildcard entries such as $KETTLE_INSTALL/lib/* do not change when
+		// the jars in them do, so look at the jars themselves
+		for (String entry : classPath.split(File.pathSeparator)) {
+			if (entry.endsWith("*")) {
+				collect(new File(entry.substring(0, entry.length() - 1)),
+						items);
+			}
+		}
+		MessageDigest digest = ContentHash.digest("SHA-1");
+		try {
+			for (String item : items) {
+				digest.update(item.getBytes("UTF-8"));
+				digest.update((byte) '\n');
+			}
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+		return ContentHash.toHex(digest.digest());
+	}
+
+	private static void collect(File file, List<String> items) {
+		if (file.isDirectory()) {
+			File[] children = file.listFiles();
+			if (children == null) {
+				return;
+			}
+			Arrays.sort(children);
+			for (File child : children) {
+				collect(child, items);
+			}
+		} else {
+			String name = file.getName();
+			if (name.endsWith(".jar") || name.equals("plugin.xml")) {
+				items.add(file.getAbsolutePath() + "|" + file.length() + "|"
+						+ file.lastModified());
+			}
+		}
+	}
+
+	private static void close(Closeable c) {
+		if (c != null) {
+			try {
+				c.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+
+	/*
+	 * The serializable form of a plugin, with every field Kettle reads from a
+	 * plugin.xml or annotation. Classes are kept by name and resolved again on
+	 * restore.
+	 */
+	static class Entry implements Serializable {
+		private static final long serialVersionUID = 2L;
+
+		private final String pluginType;
+		private final String[] ids;
+		private final String mainType;
+		private final String category;
+		private final String name;
+		private final String description;
+		private final String imageFile;
+		private final boolean separateClassLoaderNeeded;
+		private final HashMap<String, String> classMap = new HashMap<String, String>();
+		private final ArrayList<String> libraries;
+		private final String errorHelpFile;
+		private final String pluginDirectory;
+		private final String classLoaderGroup;
+		private final String documentationUrl;
+		private final String casesUrl;
+		private final String forumUrl;
+
+		Entry(PluginInterface plugin) {
+			pluginType = plugin.getPluginType().getName();
+			ids = plugin.getIds();
+			mainType = (plugin.getMainType() != null) ? plugin.getMainType()
+					.getName() : null;
+			category = plugin.getCategory();
+			name = plugin.getName();
+			description = plugin.getDescription();
+			imageFile = plugin.getImageFile();
+			separateClassLoaderNeeded = plugin.isSeparateClassLoaderNeeded();
+			for (Map.Entry<Class<?>, String> e : plugin.getClassMap()
+					.entrySet()) {
+				classMap.put(e.getKey().getName(), e.getValue());
+			}
+			libraries = new ArrayList<String>(plugin.getLibraries());
+			errorHelpFile = plugin.getErrorHelpFile();
+			pluginDirectory = (plugin.getPluginDirectory() != null) ? plugin
+					.getPluginDirectory().toExternalForm() : null;
+			classLoaderGroup = plugin.getClassLoaderGroup();
+			documentationUrl = plugin.getDocumentationUrl();
+			casesUrl = plugin.getCasesUrl();
+			forumUrl = plugin.getForumUrl();
+		}
+
+		/*
+		 * Resolves the classes and checks what Kettle's registerPlugin needs.
+		 */
+		PluginInterface toPlugin() throws ClassNotFoundException,
+				IOException {
+			if (ids == null || ids.length == 0 || ids[0] == null) {
+				throw new IOException("Plugin " + name + " has no id");
+			}
+			ClassLoader loader = PluginRegistryCache.class.getClassLoader();
+			Class<? extends PluginTypeInterface> type = Class.forName(
+					pluginType, false, loader).asSubclass(
+					PluginTypeInterface.class);
+			Class<?> main = (mainType != null) ? Class.forName(mainType,
+					false, loader) : null;
+			Map<Class<?>, String> classes = new HashMap<Class<?>, String>();
+			for (Map.Entry<String, String> e : classMap.entrySet()) {
+				classes.put(Class.forName(e.getKey(), false, loader),
+						e.getValue());
+			}
+			URL folder = (pluginDirectory != null) ? new URL(pluginDirectory)
+					: null;
+			Plugin plugin = new Plugin(ids, type, main, category, name,
+					description, imageFile, separateClassLoaderNeeded, false,
+					classes, new ArrayList<String>(libraries), errorHelpFile,
+					folder);
+			plugin.setClassLoaderGroup(classLoaderGroup);
+			plugin.setDocumentationUrl(documentationUrl);
+			plugin.setCasesUrl(casesUrl);
+			plugin.setForumUrl(forumUrl);
+			return plugin;
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package xbi.testutils.kettle;
+
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleStepException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.step.RowAdapter;
+import org.pentaho.di.trans.step.StepInterface;
+import org.pentaho.di.trans.step.StepMeta;
+import org.pentaho.di.trans.steps.dummytrans.DummyTransMeta;
+
+/**
+ * Captures the rows sent to an output step instead of letting the step write
+ * them, e.g. to the database. On setup the step is turned into a Dummy step;
+ * on run every row it reads is kept in {@link CapturedRows}. The hops of the
+ * step are kept, so the steps before it see no difference.
+ *
+ * @author eniesc200
+ */
+public final class RowCapture {
+
+	/** The plugin id of Kettle's Dummy step. */
+	static final String DUMMY_ID = "Dummy";
+
+	private final String stepName;
+
+	/**
+	 * @param stepName
+	 *            the name of the step to replace
+	 */
+	public RowCapture(String stepName) {
+		if (stepName == null) {
+			throw new NullPointerException();
+		}
+		this.stepName = stepName;
+	}
+
+	/**
+	 * @return the name of the step the rows are captured from
+	 */
+	@Nonnull
+	public String getStepName() {
+		return stepName;
+	}
+
+	/**
+	 * Turns the step into a Dummy step. The number of copies is kept.
+	 *
+	 * @param transMeta
+	 *            the transformation metadata to change
+	 * @throws IllegalStateException
+	 *             if the step does not exist
+	 */
+	void apply(TransMeta transMeta) throws IllegalStateException {
+		StepMeta step = transMeta.findStep(stepName);
+		if (step == null) {
+			throw new IllegalStateException("No step named " + stepName
+					+ " to capture rows from in " + transMeta.getName());
+		}
+		step.setStepMetaInterface(new DummyTransMeta());
+		step.setStepID(DUMMY_ID);
+	}
+
+	/**
+	 * Listens to the rows read by every copy of the step.
+	 *
+	 * @param trans
+	 *            the transformation, prepared but not started
+	 * @return the rows, filled in as the transformation runs
+	 */
+	CapturedRows attach(Trans trans) {
+		final CapturedRows rows = new CapturedRows(stepName);
+		List<StepInterface> copies = trans.findStepInterfaces(stepName);
+		if (copies != null) {
+			for (StepInterface copy : copies) {
+				copy.addRowListener(new RowAdapter() {
+					@Override
+					public void rowReadEvent(RowMetaInterface rowMeta,
+							Object[] row) throws KettleStepException {
+						try {
+							rows.add(rowMeta, row);
+						} catch (KettleException e) {
+							throw new KettleStepException("Unable to capture a "
+									+ "row read by " + stepName, e);
+						}
+					}
+				});
+			}
+		}
+		return rows;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString() {
+		return "RowCapture: " + stepName;
+	}
+}
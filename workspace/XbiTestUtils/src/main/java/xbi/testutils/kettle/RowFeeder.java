@@ -0,0 +1,64 @@
+package xbi.testutils.kettle;
+
+import java.util.concurrent.TimeUnit;
+
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.trans.RowProducer;
+import org.pentaho.di.trans.Trans;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Puts the rows of a {@link RowInjection} into a running transformation
+ * through a row producer, then signals the end of the rows. Gives up when the
+ * transformation is stopped while the rows are still going in.
+ *
+ * @author eniesc200
+ */
+class RowFeeder implements Runnable {
+
+	private static final Logger LOGGER = LoggerFactory
+			.getLogger(RowFeeder.class);
+
+	/* how long to wait for room in the row set before checking on the trans */
+	private static final long PUT_WAIT_MILLIS = 100;
+
+	private final Trans trans;
+	private final RowProducer producer;
+	private final RowInjection injection;
+
+	RowFeeder(Trans trans, RowProducer producer, RowInjection injection) {
+		this.trans = trans;
+		this.producer = producer;
+		this.injection = injection;
+	}
+
+	String getStepName() {
+		return injection.getStepName();
+	}
+
+	public void run() {
+		RowMetaInterface rowMeta = injection.getRowMeta();
+		int fed = 0;
+		try {
+			for (Object[] row : injection.getRows()) {
+				// steps may change the rows they are given
+				Object[] copy = row.clone();
+				while (!producer.putRowWait(rowMeta, copy, PUT_WAIT_MILLIS,
+						TimeUnit.MILLISECONDS)) {
+					if (trans.isStopped() || trans.isFinished()) {
+						LOGGER.warn("Transformation ended after " + fed
+								+ " of " + injection.getRows().size()
+								+ " row(s) were injected into "
+								+ getStepName());
+						return;
+					}
+				}
+				fed++;
+			}
+			LOGGER.debug("Injected " + fed + " row(s) into " + getStepName());
+		} finally {
+			producer.finished();
+		}
+	}
+}
@@ -0,0 +1,127 @@
+package xbi.testutils.kettle;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.step.StepMeta;
+import org.pentaho.di.trans.steps.injector.InjectorMeta;
+
+/**
+ * Rows to feed straight into a step of a transformation instead of letting
+ * the step read them, e.g. from the database. On setup the step is turned
+ * into an Injector step with the row layout of the rows; on run the rows are
+ * put into it from memory. The hops of the step are kept, so the steps after
+ * it see no difference.
+ *
+ * @author eniesc200
+ */
+public final class RowInjection {
+
+	/** The plugin id of Kettle's Injector step. */
+	static final String INJECTOR_ID = "Injector";
+
+	private final String stepName;
+	private final RowMetaInterface rowMeta;
+	private final List<Object[]> rows;
+
+	/**
+	 * @param stepName
+	 *            the name of the step to replace
+	 * @param rowMeta
+	 *            the layout of the rows
+	 * @param rows
+	 *            the rows to feed into the step
+	 */
+	public RowInjection(String stepName, RowMetaInterface rowMeta,
+			List<Object[]> rows) {
+		if (stepName == null || rowMeta == null || rows == null) {
+			throw new NullPointerException();
+		}
+		this.stepName = stepName;
+		this.rowMeta = rowMeta;
+		this.rows = Collections.unmodifiableList(new ArrayList<Object[]>(rows));
+	}
+
+	/**
+	 * @return the name of the step the rows are fed into
+	 */
+	@Nonnull
+	public String getStepName() {
+		return stepName;
+	}
+
+	/**
+	 * @return the layout of the rows
+	 */
+	@Nonnull
+	public RowMetaInterface getRowMeta() {
+		return rowMeta;
+	}
+
+	/**
+	 * @return the rows, shared between runs: copy a row before changing it
+	 */
+	@Nonnull
+	public List<Object[]> getRows() {
+		return rows;
+	}
+
+	/**
+	 * Turns the step into a single copy Injector step declaring the fields of
+	 * the rows.
+	 *
+	 * @param transMeta
+	 *            the transformation metadata to change
+	 * @throws IllegalStateException
+	 *             if the step does not exist
+	 */
+	void apply(TransMeta transMeta) throws IllegalStateException {
+		StepMeta step = transMeta.findStep(stepName);
+		if (step == null) {
+			throw new IllegalStateException("No step named " + stepName
+					+ " to inject rows into in " + transMeta.getName());
+		}
+		int fields = rowMeta.size();
+		String[] names = new String[fields];
+		int[] types = new int[fields];
+		int[] lengths = new int[fields];
+		int[] precisions = new int[fields];
+		for (int i = 0; i < fields; i++) {
+			ValueMetaInterface value = rowMeta.getValueMeta(i);
+			names[i] = value.getName();
+			types[i] = value.getType();
+			lengths[i] = value.getLength();
+			precisions[i] = value.getPrecision();
+		}
+		InjectorMeta injector = new InjectorMeta();
+		injector.setFieldname(names);
+		injector.setType(types);
+		injector.setLength(lengths);
+		injector.setPrecision(precisions);
+
+		step.setStepMetaInterface(injector);
+		step.setStepID(INJECTOR_ID);
+		step.setCopies(1);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString() {
+		StringBuffer b = new StringBuffer("RowInjection: ");
+		b.append(rows.size());
+		b.append(" row(s) into ");
+		b.append(stepName);
+		b.append(" ");
+		b.append(rowMeta.toStringMeta());
+		return b.toString();
+	}
+}
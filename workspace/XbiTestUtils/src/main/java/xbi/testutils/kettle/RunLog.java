@@ -0,0 +1,110 @@
+package xbi.testutils.kettle;
+
+import java.io.File;
+import java.util.List;
+
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.logging.FileLoggingEventListener;
+import org.pentaho.di.core.logging.KettleLogStore;
+import org.pentaho.di.core.logging.LoggingRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Kettle log of a single Job or Transformation: its log channel and those
+ * of its steps or entries. Kettle keeps the lines of every channel in its
+ * central log store and every channel in its logging registry for the life of
+ * the JVM; {@link #discard()} removes them once the Job or Transformation is
+ * no longer needed, so that a long-lived JVM does not fill up with them.
+ *
+ * The lines can also be written to a file while it runs.
+ *
+ * @author eniesc200
+ */
+final class RunLog {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(RunLog.class);
+
+	private final String logChannelId;
+	private final String name;
+
+	private FileLoggingEventListener fileListener;
+
+	/**
+	 * @param logChannelId
+	 *            the log channel of the Job or Transformation
+	 * @param name
+	 *            the name to log with, e.g. the file name
+	 */
+	RunLog(String logChannelId, String name) {
+		this.logChannelId = logChannelId;
+		this.name = name;
+	}
+
+	/**
+	 * Starts appending the lines of the channel and its children to a file.
+	 * Failing to do so is logged, not thrown: the run goes ahead without it.
+	 *
+	 * @param file
+	 *            the file to append to
+	 */
+	synchronized void startFile(File file) {
+		if (fileListener != null) {
+			return;
+		}
+		File dir = file.getAbsoluteFile().getParentFile();
+		if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+			LOGGER.warn("Unable to create log directory "
+					+ dir.getAbsolutePath());
+			return;
+		}
+		try {
+			fileListener = new FileLoggingEventListener(logChannelId,
+					file.getAbsolutePath(), true);
+			KettleLogStore.getAppender().addLoggingEventListener(fileListener);
+		} catch (KettleException e) {
+			fileListener = null;
+			LOGGER.warn("Unable to write the log of " + name + " to "
+					+ file.getAbsolutePath() + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Stops writing to the file, if that was started, and closes it.
+	 */
+	synchronized void stopFile() {
+		if (fileListener == null) {
+			return;
+		}
+		KettleLogStore.getAppender().removeLoggingEventListener(fileListener);
+		try {
+			fileListener.close();
+		} catch (KettleException e) {
+			LOGGER.warn("Unable to close the log file of " + name + ": "
+					+ e.getMessage());
+		}
+		fileListener = null;
+	}
+
+	/**
+	 * Stops writing to the file and removes the lines and the channels from
+	 * Kettle's log store and logging registry.
+	 */
+	synchronized void discard() {
+		stopFile();
+		KettleLogStore.discardLines(logChannelId, false);
+		LoggingRegistry registry = LoggingRegistry.getInstance();
+		// the registry synchronizes on itself
+		synchronized (registry) {
+			List<String> channels = registry
+					.getLogChannelChildren(logChannelId);
+			if (channels != null) {
+				for (String channel : channels) {
+					registry.getMap().remove(channel);
+				}
+			}
+			registry.getMap().remove(logChannelId);
+		}
+		LOGGER.debug("Discarded the log of " + name);
+	}
+}
@@ -0,0 +1,393 @@
+package xbi.testutils.kettle;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.step.StepMetaDataCombi;
+import org.pentaho.di.trans.step.StepStatus;
+
+/**
+ * Throughput and timing figures of one finished transformation run: the row
+ * counters, duration and speed of every step copy, the run's wall time and
+ * the heap in use before and after the run.
+ *
+ * @author eniesc200
+ */
+public final class RunMetrics {
+
+	/**
+	 * The figures of one step copy.
+	 */
+	public static final class StepMetrics {
+		private final String stepName;
+		private final int copy;
+		private final long linesRead;
+		private final long linesWritten;
+		private final long linesInput;
+		private final long linesOutput;
+		private final long linesUpdated;
+		private final long linesRejected;
+		private final long errors;
+		private final long durationMillis;
+
+		public StepMetrics(String stepName, int copy, long linesRead,
+				long linesWritten, long linesInput, long linesOutput,
+				long linesUpdated, long linesRejected, long errors,
+				long durationMillis) {
+			this.stepName = stepName;
+			this.copy = copy;
+			this.linesRead = linesRead;
+			this.linesWritten = linesWritten;
+			this.linesInput = linesInput;
+			this.linesOutput = linesOutput;
+			this.linesUpdated = linesUpdated;
+			this.linesRejected = linesRejected;
+			this.errors = errors;
+			this.durationMillis = durationMillis;
+		}
+
+		public String getStepName() {
+			return stepName;
+		}
+
+		public int getCopy() {
+			return copy;
+		}
+
+		public long getLinesRead() {
+			return linesRead;
+		}
+
+		public long getLinesWritten() {
+			return linesWritten;
+		}
+
+		public long getLinesInput() {
+			return linesInput;
+		}
+
+		public long getLinesOutput() {
+			return linesOutput;
+		}
+
+		public long getLinesUpdated() {
+			return linesUpdated;
+		}
+
+		public long getLinesRejected() {
+			return linesRejected;
+		}
+
+		public long getErrors() {
+			return errors;
+		}
+
+		public long getDurationMillis() {
+			return durationMillis;
+		}
+
+		/**
+		 * @return the rows the step handled: the larger of the rows coming in
+		 *         (read from other steps or input) and going out (written to
+		 *         other steps or output), like Kettle's own speed figure
+		 */
+		public long getRows() {
+			return Math.max(linesRead + linesInput, linesWritten + linesOutput);
+		}
+
+		/**
+		 * @return rows handled per second, 0 if the step took no measurable
+		 *         time
+		 */
+		public double getRowsPerSecond() {
+			return rate(getRows(), durationMillis);
+		}
+	}
+
+	private final String name;
+	private final long startTime;
+	private final long durationMillis;
+	private final long heapUsedBefore;
+	private final long heapUsedAfter;
+	private final List<StepMetrics> steps;
+
+	/**
+	 * @param name
+	 *            the name of the transformation
+	 * @param startTime
+	 *            when the run started, in milliseconds since the epoch
+	 * @param durationMillis
+	 *            the wall time of the run
+	 * @param heapUsedBefore
+	 *            heap in use before the run, in bytes
+	 * @param heapUsedAfter
+	 *            heap in use after the run, in bytes
+	 * @param steps
+	 *            the figures of every step copy
+	 */
+	public RunMetrics(String name, long startTime, long durationMillis,
+			long heapUsedBefore, long heapUsedAfter, List<StepMetrics> steps) {
+		this.name = name;
+		this.startTime = startTime;
+		this.durationMillis = durationMillis;
+		this.heapUsedBefore = heapUsedBefore;
+		this.heapUsedAfter = heapUsedAfter;
+		this.steps = Collections.unmodifiableList(new ArrayList<StepMetrics>(
+				steps));
+	}
+
+	/**
+	 * Reads the figures of every step copy of a finished transformation.
+	 */
+	static RunMetrics of(Trans trans, String name, long startTime,
+			long durationMillis, long heapUsedBefore, long heapUsedAfter) {
+		List<StepMetrics> steps = new ArrayList<StepMetrics>();
+		List<StepMetaDataCombi> combis = trans.getSteps();
+		if (combis != null) {
+			for (StepMetaDataCombi combi : combis) {
+				StepStatus status = new StepStatus(combi.step);
+				steps.add(new StepMetrics(combi.stepname, combi.copy, status
+						.getLinesRead(), status.getLinesWritten(), status
+						.getLinesInput(), status.getLinesOutput(), status
+						.getLinesUpdated(), status.getLinesRejected(), status
+						.getErrors(), Math.round(status.getSeconds() * 1000)));
+			}
+		}
+		return new RunMetrics(name, startTime, durationMillis, heapUsedBefore,
+				heapUsedAfter, steps);
+	}
+
+	/**
+	 * @return the heap in use right now, in bytes
+	 */
+	static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getStartTime() {
+		return startTime;
+	}
+
+	public long getDurationMillis() {
+		return durationMillis;
+	}
+
+	public long getHeapUsedBefore() {
+		return heapUsedBefore;
+	}
+
+	public long getHeapUsedAfter() {
+		return heapUsedAfter;
+	}
+
+	/**
+	 * @return the growth of the heap in use over the run, in bytes. Can be
+	 *         negative if garbage was collected.
+	 */
+	public long getHeapGrowth() {
+		return heapUsedAfter - heapUsedBefore;
+	}
+
+	/**
+	 * @return the errors of all step copies
+	 */
+	public long getErrors() {
+		long errors = 0;
+		for (StepMetrics step : steps) {
+			errors += step.getErrors();
+		}
+		return errors;
+	}
+
+	/**
+	 * @return the figures of every step copy, in step order
+	 */
+	@Nonnull
+	public List<StepMetrics> getSteps() {
+		return steps;
+	}
+
+	/**
+	 * @return the names of the steps, each once, in step order
+	 */
+	@Nonnull
+	public List<String> getStepNames() {
+		List<String> names = new ArrayList<String>();
+		for (StepMetrics step : steps) {
+			if (!names.contains(step.getStepName())) {
+				names.add(step.getStepName());
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * Rows per second of a step over all its copies: the rows of all copies
+	 * divided by the duration of the slowest copy.
+	 *
+	 * @param stepName
+	 *            the step name
+	 * @return rows per second, 0 if the step is unknown or took no measurable
+	 *         time
+	 */
+	public double getRowsPerSecond(String stepName) {
+		long rows = 0;
+		long duration = 0;
+		for (StepMetrics step : steps) {
+			if (step.getStepName().equals(stepName)) {
+				rows += step.getRows();
+				duration = Math.max(duration, step.getDurationMillis());
+			}
+		}
+		return rate(rows, duration);
+	}
+
+	/**
+	 * Rows per second of the whole run: the rows of the step that handled the
+	 * most, over all its copies, per second of the run's wall time.
+	 *
+	 * @return rows per second, 0 if the run took no measurable time
+	 */
+	public double getRunRowsPerSecond() {
+		long rows = 0;
+		for (String name : getStepNames()) {
+			long stepRows = 0;
+			for (StepMetrics step : steps) {
+				if (step.getStepName().equals(name)) {
+					stepRows += step.getRows();
+				}
+			}
+			rows = Math.max(rows, stepRows);
+		}
+		return rate(rows, durationMillis);
+	}
+
+	/**
+	 * Writes the metrics as a JSON object.
+	 *
+	 * @param out
+	 *            where to write, not closed
+	 * @throws IOException
+	 *             if writing fails
+	 */
+	public void writeJson(Writer out) throws IOException {
+		out.write("{\n");
+		out.write("  \"name\": " + quote(name) + ",\n");
+		out.write("  \"startTime\": " + startTime + ",\n");
+		out.write("  \"durationMillis\": " + durationMillis + ",\n");
+		out.write("  \"heapUsedBefore\": " + heapUsedBefore + ",\n");
+		out.write("  \"heapUsedAfter\": " + heapUsedAfter + ",\n");
+		out.write("  \"errors\": " + getErrors() + ",\n");
+		out.write("  \"steps\": [");
+		for (int i = 0; i < steps.size(); i++) {
+			StepMetrics step = steps.get(i);
+			out.write((i == 0) ? "\n" : ",\n");
+			out.write("    {\"step\": " + quote(step.getStepName())
+					+ ", \"copy\": " + step.getCopy() + ", \"read\": "
+					+ step.getLinesRead() + ", \"written\": "
+					+ step.getLinesWritten() + ", \"input\": "
+					+ step.getLinesInput() + ", \"output\": "
+					+ step.getLinesOutput() + ", \"updated\": "
+					+ step.getLinesUpdated() + ", \"rejected\": "
+					+ step.getLinesRejected() + ", \"errors\": "
+					+ step.getErrors() + ", \"durationMillis\": "
+					+ step.getDurationMillis() + ", \"rowsPerSecond\": "
+					+ format(step.getRowsPerSecond()) + "}");
+		}
+		out.write(steps.isEmpty() ? "]\n" : "\n  ]\n");
+		out.write("}\n");
+	}
+
+	/**
+	 * Writes the metrics as CSV, one line per step copy after a header line.
+	 *
+	 * @param out
+	 *            where to write, not closed
+	 * @throws IOException
+	 *             if writing fails
+	 */
+	public void writeCsv(Writer out) throws IOException {
+		out.write("step,copy,read,written,input,output,updated,rejected,errors,durationMillis,rowsPerSecond\n");
+		for (StepMetrics step : steps) {
+			out.write(csv(step.getStepName()) + "," + step.getCopy() + ","
+					+ step.getLinesRead() + "," + step.getLinesWritten() + ","
+					+ step.getLinesInput() + "," + step.getLinesOutput() + ","
+					+ step.getLinesUpdated() + "," + step.getLinesRejected()
+					+ "," + step.getErrors() + "," + step.getDurationMillis()
+					+ "," + format(step.getRowsPerSecond()) + "\n");
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString() {
+		StringBuffer b = new StringBuffer("RunMetrics: ");
+		b.append(name);
+		b.append(" in ");
+		b.append(durationMillis);
+		b.append(" ms, heap growth ");
+		b.append(getHeapGrowth());
+		b.append(" bytes");
+		for (StepMetrics step : steps) {
+			b.append("; ");
+			b.append(step.getStepName());
+			b.append(".");
+			b.append(step.getCopy());
+			b.append("=");
+			b.append(format(step.getRowsPerSecond()));
+			b.append(" rows/s");
+		}
+		return b.toString();
+	}
+
+	private static double rate(long rows, long millis) {
+		return (millis > 0) ? rows * 1000.0 / millis : 0;
+	}
+
+	private static String format(double d) {
+		return String.valueOf(Math.round(d * 10) / 10.0);
+	}
+
+	static String quote(String s) {
+		StringBuffer b = new StringBuffer("\"");
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				b.append('\\');
+				b.append(c);
+			} else if (c < 0x20) {
+				String hex = Integer.toHexString(c);
+				b.append("\\u");
+				for (int p = hex.length(); p < 4; p++) {
+					b.append('0');
+				}
+				b.append(hex);
+			} else {
+				b.append(c);
+			}
+		}
+		b.append('"');
+		return b.toString();
+	}
+
+	private static String csv(String s) {
+		if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0) {
+			return s;
+		}
+		return "\"" + s.replace("\"", "\"\"") + "\"";
+	}
+}
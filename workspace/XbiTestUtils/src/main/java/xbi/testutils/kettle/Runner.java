@@ -12,26 +12,35 @@ import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 
 import org.pentaho.di.core.CheckResultInterface;
-import org.pentaho.di.core.Const;
-import org.pentaho.di.core.KettleEnvironment;
-import org.pentaho.di.core.exception.KettleException;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 public abstract class Runner {
 
-	private static final Logger LOGGER = LoggerFactory.getLogger(Runner.class);
-
 	/**
 	 * The name of the system property identifying the Kettle home directory.
 	 */
-	public static final String PROP_KETTLE_HOME = "KETTLE_HOME";
+	public static final String PROP_KETTLE_HOME = KettleBootstrap.PROP_KETTLE_HOME;
+
+	/**
+	 * System property with the default stall timeout in milliseconds, see
+	 * {@link #setTimeouts(long, long)}.
+	 */
+	public static final String PROP_STALL_TIMEOUT = "XBI_STALL_TIMEOUT_MS";
+
+	/**
+	 * System property with the default run timeout in milliseconds, see
+	 * {@link #setTimeouts(long, long)}.
+	 */
+	public static final String PROP_RUN_TIMEOUT = "XBI_RUN_TIMEOUT_MS";
 
 	// Instance vars
 	private File xmlFile;
 	private final List<CheckResultInterface> stepRemarks = new ArrayList<CheckResultInterface>();
 	private Map<Status, Boolean> stateMap = new HashMap<Status, Boolean>(
 			Status.values().length);
+	private long stallTimeoutMillis = Long.getLong(PROP_STALL_TIMEOUT, 0);
+	private long runTimeoutMillis = Long.getLong(PROP_RUN_TIMEOUT, 0);
+	private volatile RunMetrics runMetrics;
+	private File logFile;
 
 	/**
 	 * READY indicates that the Job or Transformation has been setup and the
@@ -44,55 +53,9 @@ public abstract class Runner {
 	}
 
 	public Runner(File xmlFile) {
-		setKettleHome();
+		KettleBootstrap.init();
 		setXmlFile(xmlFile);
-		setState(Status.READY, false);
-		setState(Status.VERIFIED, false);
-		setState(Status.COMPLETE, false);
-
-		File kettlePropertiesFile = new File(Const.getKettleDirectory()
-				+ Const.FILE_SEPARATOR + Const.KETTLE_PROPERTIES);
-
-		if (!kettlePropertiesFile.exists()) {
-			throw new RuntimeException(
-					"Unable to find kettle.properties.  Please run Ant first and set "
-							+ PROP_KETTLE_HOME
-							+ " Java system property to the parent directory of the created .kettle directory.");
-		}
-
-		try {
-			KettleEnvironment.init();
-		} catch (KettleException e) {
-			LOGGER.error(e.getMessage());
-		}
-	}
-
-	// For running in IDEs - check to see if KETTLE_HOME system property is set,
-	// if not set it programmatically.
-	private void setKettleHome() {
-		if (System.getProperty(PROP_KETTLE_HOME) == null) {
-			try {
-				String propFile = System.getProperty("user.home")
-						+ "/.kettle/kettle.properties";
-				// File kettlePropertiesFile = new
-				// File(Runner.class.getResource(propFile).toURI());
-				File kettlePropertiesFile = new File(propFile);
-				String kettleHome = kettlePropertiesFile.getParentFile()
-						.getParent();
-				System.setProperty(PROP_KETTLE_HOME, kettleHome);
-			} catch (Exception e) {
-				// The original code just caught URISyntaxException but would
-				// throw NullPointerException
-				// if KETTLE_HOME was not defined in a standalone (non-IDE)
-				// environment. Better to catch
-				// all exceptions and also log the full stack trace.
-
-				LOGGER.warn(
-						PROP_KETTLE_HOME
-								+ " not defined, caught error trying to set programmatically: "
-								+ e, e);
-			}
-		}
+		resetState();
 	}
 
 	/**
@@ -110,6 +73,83 @@ public abstract class Runner {
 		this.xmlFile = xmlFile;
 	}
 
+	/**
+	 * Limits how long run() may take. Runners that support it stop the Job or
+	 * Transformation, and do not report completion, when nothing has moved
+	 * for the stall timeout or when the run timeout has passed. Defaults to
+	 * the {@value #PROP_STALL_TIMEOUT} and {@value #PROP_RUN_TIMEOUT} system
+	 * properties.
+	 * 
+	 * @param stallTimeoutMillis
+	 *            the stall timeout in milliseconds, 0 for none
+	 * @param runTimeoutMillis
+	 *            the run timeout in milliseconds, 0 for none
+	 */
+	public void setTimeouts(long stallTimeoutMillis, long runTimeoutMillis) {
+		this.stallTimeoutMillis = stallTimeoutMillis;
+		this.runTimeoutMillis = runTimeoutMillis;
+	}
+
+	/**
+	 * @return the stall timeout in milliseconds, 0 for none
+	 */
+	public long getStallTimeoutMillis() {
+		return stallTimeoutMillis;
+	}
+
+	/**
+	 * @return the run timeout in milliseconds, 0 for none
+	 */
+	public long getRunTimeoutMillis() {
+		return runTimeoutMillis;
+	}
+
+	/**
+	 * @return the file the Kettle log of each run is appended to, or null if
+	 *         the log only goes to Kettle's central log store
+	 */
+	@CheckForNull
+	public File getLogFile() {
+		return logFile;
+	}
+
+	/**
+	 * @param logFile
+	 *            the file to append the Kettle log of each run to, null for
+	 *            none. Runners that do not support it ignore it.
+	 */
+	public void setLogFile(@CheckForNull File logFile) {
+		this.logFile = logFile;
+	}
+
+	/**
+	 * Removes the log lines and log channels of the last Job or Transformation
+	 * from Kettle's central log store, which otherwise keeps them for the life
+	 * of the JVM. Runners do this for the previous one on setup(); call it
+	 * when done with the Runner. Does nothing by default.
+	 */
+	public void releaseLogs() {
+	}
+
+	/**
+	 * @return the throughput and timing figures of the last run, or null if
+	 *         there has been no run or this Runner does not collect them
+	 */
+	@CheckForNull
+	public RunMetrics getRunMetrics() {
+		return runMetrics;
+	}
+
+	/**
+	 * Subclasses call this once a run has finished.
+	 * 
+	 * @param runMetrics
+	 *            the figures of the run
+	 */
+	protected void setRunMetrics(@CheckForNull RunMetrics runMetrics) {
+		this.runMetrics = runMetrics;
+	}
+
 	/**
 	 * @return The List of CheckResultInterface populated by verify().
 	 */
@@ -129,6 +169,17 @@ public abstract class Runner {
 		stateMap.put(status, state);
 	}
 
+	/**
+	 * Clears every status. Subclasses call this first thing in setup(), so
+	 * that a Job or Transformation that is set up again is verified again
+	 * before it can run.
+	 */
+	protected void resetState() {
+		setState(Status.READY, false);
+		setState(Status.VERIFIED, false);
+		setState(Status.COMPLETE, false);
+	}
+
 	/**
 	 * @return true if the setup method has completed successfully, false
 	 *         otherwise.
@@ -156,7 +207,9 @@ public abstract class Runner {
 	/**
 	 * Subclasses should implement this so that it sets up the Job or
 	 * Transformation to be run. This method should be called prior to verify()
-	 * or run(). Test success of this step with isReady().
+	 * or run(). Test success of this step with isReady(). Implementations
+	 * start with {@link #resetState()}, so verify() has to be called again
+	 * after every setup().
 	 */
 	public abstract void setup();
 
@@ -183,6 +236,14 @@ public abstract class Runner {
 	 */
 	public abstract void rerun(String property, String propertyValue);
 
+	/**
+	 * Asks a running Job or Transformation to stop. Safe to call from any
+	 * thread, and before or after run(); a Runner that has been stopped will
+	 * not report completion. Does nothing by default.
+	 */
+	public void stop() {
+	}
+
 	/**
 	 * Set a parameter in the Job or Transformation. If the parameter is
 	 * unknown, the Runner will be in an unready state.
@@ -201,6 +262,25 @@ public abstract class Runner {
 	@Nonnull
 	public abstract Set<String> getParameterNames();
 
+	/**
+	 * Runs this Runner's Job or Transformation once for each parameter set, on
+	 * separate Runners so that this Runner's state is left alone. Test success
+	 * of each run with {@link SweepResult#isComplete()}.
+	 * 
+	 * @param parameterSets
+	 *            parameter name to value, one map per run
+	 * @param maxConcurrency
+	 *            the maximum number of runs at the same time
+	 * @return one result per parameter set, in the same order
+	 */
+	@Nonnull
+	public List<SweepResult> sweep(List<Map<String, String>> parameterSets,
+			int maxConcurrency) {
+		ParameterSweep sweep = new ParameterSweep(getXmlFile(), maxConcurrency);
+		sweep.setTimeouts(stallTimeoutMillis, runTimeoutMillis);
+		return sweep.run(parameterSets);
+	}
+
 	/**
 	 * Helper method for {@link #getParameterNames()} implementations.
 	 * 
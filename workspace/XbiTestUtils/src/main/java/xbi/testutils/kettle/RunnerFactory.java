@@ -1,11 +1,22 @@
 package xbi.testutils.kettle;
 
 import java.io.File;
+import java.util.Locale;
 
 public class RunnerFactory {
 
+	/**
+	 * Creates the Runner for a Kettle artifact: a JobRunner for jobs (.kjb),
+	 * a TransformationRunner for everything else.
+	 * 
+	 * @param xmlFile
+	 *            the Job or Transformation file
+	 * @return a Runner for the file
+	 */
 	public static Runner createRunner(File xmlFile) {
-		// It just works with Transformations for now.
+		if (xmlFile.getName().toLowerCase(Locale.ENGLISH).endsWith(".kjb")) {
+			return new JobRunner(xmlFile);
+		}
 		return new TransformationRunner(xmlFile);
 	}
 }
@@ -0,0 +1,158 @@
+package xbi.testutils.kettle;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.pentaho.di.core.CheckResultInterface;
+
+/**
+ * The outcome of running a Job or Transformation with one parameter set of a
+ * {@link ParameterSweep}: how far it got and how long each phase took.
+ *
+ * @author eniesc200
+ */
+public final class SweepResult {
+
+	private final Map<String, String> parameters;
+	private final boolean ready;
+	private final boolean verified;
+	private final boolean complete;
+	private final long setupMillis;
+	private final long verifyMillis;
+	private final long runMillis;
+	private final List<CheckResultInterface> stepRemarks;
+	private final String error;
+	private final RunMetrics runMetrics;
+
+	SweepResult(Map<String, String> parameters, boolean ready,
+			boolean verified, boolean complete, long setupMillis,
+			long verifyMillis, long runMillis,
+			List<CheckResultInterface> stepRemarks, String error,
+			RunMetrics runMetrics) {
+		this.parameters = Collections
+				.unmodifiableMap(new HashMap<String, String>(parameters));
+		this.ready = ready;
+		this.verified = verified;
+		this.complete = complete;
+		this.setupMillis = setupMillis;
+		this.verifyMillis = verifyMillis;
+		this.runMillis = runMillis;
+		this.stepRemarks = Collections
+				.unmodifiableList(new ArrayList<CheckResultInterface>(
+						stepRemarks));
+		this.error = error;
+		this.runMetrics = runMetrics;
+	}
+
+	/**
+	 * @return the parameter names and values this run used
+	 */
+	@Nonnull
+	public Map<String, String> getParameters() {
+		return parameters;
+	}
+
+	/**
+	 * @return true if the Job or Transformation was set up and all parameters
+	 *         were accepted
+	 */
+	public boolean isReady() {
+		return ready;
+	}
+
+	/**
+	 * @return true if the Job or Transformation passed Kettle verification
+	 */
+	public boolean isVerified() {
+		return verified;
+	}
+
+	/**
+	 * @return true if the Job or Transformation ran to completion
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+
+	/**
+	 * @return the time taken by setup, including setting the parameters, in
+	 *         milliseconds
+	 */
+	public long getSetupMillis() {
+		return setupMillis;
+	}
+
+	/**
+	 * @return the time taken by verification in milliseconds
+	 */
+	public long getVerifyMillis() {
+		return verifyMillis;
+	}
+
+	/**
+	 * @return the time taken by the run in milliseconds, 0 if it did not run
+	 */
+	public long getRunMillis() {
+		return runMillis;
+	}
+
+	/**
+	 * @return the remarks produced by verification
+	 */
+	@Nonnull
+	public List<CheckResultInterface> getStepRemarks() {
+		return stepRemarks;
+	}
+
+	/**
+	 * @return the unexpected error that ended this run, or null
+	 */
+	@CheckForNull
+	public String getError() {
+		return error;
+	}
+
+	/**
+	 * @return the throughput and timing figures of the run, null if it did
+	 *         not run or its Runner does not collect them
+	 */
+	@CheckForNull
+	public RunMetrics getRunMetrics() {
+		return runMetrics;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString() {
+		StringBuffer b = new StringBuffer("SweepResult: ");
+		b.append("parameters=");
+		b.append(parameters);
+		b.append("; ready=");
+		b.append(ready);
+		b.append("; verified=");
+		b.append(verified);
+		b.append("; complete=");
+		b.append(complete);
+		b.append("; setup=");
+		b.append(setupMillis);
+		b.append(" ms; verify=");
+		b.append(verifyMillis);
+		b.append(" ms; run=");
+		b.append(runMillis);
+		b.append(" ms");
+		if (error != null) {
+			b.append("; error=");
+			b.append(error);
+		}
+		return b.toString();
+	}
+}
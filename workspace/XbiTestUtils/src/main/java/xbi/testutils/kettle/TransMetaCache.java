@@ -0,0 +1,195 @@
+package xbi.testutils.kettle;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.pentaho.di.core.exception.KettleMissingPluginsException;
+import org.pentaho.di.core.exception.KettleXMLException;
+import org.pentaho.di.core.xml.XMLHandler;
+import org.pentaho.di.trans.TransMeta;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Node;
+
+/**
+ * Singleton cache of parsed KTR files, keyed by the absolute path of the file
+ * plus a hash of its contents. The XML is read once; each caller gets a
+ * TransMeta of its own built from it, so runs cannot affect each other. (A
+ * clone of a TransMeta is no good here: Kettle's clone resets the
+ * transformation settings and its hops keep pointing at the original steps.)
+ *
+ * The contents are only hashed again when the file's size or modification
+ * time changes. Only the latest version of each file is kept.
+ *
+ * @author eniesc200
+ */
+public enum TransMetaCache {
+	INSTANCE;
+	private static final Logger LOGGER = LoggerFactory
+			.getLogger(TransMetaCache.class);
+
+	// absolute path -> latest parsed version of that file
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Returns the transformation metadata of a KTR file, reading the file only
+	 * if it has not been seen before or has changed.
+	 *
+	 * @param file
+	 *            the KTR file
+	 * @return a TransMeta that belongs to the caller
+	 * @throws KettleXMLException
+	 *             if the file cannot be read or parsed
+	 * @throws KettleMissingPluginsException
+	 *             if the transformation uses plugins that are not installed
+	 */
+	public TransMeta get(File file) throws KettleXMLException,
+			KettleMissingPluginsException {
+		final String path = file.getAbsolutePath();
+		Entry entry = lookup(file, path);
+
+		// the first caller for a new entry parses, the others wait for it
+		entry.parsed.run();
+		Node transNode;
+		try {
+			transNode = entry.parsed.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new KettleXMLException("Interrupted waiting for " + path
+					+ " to be parsed", e);
+		} catch (ExecutionException e) {
+			evict(path, entry);
+			Throwable cause = e.getCause();
+			if (cause instanceof KettleMissingPluginsException) {
+				throw (KettleMissingPluginsException) cause;
+			}
+			if (cause instanceof KettleXMLException) {
+				throw (KettleXMLException) cause;
+			}
+			throw new KettleXMLException("Unable to parse " + path, cause);
+		}
+
+		// DOM nodes are not safe to read from several threads at a time
+		TransMeta transMeta;
+		synchronized (transNode) {
+			transMeta = new TransMeta(transNode, null);
+		}
+		transMeta.setFilename(path);
+		transMeta.setInternalKettleVariables();
+		return transMeta;
+	}
+
+	/**
+	 * @return the number of lookups served from the cache
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return the number of lookups that had to parse the file
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Returns the content hash of the cached version of a file. Used to key
+	 * other per-artifact caches.
+	 *
+	 * @param file
+	 *            the KTR file
+	 * @return the hex encoded content hash, or null if the file has not been
+	 *         loaded through this cache
+	 */
+	public synchronized String getContentHash(File file) {
+		Entry entry = entries.get(file.getAbsolutePath());
+		return (entry != null) ? entry.hash : null;
+	}
+
+	/**
+	 * Drops all cached metadata and resets the counters.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		hits.set(0);
+		misses.set(0);
+	}
+
+	/*
+	 * Finds the entry for the current contents of the file, creating a new
+	 * (not yet parsed) one if needed.
+	 */
+	private synchronized Entry lookup(File file, final String path)
+			throws KettleXMLException {
+		long length = file.length();
+		long lastModified = file.lastModified();
+		Entry entry = entries.get(path);
+		if (entry != null && entry.length == length
+				&& entry.lastModified == lastModified) {
+			hits.incrementAndGet();
+			return entry;
+		}
+
+		String hash;
+		try {
+			hash = ContentHash.of(file);
+		} catch (IOException e) {
+			throw new KettleXMLException("Unable to read " + path, e);
+		}
+		if (entry != null && entry.hash.equals(hash)) {
+			// touched but not changed
+			entry.length = length;
+			entry.lastModified = lastModified;
+			hits.incrementAndGet();
+			return entry;
+		}
+
+		misses.incrementAndGet();
+		LOGGER.debug("Parsing " + path + " (" + hash + ")");
+		entry = new Entry(hash, length, lastModified,
+				new FutureTask<Node>(new Callable<Node>() {
+					public Node call() throws Exception {
+						Node transNode = XMLHandler.getSubNode(
+								XMLHandler.loadXMLFile(path), TransMeta.XML_TAG);
+						if (transNode == null) {
+							throw new KettleXMLException(path
+									+ " is not a transformation");
+						}
+						return transNode;
+					}
+				}));
+		entries.put(path, entry);
+		return entry;
+	}
+
+	private synchronized void evict(String path, Entry entry) {
+		if (entries.get(path) == entry) {
+			entries.remove(path);
+		}
+	}
+
+	private static class Entry {
+		final String hash;
+		long length;
+		long lastModified;
+		final FutureTask<Node> parsed;
+
+		Entry(String hash, long length, long lastModified,
+				FutureTask<Node> parsed) {
+			this.hash = hash;
+			this.length = length;
+			this.lastModified = lastModified;
+			this.parsed = parsed;
+		}
+	}
+}
@@ -1,14 +1,20 @@
 package xbi.testutils.kettle;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
+import javax.annotation.CheckForNull;
+
 import org.pentaho.di.core.CheckResultInterface;
 import org.pentaho.di.core.exception.KettleException;
 import org.pentaho.di.core.exception.KettleMissingPluginsException;
 import org.pentaho.di.core.exception.KettleXMLException;
 import org.pentaho.di.core.parameters.UnknownParamException;
+import org.pentaho.di.trans.RowProducer;
 import org.pentaho.di.trans.Trans;
 import org.pentaho.di.trans.TransMeta;
 import org.slf4j.Logger;
@@ -19,7 +25,50 @@ public class TransformationRunner extends Runner {
 	private static final Logger LOGGER = LoggerFactory
 			.getLogger(TransformationRunner.class);
 
-	private Trans trans;
+	/**
+	 * Set this system property to true to make verify() always run the Kettle
+	 * checks instead of using cached results.
+	 */
+	public static final String PROP_FORCE_VERIFY = "XBI_FORCE_VERIFY";
+
+	/**
+	 * Set this system property to false to run transformations without
+	 * Kettle's safe mode, which checks the row layout of every row passed
+	 * between steps.
+	 */
+	public static final String PROP_SAFE_MODE = "XBI_SAFE_MODE";
+
+	/**
+	 * Set this system property to a sampling interval in milliseconds to
+	 * profile every run for bottleneck steps. 0, the default, turns profiling
+	 * off.
+	 */
+	public static final String PROP_PROFILE_INTERVAL = "XBI_PROFILE_INTERVAL_MS";
+
+	private volatile Trans trans;
+
+	private volatile RunLog runLog;
+
+	private volatile boolean stopRequested;
+
+	private volatile String abortReport;
+
+	private boolean forceVerify = Boolean.getBoolean(PROP_FORCE_VERIFY);
+
+	private boolean safeModeEnabled = isSafeModeEnabledByDefault();
+
+	private TuningOverrides overrides;
+
+	private long profileIntervalMillis = Long.getLong(PROP_PROFILE_INTERVAL,
+			0);
+
+	private volatile BottleneckProfiler profiler;
+
+	private final List<RowInjection> injections = new ArrayList<RowInjection>();
+
+	private final List<RowCapture> captures = new ArrayList<RowCapture>();
+
+	private final Map<String, CapturedRows> captured = new HashMap<String, CapturedRows>();
 
 	public TransformationRunner(File xmlFile) {
 		super(xmlFile);
@@ -27,12 +76,16 @@ public class TransformationRunner extends Runner {
 
 	@Override
 	public void setup() {
+		resetState();
+		// a stop() from here on stops the run that is being set up
+		stopRequested = false;
+		releaseLogs();
 		File file = getXmlFile();
 		String fileName = file.getAbsolutePath();
-		/* Initialize the transformation */
-		TransMeta transMeta = new TransMeta();
+		/* Initialize the transformation from a copy of the parsed KTR */
+		TransMeta transMeta = null;
 		try {
-			transMeta = new TransMeta(fileName);
+			transMeta = TransMetaCache.INSTANCE.get(file);
 		} catch (KettleMissingPluginsException p) {
 			LOGGER.error(
 					"Missing plugins. Unable to create TransMeta object from XML file "
@@ -43,11 +96,41 @@ public class TransformationRunner extends Runner {
 					+ fileName + ": " + e, e);
 			return;
 		}
+		if (overrides != null) {
+			try {
+				overrides.apply(transMeta);
+			} catch (IllegalStateException e) {
+				LOGGER.error("Unable to tune " + fileName + ": "
+						+ e.getMessage());
+				return;
+			}
+		}
+		try {
+			for (RowInjection injection : injections) {
+				injection.apply(transMeta);
+			}
+		} catch (IllegalStateException e) {
+			LOGGER.error("Unable to inject rows into " + fileName + ": "
+					+ e.getMessage());
+			return;
+		}
+		try {
+			for (RowCapture capture : captures) {
+				capture.apply(transMeta);
+			}
+		} catch (IllegalStateException e) {
+			LOGGER.error("Unable to capture rows from " + fileName + ": "
+					+ e.getMessage());
+			return;
+		}
 
-		trans = new Trans(transMeta);
-		trans.initializeVariablesFrom(null);
-		trans.getTransMeta().setInternalKettleVariables(trans);
-		trans.setSafeModeEnabled(true);
+		Trans t = new Trans(transMeta);
+		t.initializeVariablesFrom(null);
+		t.getTransMeta().setInternalKettleVariables(t);
+		t.setSafeModeEnabled(safeModeEnabled);
+		trans = t;
+		runLog = new RunLog(t.getLogChannelId(), file.getName());
+		abortReport = null;
 		setState(Status.READY, true);
 	}
 
@@ -56,7 +139,18 @@ public class TransformationRunner extends Runner {
 		setState(Status.VERIFIED, true);
 
 		List<CheckResultInterface> stepRemarks = getStepRemarks();
-		trans.getTransMeta().checkSteps(stepRemarks, false, null);
+		stepRemarks.clear();
+		String key = isForceVerify() ? null : verificationKey();
+		List<CheckResultInterface> cached = (key != null) ? VerificationCache.INSTANCE
+				.get(key) : null;
+		if (cached != null) {
+			stepRemarks.addAll(cached);
+		} else {
+			trans.getTransMeta().checkSteps(stepRemarks, false, null);
+			if (key != null) {
+				VerificationCache.INSTANCE.put(key, stepRemarks);
+			}
+		}
 		for (CheckResultInterface remark : stepRemarks) {
 			if (remark.getType() == CheckResultInterface.TYPE_RESULT_ERROR) {
 				setState(Status.VERIFIED, false);
@@ -65,6 +159,204 @@ public class TransformationRunner extends Runner {
 		}
 	}
 
+	/**
+	 * @return true if verify() always runs the Kettle checks instead of using
+	 *         cached results. Defaults to the {@value #PROP_FORCE_VERIFY}
+	 *         system property.
+	 */
+	public boolean isForceVerify() {
+		return forceVerify;
+	}
+
+	/**
+	 * @param forceVerify
+	 *            true to make verify() always run the Kettle checks instead of
+	 *            using cached results.
+	 */
+	public void setForceVerify(boolean forceVerify) {
+		this.forceVerify = forceVerify;
+	}
+
+	/**
+	 * @return true if transformations run in Kettle's safe mode. Defaults to
+	 *         the {@value #PROP_SAFE_MODE} system property, true if it is not
+	 *         set.
+	 */
+	public boolean isSafeModeEnabled() {
+		return safeModeEnabled;
+	}
+
+	/**
+	 * @param safeModeEnabled
+	 *            false to run without Kettle's safe mode row layout checks,
+	 *            which is faster but lets mismatched rows through. Applies
+	 *            from the next setup().
+	 */
+	public void setSafeModeEnabled(boolean safeModeEnabled) {
+		this.safeModeEnabled = safeModeEnabled;
+	}
+
+	/**
+	 * @return the settings applied to the transformation metadata on setup(),
+	 *         null if it runs as saved
+	 */
+	@CheckForNull
+	public TuningOverrides getOverrides() {
+		return overrides;
+	}
+
+	/**
+	 * @param overrides
+	 *            settings to apply to the transformation metadata on every
+	 *            setup(), null to run it as saved. The KTR file is not
+	 *            changed.
+	 */
+	public void setOverrides(@CheckForNull TuningOverrides overrides) {
+		this.overrides = overrides;
+	}
+
+	/**
+	 * Feeds rows straight into a step instead of letting it read them, see
+	 * {@link RowInjection}. Applies from the next setup().
+	 *
+	 * @param injection
+	 *            the rows and the step to feed them into
+	 */
+	public void addRowInjection(RowInjection injection) {
+		if (injection == null) {
+			throw new NullPointerException();
+		}
+		injections.add(injection);
+	}
+
+	/**
+	 * @return the row injections applied on setup()
+	 */
+	public List<RowInjection> getRowInjections() {
+		return new ArrayList<RowInjection>(injections);
+	}
+
+	/**
+	 * Captures the rows sent to a step instead of letting it write them, see
+	 * {@link RowCapture}. Applies from the next setup().
+	 *
+	 * @param capture
+	 *            the step to capture the rows of
+	 */
+	public void addRowCapture(RowCapture capture) {
+		if (capture == null) {
+			throw new NullPointerException();
+		}
+		captures.add(capture);
+	}
+
+	/**
+	 * @return the row captures applied on setup()
+	 */
+	public List<RowCapture> getRowCaptures() {
+		return new ArrayList<RowCapture>(captures);
+	}
+
+	/**
+	 * @param stepName
+	 *            the name of a step added with
+	 *            {@link #addRowCapture(RowCapture)}
+	 * @return the rows captured from the step during the last run, null if
+	 *         it has not run or the step is not captured
+	 */
+	@CheckForNull
+	public CapturedRows getCapturedRows(String stepName) {
+		synchronized (captured) {
+			return captured.get(stepName);
+		}
+	}
+
+	/**
+	 * Drops the rows captured during the last run and deletes their spill
+	 * files.
+	 */
+	public void disposeCapturedRows() {
+		synchronized (captured) {
+			for (CapturedRows rows : captured.values()) {
+				rows.dispose();
+			}
+			captured.clear();
+		}
+	}
+
+	/**
+	 * @return the bottleneck sampling interval in milliseconds, 0 if runs are
+	 *         not profiled. Defaults to the {@value #PROP_PROFILE_INTERVAL}
+	 *         system property.
+	 */
+	public long getProfileIntervalMillis() {
+		return profileIntervalMillis;
+	}
+
+	/**
+	 * @param profileIntervalMillis
+	 *            the bottleneck sampling interval in milliseconds, 0 to not
+	 *            profile runs
+	 */
+	public void setProfileIntervalMillis(long profileIntervalMillis) {
+		this.profileIntervalMillis = profileIntervalMillis;
+	}
+
+	/**
+	 * @return the bottleneck profile of the last run, null if it was not
+	 *         profiled
+	 */
+	@CheckForNull
+	public BottleneckProfiler getProfiler() {
+		return profiler;
+	}
+
+	/**
+	 * @return the {@value #PROP_SAFE_MODE} system property, true if it is not
+	 *         set
+	 */
+	public static boolean isSafeModeEnabledByDefault() {
+		return !"false".equalsIgnoreCase(System.getProperty(PROP_SAFE_MODE));
+	}
+
+	/*
+	 * The verification cache key for the current transformation: file, content
+	 * hash, variables and parameter values. Null if the file was not loaded
+	 * through the TransMetaCache.
+	 */
+	@CheckForNull
+	private String verificationKey() {
+		String hash = TransMetaCache.INSTANCE.getContentHash(getXmlFile());
+		if (hash == null) {
+			return null;
+		}
+		Map<String, String> settings = new HashMap<String, String>();
+		if (overrides != null) {
+			settings.put("tuning", overrides.toString());
+		}
+		for (RowInjection injection : injections) {
+			settings.put("inject:" + injection.getStepName(), injection
+					.getRowMeta().toStringMeta());
+		}
+		for (RowCapture capture : captures) {
+			settings.put("capture:" + capture.getStepName(),
+					RowCapture.DUMMY_ID);
+		}
+		for (String variable : trans.listVariables()) {
+			settings.put("var:" + variable, trans.getVariable(variable));
+		}
+		for (String parameter : trans.listParameters()) {
+			try {
+				settings.put("param:" + parameter,
+						trans.getParameterValue(parameter));
+			} catch (UnknownParamException e) {
+				// listed by the transformation itself, cannot happen
+			}
+		}
+		return VerificationCache.key(getXmlFile().getAbsolutePath(), hash,
+				settings);
+	}
+
 	@Override
 	public void run() {
 		if (!isReady() || !isVerified() || isComplete()) {
@@ -74,27 +366,162 @@ public class TransformationRunner extends Runner {
 		}
 
 		// allocate & run the required sub-threads
+		setRunMetrics(null);
+		profiler = null;
+		disposeCapturedRows();
+		long startTime = System.currentTimeMillis();
+		long start = System.nanoTime();
+		long heapBefore = RunMetrics.usedHeap();
+		if (getLogFile() != null) {
+			runLog.startFile(getLogFile());
+		}
 		try {
-			trans.execute(null);
-			trans.waitUntilFinished();
+			if (profileIntervalMillis > 0) {
+				profiler = new BottleneckProfiler(trans, getXmlFile()
+						.getName(), profileIntervalMillis);
+			}
+			if (injections.isEmpty() && captures.isEmpty()
+					&& profiler == null) {
+				trans.execute(null);
+			} else {
+				executePrepared();
+			}
+			if (stopRequested) {
+				// stop() was called while the steps were being started
+				trans.stopAll();
+			}
+			if (profiler != null) {
+				profiler.start();
+			}
+			TransformationWatchdog watchdog = new TransformationWatchdog(
+					trans, getXmlFile().getName(), getStallTimeoutMillis(),
+					getRunTimeoutMillis());
+			boolean finished = false;
+			try {
+				finished = watchdog.waitUntilFinished();
+			} finally {
+				if (profiler != null) {
+					profiler.stop();
+					if (finished) {
+						// the step threads are done with the listeners
+						profiler.detach();
+					}
+					LOGGER.info(profiler.getReport());
+				}
+			}
+			setRunMetrics(RunMetrics.of(trans, getXmlFile().getName(),
+					startTime, (System.nanoTime() - start) / 1000000L,
+					heapBefore, RunMetrics.usedHeap()));
+			LOGGER.debug(getRunMetrics().toString());
+			if (!finished) {
+				abortReport = watchdog.getReport();
+				return;
+			}
 			trans.stopAll();
+			if (stopRequested) {
+				LOGGER.warn("Stopped running " + getXmlFile());
+				return;
+			}
 			setState(Status.COMPLETE, true);
 		} catch (KettleException e) {
 			LOGGER.error(
 					"Encountered error running " + getXmlFile() + ": " + e, e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			trans.stopAll();
+			LOGGER.error("Interrupted running " + getXmlFile());
+		} finally {
+			runLog.stopFile();
+		}
+	}
+
+	@Override
+	public void releaseLogs() {
+		RunLog log = runLog;
+		runLog = null;
+		if (log != null) {
+			log.discard();
+		}
+	}
+
+	/*
+	 * Starts the transformation with a row producer per injection, a listener
+	 * per capture and the listeners of the profiler, if any. Feeds the rows in
+	 * on background threads, so that full row sets do not block this one.
+	 */
+	private void executePrepared() throws KettleException {
+		trans.prepareExecution(null);
+		List<RowFeeder> feeders = new ArrayList<RowFeeder>();
+		for (RowInjection injection : injections) {
+			RowProducer producer = trans.addRowProducer(
+					injection.getStepName(), 0);
+			feeders.add(new RowFeeder(trans, producer, injection));
+		}
+		synchronized (captured) {
+			for (RowCapture capture : captures) {
+				captured.put(capture.getStepName(), capture.attach(trans));
+			}
+		}
+		if (profiler != null) {
+			profiler.attach();
+		}
+		trans.startThreads();
+		for (RowFeeder feeder : feeders) {
+			Thread t = new Thread(feeder, "xbi-inject-" + feeder.getStepName());
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	/**
+	 * @return the report of blocked steps if the last run was aborted by the
+	 *         watchdog for stalling or running too long, null otherwise
+	 */
+	@CheckForNull
+	public String getAbortReport() {
+		return abortReport;
+	}
+
+	@Override
+	public void stop() {
+		stopRequested = true;
+		Trans t = trans;
+		if (t != null) {
+			t.stopAll();
 		}
 	}
 
 	@Override
 	public void rerun(String property, String propertyValue) {
-		setState(Status.READY, false);
-		setState(Status.COMPLETE, false);
 		setup(); // force the transaction to close by setting up a new
 					// transformation
 		setParameterValue(property, propertyValue);
+		verify();
 		run();
 	}
 
+	/**
+	 * Also feeds the injected rows into every run of the sweep.
+	 *
+	 * @throws IllegalStateException
+	 *             if rows are captured, as the runs of a sweep do not keep
+	 *             them
+	 */
+	@Override
+	public List<SweepResult> sweep(List<Map<String, String>> parameterSets,
+			int maxConcurrency) {
+		if (!captures.isEmpty()) {
+			throw new IllegalStateException(
+					"Rows cannot be captured in a parameter sweep");
+		}
+		ParameterSweep sweep = new ParameterSweep(getXmlFile(), maxConcurrency);
+		sweep.setTimeouts(getStallTimeoutMillis(), getRunTimeoutMillis());
+		for (RowInjection injection : injections) {
+			sweep.addRowInjection(injection);
+		}
+		return sweep.run(parameterSets);
+	}
+
 	@Override
 	public void setParameterValue(String property, String propertyValue) {
 		try {
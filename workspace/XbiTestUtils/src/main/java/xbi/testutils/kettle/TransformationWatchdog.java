@@ -0,0 +1,264 @@
+package xbi.testutils.kettle;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.annotation.CheckForNull;
+
+import org.pentaho.di.core.RowSet;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.step.StepInterface;
+import org.pentaho.di.trans.step.StepMetaDataCombi;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Waits for a running transformation to finish, stopping it if it stalls or
+ * runs past its deadline.
+ *
+ * The transformation has stalled when none of its steps' row counters and
+ * none of its row set (buffer) levels have changed for the stall window. On
+ * abort a report listing every step copy, its counters and buffer levels, and
+ * a guess at why it is not moving is logged and kept.
+ *
+ * @author eniesc200
+ */
+public class TransformationWatchdog {
+
+	private static final Logger LOGGER = LoggerFactory
+			.getLogger(TransformationWatchdog.class);
+
+	/** How often the steps are looked at, in milliseconds. */
+	public static final long POLL_MILLIS = 250;
+
+	/**
+	 * How long to wait for the steps to end after an abort, in milliseconds.
+	 * Steps stuck in a database call may never notice the stop.
+	 */
+	public static final long STOP_GRACE_MILLIS = 30000;
+
+	private final Trans trans;
+	private final String name;
+	private final long stallMillis;
+	private final long maxMillis;
+
+	private String report;
+
+	/**
+	 * @param trans
+	 *            the transformation, already executing
+	 * @param name
+	 *            the name to report the transformation by
+	 * @param stallMillis
+	 *            abort if nothing moves for this long, 0 for never
+	 * @param maxMillis
+	 *            abort if the transformation runs for longer than this, 0 for
+	 *            never
+	 */
+	public TransformationWatchdog(Trans trans, String name, long stallMillis,
+			long maxMillis) {
+		if (trans == null || name == null) {
+			throw new NullPointerException();
+		}
+		this.trans = trans;
+		this.name = name;
+		this.stallMillis = stallMillis;
+		this.maxMillis = maxMillis;
+	}
+
+	/**
+	 * Waits for the transformation to finish, or aborts it.
+	 *
+	 * @return true if the transformation finished by itself, false if it was
+	 *         aborted
+	 * @throws InterruptedException
+	 *             if the waiting thread is interrupted; the transformation is
+	 *             left running
+	 */
+	public boolean waitUntilFinished() throws InterruptedException {
+		if (stallMillis <= 0 && maxMillis <= 0) {
+			trans.waitUntilFinished();
+			return true;
+		}
+
+		long start = System.currentTimeMillis();
+		long lastProgress = start;
+		long[] last = snapshot();
+		while (!trans.isFinished()) {
+			Thread.sleep(POLL_MILLIS);
+			long now = System.currentTimeMillis();
+			long[] current = snapshot();
+			if (!Arrays.equals(last, current)) {
+				last = current;
+				lastProgress = now;
+			}
+
+			String reason = null;
+			if (maxMillis > 0 && now - start > maxMillis) {
+				reason = "still running after " + (now - start)
+						+ " ms, the limit is " + maxMillis + " ms";
+			} else if (stallMillis > 0 && now - lastProgress > stallMillis) {
+				reason = "no rows have moved for " + (now - lastProgress)
+						+ " ms, the limit is " + stallMillis + " ms";
+			}
+			if (reason != null && !trans.isFinished()) {
+				abort(reason);
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the report written when the transformation was aborted, null if
+	 *         it was not
+	 */
+	@CheckForNull
+	public String getReport() {
+		return report;
+	}
+
+	private void abort(String reason) throws InterruptedException {
+		// take the report first, stopping changes the picture
+		report = report(reason);
+		LOGGER.error(report);
+
+		trans.stopAll();
+		long deadline = System.currentTimeMillis() + STOP_GRACE_MILLIS;
+		while (!trans.isFinished() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(POLL_MILLIS);
+		}
+		if (!trans.isFinished()) {
+			LOGGER.error("Steps of " + name + " did not stop within "
+					+ STOP_GRACE_MILLIS + " ms, leaving them behind");
+		}
+	}
+
+	/*
+	 * All row counters and buffer levels of all step copies, in step order.
+	 */
+	private long[] snapshot() {
+		List<StepMetaDataCombi> steps = trans.getSteps();
+		if (steps == null) {
+			return new long[0];
+		}
+		long[] values = new long[steps.size() * 8];
+		int i = 0;
+		for (StepMetaDataCombi combi : steps) {
+			StepInterface step = combi.step;
+			values[i++] = step.getLinesRead();
+			values[i++] = step.getLinesWritten();
+			values[i++] = step.getLinesInput();
+			values[i++] = step.getLinesOutput();
+			values[i++] = step.getLinesUpdated();
+			values[i++] = step.getLinesRejected();
+			values[i++] = bufferLevel(step.getInputRowSets());
+			values[i++] = bufferLevel(step.getOutputRowSets());
+		}
+		return values;
+	}
+
+	private static long bufferLevel(List<RowSet> rowSets) {
+		long level = 0;
+		if (rowSets != null) {
+			for (RowSet rowSet : rowSets) {
+				// folded into one number, only used to spot changes
+				level = level * 31 + rowSet.size();
+			}
+		}
+		return level;
+	}
+
+	/*
+	 * Describes every step copy and why it may not be moving.
+	 */
+	private String report(String reason) {
+		int capacity = trans.getTransMeta().getSizeRowset();
+		StringBuffer b = new StringBuffer("Aborting transformation ");
+		b.append(name);
+		b.append(": ");
+		b.append(reason);
+		b.append(". Row set capacity is ");
+		b.append(capacity);
+		b.append(".");
+		List<StepMetaDataCombi> steps = trans.getSteps();
+		if (steps == null) {
+			return b.toString();
+		}
+		for (StepMetaDataCombi combi : steps) {
+			StepInterface step = combi.step;
+			b.append("\n  ");
+			b.append(combi.stepname);
+			b.append(".");
+			b.append(combi.copy);
+			b.append(" [");
+			b.append(step.getStatus().getDescription());
+			b.append("] ");
+			b.append(diagnosis(step, capacity));
+			b.append(": read=");
+			b.append(step.getLinesRead());
+			b.append(" written=");
+			b.append(step.getLinesWritten());
+			b.append(" input=");
+			b.append(step.getLinesInput());
+			b.append(" output=");
+			b.append(step.getLinesOutput());
+			b.append(" updated=");
+			b.append(step.getLinesUpdated());
+			b.append(" rejected=");
+			b.append(step.getLinesRejected());
+			b.append(" errors=");
+			b.append(step.getErrors());
+			b.append("; in buffers");
+			appendRowSets(b, step.getInputRowSets(), true);
+			b.append("; out buffers");
+			appendRowSets(b, step.getOutputRowSets(), false);
+		}
+		return b.toString();
+	}
+
+	private static void appendRowSets(StringBuffer b, List<RowSet> rowSets,
+			boolean input) {
+		if (rowSets == null || rowSets.isEmpty()) {
+			b.append(" none");
+			return;
+		}
+		for (RowSet rowSet : rowSets) {
+			b.append(" ");
+			b.append(input ? rowSet.getOriginStepName() : rowSet
+					.getDestinationStepName());
+			b.append("=");
+			b.append(rowSet.size());
+		}
+	}
+
+	/*
+	 * A guess at why a step copy is not moving, from its buffer levels.
+	 */
+	private static String diagnosis(StepInterface step, int capacity) {
+		if (!step.isRunning()) {
+			return "done";
+		}
+		List<RowSet> outputs = step.getOutputRowSets();
+		if (outputs != null) {
+			for (RowSet rowSet : outputs) {
+				if (rowSet.size() >= capacity) {
+					return "BLOCKED writing to " + rowSet.getDestinationStepName();
+				}
+			}
+		}
+		List<RowSet> inputs = step.getInputRowSets();
+		if (inputs != null && !inputs.isEmpty()) {
+			boolean empty = true;
+			for (RowSet rowSet : inputs) {
+				if (rowSet.size() > 0) {
+					empty = false;
+				}
+			}
+			if (empty) {
+				return "waiting for input";
+			}
+		}
+		return "BUSY, possibly stuck (lock, slow query)";
+	}
+}
@@ -0,0 +1,110 @@
+package xbi.testutils.kettle;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.step.StepMeta;
+
+/**
+ * Settings applied to the parsed metadata of a transformation before it runs:
+ * the row set size, the feedback size and the number of copies of named
+ * steps. They are applied to the TransMeta handed out by
+ * {@link TransMetaCache}, never to the KTR file.
+ *
+ * @author eniesc200
+ */
+public final class TuningOverrides {
+
+	private final int rowSetSize;
+	private final int feedbackSize;
+	private final Map<String, Integer> stepCopies;
+
+	/**
+	 * @param rowSetSize
+	 *            the number of rows buffered between two steps, -1 to keep
+	 *            the KTR's
+	 * @param feedbackSize
+	 *            the number of rows between progress log lines, -1 to keep the
+	 *            KTR's
+	 * @param stepCopies
+	 *            the number of copies by step name
+	 */
+	public TuningOverrides(int rowSetSize, int feedbackSize,
+			Map<String, Integer> stepCopies) {
+		this.rowSetSize = rowSetSize;
+		this.feedbackSize = feedbackSize;
+		this.stepCopies = Collections
+				.unmodifiableMap(new LinkedHashMap<String, Integer>(stepCopies));
+	}
+
+	/**
+	 * @return the row set size, -1 if the KTR's is kept
+	 */
+	public int getRowSetSize() {
+		return rowSetSize;
+	}
+
+	/**
+	 * @return the feedback size, -1 if the KTR's is kept
+	 */
+	public int getFeedbackSize() {
+		return feedbackSize;
+	}
+
+	/**
+	 * @return the number of copies by step name
+	 */
+	@Nonnull
+	public Map<String, Integer> getStepCopies() {
+		return stepCopies;
+	}
+
+	/**
+	 * Applies the settings.
+	 *
+	 * @param transMeta
+	 *            the transformation metadata to change
+	 * @throws IllegalStateException
+	 *             if a named step does not exist
+	 */
+	void apply(TransMeta transMeta) throws IllegalStateException {
+		if (rowSetSize > 0) {
+			transMeta.setSizeRowset(rowSetSize);
+		}
+		if (feedbackSize > 0) {
+			transMeta.setFeedbackSize(feedbackSize);
+		}
+		for (Map.Entry<String, Integer> entry : stepCopies.entrySet()) {
+			StepMeta step = transMeta.findStep(entry.getKey());
+			if (step == null) {
+				throw new IllegalStateException("No step named "
+						+ entry.getKey() + " in " + transMeta.getName());
+			}
+			step.setCopies(entry.getValue());
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString() {
+		StringBuffer b = new StringBuffer();
+		b.append("rowset=");
+		b.append((rowSetSize > 0) ? String.valueOf(rowSetSize) : "default");
+		b.append(" feedback=");
+		b.append((feedbackSize > 0) ? String.valueOf(feedbackSize) : "default");
+		for (Map.Entry<String, Integer> entry : stepCopies.entrySet()) {
+			b.append(" copies:");
+			b.append(entry.getKey());
+			b.append("=");
+			b.append(entry.getValue());
+		}
+		return b.toString();
+	}
+}
@@ -0,0 +1,298 @@
+package xbi.testutils.kettle;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Benchmarks a transformation with every combination of a grid of row set
+ * sizes, feedback sizes and step copies, and ranks the combinations by
+ * throughput. The settings are applied to the parsed metadata in memory (see
+ * {@link TuningOverrides}); the KTR file is never changed.
+ *
+ * A grid can be given as a string of semicolon separated dimensions, each a
+ * name and comma separated values:
+ *
+ * <pre>
+ * rowset=1000,10000;feedback=50000;copies:Lookup customer=1,2,4
+ * </pre>
+ *
+ * @author eniesc200
+ */
+public class TuningSweep {
+
+	private static final String ROWSET = "rowset";
+	private static final String FEEDBACK = "feedback";
+	private static final String COPIES = "copies:";
+
+	private final File xmlFile;
+	private final int warmups;
+	private final int runs;
+
+	private List<Integer> rowSetSizes = new ArrayList<Integer>();
+	private List<Integer> feedbackSizes = new ArrayList<Integer>();
+	private final Map<String, List<Integer>> stepCopies = new LinkedHashMap<String, List<Integer>>();
+
+	private final Map<String, String> parameters = new HashMap<String, String>();
+	private boolean safeModeEnabled = TransformationRunner
+			.isSafeModeEnabledByDefault();
+	private Runnable beforeRun;
+
+	/**
+	 * @param xmlFile
+	 *            the Transformation file
+	 * @param warmups
+	 *            the number of runs to throw away for every combination
+	 * @param runs
+	 *            the number of runs to measure for every combination
+	 */
+	public TuningSweep(File xmlFile, int warmups, int runs) {
+		if (xmlFile == null) {
+			throw new NullPointerException();
+		}
+		this.xmlFile = xmlFile;
+		this.warmups = warmups;
+		this.runs = runs;
+	}
+
+	/**
+	 * @param sizes
+	 *            the row set sizes to try
+	 */
+	public void setRowSetSizes(List<Integer> sizes) {
+		rowSetSizes = new ArrayList<Integer>(sizes);
+	}
+
+	/**
+	 * @param sizes
+	 *            the feedback sizes to try
+	 */
+	public void setFeedbackSizes(List<Integer> sizes) {
+		feedbackSizes = new ArrayList<Integer>(sizes);
+	}
+
+	/**
+	 * @param step
+	 *            the step name
+	 * @param copies
+	 *            the numbers of copies of the step to try
+	 */
+	public void setStepCopies(String step, List<Integer> copies) {
+		if (step == null) {
+			throw new NullPointerException();
+		}
+		stepCopies.put(step, new ArrayList<Integer>(copies));
+	}
+
+	/**
+	 * Sets the grid from a string, see the class description.
+	 *
+	 * @param grid
+	 *            the grid
+	 * @throws IllegalArgumentException
+	 *             if the grid cannot be parsed
+	 */
+	public void setGrid(String grid) throws IllegalArgumentException {
+		for (String dimension : grid.split(";")) {
+			if (dimension.trim().length() == 0) {
+				continue;
+			}
+			int eq = dimension.lastIndexOf('=');
+			if (eq < 0) {
+				throw new IllegalArgumentException("Expected name=values in "
+						+ dimension);
+			}
+			String name = dimension.substring(0, eq).trim();
+			List<Integer> values = parseValues(dimension.substring(eq + 1));
+			if (name.equalsIgnoreCase(ROWSET)) {
+				setRowSetSizes(values);
+			} else if (name.equalsIgnoreCase(FEEDBACK)) {
+				setFeedbackSizes(values);
+			} else if (name.regionMatches(true, 0, COPIES, 0, COPIES.length())
+					&& name.length() > COPIES.length()) {
+				setStepCopies(name.substring(COPIES.length()).trim(), values);
+			} else {
+				throw new IllegalArgumentException("Unknown tuning setting "
+						+ name + ", expected " + ROWSET + ", " + FEEDBACK
+						+ " or " + COPIES + "<step name>");
+			}
+		}
+	}
+
+	private static List<Integer> parseValues(String values) {
+		List<Integer> result = new ArrayList<Integer>();
+		for (String value : values.split(",")) {
+			try {
+				int i = Integer.parseInt(value.trim());
+				if (i < 1) {
+					throw new IllegalArgumentException(
+							"Tuning values must be positive, was " + i);
+				}
+				result.add(i);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Not a number: " + value);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @param parameters
+	 *            parameter names and values to set on every run
+	 */
+	public void setParameters(Map<String, String> parameters) {
+		this.parameters.clear();
+		this.parameters.putAll(parameters);
+	}
+
+	/**
+	 * @param safeModeEnabled
+	 *            false to run without Kettle's safe mode row layout checks
+	 */
+	public void setSafeModeEnabled(boolean safeModeEnabled) {
+		this.safeModeEnabled = safeModeEnabled;
+	}
+
+	/**
+	 * @param beforeRun
+	 *            called before every run, outside the measured time. May be
+	 *            null.
+	 */
+	public void setBeforeRun(Runnable beforeRun) {
+		this.beforeRun = beforeRun;
+	}
+
+	/**
+	 * @return every combination of the grid, the first dimension changing
+	 *         slowest
+	 */
+	@Nonnull
+	public List<TuningOverrides> getCombinations() {
+		List<Integer> rowSets = orKeep(rowSetSizes);
+		List<Integer> feedbacks = orKeep(feedbackSizes);
+
+		List<Map<String, Integer>> copies = new ArrayList<Map<String, Integer>>();
+		copies.add(new LinkedHashMap<String, Integer>());
+		for (Map.Entry<String, List<Integer>> step : stepCopies.entrySet()) {
+			List<Map<String, Integer>> next = new ArrayList<Map<String, Integer>>();
+			for (Map<String, Integer> partial : copies) {
+				for (Integer n : step.getValue()) {
+					Map<String, Integer> combination = new LinkedHashMap<String, Integer>(
+							partial);
+					combination.put(step.getKey(), n);
+					next.add(combination);
+				}
+			}
+			copies = next;
+		}
+
+		List<TuningOverrides> combinations = new ArrayList<TuningOverrides>();
+		for (Integer rowSet : rowSets) {
+			for (Integer feedback : feedbacks) {
+				for (Map<String, Integer> copy : copies) {
+					combinations.add(new TuningOverrides(rowSet, feedback,
+							copy));
+				}
+			}
+		}
+		return combinations;
+	}
+
+	private static List<Integer> orKeep(List<Integer> values) {
+		return values.isEmpty() ? Collections.singletonList(-1) : values;
+	}
+
+	/**
+	 * Benchmarks every combination, one after another.
+	 *
+	 * @return the benchmarks, fastest first: by median rows per second, then
+	 *         by median wall time. Combinations with failed runs come last.
+	 *         See {@link #formatReport(List)} for a report of them.
+	 * @throws IllegalStateException
+	 *             if the file is not a transformation
+	 */
+	@Nonnull
+	public List<Benchmark> run() throws IllegalStateException {
+		if (!(RunnerFactory.createRunner(xmlFile) instanceof TransformationRunner)) {
+			throw new IllegalStateException("Only transformations can be tuned, not "
+					+ xmlFile.getName());
+		}
+		List<Benchmark> results = new ArrayList<Benchmark>();
+		for (TuningOverrides overrides : getCombinations()) {
+			Benchmark benchmark = new Benchmark(xmlFile, warmups, runs);
+			benchmark.setParameters(parameters);
+			benchmark.setSafeModeEnabled(safeModeEnabled);
+			benchmark.setBeforeRun(beforeRun);
+			benchmark.setOverrides(overrides);
+			benchmark.run();
+			results.add(benchmark);
+		}
+		rank(results);
+		return results;
+	}
+
+	/**
+	 * Sorts benchmarks fastest first: by median rows per second, then by
+	 * median wall time. Benchmarks with failed runs come last.
+	 *
+	 * @param benchmarks
+	 *            the benchmarks to sort
+	 */
+	static void rank(List<Benchmark> benchmarks) {
+		Collections.sort(benchmarks, new Comparator<Benchmark>() {
+			public int compare(Benchmark a, Benchmark b) {
+				if ((a.getFailures() > 0) != (b.getFailures() > 0)) {
+					return (a.getFailures() > 0) ? 1 : -1;
+				}
+				long ra = a.getRowsPerSecond().getPercentile(50);
+				long rb = b.getRowsPerSecond().getPercentile(50);
+				if (ra != rb) {
+					return (ra > rb) ? -1 : 1;
+				}
+				long wa = a.getWallMillis().getPercentile(50);
+				long wb = b.getWallMillis().getPercentile(50);
+				return (wa < wb) ? -1 : ((wa == wb) ? 0 : 1);
+			}
+		});
+	}
+
+	/**
+	 * @param ranked
+	 *            the benchmarks in rank order
+	 * @return a table of the benchmarks, one line each
+	 */
+	@Nonnull
+	public String formatReport(List<Benchmark> ranked) {
+		StringBuffer b = new StringBuffer("Tuning sweep of ");
+		b.append(xmlFile.getName());
+		b.append(", ");
+		b.append(runs);
+		b.append(" run(s) per combination:\n");
+		b.append("rank\trows/s p50\twall ms p50\twall ms p95\tmax heap growth MB\tfailed\tsettings\n");
+		for (int i = 0; i < ranked.size(); i++) {
+			Benchmark benchmark = ranked.get(i);
+			b.append(i + 1);
+			b.append('\t');
+			b.append(benchmark.getRowsPerSecond().getPercentile(50));
+			b.append('\t');
+			b.append(benchmark.getWallMillis().getPercentile(50));
+			b.append('\t');
+			b.append(benchmark.getWallMillis().getPercentile(95));
+			b.append('\t');
+			b.append(benchmark.getHeapGrowth().getMax() / (1024 * 1024));
+			b.append('\t');
+			b.append(benchmark.getFailures());
+			b.append('\t');
+			b.append(benchmark.getOverrides());
+			b.append('\n');
+		}
+		return b.toString();
+	}
+}
@@ -0,0 +1,159 @@
+package xbi.testutils.kettle;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.CheckForNull;
+
+import org.pentaho.di.core.CheckResult;
+import org.pentaho.di.core.CheckResultInterface;
+import org.pentaho.di.core.CheckResultSourceInterface;
+import org.pentaho.di.trans.step.StepMeta;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Singleton cache of Kettle verification (checkSteps) results. Results are
+ * keyed by the artifact's path and content hash plus the effective variables
+ * and parameter values, so a changed file or a different parameter set is
+ * always verified again. The least recently used results are dropped once
+ * {@value #MAX_ENTRIES} are held.
+ *
+ * Only the type, text and step name of each remark are kept. A remark from
+ * Kettle points at its StepMeta, which points at the whole TransMeta, and
+ * the cache would otherwise keep every verified transformation alive.
+ *
+ * @author eniesc200
+ */
+public enum VerificationCache {
+	INSTANCE;
+	private static final Logger LOGGER = LoggerFactory
+			.getLogger(VerificationCache.class);
+
+	/** The maximum number of verification results kept. */
+	public static final int MAX_ENTRIES = 256;
+
+	private final Map<String, List<CheckResultInterface>> results = new LinkedHashMap<String, List<CheckResultInterface>>(
+			16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(
+				Map.Entry<String, List<CheckResultInterface>> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	};
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Builds a cache key.
+	 *
+	 * @param path
+	 *            the absolute path of the artifact
+	 * @param contentHash
+	 *            the hash of the artifact's contents
+	 * @param settings
+	 *            the effective variables and parameter values, name to value
+	 * @return the key
+	 */
+	public static String key(String path, String contentHash,
+			Map<String, String> settings) {
+		SortedMap<String, String> sorted = new TreeMap<String, String>();
+		for (Map.Entry<String, String> entry : settings.entrySet()) {
+			sorted.put(entry.getKey(), entry.getValue());
+		}
+		MessageDigest digest = ContentHash.digest("MD5");
+		try {
+			for (Map.Entry<String, String> entry : sorted.entrySet()) {
+				digest.update(entry.getKey().getBytes("UTF-8"));
+				digest.update((byte) '=');
+				if (entry.getValue() != null) {
+					digest.update(entry.getValue().getBytes("UTF-8"));
+				}
+				digest.update((byte) '\n');
+			}
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+		return path + "|" + contentHash + "|"
+				+ ContentHash.toHex(digest.digest());
+	}
+
+	/**
+	 * @param key
+	 *            a key built by {@link #key(String, String, Map)}
+	 * @return the cached remarks, or null if this key has not been verified
+	 */
+	@CheckForNull
+	public synchronized List<CheckResultInterface> get(String key) {
+		List<CheckResultInterface> remarks = results.get(key);
+		if (remarks == null) {
+			misses.incrementAndGet();
+		} else {
+			hits.incrementAndGet();
+			LOGGER.debug("Using cached verification results for " + key);
+		}
+		return remarks;
+	}
+
+	/**
+	 * @param key
+	 *            a key built by {@link #key(String, String, Map)}
+	 * @param remarks
+	 *            the remarks produced by verification
+	 */
+	public synchronized void put(String key, List<CheckResultInterface> remarks) {
+		List<CheckResultInterface> detached = new ArrayList<CheckResultInterface>(
+				remarks.size());
+		for (CheckResultInterface remark : remarks) {
+			detached.add(detach(remark));
+		}
+		results.put(key, Collections.unmodifiableList(detached));
+	}
+
+	/*
+	 * A copy of the remark whose source is a bare step of the same name.
+	 */
+	private static CheckResultInterface detach(CheckResultInterface remark) {
+		CheckResultSourceInterface source = remark.getSourceInfo();
+		StepMeta step = null;
+		if (source != null) {
+			step = new StepMeta();
+			step.setName(source.getName());
+		}
+		return new CheckResult(remark.getType(), remark.getText(), step);
+	}
+
+	/**
+	 * @return the number of verifications served from the cache
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return the number of verifications that had to be run
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Drops all cached results and resets the counters.
+	 */
+	public synchronized void clear() {
+		results.clear();
+		hits.set(0);
+		misses.set(0);
+	}
+}
@@ -47,4 +47,62 @@ public class DumpTestDataModeTest {
 		Assert.assertEquals("select col1,c02 from xbi_pres.ed", mode.getSqlMap().get("tablename2"));
 		Assert.assertEquals("bar", mode.getSqlMap().get("foo"));
 	}
+	
+	@Test
+	public void setCompressedAddsExtension() {
+		DumpTestDataMode mode = new DumpTestDataMode(new File("/tmp/dump.xml"));
+		mode.setCompressed();
+		Assert.assertEquals("/tmp/dump.xml.gz", mode.getDumpFile().getAbsolutePath());
+		mode.setCompressed();
+		Assert.assertEquals("/tmp/dump.xml.gz", mode.getDumpFile().getAbsolutePath());
+	}
+	
+	@Test
+	public void invalidFetchSize() {
+		DumpTestDataMode mode = new DumpTestDataMode(new File("/dev/null"));
+		mode.setSqlMap("{tablename:select * from dual}");
+		mode.setFetchSize(0);
+		Assert.assertFalse(mode.isValid());
+	}
+	
+	@Test
+	public void sqlMapKeepsOrder() {
+		DumpTestDataMode mode = new DumpTestDataMode(new File("/dev/null"));
+		mode.setSqlMap("{zeta:select 1 from dual},{alpha:select 2 from dual},{mid:select 3 from dual}");
+		Assert.assertEquals("[zeta, alpha, mid]", mode.getSqlMap().keySet().toString());
+	}
+	
+	@Test
+	public void invalidThreads() {
+		DumpTestDataMode mode = new DumpTestDataMode(new File("/dev/null"));
+		mode.setSqlMap("{tablename:select * from dual}");
+		mode.setThreads(0);
+		Assert.assertFalse(mode.isValid());
+	}
+	
+	@Test
+	public void setSplitKeys() {
+		DumpTestDataMode mode = new DumpTestDataMode(new File("/dev/null"));
+		mode.setSqlMap("{fact:select * from fact},{dim:select * from dim}");
+		mode.setSplitKeys("fact:FACT_ID,dim:bad key");
+		Assert.assertEquals(1, mode.getSplitKeys().size());
+		Assert.assertEquals("FACT_ID", mode.getSplitKeys().get("fact"));
+		Assert.assertTrue(mode.isValid());
+	}
+	
+	@Test
+	public void splitKeyWithoutQuery() {
+		DumpTestDataMode mode = new DumpTestDataMode(new File("/dev/null"));
+		mode.setSqlMap("{fact:select * from fact}");
+		mode.setSplitKeys("other:ID");
+		Assert.assertFalse(mode.isValid());
+	}
+	
+	@Test
+	public void invalidSplits() {
+		DumpTestDataMode mode = new DumpTestDataMode(new File("/dev/null"));
+		mode.setSqlMap("{tablename:select * from dual}");
+		mode.setSplits(0);
+		Assert.assertFalse(mode.isValid());
+	}
 }
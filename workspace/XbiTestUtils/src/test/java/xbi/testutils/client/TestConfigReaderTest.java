@@ -0,0 +1,162 @@
+package xbi.testutils.client;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import xbi.testutils.dbunit.InjectedInput;
+import xbi.testutils.dbunit.KettleTestCaseConfiguration;
+import xbi.testutils.dbunit.PerformanceBudget;
+
+public class TestConfigReaderTest {
+
+	private File writeConfig(String xml) throws IOException {
+		File f = File.createTempFile("testconfigreader", ".xml");
+		f.deleteOnExit();
+		FileWriter w = new FileWriter(f);
+		w.write(xml);
+		w.close();
+		return f;
+	}
+
+	@Test
+	public void readMultipleTests() throws IOException {
+		File f = writeConfig("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+				+ "<TestSuite threads=\"4\">\n"
+				+ "<Test name=\"first\" type=\"KTR\">\n"
+				+ "  <Executable>/tmp/first.ktr</Executable>\n"
+				+ "  <TestData><InputFile>/tmp/in1.xml</InputFile></TestData>\n"
+				+ "  <ExpectedResults><OutputFile>/tmp/out1.xml</OutputFile></ExpectedResults>\n"
+				+ "  <TargetTables><TargetTable name=\"t1\"><OrderBy>CODE</OrderBy></TargetTable></TargetTables>\n"
+				+ "  <Parameters><Param name=\"p\">1</Param></Parameters>\n"
+				+ "</Test>\n"
+				+ "<Test name=\"second\" type=\"KTR\">\n"
+				+ "  <Executable>/tmp/second.ktr</Executable>\n"
+				+ "  <TestData/>\n"
+				+ "  <ExpectedResults><OutputFile>/tmp/out2.xml</OutputFile></ExpectedResults>\n"
+				+ "  <TargetTables><TargetTable name=\"t2\"/></TargetTables>\n"
+				+ "</Test>\n" + "</TestSuite>\n");
+
+		TestConfigReader reader = new TestConfigReader(f);
+		Assert.assertEquals(4, reader.getThreads());
+		List<KettleTestCaseConfiguration> configs = reader.getConfigurations();
+		Assert.assertEquals(2, configs.size());
+
+		Assert.assertEquals("first", configs.get(0).getName());
+		Assert.assertEquals("/tmp/first.ktr", configs.get(0).getExecutableFile().getAbsolutePath());
+		Assert.assertEquals(1, configs.get(0).getInFiles().size());
+		Assert.assertEquals("CODE", configs.get(0).getTargetTables().get("t1")[0]);
+		Assert.assertEquals("1", configs.get(0).getParams().get("p"));
+
+		Assert.assertEquals("second", configs.get(1).getName());
+		Assert.assertEquals("/tmp/second.ktr", configs.get(1).getExecutableFile().getAbsolutePath());
+		Assert.assertEquals(0, configs.get(1).getInFiles().size());
+		Assert.assertEquals(0, configs.get(1).getParams().size());
+		Assert.assertTrue(configs.get(1).getTargetTables().containsKey("t2"));
+	}
+
+	@Test
+	public void readParameterSets() throws IOException {
+		File f = writeConfig("<TestSuite><Test sweepThreads=\"3\">"
+				+ "<Executable>/tmp/a.ktr</Executable>"
+				+ "<Parameters><Param name=\"BATCH_DATE\">2014-01-01</Param></Parameters>"
+				+ "<Parameters><Param name=\"BATCH_DATE\">2014-01-02</Param></Parameters>"
+				+ "<Parameters><Param name=\"BATCH_DATE\">2014-01-03</Param></Parameters>"
+				+ "</Test></TestSuite>");
+		KettleTestCaseConfiguration config = new TestConfigReader(f).getConfigurations().get(0);
+		Assert.assertEquals(3, config.getParameterSets().size());
+		Assert.assertEquals("2014-01-03", config.getParameterSets().get(2).get("BATCH_DATE"));
+		Assert.assertEquals(3, config.getSweepThreads());
+	}
+
+	@Test
+	public void readTimeout() throws IOException {
+		File f = writeConfig("<TestSuite><Test>"
+				+ "<Executable>/tmp/a.ktr</Executable>"
+				+ "<Timeout stall=\"60\" max=\"600\"/>"
+				+ "</Test></TestSuite>");
+		KettleTestCaseConfiguration config = new TestConfigReader(f).getConfigurations().get(0);
+		Assert.assertTrue(config.hasTimeouts());
+		Assert.assertEquals(60000, config.getStallTimeoutMillis());
+		Assert.assertEquals(600000, config.getRunTimeoutMillis());
+	}
+
+	@Test
+	public void readPerformance() throws IOException {
+		File f = writeConfig("<TestSuite><Test>"
+				+ "<Executable>/tmp/a.ktr</Executable>"
+				+ "<Performance baseline=\"/tmp/a.properties\" tolerance=\"15\">"
+				+ "<MaxWallMillis>60000</MaxWallMillis>"
+				+ "<MaxHeapGrowthMb>64</MaxHeapGrowthMb>"
+				+ "<MinRowsPerSecond step=\"Table output\">500</MinRowsPerSecond>"
+				+ "</Performance>"
+				+ "</Test></TestSuite>");
+		PerformanceBudget budget = new TestConfigReader(f).getConfigurations().get(0).getPerformanceBudget();
+		Assert.assertEquals(60000, budget.getMaxWallMillis());
+		Assert.assertEquals(64L * 1024 * 1024, budget.getMaxHeapGrowth());
+		Assert.assertEquals(500.0, budget.getMinRowsPerSecond().get("Table output"), 0.001);
+		Assert.assertEquals(15.0, budget.getTolerancePercent(), 0.001);
+		Assert.assertEquals("/tmp/a.properties", budget.getBaseline().getAbsolutePath());
+	}
+
+	@Test
+	public void readInject() throws IOException {
+		File f = writeConfig("<TestSuite><Test>"
+				+ "<Executable>/tmp/a.ktr</Executable>"
+				+ "<TestData><Inject step=\"Read orders\" file=\"/tmp/orders.xml\" table=\"ORDERS\" dateFormat=\"yyyy-MM-dd\">"
+				+ "<Field name=\"AMOUNT\" type=\"Number\"/>"
+				+ "</Inject></TestData>"
+				+ "</Test></TestSuite>");
+		List<InjectedInput> inputs = new TestConfigReader(f).getConfigurations().get(0).getInjectedInputs();
+		Assert.assertEquals(1, inputs.size());
+		Assert.assertEquals("Read orders", inputs.get(0).getStepName());
+		Assert.assertEquals("/tmp/orders.xml", inputs.get(0).getFile().getAbsolutePath());
+		Assert.assertEquals("ORDERS", inputs.get(0).getTable());
+		Assert.assertEquals("yyyy-MM-dd", inputs.get(0).getDateFormat());
+		Assert.assertEquals("Number", inputs.get(0).getFieldTypes().get("AMOUNT"));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void readInjectWithoutStep() throws IOException {
+		new TestConfigReader(writeConfig("<TestSuite><Test><Executable>/tmp/a.ktr</Executable>"
+				+ "<TestData><Inject file=\"/tmp/orders.xml\"/></TestData></Test></TestSuite>"));
+	}
+
+	@Test
+	public void readCaptureStep() throws IOException {
+		File f = writeConfig("<TestSuite><Test>"
+				+ "<Executable>/tmp/a.ktr</Executable>"
+				+ "<ExpectedResults><OutputFile>/tmp/out.xml</OutputFile></ExpectedResults>"
+				+ "<TargetTables><TargetTable name=\"ORDERS\" captureStep=\"Write orders\"/><TargetTable name=\"T2\"/></TargetTables>"
+				+ "</Test></TestSuite>");
+		KettleTestCaseConfiguration config = new TestConfigReader(f).getConfigurations().get(0);
+		Assert.assertEquals(1, config.getCaptureSteps().size());
+		Assert.assertEquals("Write orders", config.getCaptureSteps().get("ORDERS"));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void readNoTests() throws IOException {
+		new TestConfigReader(writeConfig("<TestSuite/>"));
+	}
+
+	@Test
+	public void threadsDefaultToOne() throws IOException {
+		File f = writeConfig("<TestSuite><Test><Executable>/tmp/a.ktr</Executable></Test></TestSuite>");
+		Assert.assertEquals(1, new TestConfigReader(f).getThreads());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void invalidThreads() throws IOException {
+		new TestConfigReader(writeConfig("<TestSuite threads=\"0\"><Test><Executable>/tmp/a.ktr</Executable></Test></TestSuite>"));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void readMissingFile() {
+		new TestConfigReader(new File("/no/such/config.xml"));
+	}
+}
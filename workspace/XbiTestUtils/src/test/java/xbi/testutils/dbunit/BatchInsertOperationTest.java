@@ -0,0 +1,76 @@
+package xbi.testutils.dbunit;
+
+import java.util.Arrays;
+
+import junit.framework.Assert;
+
+import org.dbunit.dataset.Column;
+import org.dbunit.dataset.DataSetException;
+import org.dbunit.dataset.DefaultDataSet;
+import org.dbunit.dataset.DefaultTable;
+import org.dbunit.dataset.DefaultTableMetaData;
+import org.dbunit.dataset.IDataSet;
+import org.dbunit.dataset.ITable;
+import org.dbunit.dataset.datatype.DataType;
+import org.junit.Test;
+
+public class BatchInsertOperationTest {
+
+	private static final Column[] COLUMNS = { new Column("ID",
+			DataType.VARCHAR) };
+
+	private DefaultTable table(String name, int rows) throws DataSetException {
+		DefaultTable table = new DefaultTable(new DefaultTableMetaData(name,
+				COLUMNS));
+		for (int r = 0; r < rows; r++) {
+			table.addRow(new Object[] { String.valueOf(r) });
+		}
+		return table;
+	}
+
+	@Test
+	public void insertsInBatches() throws Exception {
+		RecordingConnection connection = new RecordingConnection(
+				new String[] { "PARENT", "CHILD" }, new String[] { "ID" });
+		IDataSet dataSet = new DefaultDataSet(new ITable[] {
+				table("PARENT", 1), table("EMPTY", 0), table("CHILD", 5) });
+		BatchInsertOperation insert = new BatchInsertOperation(2);
+		insert.execute(connection.getDatabaseConnection(), dataSet);
+
+		Assert.assertEquals(Arrays.asList("insert PARENT x1", "commit",
+				"insert CHILD x2", "commit", "insert CHILD x2", "commit",
+				"insert CHILD x1", "commit"), connection.getEvents());
+		Assert.assertEquals(Arrays.asList("PARENT", "CHILD"), Arrays
+				.asList(insert.getRowsPerSecond().keySet().toArray()));
+	}
+
+	@Test
+	public void rollsBackOnFailure() throws Exception {
+		RecordingConnection connection = new RecordingConnection(
+				new String[] { "CHILD" }, new String[] { "ID" });
+		DefaultTable broken = new DefaultTable(new DefaultTableMetaData(
+				"CHILD", COLUMNS)) {
+			@Override
+			public int getRowCount() {
+				return 3;
+			}
+
+			@Override
+			public Object getValue(int row, String column) {
+				if (row == 2) {
+					throw new IllegalStateException("bad row");
+				}
+				return String.valueOf(row);
+			}
+		};
+		try {
+			new BatchInsertOperation(2).execute(connection
+					.getDatabaseConnection(), new DefaultDataSet(broken));
+			Assert.fail("inserted a bad row");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		Assert.assertEquals(Arrays.asList("insert CHILD x2", "commit",
+				"rollback"), connection.getEvents());
+	}
+}
@@ -0,0 +1,96 @@
+package xbi.testutils.dbunit;
+
+import junit.framework.Assert;
+
+import org.dbunit.Assertion;
+import org.dbunit.dataset.Column;
+import org.dbunit.dataset.DefaultTable;
+import org.dbunit.dataset.DefaultTableMetaData;
+import org.dbunit.dataset.ITable;
+import org.dbunit.dataset.SortedTable;
+import org.dbunit.dataset.datatype.DataType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMeta;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+import xbi.testutils.kettle.CapturedRows;
+import xbi.testutils.kettle.TestTransformations;
+
+public class CapturedTableTest {
+
+	private static final Column[] COLUMNS = {
+			new Column("CODE", DataType.VARCHAR),
+			new Column("AMOUNT", DataType.BIGINT) };
+
+	private CapturedRows rows;
+
+	@Before
+	public void capture() throws Exception {
+		RowMetaInterface rowMeta = new RowMeta();
+		rowMeta.addValueMeta(new ValueMeta("code",
+				ValueMetaInterface.TYPE_STRING));
+		rowMeta.addValueMeta(new ValueMeta("amount",
+				ValueMetaInterface.TYPE_INTEGER));
+		Object[][] captured = new Object[10][];
+		for (int i = 0; i < captured.length; i++) {
+			// codes come in reverse and in pairs, the amount tells them apart
+			captured[i] = new Object[] { "c" + (4 - i / 2),
+					Long.valueOf(100 + i) };
+		}
+		rows = TestTransformations.capturedRows(3, rowMeta, captured);
+		Assert.assertTrue(rows.isSpilled());
+	}
+
+	@After
+	public void dispose() {
+		rows.dispose();
+	}
+
+	private ITable expected() throws Exception {
+		DefaultTable table = new DefaultTable(new DefaultTableMetaData("OUT",
+				COLUMNS));
+		for (int i = 9; i >= 0; i--) {
+			table.addRow(new Object[] { "c" + (4 - i / 2),
+					Long.valueOf(100 + i) });
+		}
+		return table;
+	}
+
+	@Test
+	public void sortsSpilledRowsOnKeyColumns() throws Exception {
+		String[] orderBy = { "CODE", "AMOUNT" };
+		ITable actual = new CapturedTable("OUT", rows, COLUMNS, new String[] {
+				"code", "amount" });
+		SortedTable sortedExpected = new SortedTable(expected(), orderBy);
+		sortedExpected.setUseComparable(true);
+		SortedTable sortedActual = new SortedTable(actual, orderBy);
+		sortedActual.setUseComparable(true);
+		Assertion.assertEquals(sortedExpected, sortedActual);
+		Assert.assertEquals("c0", sortedActual.getValue(0, "CODE"));
+		Assert.assertEquals(Long.valueOf(108), sortedActual.getValue(0,
+				"AMOUNT"));
+	}
+
+	@Test
+	public void readsOtherColumnsByRow() throws Exception {
+		ITable actual = new CapturedTable("OUT", rows, COLUMNS,
+				new String[] { "CODE" });
+		Assert.assertEquals(10, actual.getRowCount());
+		for (int i = 0; i < 10; i++) {
+			Assert.assertEquals("c" + (4 - i / 2), actual.getValue(i, "CODE"));
+			Assert.assertEquals(Long.valueOf(100 + i), actual.getValue(i,
+					"AMOUNT"));
+		}
+	}
+
+	@Test
+	public void sortsWithoutKeyColumns() throws Exception {
+		ITable actual = new CapturedTable("OUT", rows, COLUMNS, null);
+		Assertion.assertEquals(new SortedTable(expected()), new SortedTable(
+				actual));
+	}
+}
@@ -0,0 +1,64 @@
+package xbi.testutils.dbunit;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.HashMap;
+
+import junit.framework.Assert;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import xbi.testutils.kettle.TestTransformations;
+
+public class ConfigurableKettleTestCaseTest {
+
+	private static File ktr;
+
+	@BeforeClass
+	public static void createTransformation() throws Exception {
+		TestTransformations.initKettle();
+		ktr = TestTransformations.writeKtr(TestTransformations.dummyChain(
+				"Input", "Output"));
+	}
+
+	private File writeDataSet(String xml) throws IOException {
+		File f = File.createTempFile("configurablekettletestcase", ".xml");
+		f.deleteOnExit();
+		FileWriter w = new FileWriter(f);
+		w.write(xml);
+		w.close();
+		return f;
+	}
+
+	@Test
+	public void runsWithoutDatabase() throws Exception {
+		String rows = "  <T CODE=\"a\" NAME=\"x\"/>\n"
+				+ "  <T CODE=\"b\" NAME=\"y\"/>\n";
+		File in = writeDataSet("<?xml version=\"1.0\"?>\n<dataset>\n" + rows
+				+ "</dataset>\n");
+		File out = writeDataSet("<?xml version=\"1.0\"?>\n<dataset>\n"
+				+ rows.replace("<T ", "<OUT ") + "</dataset>\n");
+		KettleTestCaseConfiguration config = new KettleTestCaseConfiguration.Builder(
+				ktr).setName("injected")
+				.addInjectedInput(new InjectedInput("Input", in, null,
+						new HashMap<String, String>(), null)).addTargetTable("OUT")
+				.setCaptureStep("OUT", "Output").addOutFile(out)
+				.setTimeouts(30000, 60000).build();
+
+		ConfigurableKettleTestCase testCase = new ConfigurableKettleTestCase(
+				config);
+		Assert.assertFalse(testCase.needsDatabase());
+		try {
+			testCase.preflight();
+			Assert.assertNull(testCase.connector);
+			testCase.registerObjectsForCleanup();
+			testCase.checkResults();
+			testCase.test();
+			testCase.cleanupTestData();
+		} finally {
+			testCase.release();
+		}
+	}
+}
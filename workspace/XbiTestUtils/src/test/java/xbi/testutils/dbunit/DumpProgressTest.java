@@ -0,0 +1,18 @@
+package xbi.testutils.dbunit;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class DumpProgressTest {
+
+	@Test
+	public void countsRowsAndRanges() {
+		DumpProgress progress = new DumpProgress("fact", 3);
+		progress.addRows(1000);
+		progress.addRows(250);
+		progress.rangeDone();
+		Assert.assertEquals(1250, progress.getRows());
+		Assert.assertEquals(1, progress.getRangesDone());
+	}
+}
@@ -0,0 +1,91 @@
+package xbi.testutils.dbunit;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLStreamException;
+
+import junit.framework.Assert;
+
+import org.dbunit.DatabaseUnitException;
+import org.junit.Test;
+
+public class FlatXmlStreamLoaderTest {
+
+	private File writeDataSet(String xml) throws IOException {
+		File f = File.createTempFile("flatxmlstreamloader", ".xml");
+		f.deleteOnExit();
+		FileWriter w = new FileWriter(f);
+		w.write(xml);
+		w.close();
+		return f;
+	}
+
+	@Test
+	public void scanSensesColumns() throws IOException, XMLStreamException {
+		File f = writeDataSet("<?xml version=\"1.0\"?>\n"
+				+ "<!DOCTYPE dataset SYSTEM \"not-there.dtd\">\n"
+				+ "<dataset>\n"
+				+ "  <STG.ORDERS ID=\"1\"/>\n"
+				+ "  <STG.EMPTY/>\n"
+				+ "  <STG.ORDERS ID=\"2\" AMOUNT=\"3.5\"/>\n"
+				+ "  <STG.CUSTOMERS NAME=\"a\"/>\n"
+				+ "</dataset>\n");
+		Map<String, List<String>> tables = new FlatXmlStreamLoader(f, 10).scanColumns();
+		Assert.assertEquals(Arrays.asList("STG.ORDERS", "STG.EMPTY", "STG.CUSTOMERS"),
+				Arrays.asList(tables.keySet().toArray()));
+		Assert.assertEquals(Arrays.asList("ID", "AMOUNT"), tables.get("STG.ORDERS"));
+		Assert.assertEquals(0, tables.get("STG.EMPTY").size());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidBatchSize() {
+		new FlatXmlStreamLoader(new File("a.xml"), 0);
+	}
+
+	@Test
+	public void insertsParentsBeforeChildren() throws Exception {
+		File f = writeDataSet("<?xml version=\"1.0\"?>\n"
+				+ "<dataset>\n"
+				+ "  <PARENT ID=\"1\"/>\n"
+				+ "  <CHILD ID=\"1\"/>\n"
+				+ "  <CHILD ID=\"2\"/>\n"
+				+ "  <CHILD ID=\"3\"/>\n"
+				+ "</dataset>\n");
+		RecordingConnection connection = new RecordingConnection(
+				new String[] { "PARENT", "CHILD" }, new String[] { "ID" });
+		Map<String, Integer> counts = new FlatXmlStreamLoader(f, 2)
+				.load(connection.getDatabaseConnection());
+		Assert.assertEquals(Arrays.asList("delete from CHILD",
+				"delete from PARENT", "commit", "insert PARENT x1",
+				"insert CHILD x2", "commit", "insert CHILD x1", "commit"),
+				connection.getEvents());
+		Assert.assertEquals(Integer.valueOf(1), counts.get("PARENT"));
+		Assert.assertEquals(Integer.valueOf(3), counts.get("CHILD"));
+	}
+
+	@Test
+	public void rollsBackPendingRowsOnFailure() throws Exception {
+		File f = writeDataSet("<?xml version=\"1.0\"?>\n"
+				+ "<dataset>\n"
+				+ "  <PARENT ID=\"1\"/>\n"
+				+ "  <CHILD ID=\"1\" MISSING=\"x\"/>\n"
+				+ "</dataset>\n");
+		RecordingConnection connection = new RecordingConnection(
+				new String[] { "PARENT", "CHILD" }, new String[] { "ID" });
+		try {
+			new FlatXmlStreamLoader(f, 2).load(connection
+					.getDatabaseConnection());
+			Assert.fail("loaded a column the table does not have");
+		} catch (DatabaseUnitException e) {
+			// expected
+		}
+		Assert.assertEquals(Arrays.asList("delete from CHILD",
+				"delete from PARENT", "commit", "rollback"), connection
+				.getEvents());
+	}
+}
@@ -0,0 +1,48 @@
+package xbi.testutils.dbunit;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+import junit.framework.Assert;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+public class FlatXmlStreamWriterTest {
+
+	private File tempFile() throws IOException {
+		File f = File.createTempFile("flatxmlstreamwriter", ".xml");
+		f.deleteOnExit();
+		return f;
+	}
+
+	@Test
+	public void endsTheDataSet() throws IOException {
+		File f = tempFile();
+		FlatXmlStreamWriter writer = new FlatXmlStreamWriter(f, false);
+		writer.writeEmptyTable("STG.EMPTY");
+		writer.close();
+		Assert.assertEquals("<?xml version='1.0' encoding='UTF-8'?>\n"
+				+ "<dataset>\n" + "  <STG.EMPTY/>\n" + "</dataset>\n",
+				FileUtils.readFileToString(f, "UTF-8"));
+	}
+
+	@Test
+	public void doesNotEndTheDataSetAfterAFailedWrite() throws IOException {
+		File f = tempFile();
+		File missing = new File(f.getAbsolutePath() + ".missing");
+		FlatXmlStreamWriter writer = new FlatXmlStreamWriter(f, false);
+		writer.writeEmptyTable("STG.EMPTY");
+		try {
+			writer.append(missing);
+			Assert.fail("appended a missing part");
+		} catch (FileNotFoundException e) {
+			// expected
+		} finally {
+			writer.close();
+		}
+		Assert.assertFalse(FileUtils.readFileToString(f, "UTF-8").contains(
+				"</dataset>"));
+	}
+}
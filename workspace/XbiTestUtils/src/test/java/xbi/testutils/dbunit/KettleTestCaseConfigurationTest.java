@@ -350,4 +350,70 @@ public class KettleTestCaseConfigurationTest {
 		Assert.assertTrue(configuration.getParams().containsKey("param2"));
 		Assert.assertEquals("zoo", configuration.getParams().get("param2"));
 	}
+
+	@Test
+	public void addParameterSets() {
+		KettleTestCaseConfiguration.Builder builder = new KettleTestCaseConfiguration.Builder(f);
+		builder.newParameterSet();  // nothing added yet, no new set
+		builder.addParameter("BATCH_DATE", "2014-01-01");
+		builder.newParameterSet();
+		builder.addParameter("BATCH_DATE", "2014-01-02");
+		builder.setSweepThreads(2);
+		KettleTestCaseConfiguration configuration = builder.build();
+		
+		Assert.assertEquals(2, configuration.getParameterSets().size());
+		Assert.assertEquals("2014-01-01", configuration.getParameterSets().get(0).get("BATCH_DATE"));
+		Assert.assertEquals("2014-01-02", configuration.getParameterSets().get(1).get("BATCH_DATE"));
+		Assert.assertEquals("2014-01-01", configuration.getParams().get("BATCH_DATE"));
+		Assert.assertEquals(2, configuration.getSweepThreads());
+	}
+	
+	@Test
+	public void defaultParameterSet() {
+		KettleTestCaseConfiguration configuration = new KettleTestCaseConfiguration.Builder(f).build();
+		
+		Assert.assertEquals(1, configuration.getParameterSets().size());
+		Assert.assertEquals(0, configuration.getParameterSets().get(0).size());
+		Assert.assertEquals(1, configuration.getSweepThreads());
+	}
+	
+	@Test(expected = IllegalStateException.class)
+	public void invalidSweepThreads() {
+		new KettleTestCaseConfiguration.Builder(f).setSweepThreads(0).build();
+	}
+	
+	@Test(expected = IllegalStateException.class)
+	public void captureStepNeedsTargetTable() {
+		new KettleTestCaseConfiguration.Builder(f).setCaptureStep("T1", "Table output").build();
+	}
+	
+	@Test(expected = IllegalStateException.class)
+	public void captureStepWithParameterSets() {
+		KettleTestCaseConfiguration.Builder builder = new KettleTestCaseConfiguration.Builder(f);
+		builder.addTargetTable("T1").setCaptureStep("T1", "Table output");
+		builder.addParameter("BATCH_DATE", "2014-01-01");
+		builder.newParameterSet();
+		builder.addParameter("BATCH_DATE", "2014-01-02");
+		builder.build();
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void expectedResultsWithParameterSets() {
+		KettleTestCaseConfiguration.Builder builder = new KettleTestCaseConfiguration.Builder(f);
+		builder.addTargetTable("T1").addOutFile(new File("/expected.xml"));
+		builder.addParameter("BATCH_DATE", "2014-01-01");
+		builder.newParameterSet();
+		builder.addParameter("BATCH_DATE", "2014-01-02");
+		builder.build();
+	}
+
+	@Test
+	public void timingRunWithParameterSets() {
+		KettleTestCaseConfiguration.Builder builder = new KettleTestCaseConfiguration.Builder(f);
+		builder.addTargetTable("T1");
+		builder.addParameter("BATCH_DATE", "2014-01-01");
+		builder.newParameterSet();
+		builder.addParameter("BATCH_DATE", "2014-01-02");
+		Assert.assertEquals(2, builder.build().getParameterSets().size());
+	}
 }
@@ -0,0 +1,86 @@
+package xbi.testutils.dbunit;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class KeyRangeTest {
+
+	@Test
+	public void rangesAreContiguous() {
+		List<KeyRange> ranges = KeyRange.split(BigDecimal.ONE,
+				BigDecimal.valueOf(100), 4);
+		Assert.assertEquals(4, ranges.size());
+		Assert.assertNull(ranges.get(0).getLow());
+		for (int i = 1; i < ranges.size(); i++) {
+			Assert.assertEquals(ranges.get(i - 1).getHigh(), ranges.get(i)
+					.getLow());
+		}
+		Assert.assertNull(ranges.get(3).getHigh());
+		Assert.assertEquals(0, new BigDecimal("25.75").compareTo(ranges.get(1)
+				.getLow()));
+	}
+
+	@Test
+	public void onlyTheLastRangeTakesNullKeys() {
+		List<KeyRange> ranges = KeyRange.split(BigDecimal.ZERO,
+				BigDecimal.TEN, 3);
+		Assert.assertFalse(ranges.get(0).includesNullKeys());
+		Assert.assertFalse(ranges.get(1).includesNullKeys());
+		Assert.assertTrue(ranges.get(2).includesNullKeys());
+	}
+
+	@Test
+	public void largeKeysKeepIncreasingBounds() {
+		BigDecimal min = new BigDecimal("123456789012345678901234567890");
+		BigDecimal max = min.add(new BigDecimal("1000000000000000000001"));
+		List<KeyRange> ranges = KeyRange.split(min, max, 7);
+		Assert.assertEquals(7, ranges.size());
+		BigDecimal previous = min;
+		for (int i = 1; i < ranges.size(); i++) {
+			BigDecimal low = ranges.get(i).getLow();
+			Assert.assertTrue(low + " after " + previous,
+					low.compareTo(previous) > 0);
+			Assert.assertEquals(ranges.get(i - 1).getHigh(), low);
+			previous = low;
+		}
+		// the width is rounded, but the last range is open, so max is in it
+		Assert.assertTrue(previous.compareTo(max) < 0);
+		Assert.assertNull(ranges.get(6).getHigh());
+	}
+
+	@Test
+	public void singleKeyIsNotSplit() {
+		List<KeyRange> ranges = KeyRange.split(BigDecimal.TEN, BigDecimal.TEN,
+				4);
+		Assert.assertEquals(1, ranges.size());
+		Assert.assertEquals("select * from t", ranges.get(0).toSql(
+				"select * from t", "ID"));
+		Assert.assertEquals(0, ranges.get(0).getParameters().length);
+	}
+
+	@Test
+	public void noKeysAreNotSplit() {
+		Assert.assertEquals(1, KeyRange.split(null, null, 4).size());
+	}
+
+	@Test
+	public void buildsRangeQueries() {
+		List<KeyRange> ranges = KeyRange.split(BigDecimal.ZERO,
+				BigDecimal.TEN, 3);
+		String query = "select * from t";
+		Assert.assertEquals("select q.* from (select * from t) q where "
+				+ "q.ID < ?", ranges.get(0).toSql(query, "ID"));
+		Assert.assertEquals("select q.* from (select * from t) q where "
+				+ "q.ID >= ? and q.ID < ?", ranges.get(1).toSql(query, "ID"));
+		Assert.assertEquals("select q.* from (select * from t) q where "
+				+ "q.ID >= ? or q.ID is null", ranges.get(2).toSql(query, "ID"));
+		Assert.assertEquals(Arrays.asList(ranges.get(1).getLow(), ranges.get(1)
+				.getHigh()), Arrays.asList(ranges.get(1).getParameters()));
+		Assert.assertEquals(1, ranges.get(2).getParameters().length);
+	}
+}
@@ -0,0 +1,144 @@
+package xbi.testutils.dbunit;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import xbi.testutils.kettle.RunMetrics;
+
+public class PerformanceBudgetTest {
+
+	// 2000 rows in 1 s through "Table output", 10 s wall time, 100 bytes heap growth
+	private RunMetrics metrics() {
+		List<RunMetrics.StepMetrics> steps = new ArrayList<RunMetrics.StepMetrics>();
+		steps.add(new RunMetrics.StepMetrics("Table output", 0, 2000, 0, 0, 2000, 0, 0, 0, 1000));
+		return new RunMetrics("tr_test", 0, 10000, 100, 200, steps);
+	}
+
+	@Test
+	public void withinLimits() {
+		PerformanceBudget budget = new PerformanceBudget.Builder()
+				.setMinRowsPerSecond("Table output", 1500)
+				.setMaxWallMillis(20000)
+				.setMaxHeapGrowth(1000)
+				.build();
+		Assert.assertEquals(0, budget.check(metrics()).size());
+	}
+
+	@Test
+	public void limitsBroken() {
+		PerformanceBudget budget = new PerformanceBudget.Builder()
+				.setMinRowsPerSecond("Table output", 3000)
+				.setMaxWallMillis(5000)
+				.setMaxHeapGrowth(10)
+				.build();
+		Assert.assertEquals(3, budget.check(metrics()).size());
+	}
+
+	@Test
+	public void tolerance() {
+		PerformanceBudget budget = new PerformanceBudget.Builder()
+				.setMinRowsPerSecond("Table output", 2100)
+				.setMaxWallMillis(9500)
+				.setTolerancePercent(10)
+				.build();
+		Assert.assertEquals(0, budget.check(metrics()).size());
+	}
+
+	@Test
+	public void baseline() throws IOException {
+		File file = File.createTempFile("baseline", ".properties");
+		file.deleteOnExit();
+		PerformanceBudget.writeBaseline(file, metrics());
+
+		PerformanceBudget budget = new PerformanceBudget.Builder()
+				.setBaseline(file)
+				.setTolerancePercent(5)
+				.build();
+		Assert.assertEquals(0, budget.check(metrics()).size());
+
+		// half the speed and twice the time of the baseline
+		List<RunMetrics.StepMetrics> steps = new ArrayList<RunMetrics.StepMetrics>();
+		steps.add(new RunMetrics.StepMetrics("Table output", 0, 2000, 0, 0, 2000, 0, 0, 0, 2000));
+		RunMetrics slower = new RunMetrics("tr_test", 0, 20000, 100, 200, steps);
+		Assert.assertEquals(2, budget.check(slower).size());
+	}
+
+	@Test
+	public void baselineLeavesOutSmallSteps() throws IOException {
+		List<RunMetrics.StepMetrics> steps = new ArrayList<RunMetrics.StepMetrics>();
+		steps.add(new RunMetrics.StepMetrics("Lookup", 0, 50, 50, 0, 0, 0, 0, 0, 10));
+		steps.add(new RunMetrics.StepMetrics("Table output", 0, 10000, 0, 0, 10000, 0, 0, 0, 2000));
+		steps.add(new RunMetrics.StepMetrics("Table output", 1, 10000, 0, 0, 10000, 0, 0, 0, 2500));
+		File file = File.createTempFile("baseline", ".properties");
+		file.deleteOnExit();
+		PerformanceBudget.writeBaseline(file, new RunMetrics("tr_test", 0, 10000, 100, 200, steps));
+
+		Properties props = new Properties();
+		InputStream in = new FileInputStream(file);
+		try {
+			props.load(in);
+		} finally {
+			in.close();
+		}
+		Assert.assertEquals("2000.0", props.getProperty(PerformanceBudget.KEY_RUN_ROWS_PER_SECOND));
+		Assert.assertEquals("8000.0", props.getProperty(PerformanceBudget.KEY_ROWS_PER_SECOND + "Table output"));
+		Assert.assertNull(props.getProperty(PerformanceBudget.KEY_ROWS_PER_SECOND + "Lookup"));
+	}
+
+	@Test
+	public void baselineOfShrunkHeap() throws IOException {
+		File file = File.createTempFile("baseline", ".properties");
+		file.deleteOnExit();
+		// the heap shrank from 200 to 100 bytes over the run
+		List<RunMetrics.StepMetrics> steps = new ArrayList<RunMetrics.StepMetrics>();
+		PerformanceBudget.writeBaseline(file, new RunMetrics("tr_test", 0, 10000, 200, 100, steps));
+		Properties props = new Properties();
+		InputStream in = new FileInputStream(file);
+		try {
+			props.load(in);
+		} finally {
+			in.close();
+		}
+		Assert.assertNull(props.getProperty(PerformanceBudget.KEY_HEAP_GROWTH));
+
+		PerformanceBudget budget = new PerformanceBudget.Builder().setBaseline(file).build();
+		Assert.assertEquals(0, budget.check(new RunMetrics("tr_test", 0, 10000, 0, 1024 * 1024, steps)).size());
+	}
+
+	@Test
+	public void baselineHeapGrowthHasAFloor() throws IOException {
+		File file = File.createTempFile("baseline", ".properties");
+		file.deleteOnExit();
+		List<RunMetrics.StepMetrics> steps = new ArrayList<RunMetrics.StepMetrics>();
+		// an older baseline that recorded no growth at all
+		Properties props = new Properties();
+		props.setProperty(PerformanceBudget.KEY_HEAP_GROWTH, "0");
+		OutputStream out = new FileOutputStream(file);
+		try {
+			props.store(out, null);
+		} finally {
+			out.close();
+		}
+
+		PerformanceBudget budget = new PerformanceBudget.Builder().setBaseline(file).build();
+		Assert.assertEquals(0, budget.check(new RunMetrics("tr_test", 0, 10000, 0, 1024 * 1024, steps)).size());
+		Assert.assertEquals(1, budget.check(new RunMetrics("tr_test", 0, 10000, 0,
+				PerformanceBudget.BASELINE_MIN_HEAP_GROWTH + 1, steps)).size());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void negativeTolerance() {
+		new PerformanceBudget.Builder().setTolerancePercent(-1);
+	}
+}
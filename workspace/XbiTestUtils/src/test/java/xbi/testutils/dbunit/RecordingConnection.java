@@ -0,0 +1,138 @@
+package xbi.testutils.dbunit;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.dbunit.database.IDatabaseConnection;
+import org.dbunit.dataset.Column;
+import org.dbunit.dataset.DataSetException;
+import org.dbunit.dataset.DefaultDataSet;
+import org.dbunit.dataset.DefaultTable;
+import org.dbunit.dataset.DefaultTableMetaData;
+import org.dbunit.dataset.IDataSet;
+import org.dbunit.dataset.ITable;
+import org.dbunit.dataset.datatype.DataType;
+
+/**
+ * A database connection without a database: the deletes, insert batches and
+ * commits sent through it are recorded in order, see {@link #getEvents()}.
+ * Every table has the same columns, all of them VARCHAR.
+ */
+class RecordingConnection {
+
+	private final List<String> events = new ArrayList<String>();
+	private final IDataSet dataSet;
+
+	RecordingConnection(String[] tableNames, String[] columnNames)
+			throws DataSetException {
+		Column[] columns = new Column[columnNames.length];
+		for (int c = 0; c < columns.length; c++) {
+			columns[c] = new Column(columnNames[c], DataType.VARCHAR);
+		}
+		ITable[] tables = new ITable[tableNames.length];
+		for (int t = 0; t < tables.length; t++) {
+			tables[t] = new DefaultTable(new DefaultTableMetaData(
+					tableNames[t], columns));
+		}
+		dataSet = new DefaultDataSet(tables);
+	}
+
+	/**
+	 * @return "delete from T", "insert T xN" for a batch of N rows, "commit"
+	 *         and "rollback", in the order they were sent
+	 */
+	List<String> getEvents() {
+		return events;
+	}
+
+	IDatabaseConnection getDatabaseConnection() {
+		final Connection jdbc = proxy(Connection.class, new Handler() {
+			Object handle(String method, Object[] args) {
+				if (method.equals("commit") || method.equals("rollback")) {
+					events.add(method);
+				} else if (method.equals("createStatement")) {
+					return statement();
+				} else if (method.equals("prepareStatement")) {
+					return preparedStatement((String) args[0]);
+				}
+				return null;
+			}
+		});
+		return proxy(IDatabaseConnection.class, new Handler() {
+			Object handle(String method, Object[] args) {
+				if (method.equals("getConnection")) {
+					return jdbc;
+				} else if (method.equals("createDataSet")) {
+					return dataSet;
+				}
+				return null;
+			}
+		});
+	}
+
+	private Statement statement() {
+		return proxy(Statement.class, new Handler() {
+			Object handle(String method, Object[] args) {
+				if (method.equals("executeUpdate")) {
+					events.add((String) args[0]);
+				}
+				return null;
+			}
+		});
+	}
+
+	private PreparedStatement preparedStatement(String sql) {
+		// insert into T (...) values (...)
+		final String table = sql.split(" ")[2];
+		return proxy(PreparedStatement.class, new Handler() {
+			private int rows;
+
+			Object handle(String method, Object[] args) {
+				if (method.equals("addBatch")) {
+					rows++;
+				} else if (method.equals("executeBatch")) {
+					events.add("insert " + table + " x" + rows);
+					int[] counts = new int[rows];
+					rows = 0;
+					return counts;
+				}
+				return null;
+			}
+		});
+	}
+
+	/*
+	 * Handles every method of a proxied interface, returning the default
+	 * value of its return type when handle() returns null.
+	 */
+	private static abstract class Handler implements InvocationHandler {
+		abstract Object handle(String method, Object[] args);
+
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			Object result = handle(method.getName(), args);
+			Class<?> type = method.getReturnType();
+			if (result != null || !type.isPrimitive() || type == void.class) {
+				return result;
+			}
+			if (type == boolean.class) {
+				return Boolean.FALSE;
+			}
+			if (type == long.class) {
+				return Long.valueOf(0);
+			}
+			return Integer.valueOf(0);
+		}
+	}
+
+	private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+		return type.cast(Proxy.newProxyInstance(
+				RecordingConnection.class.getClassLoader(),
+				new Class<?>[] { type }, handler));
+	}
+}
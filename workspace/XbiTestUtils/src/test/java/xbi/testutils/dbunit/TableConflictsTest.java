@@ -0,0 +1,90 @@
+package xbi.testutils.dbunit;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class TableConflictsTest {
+
+	private static Set<String> tables(String... names) {
+		return new HashSet<String>(Arrays.asList(names));
+	}
+
+	@Test
+	public void normalizeStripsSchemaAndCase() {
+		Assert.assertEquals("TEST_TABLE_OUT", TableConflicts.normalize("xbi_stg.test_table_out"));
+		Assert.assertEquals("TEST_TABLE_OUT", TableConflicts.normalize(" test_table_out "));
+	}
+
+	@Test
+	public void independentUnitsGetTheirOwnGroup() {
+		Map<String, Set<String>> units = new LinkedHashMap<String, Set<String>>();
+		units.put("a", tables("T1"));
+		units.put("b", tables("T2"));
+		units.put("c", tables());
+
+		List<List<String>> groups = TableConflicts.partition(units);
+		Assert.assertEquals(3, groups.size());
+		Assert.assertEquals(Arrays.asList("a"), groups.get(0));
+		Assert.assertEquals(Arrays.asList("b"), groups.get(1));
+		Assert.assertEquals(Arrays.asList("c"), groups.get(2));
+	}
+
+	@Test
+	public void sharedTablesKeepOrderWithinGroup() {
+		Map<String, Set<String>> units = new LinkedHashMap<String, Set<String>>();
+		units.put("a", tables("T1"));
+		units.put("b", tables("T2"));
+		units.put("c", tables("t1", "T3"));
+		units.put("d", tables("schema.T3"));
+		units.put("e", tables("T4"));
+
+		List<List<String>> groups = TableConflicts.partition(units);
+		Assert.assertEquals(3, groups.size());
+		Assert.assertEquals(Arrays.asList("a", "c", "d"), groups.get(0));
+		Assert.assertEquals(Arrays.asList("b"), groups.get(1));
+		Assert.assertEquals(Arrays.asList("e"), groups.get(2));
+	}
+
+	@Test
+	public void transitiveConflictsAreMerged() {
+		Map<String, Set<String>> units = new LinkedHashMap<String, Set<String>>();
+		units.put("a", tables("T1"));
+		units.put("b", tables("T2"));
+		units.put("c", tables("T1", "T2"));
+
+		List<List<String>> groups = TableConflicts.partition(units);
+		Assert.assertEquals(1, groups.size());
+		Assert.assertEquals(Arrays.asList("a", "b", "c"), groups.get(0));
+	}
+
+	@Test
+	public void scanTableNamesFromFlatXml() throws IOException {
+		File f = File.createTempFile("tableconflicts", ".xml");
+		f.deleteOnExit();
+		FileWriter w = new FileWriter(f);
+		w.write("<?xml version='1.0' encoding='UTF-8'?>\n<dataset>\n"
+				+ "  <test_table_in_a NAME=\"FOO\"/>\n"
+				+ "  <test_table_in_a NAME=\"BAR\"/>\n"
+				+ "  <test_table_in_b CODE=\"F\"/>\n" + "</dataset>\n");
+		w.close();
+
+		Set<String> names = TableConflicts.scanTableNames(f);
+		Assert.assertEquals(tables("TEST_TABLE_IN_A", "TEST_TABLE_IN_B"), names);
+	}
+
+	@Test
+	public void scanTableNamesMissingFile() {
+		Assert.assertEquals(0, TableConflicts.scanTableNames(new File("/no/such/file.xml")).size());
+	}
+}
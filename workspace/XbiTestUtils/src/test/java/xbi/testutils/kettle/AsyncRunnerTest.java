@@ -0,0 +1,130 @@
+package xbi.testutils.kettle;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class AsyncRunnerTest {
+
+	private ExecutorService executor;
+
+	@BeforeClass
+	public static void init() throws Exception {
+		TestTransformations.initKettle();
+	}
+
+	@Before
+	public void startExecutor() {
+		executor = Executors.newSingleThreadExecutor();
+	}
+
+	@After
+	public void stopExecutor() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void chainsPhases() {
+		StubRunner runner = new StubRunner();
+		AsyncRunner async = new AsyncRunner(runner, executor);
+		PhaseFuture setup = async.setup();
+		PhaseFuture parameters = async.then("parameters",
+				new Callable<Boolean>() {
+					public Boolean call() {
+						return Boolean.TRUE;
+					}
+				});
+		async.verify();
+		PhaseFuture run = async.run();
+		PhaseResult result = run.getResult();
+		Assert.assertTrue(result.toString(), result.isSuccess());
+		Assert.assertEquals(AsyncRunner.PHASE_RUN, result.getPhase());
+		Assert.assertTrue(setup.isSuccess());
+		Assert.assertTrue(parameters.isSuccess());
+		Assert.assertEquals(1, runner.setups.get());
+		Assert.assertEquals(1, runner.verifies.get());
+		Assert.assertEquals(1, runner.runs.get());
+		Assert.assertTrue(runner.isComplete());
+	}
+
+	@Test
+	public void failedPhaseSkipsTheRest() {
+		StubRunner runner = new StubRunner().failVerify();
+		AsyncRunner async = new AsyncRunner(runner, executor);
+		async.setup();
+		PhaseFuture verify = async.verify();
+		PhaseFuture run = async.run();
+		PhaseResult result = run.getResult();
+		Assert.assertFalse(result.isSuccess());
+		Assert.assertEquals("skipped, verify did not succeed",
+				result.getError());
+		Assert.assertFalse(verify.isSuccess());
+		Assert.assertTrue(verify.getResult().getError(), verify.getResult()
+				.getError().startsWith("verification failed"));
+		Assert.assertEquals(0, runner.runs.get());
+	}
+
+	@Test
+	public void cancellingARunningPhaseStopsTheRunner() throws Exception {
+		StubRunner runner = new StubRunner().holdRun();
+		AsyncRunner async = new AsyncRunner(runner, executor);
+		PhaseFuture run = async.runAll();
+		PhaseFuture after = async.then("after", new Callable<Boolean>() {
+			public Boolean call() {
+				return Boolean.TRUE;
+			}
+		});
+		Assert.assertTrue(runner.running.await(10, TimeUnit.SECONDS));
+		Assert.assertTrue(run.cancel(true));
+		Assert.assertTrue(runner.stops.get() > 0);
+		Assert.assertTrue(after.isCancelled());
+		Assert.assertEquals("cancelled", after.getResult().getError());
+		Assert.assertFalse(run.getResult().isSuccess());
+	}
+
+	@Test
+	public void cancelStopsTheRunnerAndEarlierPhases() throws Exception {
+		StubRunner runner = new StubRunner().holdRun();
+		AsyncRunner async = new AsyncRunner(runner, executor);
+		PhaseFuture run = async.runAll();
+		PhaseFuture after = async.then("after", new Callable<Boolean>() {
+			public Boolean call() {
+				return Boolean.TRUE;
+			}
+		});
+		Assert.assertTrue(runner.running.await(10, TimeUnit.SECONDS));
+		Assert.assertTrue(async.cancel());
+		Assert.assertTrue(after.isCancelled());
+		Assert.assertTrue(run.isCancelled());
+		Assert.assertTrue(runner.stops.get() > 0);
+		Assert.assertFalse(runner.isComplete());
+	}
+
+	@Test
+	public void rejectedPhaseIsSkipped() {
+		StubRunner runner = new StubRunner();
+		AsyncRunner async = new AsyncRunner(runner, new Executor() {
+			public void execute(Runnable command) {
+				throw new RejectedExecutionException("full");
+			}
+		});
+		PhaseFuture setup = async.setup();
+		PhaseFuture verify = async.verify();
+		Assert.assertTrue(setup.isDone());
+		Assert.assertEquals("rejected by the executor: full", setup
+				.getResult().getError());
+		Assert.assertEquals("skipped, setup did not succeed", verify
+				.getResult().getError());
+		Assert.assertEquals(0, runner.setups.get());
+	}
+}
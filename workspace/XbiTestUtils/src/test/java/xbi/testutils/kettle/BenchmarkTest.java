@@ -0,0 +1,84 @@
+package xbi.testutils.kettle;
+
+import java.io.File;
+
+import junit.framework.Assert;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class BenchmarkTest {
+
+	@BeforeClass
+	public static void init() throws Exception {
+		TestTransformations.initKettle();
+	}
+
+	private static Benchmark benchmark(final StubRunner runner, int warmups,
+			int runs) {
+		return new Benchmark(new File("stub.ktr"), warmups, runs) {
+			@Override
+			Runner createRunner() {
+				return runner;
+			}
+		};
+	}
+
+	@Test
+	public void discardsWarmups() {
+		StubRunner runner = new StubRunner().durations(1000, 500, 500, 10, 20,
+				40);
+		Benchmark benchmark = benchmark(runner, 2, 3);
+		benchmark.run();
+		Assert.assertEquals(5, runner.setups.get());
+		Assert.assertEquals(5, runner.runs.get());
+		Assert.assertEquals(0, benchmark.getFailures());
+		Assert.assertEquals(3, benchmark.getWallMillis().getCount());
+		Assert.assertEquals(10, benchmark.getWallMillis().getMin());
+		Assert.assertEquals(40, benchmark.getWallMillis().getMax());
+	}
+
+	@Test
+	public void aggregatesRuns() {
+		StubRunner runner = new StubRunner().durations(1000, 10, 20, 40);
+		Benchmark benchmark = benchmark(runner, 0, 3);
+		benchmark.run();
+		LatencyStats rowsPerSecond = benchmark.getRowsPerSecond();
+		Assert.assertEquals(3, rowsPerSecond.getCount());
+		Assert.assertEquals(25000, rowsPerSecond.getMin());
+		Assert.assertEquals(100000, rowsPerSecond.getMax());
+		Assert.assertEquals(50000, rowsPerSecond.getPercentile(50));
+		Assert.assertEquals(3, benchmark.getHeapGrowth().getCount());
+	}
+
+	@Test
+	public void leavesOutFailedRuns() {
+		StubRunner runner = new StubRunner().durations(1000, 10, 20, 40)
+				.outcomes(true, false, true);
+		Benchmark benchmark = benchmark(runner, 0, 3);
+		benchmark.run();
+		Assert.assertEquals(1, benchmark.getFailures());
+		Assert.assertEquals(2, benchmark.getWallMillis().getCount());
+		Assert.assertEquals(10, benchmark.getWallMillis().getMin());
+		Assert.assertEquals(40, benchmark.getWallMillis().getMax());
+	}
+
+	@Test
+	public void setupFailureIsAFailedRun() {
+		StubRunner runner = new StubRunner().failSetup();
+		Benchmark benchmark = benchmark(runner, 1, 2);
+		benchmark.run();
+		Assert.assertEquals(2, benchmark.getFailures());
+		Assert.assertEquals(0, benchmark.getWallMillis().getCount());
+		Assert.assertEquals(0, runner.runs.get());
+	}
+
+	@Test
+	public void timesRunWithoutMetrics() {
+		StubRunner runner = new StubRunner();
+		Benchmark benchmark = benchmark(runner, 0, 2);
+		benchmark.run();
+		Assert.assertEquals(2, benchmark.getWallMillis().getCount());
+		Assert.assertEquals(0, benchmark.getRowsPerSecond().getCount());
+	}
+}
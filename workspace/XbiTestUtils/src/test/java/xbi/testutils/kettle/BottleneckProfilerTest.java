@@ -0,0 +1,98 @@
+package xbi.testutils.kettle;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.trans.Trans;
+
+import xbi.testutils.kettle.BottleneckProfiler.StepProfile;
+
+public class BottleneckProfilerTest {
+
+	@BeforeClass
+	public static void initKettle() throws IOException {
+		TestTransformations.initKettle();
+	}
+
+	private BottleneckProfiler attachedProfiler() throws KettleException {
+		Trans trans = new Trans(TestTransformations.dummyChain("Read",
+				"Lookup", "Write"));
+		trans.prepareExecution(null);
+		BottleneckProfiler profiler = new BottleneckProfiler(trans, "test",
+				10);
+		profiler.attach();
+		return profiler;
+	}
+
+	private StepProfile profile(BottleneckProfiler profiler, String stepName) {
+		for (StepProfile profile : profiler.getRanking()) {
+			if (profile.getStepName().equals(stepName)) {
+				return profile;
+			}
+		}
+		throw new AssertionError("No profile of " + stepName);
+	}
+
+	@Test
+	public void ranksBottleneckFirst() throws KettleException {
+		BottleneckProfiler profiler = attachedProfiler();
+		// rows queue up in front of Lookup, Read waits for it
+		profile(profiler, "Read").record(0, 1.0, false);
+		profile(profiler, "Read").record(0, 1.0, false);
+		profile(profiler, "Lookup").record(1.0, 0.1, true);
+		profile(profiler, "Lookup").record(0.9, 0.1, true);
+		profile(profiler, "Write").record(0, 0, true);
+		profile(profiler, "Write").record(0.1, 0, true);
+
+		List<StepProfile> ranking = profiler.getRanking();
+		Assert.assertEquals(3, ranking.size());
+		StepProfile first = ranking.get(0);
+		Assert.assertEquals("Lookup", first.getStepName());
+		Assert.assertEquals(2, first.getBottleneckSamples());
+		Assert.assertEquals(0.95, first.getMeanInputFill(), 0.0001);
+		Assert.assertEquals(2, profile(profiler, "Read").getBlockedSamples());
+		Assert.assertEquals(1, profile(profiler, "Write").getStarvedSamples());
+		profiler.detach();
+	}
+
+	@Test
+	public void reportsRanking() throws Exception {
+		BottleneckProfiler profiler = attachedProfiler();
+		profile(profiler, "Lookup").record(1.0, 0, true);
+		profile(profiler, "Write").record(0, 0, true);
+
+		String report = profiler.getReport();
+		Assert.assertTrue(report, report.startsWith("Bottleneck profile of test"));
+		Assert.assertTrue(report, report.contains("\n1\t100\t0\t0\t100\t0\t0\tLookup.0"));
+		Assert.assertTrue(report, report.contains("\t0\t100\t0\t0\t0\tWrite.0"));
+
+		StringWriter json = new StringWriter();
+		profiler.writeJson(json);
+		String s = json.toString();
+		Assert.assertTrue(s, s.contains("\"name\": \"test\""));
+		Assert.assertTrue(s, s.contains("{\"rank\": 1, \"step\": \"Lookup\", \"copy\": 0, "
+				+ "\"samples\": 1, \"bottleneck\": 1, \"blocked\": 0, \"starved\": 0, "
+				+ "\"meanInputFill\": 1.0, \"meanOutputFill\": 0.0"));
+		Assert.assertTrue(s, s.trim().endsWith("]\n}"));
+		profiler.detach();
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void startBeforeAttach() throws KettleException {
+		Trans trans = new Trans(TestTransformations.dummyChain("Read"));
+		trans.prepareExecution(null);
+		new BottleneckProfiler(trans, "test", 10).start();
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void attachBeforePrepare() {
+		Trans trans = new Trans(TestTransformations.dummyChain("Read"));
+		new BottleneckProfiler(trans, "test", 10).attach();
+	}
+}
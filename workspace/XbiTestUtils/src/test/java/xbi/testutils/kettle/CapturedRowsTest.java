@@ -0,0 +1,66 @@
+package xbi.testutils.kettle;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMeta;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+public class CapturedRowsTest {
+
+	private RowMetaInterface rowMeta() {
+		RowMetaInterface rowMeta = new RowMeta();
+		rowMeta.addValueMeta(new ValueMeta("CODE",
+				ValueMetaInterface.TYPE_STRING));
+		rowMeta.addValueMeta(new ValueMeta("AMOUNT",
+				ValueMetaInterface.TYPE_INTEGER));
+		return rowMeta;
+	}
+
+	@Test
+	public void keepsRowsInMemory() throws KettleException {
+		CapturedRows rows = new CapturedRows("out", 10);
+		// Kettle hands out rows bigger than their layout
+		rows.add(rowMeta(), new Object[] { "a", Long.valueOf(1), null, null });
+		Assert.assertEquals(1, rows.size());
+		Assert.assertFalse(rows.isSpilled());
+		Assert.assertEquals(2, rows.getRow(0).length);
+		Assert.assertEquals("a", rows.getRow(0)[0]);
+		Assert.assertEquals(2, rows.getRowMeta().size());
+	}
+
+	@Test
+	public void spillsToFile() throws KettleException {
+		CapturedRows rows = new CapturedRows("out", 2);
+		try {
+			for (int i = 0; i < 5; i++) {
+				rows.add(rowMeta(), new Object[] { "row" + i,
+						(i == 3) ? null : Long.valueOf(i) });
+			}
+			Assert.assertEquals(5, rows.size());
+			Assert.assertTrue(rows.isSpilled());
+			Assert.assertEquals("row4", rows.getRow(4)[0]);
+			Assert.assertEquals(Long.valueOf(2), rows.getRow(2)[1]);
+			Assert.assertNull(rows.getRow(3)[1]);
+			Assert.assertEquals("row0", rows.getRow(0)[0]);
+		} finally {
+			rows.dispose();
+		}
+		Assert.assertEquals(0, rows.size());
+	}
+
+	@Test
+	public void nothingCaptured() {
+		CapturedRows rows = new CapturedRows("out", 2);
+		Assert.assertEquals(0, rows.size());
+		Assert.assertNull(rows.getRowMeta());
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void rowOutOfRange() {
+		new CapturedRows("out", 2).getRow(0);
+	}
+}
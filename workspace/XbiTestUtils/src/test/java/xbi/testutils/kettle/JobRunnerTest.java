@@ -0,0 +1,70 @@
+package xbi.testutils.kettle;
+
+import java.io.File;
+
+import junit.framework.Assert;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class JobRunnerTest {
+
+	private static File kjb;
+
+	@BeforeClass
+	public static void createJob() throws Exception {
+		TestTransformations.initKettle();
+		kjb = TestTransformations.writeKjb(TestTransformations
+				.successJob(true));
+	}
+
+	@Test
+	public void runsOnceVerified() {
+		JobRunner runner = new JobRunner(kjb);
+		runner.setup();
+		Assert.assertTrue(runner.isReady());
+		Assert.assertFalse(runner.isVerified());
+		runner.verify();
+		Assert.assertTrue(runner.isVerified());
+		runner.run();
+		Assert.assertTrue(runner.isComplete());
+		runner.releaseLogs();
+	}
+
+	@Test
+	public void doesNotRunUnverified() {
+		JobRunner runner = new JobRunner(kjb);
+		runner.setup();
+		runner.run();
+		Assert.assertFalse(runner.isComplete());
+		runner.releaseLogs();
+	}
+
+	@Test
+	public void setupAgainNeedsVerification() {
+		JobRunner runner = new JobRunner(kjb);
+		runner.setup();
+		runner.verify();
+		runner.run();
+		Assert.assertTrue(runner.isComplete());
+
+		runner.setup();
+		Assert.assertFalse(runner.isVerified());
+		Assert.assertFalse(runner.isComplete());
+		runner.run();
+		Assert.assertFalse(runner.isComplete());
+		runner.releaseLogs();
+	}
+
+	@Test
+	public void jobWithoutStartFailsVerification() throws Exception {
+		JobRunner runner = new JobRunner(TestTransformations
+				.writeKjb(TestTransformations.successJob(false)));
+		runner.setup();
+		runner.verify();
+		Assert.assertFalse(runner.isVerified());
+		runner.run();
+		Assert.assertFalse(runner.isComplete());
+		runner.releaseLogs();
+	}
+}
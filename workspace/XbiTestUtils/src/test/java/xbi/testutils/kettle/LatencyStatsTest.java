@@ -0,0 +1,47 @@
+package xbi.testutils.kettle;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class LatencyStatsTest {
+
+	@Test
+	public void percentiles() {
+		LatencyStats stats = new LatencyStats();
+		for (int i = 100; i >= 1; i--) {
+			stats.add(i);
+		}
+		Assert.assertEquals(100, stats.getCount());
+		Assert.assertEquals(1, stats.getMin());
+		Assert.assertEquals(50, stats.getPercentile(50));
+		Assert.assertEquals(95, stats.getPercentile(95));
+		Assert.assertEquals(99, stats.getPercentile(99));
+		Assert.assertEquals(100, stats.getMax());
+		Assert.assertEquals(50.5, stats.getMean(), 0.001);
+	}
+
+	@Test
+	public void fewSamples() {
+		LatencyStats stats = new LatencyStats();
+		stats.add(30);
+		stats.add(10);
+		stats.add(20);
+		Assert.assertEquals(20, stats.getPercentile(50));
+		Assert.assertEquals(30, stats.getPercentile(95));
+		Assert.assertEquals(10, stats.getMin());
+	}
+
+	@Test
+	public void empty() {
+		LatencyStats stats = new LatencyStats();
+		Assert.assertEquals(0, stats.getCount());
+		Assert.assertEquals(0, stats.getPercentile(99));
+		Assert.assertEquals(0.0, stats.getMean(), 0.001);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void outOfRange() {
+		new LatencyStats().getPercentile(101);
+	}
+}
@@ -0,0 +1,81 @@
+package xbi.testutils.kettle;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.pentaho.di.core.plugins.Plugin;
+import org.pentaho.di.core.plugins.PluginInterface;
+import org.pentaho.di.core.plugins.StepPluginType;
+import org.pentaho.di.trans.step.StepMetaInterface;
+import org.pentaho.di.trans.steps.dummytrans.DummyTransMeta;
+
+public class PluginRegistryCacheTest {
+
+	private static Plugin plugin(String[] ids) throws IOException {
+		Map<Class<?>, String> classes = new HashMap<Class<?>, String>();
+		classes.put(StepMetaInterface.class, DummyTransMeta.class.getName());
+		Plugin plugin = new Plugin(ids, StepPluginType.class,
+				StepMetaInterface.class, "Flow", "Test step", "Does nothing",
+				"test.png", true, false, classes, Arrays.asList(
+						"lib/one.jar", "lib/two.jar"), "help.html", new URL(
+						"file:/opt/kettle/plugins/test/"));
+		plugin.setClassLoaderGroup("group");
+		plugin.setDocumentationUrl("http://docs");
+		plugin.setCasesUrl("http://cases");
+		plugin.setForumUrl("http://forum");
+		return plugin;
+	}
+
+	private static PluginInterface roundTrip(PluginInterface plugin)
+			throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(new PluginRegistryCache.Entry(plugin));
+		out.close();
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(
+				bytes.toByteArray()));
+		return ((PluginRegistryCache.Entry) in.readObject()).toPlugin();
+	}
+
+	@Test
+	public void keepsEveryField() throws Exception {
+		PluginInterface restored = roundTrip(plugin(new String[] { "TEST",
+				"TEST_OLD" }));
+		Assert.assertEquals(Arrays.asList("TEST", "TEST_OLD"), Arrays
+				.asList(restored.getIds()));
+		Assert.assertEquals(StepPluginType.class, restored.getPluginType());
+		Assert.assertEquals(StepMetaInterface.class, restored.getMainType());
+		Assert.assertEquals("Flow", restored.getCategory());
+		Assert.assertEquals("Test step", restored.getName());
+		Assert.assertEquals("Does nothing", restored.getDescription());
+		Assert.assertEquals("test.png", restored.getImageFile());
+		Assert.assertTrue(restored.isSeparateClassLoaderNeeded());
+		Assert.assertFalse(restored.isNativePlugin());
+		Assert.assertEquals(DummyTransMeta.class.getName(), restored
+				.getClassMap().get(StepMetaInterface.class));
+		Assert.assertEquals(Arrays.asList("lib/one.jar", "lib/two.jar"),
+				restored.getLibraries());
+		Assert.assertEquals("help.html", restored.getErrorHelpFile());
+		Assert.assertEquals("file:/opt/kettle/plugins/test/", restored
+				.getPluginDirectory().toExternalForm());
+		Assert.assertEquals("group", restored.getClassLoaderGroup());
+		Assert.assertEquals("http://docs", restored.getDocumentationUrl());
+		Assert.assertEquals("http://cases", restored.getCasesUrl());
+		Assert.assertEquals("http://forum", restored.getForumUrl());
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsPluginWithoutId() throws Exception {
+		roundTrip(plugin(new String[] { null }));
+	}
+}
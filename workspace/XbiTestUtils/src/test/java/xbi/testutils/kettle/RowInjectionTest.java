@@ -0,0 +1,65 @@
+package xbi.testutils.kettle;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMeta;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+public class RowInjectionTest {
+
+	private static File ktr;
+
+	@BeforeClass
+	public static void createTransformation() throws Exception {
+		TestTransformations.initKettle();
+		ktr = TestTransformations.writeKtr(TestTransformations.dummyChain(
+				"Input", "Output"));
+	}
+
+	@Test
+	public void injectedRowsReachTheCapturedStep() throws KettleException {
+		RowMetaInterface rowMeta = new RowMeta();
+		rowMeta.addValueMeta(new ValueMeta("CODE",
+				ValueMetaInterface.TYPE_STRING));
+		rowMeta.addValueMeta(new ValueMeta("AMOUNT",
+				ValueMetaInterface.TYPE_INTEGER));
+		List<Object[]> rows = new ArrayList<Object[]>();
+		for (int i = 0; i < 3; i++) {
+			rows.add(new Object[] { "row" + i, Long.valueOf(i) });
+		}
+
+		TransformationRunner runner = new TransformationRunner(ktr);
+		runner.setTimeouts(30000, 60000);
+		runner.addRowInjection(new RowInjection("Input", rowMeta, rows));
+		runner.addRowCapture(new RowCapture("Output"));
+		runner.setup();
+		runner.verify();
+		Assert.assertTrue(runner.isVerified());
+		runner.run();
+		try {
+			// the Injector only finishes once the end of input is signalled
+			Assert.assertTrue(runner.isComplete());
+			Assert.assertNull(runner.getAbortReport());
+
+			CapturedRows captured = runner.getCapturedRows("Output");
+			Assert.assertEquals(3, captured.size());
+			Assert.assertEquals(2, captured.getRowMeta().size());
+			for (int i = 0; i < 3; i++) {
+				Assert.assertEquals("row" + i, captured.getRow(i)[0]);
+				Assert.assertEquals(Long.valueOf(i), captured.getRow(i)[1]);
+			}
+		} finally {
+			runner.disposeCapturedRows();
+			runner.releaseLogs();
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package xbi.testutils.kettle;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class RunMetricsTest {
+
+	private RunMetrics metrics() {
+		List<RunMetrics.StepMetrics> steps = new ArrayList<RunMetrics.StepMetrics>();
+		steps.add(new RunMetrics.StepMetrics("Table input", 0, 0, 1000, 1000, 0, 0, 0, 0, 500));
+		steps.add(new RunMetrics.StepMetrics("Calc, \"fast\"", 0, 500, 500, 0, 0, 0, 0, 0, 1000));
+		steps.add(new RunMetrics.StepMetrics("Calc, \"fast\"", 1, 500, 500, 0, 0, 0, 0, 1, 2000));
+		return new RunMetrics("tr_test", 0, 2500, 1000, 3000, steps);
+	}
+
+	@Test
+	public void rowsPerSecond() {
+		RunMetrics metrics = metrics();
+		Assert.assertEquals(2000.0, metrics.getSteps().get(0).getRowsPerSecond(), 0.001);
+		// all copies over the slowest copy
+		Assert.assertEquals(500.0, metrics.getRowsPerSecond("Calc, \"fast\""), 0.001);
+		Assert.assertEquals(0.0, metrics.getRowsPerSecond("no such step"), 0.001);
+		Assert.assertEquals(2, metrics.getStepNames().size());
+		Assert.assertEquals(1, metrics.getErrors());
+		Assert.assertEquals(2000, metrics.getHeapGrowth());
+	}
+
+	@Test
+	public void writeJson() throws IOException {
+		StringWriter out = new StringWriter();
+		metrics().writeJson(out);
+		String json = out.toString();
+		Assert.assertTrue(json.contains("\"name\": \"tr_test\""));
+		Assert.assertTrue(json.contains("\"step\": \"Calc, \\\"fast\\\"\", \"copy\": 1"));
+		Assert.assertTrue(json.contains("\"rowsPerSecond\": 2000.0"));
+	}
+
+	@Test
+	public void writeCsv() throws IOException {
+		StringWriter out = new StringWriter();
+		metrics().writeCsv(out);
+		String[] lines = out.toString().split("\n");
+		Assert.assertEquals(4, lines.length);
+		Assert.assertEquals("Table input,0,0,1000,1000,0,0,0,0,500,2000.0", lines[1]);
+		Assert.assertTrue(lines[3].startsWith("\"Calc, \"\"fast\"\"\",1,"));
+	}
+}
@@ -0,0 +1,145 @@
+package xbi.testutils.kettle;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A Runner that runs nothing, for tests of the classes that drive Runners.
+ * It counts the calls of each phase, can be told to fail a phase, reports
+ * the run durations it is given as its {@link RunMetrics} and can hold a run
+ * until it is stopped. Kettle has to be initialized first, see
+ * {@link TestTransformations#initKettle()}.
+ */
+class StubRunner extends Runner {
+
+	final AtomicInteger setups = new AtomicInteger();
+	final AtomicInteger verifies = new AtomicInteger();
+	final AtomicInteger runs = new AtomicInteger();
+	final AtomicInteger stops = new AtomicInteger();
+
+	// counted down when run() starts
+	final CountDownLatch running = new CountDownLatch(1);
+
+	private volatile boolean failSetup;
+	private volatile boolean failVerify;
+	private volatile boolean holdRun;
+	private volatile boolean stopped;
+	private final CountDownLatch released = new CountDownLatch(1);
+	private long[] durations = new long[0];
+	private boolean[] outcomes = new boolean[0];
+	private long rows;
+
+	StubRunner() {
+		super(new File("stub.ktr"));
+	}
+
+	StubRunner failSetup() {
+		failSetup = true;
+		return this;
+	}
+
+	StubRunner failVerify() {
+		failVerify = true;
+		return this;
+	}
+
+	/**
+	 * Makes run() wait until {@link #stop()} is called.
+	 */
+	StubRunner holdRun() {
+		holdRun = true;
+		return this;
+	}
+
+	/**
+	 * @param rows
+	 *            the rows the one step of each run handles
+	 * @param durations
+	 *            the duration of each run in turn; runs past the end report
+	 *            no metrics
+	 */
+	StubRunner durations(long rows, long... durations) {
+		this.rows = rows;
+		this.durations = durations;
+		return this;
+	}
+
+	/**
+	 * @param outcomes
+	 *            whether each run in turn completes; runs past the end do
+	 */
+	StubRunner outcomes(boolean... outcomes) {
+		this.outcomes = outcomes;
+		return this;
+	}
+
+	@Override
+	public void setup() {
+		resetState();
+		setRunMetrics(null);
+		stopped = false;
+		setups.incrementAndGet();
+		setState(Status.READY, !failSetup);
+	}
+
+	@Override
+	public void verify() {
+		verifies.incrementAndGet();
+		if (isReady()) {
+			setState(Status.VERIFIED, !failVerify);
+		}
+	}
+
+	@Override
+	public void run() {
+		if (!isVerified()) {
+			return;
+		}
+		int run = runs.getAndIncrement();
+		running.countDown();
+		if (holdRun) {
+			try {
+				released.await(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (run < durations.length) {
+			RunMetrics.StepMetrics step = new RunMetrics.StepMetrics("Output",
+					0, rows, rows, 0, 0, 0, 0, 0, durations[run]);
+			setRunMetrics(new RunMetrics(getXmlFile().getName(), 0,
+					durations[run], 0, 0, Collections.singletonList(step)));
+		}
+		setState(Status.COMPLETE, !stopped
+				&& (run >= outcomes.length || outcomes[run]));
+	}
+
+	@Override
+	public void rerun(String property, String propertyValue) {
+		setup();
+		setParameterValue(property, propertyValue);
+		verify();
+		run();
+	}
+
+	@Override
+	public void stop() {
+		stops.incrementAndGet();
+		stopped = true;
+		released.countDown();
+	}
+
+	@Override
+	public void setParameterValue(String property, String propertyValue) {
+	}
+
+	@Override
+	public Set<String> getParameterNames() {
+		return new HashSet<String>();
+	}
+}
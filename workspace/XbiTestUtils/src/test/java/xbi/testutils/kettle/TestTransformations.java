@@ -0,0 +1,159 @@
+package xbi.testutils.kettle;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import junit.framework.Assert;
+
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.job.JobHopMeta;
+import org.pentaho.di.job.JobMeta;
+import org.pentaho.di.job.entries.special.JobEntrySpecial;
+import org.pentaho.di.job.entries.success.JobEntrySuccess;
+import org.pentaho.di.job.entry.JobEntryCopy;
+import org.pentaho.di.trans.TransHopMeta;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.step.StepMeta;
+import org.pentaho.di.trans.steps.dummytrans.DummyTransMeta;
+import org.pentaho.di.trans.steps.rowgenerator.RowGeneratorMeta;
+
+/**
+ * Builds small transformations and jobs in memory for tests that need Kettle
+ * to run them, without any database, and captured rows for tests that
+ * compare them.
+ */
+public final class TestTransformations {
+
+	private TestTransformations() {
+	}
+
+	/**
+	 * Initializes Kettle through {@link KettleBootstrap}, with an empty
+	 * kettle.properties in a temporary KETTLE_HOME unless one is set.
+	 */
+	public static void initKettle() throws IOException {
+		if (System.getProperty(KettleBootstrap.PROP_KETTLE_HOME) == null) {
+			File home = File.createTempFile("xbi-kettle-home", "");
+			home.delete();
+			File kettleDir = new File(home, ".kettle");
+			kettleDir.mkdirs();
+			new File(kettleDir, "kettle.properties").createNewFile();
+			System.setProperty(KettleBootstrap.PROP_KETTLE_HOME,
+					home.getAbsolutePath());
+		}
+		System.setProperty(PluginRegistryCache.PROP_CACHE_ENABLED, "false");
+		KettleBootstrap.init();
+		Assert.assertTrue(KettleBootstrap.isInitialized());
+	}
+
+	/**
+	 * @param stepNames
+	 *            the steps, in hop order
+	 * @return a transformation of Dummy steps, each hopping to the next
+	 */
+	public static TransMeta dummyChain(String... stepNames) {
+		TransMeta transMeta = new TransMeta();
+		transMeta.setName("test");
+		StepMeta previous = null;
+		for (String stepName : stepNames) {
+			StepMeta step = new StepMeta(RowCapture.DUMMY_ID, stepName,
+					new DummyTransMeta());
+			transMeta.addStep(step);
+			if (previous != null) {
+				transMeta.addTransHop(new TransHopMeta(previous, step));
+			}
+			previous = step;
+		}
+		return transMeta;
+	}
+
+	/**
+	 * @param rows
+	 *            the number of empty rows to generate
+	 * @return a Generate rows step hopping to a Dummy step named Output
+	 */
+	public static TransMeta generator(int rows) {
+		TransMeta transMeta = dummyChain("Output");
+		RowGeneratorMeta generator = new RowGeneratorMeta();
+		generator.allocate(0);
+		generator.setRowLimit(String.valueOf(rows));
+		StepMeta step = new StepMeta("RowGenerator", "Generate rows",
+				generator);
+		transMeta.addStep(step);
+		transMeta.addTransHop(new TransHopMeta(step, transMeta
+				.findStep("Output")));
+		return transMeta;
+	}
+
+	/**
+	 * @param withStart
+	 *            false to leave out the START entry, which makes the job fail
+	 *            verification
+	 * @return a job of a START entry hopping to a Success entry
+	 */
+	public static JobMeta successJob(boolean withStart) {
+		JobMeta jobMeta = new JobMeta();
+		jobMeta.setName("test");
+		JobEntrySuccess success = new JobEntrySuccess("Success");
+		success.setPluginId("SUCCESS");
+		JobEntryCopy end = new JobEntryCopy(success);
+		jobMeta.addJobEntry(end);
+		if (withStart) {
+			JobEntrySpecial special = new JobEntrySpecial("START", true, false);
+			special.setPluginId("SPECIAL");
+			JobEntryCopy start = new JobEntryCopy(special);
+			jobMeta.addJobEntry(start);
+			jobMeta.addJobHop(new JobHopMeta(start, end));
+		}
+		return jobMeta;
+	}
+
+	/**
+	 * @param maxRowsInMemory
+	 *            the rows to keep in memory, the rest are spilled to a file
+	 * @param rowMeta
+	 *            the layout of the rows
+	 * @param rows
+	 *            the rows, as a step would capture them
+	 * @return the captured rows, to be disposed of by the caller
+	 */
+	public static CapturedRows capturedRows(int maxRowsInMemory,
+			RowMetaInterface rowMeta, Object[]... rows) throws KettleException {
+		CapturedRows captured = new CapturedRows("test", maxRowsInMemory);
+		for (Object[] row : rows) {
+			captured.add(rowMeta, row);
+		}
+		return captured;
+	}
+
+	/**
+	 * @return the job written to a temporary KJB file
+	 */
+	public static File writeKjb(JobMeta jobMeta) throws IOException,
+			KettleException {
+		return write(jobMeta.getXML(), ".kjb");
+	}
+
+	/**
+	 * @return the transformation written to a temporary KTR file
+	 */
+	public static File writeKtr(TransMeta transMeta) throws IOException,
+			KettleException {
+		return write(transMeta.getXML(), ".ktr");
+	}
+
+	private static File write(String xml, String suffix) throws IOException {
+		File file = File.createTempFile("xbi-test", suffix);
+		file.deleteOnExit();
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(xml.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+}
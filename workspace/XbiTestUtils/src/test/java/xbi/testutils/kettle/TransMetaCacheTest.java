@@ -0,0 +1,70 @@
+package xbi.testutils.kettle;
+
+import java.io.File;
+import java.util.Collections;
+
+import junit.framework.Assert;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.pentaho.di.trans.TransMeta;
+
+public class TransMetaCacheTest {
+
+	@BeforeClass
+	public static void initKettle() throws Exception {
+		TestTransformations.initKettle();
+	}
+
+	@Test
+	public void keepsTransformationSettings() throws Exception {
+		TransMeta original = TestTransformations.generator(3);
+		original.setSizeRowset(1234);
+		File ktr = TestTransformations.writeKtr(original);
+
+		TransMeta first = TransMetaCache.INSTANCE.get(ktr);
+		TransMeta second = TransMetaCache.INSTANCE.get(ktr);
+		Assert.assertNotSame(first, second);
+		Assert.assertEquals(1234, first.getSizeRowset());
+		Assert.assertEquals(1234, second.getSizeRowset());
+		Assert.assertEquals(ktr.getAbsolutePath(), first.getFilename());
+	}
+
+	@Test
+	public void hopsJoinTheStepsOfTheirOwnCopy() throws Exception {
+		File ktr = TestTransformations.writeKtr(TestTransformations
+				.generator(3));
+		TransMeta first = TransMetaCache.INSTANCE.get(ktr);
+		TransMeta second = TransMetaCache.INSTANCE.get(ktr);
+		Assert.assertSame(first.findStep("Output"), first.getTransHop(0)
+				.getToStep());
+		Assert.assertNotSame(first.findStep("Output"), second.findStep("Output"));
+	}
+
+	@Test
+	public void stepCopiesReachTheRunningTransformation() throws Exception {
+		File ktr = TestTransformations.writeKtr(TestTransformations
+				.generator(10));
+		TransMetaCache.INSTANCE.get(ktr); // cached before the override
+
+		TransformationRunner runner = new TransformationRunner(ktr);
+		runner.setOverrides(new TuningOverrides(-1, -1, Collections
+				.singletonMap("Output", 2)));
+		runner.setup();
+		runner.verify();
+		runner.run();
+		try {
+			Assert.assertTrue(runner.isComplete());
+			int copies = 0;
+			for (RunMetrics.StepMetrics step : runner.getRunMetrics()
+					.getSteps()) {
+				if (step.getStepName().equals("Output")) {
+					copies++;
+				}
+			}
+			Assert.assertEquals(2, copies);
+		} finally {
+			runner.releaseLogs();
+		}
+	}
+}
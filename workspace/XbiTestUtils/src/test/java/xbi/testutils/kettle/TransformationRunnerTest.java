@@ -0,0 +1,37 @@
+package xbi.testutils.kettle;
+
+import java.io.File;
+
+import junit.framework.Assert;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class TransformationRunnerTest {
+
+	private static File ktr;
+
+	@BeforeClass
+	public static void createTransformation() throws Exception {
+		TestTransformations.initKettle();
+		ktr = TestTransformations.writeKtr(TestTransformations.generator(3));
+	}
+
+	@Test
+	public void setupAgainNeedsVerification() {
+		TransformationRunner runner = new TransformationRunner(ktr);
+		runner.setup();
+		runner.verify();
+		Assert.assertTrue(runner.isVerified());
+
+		runner.setup();
+		Assert.assertFalse(runner.isVerified());
+		runner.run();
+		Assert.assertFalse(runner.isComplete());
+
+		runner.verify();
+		runner.run();
+		Assert.assertTrue(runner.isComplete());
+		runner.releaseLogs();
+	}
+}
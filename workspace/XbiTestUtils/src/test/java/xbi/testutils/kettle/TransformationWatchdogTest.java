@@ -0,0 +1,77 @@
+package xbi.testutils.kettle;
+
+import java.io.File;
+
+import junit.framework.Assert;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.pentaho.di.trans.TransHopMeta;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.step.StepMeta;
+import org.pentaho.di.trans.steps.delay.DelayMeta;
+
+public class TransformationWatchdogTest {
+
+	@BeforeClass
+	public static void init() throws Exception {
+		TestTransformations.initKettle();
+	}
+
+	private static TransformationRunner run(File ktr, long stallMillis,
+			long runMillis) {
+		TransformationRunner runner = new TransformationRunner(ktr);
+		runner.setTimeouts(stallMillis, runMillis);
+		runner.setup();
+		runner.verify();
+		runner.run();
+		runner.releaseLogs();
+		return runner;
+	}
+
+	@Test
+	public void finishedRunHasNoReport() throws Exception {
+		TransformationRunner runner = run(
+				TestTransformations.writeKtr(TestTransformations.generator(3)),
+				5000, 60000);
+		Assert.assertTrue(runner.isComplete());
+		Assert.assertNull(runner.getAbortReport());
+	}
+
+	@Test
+	public void stopsOverlongRun() throws Exception {
+		TransformationRunner runner = run(
+				TestTransformations.writeKtr(TestTransformations
+						.generator(1000000000)), 0, 500);
+		Assert.assertFalse(runner.isComplete());
+		String report = runner.getAbortReport();
+		Assert.assertNotNull(report);
+		Assert.assertTrue(report, report.contains("the limit is 500 ms"));
+		Assert.assertTrue(report, report.contains("Generate rows.0"));
+		Assert.assertTrue(report, report.contains("Output.0"));
+	}
+
+	@Test
+	public void stopsStalledRun() throws Exception {
+		// every row waits a minute in Wait, so nothing moves after the first
+		TransMeta transMeta = TestTransformations.generator(10);
+		DelayMeta delay = new DelayMeta();
+		delay.setDefault();
+		delay.setTimeOut("1");
+		delay.setScaleTimeCode(2);
+		StepMeta wait = new StepMeta("Delay", "Wait", delay);
+		transMeta.addStep(wait);
+		transMeta.addTransHop(new TransHopMeta(transMeta.findStep("Output"),
+				wait));
+
+		long start = System.currentTimeMillis();
+		TransformationRunner runner = run(
+				TestTransformations.writeKtr(transMeta), 1000, 0);
+		Assert.assertTrue(System.currentTimeMillis() - start < 60000);
+		Assert.assertFalse(runner.isComplete());
+		String report = runner.getAbortReport();
+		Assert.assertNotNull(report);
+		Assert.assertTrue(report, report.contains("no rows have moved"));
+		Assert.assertTrue(report, report.contains("Wait.0"));
+	}
+}
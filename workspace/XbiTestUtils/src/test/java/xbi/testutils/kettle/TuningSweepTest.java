@@ -0,0 +1,118 @@
+package xbi.testutils.kettle;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class TuningSweepTest {
+
+	private TuningSweep sweep(String grid) {
+		TuningSweep sweep = new TuningSweep(new File("tr_test.ktr"), 0, 1);
+		sweep.setGrid(grid);
+		return sweep;
+	}
+
+	@Test
+	public void combinations() {
+		List<TuningOverrides> combinations = sweep(
+				"rowset=1000,10000; feedback=500 ;copies:Lookup customer=1,2,4")
+				.getCombinations();
+		Assert.assertEquals(6, combinations.size());
+		TuningOverrides first = combinations.get(0);
+		Assert.assertEquals(1000, first.getRowSetSize());
+		Assert.assertEquals(500, first.getFeedbackSize());
+		Assert.assertEquals(Integer.valueOf(1),
+				first.getStepCopies().get("Lookup customer"));
+		TuningOverrides last = combinations.get(5);
+		Assert.assertEquals(10000, last.getRowSetSize());
+		Assert.assertEquals(Integer.valueOf(4),
+				last.getStepCopies().get("Lookup customer"));
+	}
+
+	@Test
+	public void emptyGridKeepsTransformation() {
+		List<TuningOverrides> combinations = sweep("").getCombinations();
+		Assert.assertEquals(1, combinations.size());
+		Assert.assertEquals(-1, combinations.get(0).getRowSetSize());
+		Assert.assertEquals(-1, combinations.get(0).getFeedbackSize());
+		Assert.assertTrue(combinations.get(0).getStepCopies().isEmpty());
+	}
+
+	@Test
+	public void severalSteps() {
+		List<TuningOverrides> combinations = sweep(
+				"copies:A=1,2;copies:B=1,2,3").getCombinations();
+		Assert.assertEquals(6, combinations.size());
+		Assert.assertEquals(2, combinations.get(0).getStepCopies().size());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unknownSetting() {
+		sweep("rowsets=1000");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void notANumber() {
+		sweep("rowset=big");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void notPositive() {
+		sweep("copies:A=0");
+	}
+
+	private Benchmark measured(long rowsPerSecond, long wallMillis) {
+		Benchmark benchmark = new Benchmark(new File("tr_test.ktr"), 0, 1);
+		benchmark.getRowsPerSecond().add(rowsPerSecond);
+		benchmark.getWallMillis().add(wallMillis);
+		return benchmark;
+	}
+
+	@Test
+	public void ranksFastestFirstAndFailuresLast() throws Exception {
+		TestTransformations.initKettle();
+		File ktr = TestTransformations.writeKtr(TestTransformations
+				.generator(10));
+		Benchmark failed = new Benchmark(ktr, 0, 1);
+		failed.setOverrides(new TuningOverrides(-1, -1, Collections
+				.singletonMap("Missing", 2)));
+		failed.run();
+		Assert.assertEquals(1, failed.getFailures());
+
+		Benchmark slow = measured(1000, 500);
+		Benchmark fast = measured(5000, 900);
+		Benchmark fastAndShort = measured(5000, 800);
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>(Arrays.asList(
+				failed, slow, fast, fastAndShort));
+		TuningSweep.rank(benchmarks);
+		Assert.assertEquals(Arrays.asList(fastAndShort, fast, slow, failed),
+				benchmarks);
+	}
+
+	@Test
+	public void runsEveryCombination() throws Exception {
+		TestTransformations.initKettle();
+		File ktr = TestTransformations.writeKtr(TestTransformations
+				.generator(1000));
+		TuningSweep sweep = new TuningSweep(ktr, 0, 1);
+		sweep.setGrid("copies:Output=1,2");
+		List<Benchmark> ranked = sweep.run();
+		Assert.assertEquals(2, ranked.size());
+		for (int i = 0; i < ranked.size(); i++) {
+			Assert.assertEquals(0, ranked.get(i).getFailures());
+			Assert.assertEquals(1, ranked.get(i).getWallMillis().getCount());
+			if (i > 0) {
+				Assert.assertTrue(ranked.get(i - 1).getRowsPerSecond()
+						.getPercentile(50) >= ranked.get(i).getRowsPerSecond()
+						.getPercentile(50));
+			}
+		}
+		Assert.assertTrue(sweep.formatReport(ranked).contains("Output"));
+	}
+}
@@ -0,0 +1,63 @@
+package xbi.testutils.kettle;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.pentaho.di.core.CheckResult;
+import org.pentaho.di.core.CheckResultInterface;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.step.StepMeta;
+
+public class VerificationCacheTest {
+
+	@BeforeClass
+	public static void init() throws Exception {
+		TestTransformations.initKettle();
+	}
+
+	@Before
+	public void clear() {
+		VerificationCache.INSTANCE.clear();
+	}
+
+	@Test
+	public void keepsRemarksWithoutTheirTransformation() {
+		TransMeta transMeta = TestTransformations.dummyChain("Input", "Output");
+		StepMeta output = transMeta.findStep("Output");
+		Assert.assertSame(transMeta, output.getParentTransMeta());
+		List<CheckResultInterface> remarks = new ArrayList<CheckResultInterface>();
+		remarks.add(new CheckResult(CheckResultInterface.TYPE_RESULT_ERROR,
+				"no input", output));
+		remarks.add(new CheckResult(CheckResultInterface.TYPE_RESULT_OK,
+				"fine", null));
+
+		String key = VerificationCache.key("/tmp/test.ktr", "abc",
+				Collections.<String, String> emptyMap());
+		VerificationCache.INSTANCE.put(key, remarks);
+		List<CheckResultInterface> cached = VerificationCache.INSTANCE
+				.get(key);
+		Assert.assertEquals(2, cached.size());
+		CheckResultInterface error = cached.get(0);
+		Assert.assertEquals(CheckResultInterface.TYPE_RESULT_ERROR,
+				error.getType());
+		Assert.assertEquals("no input", error.getText());
+		Assert.assertEquals("Output", error.getSourceInfo().getName());
+		Assert.assertNotSame(output, error.getSourceInfo());
+		Assert.assertNull(((StepMeta) error.getSourceInfo())
+				.getParentTransMeta());
+		Assert.assertNull(cached.get(1).getSourceInfo());
+		Assert.assertEquals(1, VerificationCache.INSTANCE.getHits());
+	}
+
+	@Test
+	public void missesUnknownKey() {
+		Assert.assertNull(VerificationCache.INSTANCE.get("unknown"));
+		Assert.assertEquals(1, VerificationCache.INSTANCE.getMisses());
+	}
+}